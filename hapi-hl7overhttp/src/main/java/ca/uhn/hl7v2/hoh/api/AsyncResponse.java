@@ -0,0 +1,154 @@
+package ca.uhn.hl7v2.hoh.api;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * A response which an {@link IAsyncMessageHandler} completes once it is
+ * ready, from any thread.
+ * <p>
+ * This class is thread safe.
+ * </p>
+ * 
+ * @param <T>
+ *            The message type
+ */
+public class AsyncResponse<T> implements Future<IResponseSendable<T>> {
+
+	private static final org.slf4j.Logger ourLog = org.slf4j.LoggerFactory.getLogger(AsyncResponse.class);
+
+	private volatile boolean myCancelled;
+	private final AtomicBoolean myDone = new AtomicBoolean();
+	private volatile MessageProcessingException myException;
+	private final CountDownLatch myLatch = new CountDownLatch(1);
+	private final List<Runnable> myListeners = new ArrayList<Runnable>();
+	private volatile IResponseSendable<T> myResponse;
+
+	/**
+	 * Adds a listener which is run once this response is complete, on the
+	 * thread which completes it. If the response is already complete, the
+	 * listener is run immediately on the calling thread.
+	 */
+	public void addListener(Runnable theListener) {
+		synchronized (myListeners) {
+			if (!isDone()) {
+				myListeners.add(theListener);
+				return;
+			}
+		}
+		runListener(theListener);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	public boolean cancel(boolean theMayInterruptIfRunning) {
+		if (!myDone.compareAndSet(false, true)) {
+			return false;
+		}
+		myCancelled = true;
+		complete();
+		return true;
+	}
+
+	private void complete() {
+		myLatch.countDown();
+		List<Runnable> listeners;
+		synchronized (myListeners) {
+			listeners = new ArrayList<Runnable>(myListeners);
+			myListeners.clear();
+		}
+		for (Runnable next : listeners) {
+			runListener(next);
+		}
+	}
+
+	/**
+	 * Completes this response with a failure, which is returned to the
+	 * client as an HTTP 500 error
+	 * 
+	 * @return Returns <code>false</code> if the response was already
+	 *         complete
+	 */
+	public boolean fail(MessageProcessingException theException) {
+		if (!myDone.compareAndSet(false, true)) {
+			return false;
+		}
+		myException = theException;
+		complete();
+		return true;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	public IResponseSendable<T> get() throws InterruptedException, ExecutionException {
+		myLatch.await();
+		return getResult();
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	public IResponseSendable<T> get(long theTimeout, TimeUnit theUnit) throws InterruptedException, ExecutionException, TimeoutException {
+		if (!myLatch.await(theTimeout, theUnit)) {
+			throw new TimeoutException();
+		}
+		return getResult();
+	}
+
+	private IResponseSendable<T> getResult() throws ExecutionException {
+		if (myCancelled) {
+			throw new CancellationException();
+		}
+		if (myException != null) {
+			throw new ExecutionException(myException);
+		}
+		return myResponse;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	public boolean isCancelled() {
+		return myCancelled;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	public boolean isDone() {
+		return myDone.get();
+	}
+
+	private static void runListener(Runnable theListener) {
+		try {
+			theListener.run();
+		} catch (RuntimeException e) {
+			ourLog.error("Response listener threw an exception", e);
+		}
+	}
+
+	/**
+	 * Completes this response successfully
+	 * 
+	 * @return Returns <code>false</code> if the response was already
+	 *         complete
+	 */
+	public boolean succeed(IResponseSendable<T> theResponse) {
+		if (!myDone.compareAndSet(false, true)) {
+			return false;
+		}
+		myResponse = theResponse;
+		complete();
+		return true;
+	}
+
+}
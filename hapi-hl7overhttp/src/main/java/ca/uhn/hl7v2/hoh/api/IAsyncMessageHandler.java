@@ -0,0 +1,34 @@
+package ca.uhn.hl7v2.hoh.api;
+
+import ca.uhn.hl7v2.hoh.raw.server.HohRawServlet;
+
+/**
+ * <p>
+ * Service interface which can be implemented by an application to process
+ * incoming messages received by {@link HohRawServlet} without tying up a
+ * servlet container thread while the response is being prepared.
+ * </p>
+ * <p>
+ * The handler should hand the message off (e.g. to a queue or another
+ * thread pool) and return straight away. The response is sent when the
+ * returned {@link AsyncResponse} is completed, from whichever thread
+ * completes it.
+ * </p>
+ * 
+ * @see HohRawServlet#setAsyncMessageHandler(IAsyncMessageHandler)
+ */
+public interface IAsyncMessageHandler<T> {
+
+	/**
+	 * Accepts a message for processing
+	 * 
+	 * @return The response, which may be completed later by any thread.
+	 *         Complete it using
+	 *         {@link AsyncResponse#fail(MessageProcessingException)} if the
+	 *         message can't be processed.
+	 * @throws MessageProcessingException
+	 *             If the message can't be accepted for processing
+	 */
+	AsyncResponse<T> messageReceived(IReceivable<T> theMessage) throws MessageProcessingException;
+
+}
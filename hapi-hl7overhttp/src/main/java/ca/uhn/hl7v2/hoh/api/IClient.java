@@ -4,9 +4,14 @@ import java.net.Socket;
 import java.net.URL;
 import java.nio.charset.Charset;
 
+import ca.uhn.hl7v2.hoh.encoder.TransferEncoding;
+import ca.uhn.hl7v2.hoh.metrics.IMetricsListener;
+import ca.uhn.hl7v2.hoh.metrics.InMemoryMetrics;
 import ca.uhn.hl7v2.hoh.sign.ISigner;
 import ca.uhn.hl7v2.hoh.sockets.ISocketFactory;
 import ca.uhn.hl7v2.hoh.sockets.StandardSocketFactory;
+import ca.uhn.hl7v2.hoh.util.CompressionDictionary;
+import ca.uhn.hl7v2.hoh.util.CompressionDictionaryRegistry;
 
 public interface IClient {
 
@@ -29,6 +34,30 @@ public interface IClient {
 	 */
 	ISocketFactory getSocketFactory();
 
+	/**
+	 * Returns the maximum number of requests which may be outstanding on a
+	 * single connection at the same time
+	 * 
+	 * @see #setPipelineDepth(int)
+	 */
+	int getPipelineDepth();
+
+	/**
+	 * Returns the transfer encoding used to send request bodies, or
+	 * <code>null</code> if a <code>Content-Length</code> is sent
+	 * 
+	 * @see #setRequestTransferEncoding(TransferEncoding)
+	 */
+	TransferEncoding getRequestTransferEncoding();
+
+	/**
+	 * Returns <code>true</code> if signed requests may be streamed using
+	 * chunked transfer encoding, with the signature in a trailer
+	 * 
+	 * @see #setRequestSignatureInTrailer(boolean)
+	 */
+	boolean isRequestSignatureInTrailer();
+
 	/**
 	 * Getter for the "Path" portion of the URL. This is the path portion which
 	 * comes after the host and port, so for example if this client is being
@@ -82,6 +111,54 @@ public interface IClient {
 	 */
 	boolean isKeepAlive();
 
+	/**
+	 * If set to <code>true</code> (the default), requests include an
+	 * <code>Accept-Encoding: gzip</code> header so that the server may GZip
+	 * large responses. Compressed responses are uncompressed transparently.
+	 */
+	void setAcceptGzip(boolean theAcceptGzip);
+
+	/**
+	 * If set, request bodies are compressed using the given preset
+	 * dictionary. The server must have the same dictionary registered. The
+	 * dictionary is also registered in the
+	 * {@link CompressionDictionaryRegistry#getDefaultInstance() default
+	 * registry} so that responses compressed with it can be decoded.
+	 */
+	void setCompressionDictionary(CompressionDictionary theCompressionDictionary);
+
+	/**
+	 * Returns the dictionary used to compress request bodies, or
+	 * <code>null</code>
+	 *
+	 * @see #setCompressionDictionary(CompressionDictionary)
+	 */
+	CompressionDictionary getCompressionDictionary();
+
+	/**
+	 * Sets a listener which the time taken by each phase of sending a request
+	 * and receiving its response is reported to, such as an
+	 * {@link InMemoryMetrics}. Default is <code>null</code>, in which case
+	 * nothing is timed.
+	 */
+	void setMetricsListener(IMetricsListener theMetricsListener);
+
+	/**
+	 * Returns the listener which phase timings are reported to, or
+	 * <code>null</code>
+	 *
+	 * @see #setMetricsListener(IMetricsListener)
+	 */
+	IMetricsListener getMetricsListener();
+
+	/**
+	 * Returns <code>true</code> if requests advertise that GZipped responses
+	 * are accepted
+	 *
+	 * @see #setAcceptGzip(boolean)
+	 */
+	boolean isAcceptGzip();
+
 	/**
 	 * Sets the TCP SO Timeout setting for new connections
 	 * 
@@ -105,11 +182,58 @@ public interface IClient {
 	 */
 	void setUriPath(String thePath);
 
+	/**
+	 * <p>
+	 * Sets the maximum number of requests which may be outstanding on a single
+	 * connection at the same time. The default is 1, meaning that each
+	 * request waits for its response before another request is sent on the
+	 * same connection.
+	 * </p>
+	 * <p>
+	 * A value greater than 1 enables HTTP/1.1 pipelining: requests sent from
+	 * several threads at once are all written to one kept-alive connection
+	 * without waiting for the responses, which are then matched to their
+	 * requests in the order they were sent. If the server closes the
+	 * connection using a <code>Connection: close</code> header while requests
+	 * are outstanding, those requests are sent again on a new connection.
+	 * Note that the remote server must support pipelining for this to work.
+	 * </p>
+	 */
+	void setPipelineDepth(int thePipelineDepth);
+
 	/**
 	 * Getter for the port (e.g. 80 for standard HTTP)
 	 */
 	void setPort(int thePort);
 
+	/**
+	 * <p>
+	 * Sets the transfer encoding used to send request bodies. The default is
+	 * <code>null</code>, meaning that each message is fully encoded so that a
+	 * <code>Content-Length</code> header can be sent.
+	 * </p>
+	 * <p>
+	 * If set to {@link TransferEncoding#CHUNKED}, the message is streamed to
+	 * the server in chunks while it is being encoded, so that very large
+	 * messages do not need to be held in memory. If a signer is set, signed
+	 * messages are still sent with a <code>Content-Length</code> and the
+	 * signature in a header, unless
+	 * {@link #setRequestSignatureInTrailer(boolean)} is enabled.
+	 * </p>
+	 */
+	void setRequestTransferEncoding(TransferEncoding theTransferEncoding);
+
+	/**
+	 * If set to <code>true</code>, and a signer and
+	 * {@link #setRequestTransferEncoding(TransferEncoding) chunked transfer
+	 * encoding} are both set, signed requests are streamed too, and the
+	 * signature is sent in an <code>HL7-Signature</code> trailer after the
+	 * body. The server must read trailers in order to verify it, which
+	 * {@link ca.uhn.hl7v2.hoh.raw.server.HohRawServlet} can not do. Default
+	 * is <code>false</code>.
+	 */
+	void setRequestSignatureInTrailer(boolean theRequestSignatureInTrailer);
+
 	/**
 	 * Sets the number of milliseconds before timing out. Default is
 	 * {@link #DEFAULT_RESPONSE_TIMEOUT}
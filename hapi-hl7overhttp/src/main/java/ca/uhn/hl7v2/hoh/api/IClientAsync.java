@@ -0,0 +1,85 @@
+package ca.uhn.hl7v2.hoh.api;
+
+import java.util.concurrent.Future;
+
+import ca.uhn.hl7v2.hoh.raw.client.HohRawClientAsync;
+
+/**
+ * Client which sends messages without blocking the calling thread while
+ * waiting for the response
+ */
+public interface IClientAsync extends IClient {
+
+	/**
+	 * Closes any open connections and stops the I/O thread. Requests which are
+	 * still outstanding will fail. The client may be used again after it is
+	 * closed, in which case new connections will be opened.
+	 */
+	public abstract void close();
+
+	/**
+	 * Returns the number of millis to keep an idle connection open before
+	 * closing it
+	 */
+	public abstract long getIdleTimeout();
+
+	/**
+	 * Returns the maximum number of connections which may be open to the
+	 * remote host at the same time
+	 */
+	public abstract int getMaxConnections();
+
+	/**
+	 * Sends a message without waiting for the response. The message is encoded
+	 * (and signed, if a signer is configured) on the calling thread, but all
+	 * network I/O takes place in the background.
+	 * 
+	 * @param theMessageToSend
+	 *            The message to send
+	 * @return A future which will provide the response, or an
+	 *         {@link java.util.concurrent.ExecutionException} wrapping the
+	 *         cause of the failure
+	 * @throws EncodeException
+	 *             If a failure occurs while encoding the message into a
+	 *             sendable HTTP request
+	 */
+	public abstract Future<IReceivable<String>> sendAndReceiveAsync(ISendable<?> theMessageToSend) throws EncodeException;
+
+	/**
+	 * Sends a message without waiting for the response, and notifies the
+	 * given callback when the request completes. The callback is invoked on
+	 * one of the client's worker threads, so a callback which blocks delays
+	 * other callbacks but not network I/O.
+	 * 
+	 * @param theMessageToSend
+	 *            The message to send
+	 * @param theCallback
+	 *            The callback to notify (may be <code>null</code>)
+	 * @return A future which will provide the response
+	 * @throws EncodeException
+	 *             If a failure occurs while encoding the message into a
+	 *             sendable HTTP request
+	 */
+	public abstract Future<IReceivable<String>> sendAndReceiveAsync(ISendable<?> theMessageToSend, IResponseCallback<String> theCallback) throws EncodeException;
+
+	/**
+	 * <p>
+	 * Sets the number of millis to keep an idle connection open before closing
+	 * it. Default is {@link HohRawClientAsync#DEFAULT_IDLE_TIMEOUT}
+	 * </p>
+	 * <p>
+	 * A value of 0 indicates that connections are closed as soon as the
+	 * response has been received.
+	 * </p>
+	 */
+	public abstract void setIdleTimeout(long theIdleTimeout);
+
+	/**
+	 * Sets the maximum number of connections which may be open to the remote
+	 * host at the same time. Requests sent while all connections are busy are
+	 * queued until one becomes free. Default is
+	 * {@link HohRawClientAsync#DEFAULT_MAX_CONNECTIONS}
+	 */
+	public abstract void setMaxConnections(int theMaxConnections);
+
+}
@@ -1,5 +1,7 @@
 package ca.uhn.hl7v2.hoh.api;
 
+import java.io.IOException;
+
 import ca.uhn.hl7v2.hoh.raw.client.HohRawClientMultithreaded;
 
 public interface IClientMultithreaded extends IClient {
@@ -27,4 +29,76 @@ public interface IClientMultithreaded extends IClient {
 	 */
 	public abstract long getSocketTimeout();
 
-}
\ No newline at end of file
+	/**
+	 * <p>
+	 * Sets the maximum number of connections (idle and in use) which may be
+	 * open to the remote host at the same time. Requests sent while this many
+	 * connections are in use wait for a connection to be returned. Default is
+	 * {@link HohRawClientMultithreaded#DEFAULT_MAX_TOTAL_CONNECTIONS}
+	 * </p>
+	 */
+	public abstract void setMaxTotalConnections(int theMaxTotalConnections);
+
+	/**
+	 * Returns the maximum number of connections (idle and in use) which may be
+	 * open to the remote host at the same time
+	 */
+	public abstract int getMaxTotalConnections();
+
+	/**
+	 * <p>
+	 * Sets the maximum number of idle connections to keep open. A value of -1
+	 * (the default) indicates no limit.
+	 * </p>
+	 */
+	public abstract void setMaxIdleConnections(int theMaxIdleConnections);
+
+	/**
+	 * Returns the maximum number of idle connections to keep open
+	 */
+	public abstract int getMaxIdleConnections();
+
+	/**
+	 * <p>
+	 * Sets the minimum number of idle connections to keep open. Idle
+	 * connections up to this number are not closed by the
+	 * {@link #setSocketTimeout(long) socket timeout}, and a background keeper
+	 * periodically replaces any which have been closed by the server. Default
+	 * is 0.
+	 * </p>
+	 */
+	public abstract void setMinIdleConnections(int theMinIdleConnections);
+
+	/**
+	 * Returns the minimum number of idle connections to keep open
+	 */
+	public abstract int getMinIdleConnections();
+
+	/**
+	 * <p>
+	 * Sets the number of millis a connection may sit idle before it is checked
+	 * for staleness (i.e. closed by the server) when it is next used. The
+	 * check takes about a millisecond. A value of -1 disables the check.
+	 * Default is {@link HohRawClientMultithreaded#DEFAULT_VALIDATE_AFTER_IDLE}
+	 * </p>
+	 */
+	public abstract void setValidateAfterIdle(long theValidateAfterIdle);
+
+	/**
+	 * Returns the number of millis a connection may sit idle before it is
+	 * checked for staleness
+	 */
+	public abstract long getValidateAfterIdle();
+
+	/**
+	 * Opens new connections until at least the given number are idle (within
+	 * the configured maximums), so that the next requests do not have to wait
+	 * for a connection to be established.
+	 *
+	 * @return The number of connections opened
+	 * @throws IOException
+	 *             If a connection can not be opened
+	 */
+	public abstract int warmUp(int theConnectionCount) throws IOException;
+
+}
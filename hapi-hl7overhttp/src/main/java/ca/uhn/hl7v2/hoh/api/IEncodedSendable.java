@@ -0,0 +1,23 @@
+package ca.uhn.hl7v2.hoh.api;
+
+import java.nio.charset.Charset;
+
+/**
+ * A sendable which already holds its message as encoded bytes. The encoders
+ * send these bytes exactly as they are, and declare the given character set
+ * in the <code>Content-Type</code> header, instead of encoding the message
+ * using the charset of the client.
+ */
+public interface IEncodedSendable<T> extends ISendable<T> {
+
+	/**
+	 * Returns the encoded message. The array must not be modified.
+	 */
+	byte[] getEncodedMessage();
+
+	/**
+	 * Returns the character set in which the message is encoded
+	 */
+	Charset getCharset();
+
+}
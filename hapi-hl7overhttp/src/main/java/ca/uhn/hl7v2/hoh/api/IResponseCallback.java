@@ -0,0 +1,32 @@
+package ca.uhn.hl7v2.hoh.api;
+
+/**
+ * Callback which is notified when an asynchronous request completes
+ * 
+ * @param <T>
+ *            The message type
+ * @see IClientAsync
+ */
+public interface IResponseCallback<T> {
+
+	/**
+	 * Invoked if the request fails for any reason, including a timeout while
+	 * waiting for the response
+	 * 
+	 * @param theException
+	 *            The failure. This will generally be a {@link DecodeException}
+	 *            if the response could not be read, or an
+	 *            {@link java.io.IOException} if the client could not connect
+	 *            to the remote host
+	 */
+	void onFailure(Exception theException);
+
+	/**
+	 * Invoked when a response has been received
+	 * 
+	 * @param theResponse
+	 *            The response
+	 */
+	void onResponse(IReceivable<T> theResponse);
+
+}
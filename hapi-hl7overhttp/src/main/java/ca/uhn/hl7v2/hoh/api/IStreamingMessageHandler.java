@@ -0,0 +1,39 @@
+package ca.uhn.hl7v2.hoh.api;
+
+import java.io.Reader;
+
+import ca.uhn.hl7v2.hoh.raw.api.RawStreamingReceivable;
+import ca.uhn.hl7v2.hoh.raw.server.HohRawServlet;
+
+/**
+ * <p>
+ * Service interface which can be implemented by an application to process
+ * incoming messages received by {@link HohRawServlet} as they are read, so
+ * that large messages never need to be held in memory in full.
+ * </p>
+ * <p>
+ * The message contents are available from the {@link RawStreamingReceivable}
+ * until this method returns. If the message is signed, the signature is
+ * checked when the end of the contents is reached, and reading fails with an
+ * {@link java.io.IOException} if it doesn't match, so a handler should read
+ * to the end before acting on a message. Whatever the handler returns, the
+ * client receives an error if the signature is not valid.
+ * </p>
+ *
+ * @see HohRawServlet#setStreamingMessageHandler(IStreamingMessageHandler)
+ */
+public interface IStreamingMessageHandler {
+
+	/**
+	 * Processes a message
+	 *
+	 * @param theMessage
+	 *            The message, whose {@link IReceivable#getMessage() contents}
+	 *            are read as they arrive
+	 * @return The response to send
+	 * @throws MessageProcessingException
+	 *             If the message can't be processed
+	 */
+	IResponseSendable<String> messageReceived(RawStreamingReceivable theMessage) throws MessageProcessingException;
+
+}
@@ -18,6 +18,12 @@ public enum MessageMetadataKeys {
 	 *  @see javax.servlet.http.HttpServletRequest#getRemoteAddr()
 	 */
 	REMOTE_HOST_ADDRESS(String.class),
+
+	/**
+	 * The HTTP status code of the response in which a message was received
+	 * by a client. Value will be an {@link Integer}.
+	 */
+	RESPONSE_STATUS_CODE(Integer.class),
 	;
 	
 	
@@ -4,6 +4,8 @@ import java.nio.charset.Charset;
 import java.util.LinkedHashMap;
 import java.util.Map;
 
+import ca.uhn.hl7v2.hoh.metrics.IMetricsListener;
+import ca.uhn.hl7v2.hoh.metrics.PhaseEnum;
 import ca.uhn.hl7v2.hoh.sign.ISigner;
 import ca.uhn.hl7v2.hoh.util.StringUtils;
 import ca.uhn.hl7v2.hoh.util.VersionLogger;
@@ -11,6 +13,8 @@ import ca.uhn.hl7v2.hoh.util.VersionLogger;
 abstract class AbstractHl7OverHttp {
 	public static final String HTTP_HEADER_HL7_SIGNATURE = "HL7-Signature";
 	public static final String HTTP_HEADER_HL7_SIGNATURE_LC = HTTP_HEADER_HL7_SIGNATURE.toLowerCase();
+	public static final String HTTP_HEADER_HL7_DICTIONARY_ID = "HL7-Dictionary-Id";
+	public static final String HTTP_HEADER_HL7_DICTIONARY_ID_LC = HTTP_HEADER_HL7_DICTIONARY_ID.toLowerCase();
 
 	protected static final Charset ourDefaultCharset;
 
@@ -24,6 +28,7 @@ abstract class AbstractHl7OverHttp {
 	private byte[] myData;
 	private LinkedHashMap<String, String> myHeaders;
 	private String myMessage;
+	private IMetricsListener myMetricsListener;
 	private String myPassword;
 	private ISigner mySigner;
 	private String myPath;
@@ -66,6 +71,14 @@ abstract class AbstractHl7OverHttp {
 	}
 
 
+	/**
+	 * Returns the listener which phase timings are reported to, or
+	 * <code>null</code>
+	 */
+	public IMetricsListener getMetricsListener() {
+		return myMetricsListener;
+	}
+
 	/**
 	 * @return the password
 	 */
@@ -148,6 +161,15 @@ abstract class AbstractHl7OverHttp {
 		myMessage = theMessage;
 	}
 
+	/**
+	 * Sets a listener which the time taken by each phase of encoding or
+	 * decoding is reported to. Default is <code>null</code>, in which case
+	 * nothing is timed.
+	 */
+	public void setMetricsListener(IMetricsListener theMetricsListener) {
+		myMetricsListener = theMetricsListener;
+	}
+
 	/**
 	 * @param thePassword
 	 *            The authorization password
@@ -188,6 +210,23 @@ abstract class AbstractHl7OverHttp {
 		myUsername = theUsername;
 	}
 
+	/**
+	 * Returns the current time for starting to time a phase, or 0 if there is
+	 * no metrics listener to report it to
+	 */
+	protected long startPhase() {
+		return myMetricsListener != null ? System.nanoTime() : 0;
+	}
+
+	/**
+	 * Reports a phase started by {@link #startPhase()} as completed
+	 */
+	protected void endPhase(PhaseEnum thePhase, long theStartNanos) {
+		if (myMetricsListener != null) {
+			myMetricsListener.phaseCompleted(thePhase, System.nanoTime() - theStartNanos);
+		}
+	}
+
 	/**
 	 * Throws an {@link IllegalStateException} if called more than once 
 	 */
@@ -1,31 +1,46 @@
 package ca.uhn.hl7v2.hoh.encoder;
 
-import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.net.Socket;
 import java.net.SocketException;
 import java.net.SocketTimeoutException;
 import java.nio.charset.Charset;
 import java.nio.charset.UnsupportedCharsetException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.regex.Pattern;
+import java.util.zip.GZIPInputStream;
 
 import ca.uhn.hl7v2.hoh.api.DecodeException;
 import ca.uhn.hl7v2.hoh.api.NonHl7ResponseException;
+import ca.uhn.hl7v2.hoh.metrics.PhaseEnum;
+import ca.uhn.hl7v2.hoh.sign.IStreamingSigner;
 import ca.uhn.hl7v2.hoh.sign.SignatureFailureException;
 import ca.uhn.hl7v2.hoh.sign.SignatureVerificationException;
+import ca.uhn.hl7v2.hoh.sign.VerifyingInputStream;
 import ca.uhn.hl7v2.hoh.util.ByteUtils;
+import ca.uhn.hl7v2.hoh.util.CompressionDictionary;
+import ca.uhn.hl7v2.hoh.util.CompressionDictionaryRegistry;
 import ca.uhn.hl7v2.hoh.util.GZipUtils;
+import ca.uhn.hl7v2.hoh.util.HTTPUtils;
 import ca.uhn.hl7v2.hoh.util.IOUtils;
+import ca.uhn.hl7v2.hoh.util.PooledByteArrayOutputStream;
 import ca.uhn.hl7v2.hoh.util.StringUtils;
+import ca.uhn.hl7v2.hoh.util.Validate;
 import ca.uhn.hl7v2.hoh.util.repackage.Base64;
 
 public abstract class AbstractHl7OverHttpDecoder extends AbstractHl7OverHttp {
 
-	private static final Pattern WHITESPACE_PATTERN = Pattern.compile("\\s+");
+	/**
+	 * Lower case names of the headers which are used while decoding
+	 */
+	private static final String[] DECODED_HEADERS = { "content-type", "content-length", "transfer-encoding", "connection", "authorization", "content-encoding", "accept-encoding", HTTP_HEADER_HL7_SIGNATURE_LC, HTTP_HEADER_HL7_DICTIONARY_ID_LC };
+	private static final byte[][] DECODED_HEADER_BYTES;
 
 	/**
 	 * Default amount of time that the decoder will attempt to read before
@@ -38,19 +53,41 @@ public abstract class AbstractHl7OverHttpDecoder extends AbstractHl7OverHttp {
 	private static final org.slf4j.Logger ourLog = org.slf4j.LoggerFactory.getLogger(AbstractHl7OverHttpDecoder.class);
 
 	private byte[] myBytes;
+	private CompressionDictionary myCompressionDictionary;
+	private boolean myCompressionDictionaryCoding;
+	private String myCompressionDictionaryId;
+	private CompressionDictionaryRegistry myCompressionDictionaryRegistry = CompressionDictionaryRegistry.getDefaultInstance();
 	private List<String> myConformanceProblems;
 	private int myContentLength = -1;
 	private String myContentType;
 	private boolean myGzipCoding;
+	private int myCurrentSoTimeout = -1;
 	private long myLastStartedReading;
+	private int myOriginalSoTimeout = -1;
 	private long myReadTimeout = DEFAULT_READ_TIMEOUT;
 	private String myResponseName;
 	private Integer myResponseStatus;
 	private TransferEncoding myTransferEncoding;
 	private String mySignature;
+	private Exception mySignatureFailure;
+	private boolean mySignatureVerified;
+	private InputStream myStreamedBody;
+	private InputStream myStreamedContents;
+	private VerifyingInputStream myVerifyingStream;
+	private Socket mySocket;
 	private EncodingStyle myEncodingStyle;
 
 	private boolean myConnectionCloseHeaderIsPresent;
+	private boolean myGzipAccepted;
+	private HttpHead myHead;
+	private byte[] myLineBuffer;
+
+	static {
+		DECODED_HEADER_BYTES = new byte[DECODED_HEADERS.length][];
+		for (int i = 0; i < DECODED_HEADERS.length; i++) {
+			DECODED_HEADER_BYTES[i] = DECODED_HEADERS[i].getBytes(HTTPUtils.DEFAULT_CHARSET);
+		}
+	}
 
 	private void addConformanceProblem(String theString) {
 		ourLog.debug("Conformance problem detected: {}", theString);
@@ -76,30 +113,68 @@ public abstract class AbstractHl7OverHttpDecoder extends AbstractHl7OverHttp {
 	}
 
 	private void decodeBody() throws DecodeException {
-		byte[] bytes = myBytes;
+		decodeBody(myBytes, myBytes.length);
+	}
 
-		if (myGzipCoding) {
+	/**
+	 * Decodes the body from the first <code>theLength</code> bytes of the
+	 * given buffer, which may be a pooled buffer
+	 */
+	private void decodeBody(byte[] theBytes, int theLength) throws DecodeException {
+		long start = startPhase();
+		byte[] bytes = theBytes;
+		int length = theLength;
+
+		PooledByteArrayOutputStream uncompressed = null;
+		if (myCompressionDictionaryCoding) {
+			myCompressionDictionary = myCompressionDictionaryRegistry.get(myCompressionDictionaryId);
+			if (myCompressionDictionary == null) {
+				throw new DecodeException("Unknown compression dictionary: " + myCompressionDictionaryId);
+			}
+			ourLog.debug("Decoding message contents using compression dictionary {}", myCompressionDictionaryId);
+			try {
+				uncompressed = myCompressionDictionary.uncompress(bytes, 0, length);
+			} catch (IOException e) {
+				throw new DecodeException("Failed to uncompress content using dictionary " + myCompressionDictionaryId, e);
+			}
+			bytes = uncompressed.getBuffer();
+			length = uncompressed.size();
+		} else if (myGzipCoding) {
 			ourLog.debug("Decoding message contents using GZIP encoding style");
 			try {
-				bytes = GZipUtils.uncompress(bytes);
+				uncompressed = GZipUtils.uncompress(bytes, 0, length);
 			} catch (IOException e) {
 				throw new DecodeException("Failed to uncompress GZip content", e);
 			}
+			bytes = uncompressed.getBuffer();
+			length = uncompressed.size();
 		}
 
-		Charset charset = getCharset();
-		
-		ourLog.debug("Message is {} bytes with charset {}", bytes.length, charset.name());
-		if (ourLog.isTraceEnabled()) {
-			ourLog.trace("Raw message: {}", StringUtils.asciiEscape(bytes, charset));
+		try {
+			Charset charset = getCharset();
+
+			ourLog.debug("Message is {} bytes with charset {}", length, charset.name());
+			if (ourLog.isTraceEnabled()) {
+				ourLog.trace("Raw message: {}", StringUtils.asciiEscape(Arrays.copyOf(bytes, length), charset));
+			}
+
+			String messageString = new String(bytes, 0, length, charset);
+			setMessage(messageString);
+			endPhase(PhaseEnum.DECODE, start);
+		} finally {
+			if (uncompressed != null) {
+				uncompressed.release();
+			}
 		}
-		
-		String messageString = new String(bytes, charset);
-		setMessage(messageString);
 	}
 
 	private void decodeHeaders() throws DecodeException {
 
+		if (myHead != null && myHead.hasHeaders()) {
+			decodeHeadersFromHead();
+			return;
+		}
+
 		ourLog.trace("Header map contains: {}", getHeaders());
 
 		for (Map.Entry<String, String> nextEntry : getHeaders().entrySet()) {
@@ -108,91 +183,218 @@ public abstract class AbstractHl7OverHttpDecoder extends AbstractHl7OverHttp {
 
 			ourLog.trace("Next header: {}={}", nextHeader, nextValue);
 			
-			if ("transfer-encoding".equals(nextHeader)) {
-				if ("chunked".equalsIgnoreCase(nextValue)) {
-					myTransferEncoding = TransferEncoding.CHUNKED;
-					ourLog.trace("Found chunked transfer encoding");
-				} else {
-					throw new DecodeException("Unknown transfer encoding: " + nextValue);
-				}
-			} else if ("connection".equals(nextHeader)) {
-				if ("close".equals(nextValue)) {
-					myConnectionCloseHeaderIsPresent = true;
+			decodeHeader(nextHeader, nextValue);
+		}
+
+		ourLog.trace("Done processing headers");
+
+	}
+
+	/**
+	 * Decodes the headers directly from the bytes of the head which was read
+	 * from the stream. Header names are matched on the bytes, and strings are
+	 * only created for the values of headers which are actually used.
+	 */
+	private void decodeHeadersFromHead() throws DecodeException {
+		int first = myHead.getFirstHeaderLine();
+		int end = first + myHead.getHeaderLineCount();
+		for (int line = first; line < end; line++) {
+			int colonIndex = myHead.indexOfColon(line);
+			if (colonIndex == -1) {
+				throw new DecodeException("Invalid HTTP header line detected. Value is: " + myHead.getLine(line));
+			}
+
+			String name = null;
+			for (int i = 0; i < DECODED_HEADERS.length; i++) {
+				if (myHead.nameEquals(line, colonIndex, DECODED_HEADER_BYTES[i])) {
+					name = DECODED_HEADERS[i];
+					break;
 				}
-			} else if ("content-length".equals(nextHeader)) {
-				try {
-					myContentLength = Integer.parseInt(nextValue);
-					ourLog.trace("Found content length: {}", myContentLength);
-				} catch (NumberFormatException e) {
-					addConformanceProblem("Could not parse Content-Length header value: " + nextHeader);
+			}
+
+			if (name == null) {
+				if (ourLog.isTraceEnabled()) {
+					ourLog.trace("Ignoring header: {}", myHead.getLine(line));
 				}
-			} else if ("content-type".equals(nextHeader)) {
-				int colonIndex = nextValue.indexOf(';');
-				if (colonIndex == -1) {
-					myContentType = nextValue.trim();
-				} else {
-					myContentType = nextValue.substring(0, colonIndex).trim();
-					String charsetDef = nextValue.substring(colonIndex + 1).trim();
-					if (charsetDef.startsWith("charset=")) {
-						String charsetName = charsetDef.substring(8);
-						Charset charset;
-						try {
-							charset = Charset.forName(charsetName);
-						} catch (UnsupportedCharsetException e) {
-							addConformanceProblem("Unsupported or invalid charset: " + charsetName);
-							continue;
-						}
-						setCharset(charset);
+				continue;
+			}
+
+			String value = myHead.getValue(line, colonIndex);
+			ourLog.trace("Next header: {}={}", name, value);
+			decodeHeader(name, value);
+		}
+
+		ourLog.trace("Done processing headers");
+	}
+
+	private void decodeHeader(String theLowerCaseName, String theValue) throws DecodeException {
+		if ("transfer-encoding".equals(theLowerCaseName)) {
+			if ("chunked".equalsIgnoreCase(theValue)) {
+				myTransferEncoding = TransferEncoding.CHUNKED;
+				ourLog.trace("Found chunked transfer encoding");
+			} else {
+				throw new DecodeException("Unknown transfer encoding: " + theValue);
+			}
+		} else if ("connection".equals(theLowerCaseName)) {
+			if ("close".equals(theValue)) {
+				myConnectionCloseHeaderIsPresent = true;
+			}
+		} else if ("content-length".equals(theLowerCaseName)) {
+			try {
+				myContentLength = Integer.parseInt(theValue);
+				ourLog.trace("Found content length: {}", myContentLength);
+			} catch (NumberFormatException e) {
+				addConformanceProblem("Could not parse Content-Length header value: " + theLowerCaseName);
+			}
+		} else if ("content-type".equals(theLowerCaseName)) {
+			int colonIndex = theValue.indexOf(';');
+			if (colonIndex == -1) {
+				myContentType = theValue.trim();
+			} else {
+				myContentType = theValue.substring(0, colonIndex).trim();
+				String charsetDef = theValue.substring(colonIndex + 1).trim();
+				if (charsetDef.startsWith("charset=")) {
+					String charsetName = charsetDef.substring(8);
+					Charset charset;
+					try {
+						charset = Charset.forName(charsetName);
+					} catch (UnsupportedCharsetException e) {
+						addConformanceProblem("Unsupported or invalid charset: " + charsetName);
+						return;
 					}
+					setCharset(charset);
 				}
+			}
 
-				myEncodingStyle = EncodingStyle.getEncodingStyleForContentType(myContentType);
-				ourLog.trace("Found content type {} with resolves to encoding style {}", myContentType, myEncodingStyle);
+			myEncodingStyle = EncodingStyle.getEncodingStyleForContentType(myContentType);
+			ourLog.trace("Found content type {} with resolves to encoding style {}", myContentType, myEncodingStyle);
 
-			} else if ("authorization".equals(nextHeader)) {
-				int spaceIndex = nextValue.indexOf(' ');
-				if (spaceIndex == -1) {
-					throw new DecodeException("Invalid authorization header. No authorization style detected");
-				}
-				String type = nextValue.substring(0, spaceIndex);
-				if ("basic".equalsIgnoreCase(type)) {
-					String encodedCredentials = nextValue.substring(spaceIndex + 1);
-					byte[] decodedCredentials = Base64.decodeBase64(encodedCredentials);
-					String credentialsString = new String(decodedCredentials, getDefaultCharset());
-					int colonIndex = credentialsString.indexOf(':');
-					if (colonIndex == -1) {
-						setUsername(credentialsString);
-					} else {
-						setUsername(credentialsString.substring(0, colonIndex));
-						setPassword(credentialsString.substring(colonIndex + 1));
-					}
-					
-					ourLog.trace("Found authorization header with username: {}", getUsername());
-					
+		} else if ("authorization".equals(theLowerCaseName)) {
+			int spaceIndex = theValue.indexOf(' ');
+			if (spaceIndex == -1) {
+				throw new DecodeException("Invalid authorization header. No authorization style detected");
+			}
+			String type = theValue.substring(0, spaceIndex);
+			if ("basic".equalsIgnoreCase(type)) {
+				String encodedCredentials = theValue.substring(spaceIndex + 1);
+				byte[] decodedCredentials = Base64.decodeBase64(encodedCredentials);
+				String credentialsString = new String(decodedCredentials, getDefaultCharset());
+				int colonIndex = credentialsString.indexOf(':');
+				if (colonIndex == -1) {
+					setUsername(credentialsString);
 				} else {
-					addConformanceProblem("Invalid authorization type. Only basic authorization is supported.");
+					setUsername(credentialsString.substring(0, colonIndex));
+					setPassword(credentialsString.substring(colonIndex + 1));
 				}
 				
-			} else if ("content-encoding".equals(nextHeader)) {
-				if (StringUtils.isNotBlank(nextValue)) {
-					if ("gzip".equals(nextValue)) {
-						myGzipCoding = true;
-					} else {
-						throw new DecodeException("Unknown Content-Encoding: " + nextValue);
-					}
-				}
-				ourLog.trace("Found content coding: {}", nextValue);
-			} else if (HTTP_HEADER_HL7_SIGNATURE_LC.equals(nextHeader)) {
-				ourLog.trace("Found signature: {}", nextValue);
-				mySignature = nextValue;
+				ourLog.trace("Found authorization header with username: {}", getUsername());
+				
 			} else {
-				ourLog.trace("Ignoring header {}={}", nextHeader, nextValue);
+				addConformanceProblem("Invalid authorization type. Only basic authorization is supported.");
+			}
+			
+		} else if ("content-encoding".equals(theLowerCaseName)) {
+			if (StringUtils.isNotBlank(theValue)) {
+				if ("gzip".equals(theValue)) {
+					myGzipCoding = true;
+				} else if (CompressionDictionary.CONTENT_ENCODING.equals(theValue)) {
+					myCompressionDictionaryCoding = true;
+				} else {
+					throw new DecodeException("Unknown Content-Encoding: " + theValue);
+				}
 			}
+			ourLog.trace("Found content coding: {}", theValue);
+		} else if ("accept-encoding".equals(theLowerCaseName)) {
+			myGzipAccepted = isGzipAccepted(theValue);
+			ourLog.trace("Found accepted content codings: {}", theValue);
+		} else if (HTTP_HEADER_HL7_DICTIONARY_ID_LC.equals(theLowerCaseName)) {
+			ourLog.trace("Found compression dictionary ID: {}", theValue);
+			myCompressionDictionaryId = theValue;
+		} else if (HTTP_HEADER_HL7_SIGNATURE_LC.equals(theLowerCaseName)) {
+			ourLog.trace("Found signature: {}", theValue);
+			mySignature = theValue;
+		} else {
+			ourLog.trace("Ignoring header {}={}", theLowerCaseName, theValue);
+		}
+	}
 
+	/**
+	 * {@inheritDoc}
+	 * <p>
+	 * If the headers were read from a stream, the map is only created the
+	 * first time this method is called.
+	 * </p>
+	 */
+	@Override
+	public Map<String, String> getHeaders() {
+		if (super.getHeaders() == null && myHead != null && myHead.hasHeaders()) {
+			setHeaders(myHead.toHeaderMap());
 		}
+		return super.getHeaders();
+	}
 
-		ourLog.trace("Done processing headers");
+	/**
+	 * Returns the dictionary which the message body was compressed with, or
+	 * <code>null</code> if it was not compressed using a dictionary
+	 */
+	public CompressionDictionary getCompressionDictionary() {
+		return myCompressionDictionary;
+	}
 
+	/**
+	 * Sets the registry used to find the dictionary for message bodies
+	 * compressed using the <code>x-hl7-dictionary</code> content coding.
+	 * Defaults to {@link CompressionDictionaryRegistry#getDefaultInstance()}.
+	 */
+	public void setCompressionDictionaryRegistry(CompressionDictionaryRegistry theCompressionDictionaryRegistry) {
+		Validate.notNull(theCompressionDictionaryRegistry, "registry");
+		myCompressionDictionaryRegistry = theCompressionDictionaryRegistry;
+	}
+
+	/**
+	 * Protected because this only makes sense for a request
+	 */
+	protected boolean isGzipAccepted() {
+		return myGzipAccepted;
+	}
+
+	/**
+	 * Returns <code>true</code> if the given <code>Accept-Encoding</code>
+	 * value includes <code>gzip</code> (or <code>*</code>) without a quality
+	 * value of zero
+	 */
+	static boolean isGzipAccepted(String theAcceptEncoding) {
+		// An explicit gzip entry takes precedence over a wildcard
+		Boolean gzip = null;
+		Boolean wildcard = null;
+		for (String nextCoding : theAcceptEncoding.split(",")) {
+			String[] parts = nextCoding.split(";");
+			String name = parts[0].trim();
+			boolean isGzip = "gzip".equalsIgnoreCase(name);
+			if (!isGzip && !"*".equals(name)) {
+				continue;
+			}
+			boolean accepted = true;
+			for (int i = 1; i < parts.length; i++) {
+				String param = parts[i].trim();
+				if (param.length() > 2 && param.substring(0, 2).equalsIgnoreCase("q=")) {
+					try {
+						accepted = Double.parseDouble(param.substring(2).trim()) > 0;
+					} catch (NumberFormatException e) {
+						ourLog.debug("Ignoring invalid quality value: {}", param);
+					}
+				}
+			}
+			if (isGzip) {
+				gzip = accepted;
+			} else {
+				wildcard = accepted;
+			}
+		}
+		if (gzip != null) {
+			return gzip;
+		}
+		return wildcard != null && wildcard;
 	}
 
 	/**
@@ -218,13 +420,28 @@ public abstract class AbstractHl7OverHttpDecoder extends AbstractHl7OverHttp {
 	private void doReadContentsFromInputStreamAndDecode(InputStream theInputStream) throws DecodeException, AuthorizationFailureException, IOException, SignatureVerificationException {
 		decodeHeaders();
 		authorize();
-		if (myTransferEncoding == TransferEncoding.CHUNKED) {
-			myBytes = readBytesChunked(theInputStream);
-		} else {
-			myBytes = readBytesNonChunked(theInputStream);
-		}
 
-		decodeBody();
+		// The body is read into a pooled buffer and decoded straight from it
+		int initialSize = myContentLength > 0 ? myContentLength : IOUtils.DEFAULT_BUFFER_SIZE;
+		PooledByteArrayOutputStream body = new PooledByteArrayOutputStream(initialSize);
+		try {
+			long start = startPhase();
+			if (myTransferEncoding == TransferEncoding.CHUNKED) {
+				readBytesChunked(theInputStream, body);
+			} else {
+				readBytesNonChunked(theInputStream, body);
+			}
+			endPhase(PhaseEnum.READ_BODY, start);
+
+			if (getSigner() != null) {
+				// The signer needs the exact bytes
+				myBytes = body.toByteArray();
+			}
+
+			decodeBody(body.getBuffer(), body.size());
+		} finally {
+			body.release();
+		}
 		
 		if (getContentType() == null) {
 			throw new DecodeException("Content-Type not specified");
@@ -236,10 +453,8 @@ public abstract class AbstractHl7OverHttpDecoder extends AbstractHl7OverHttp {
 		verifySignature();
 	}
 
-	private byte[] readBytesChunked(InputStream theInputStream) throws DecodeException, IOException {
+	private void readBytesChunked(InputStream theInputStream, PooledByteArrayOutputStream theBody) throws DecodeException, IOException {
 		ourLog.debug("Decoding message bytes using CHUNKED encoding style");
-		byte[] byteBuffer = new byte[IOUtils.DEFAULT_BUFFER_SIZE];
-		ByteArrayOutputStream bos = new ByteArrayOutputStream(IOUtils.DEFAULT_BUFFER_SIZE);
 
 		while (true) {
 			String nextSize;
@@ -271,36 +486,39 @@ public abstract class AbstractHl7OverHttpDecoder extends AbstractHl7OverHttp {
 			boolean trailing = false;
 			if (nextSizeInt > 0) {
 				int totalRead = 0;
-				myLastStartedReading = System.currentTimeMillis();
+				startReadTimer();
 				do {
-					int nextRead = Math.min(nextSizeInt, byteBuffer.length);
-					int bytesRead = theInputStream.read(byteBuffer, 0, nextRead);
+					int offset = theBody.size();
+					int bytesRead;
+					try {
+						bytesRead = theBody.readFrom(theInputStream, nextSizeInt - totalRead);
+					} catch (SocketTimeoutException e) {
+						handleTimedOutRead(e);
+						continue;
+					}
 					if (bytesRead == -1) {
-						ourLog.debug("Exception in readBytesChunked(InputStream): Reached EOF. Buffer has {} bytes", bos.size());
+						ourLog.debug("Exception in readBytesChunked(InputStream): Reached EOF. Buffer has {} bytes", theBody.size());
 						throw new DecodeException("Reached EOF while reading in message chunk");
 					}
-					if (bytesRead == 0 && totalRead < nextSizeInt) {
-						pauseDuringTimedOutRead();
-					}
 					totalRead += bytesRead;
 
 					if (ourLog.isTraceEnabled()) {
-						ourLog.trace("Read {} byte chunk: {}", bytesRead, new String(byteBuffer, 0, bytesRead));
+						ourLog.trace("Read {} byte chunk: {}", bytesRead, new String(theBody.getBuffer(), offset, bytesRead));
 					}else {
 						ourLog.debug("Read {} byte chunk", bytesRead);
 					}
-					
-					bos.write(byteBuffer, 0, bytesRead);
 
 				} while (totalRead < nextSizeInt);
 			} else {
-				trailing = true;
+				readTrailers(theInputStream);
+				break;
 			}
 
 			// Try to read a trailing CRLF
 			int nextChar;
 			boolean had13 = false;
 			boolean had10 = false;
+			startReadTimer();
 			while (true) {
 				try {
 					nextChar = theInputStream.read();
@@ -308,7 +526,12 @@ public abstract class AbstractHl7OverHttpDecoder extends AbstractHl7OverHttp {
 						ourLog.trace("Read byte: " + (char)nextChar + " (" + nextChar + ")");
 					}
 				} catch (SocketTimeoutException e) {
-					break;
+					if (trailing && !had13) {
+						break;
+					}
+					// A CRLF must follow each chunk, so keep waiting for it
+					handleTimedOutRead(e);
+					continue;
 				}
 
 				if (nextChar == -1) {
@@ -339,24 +562,108 @@ public abstract class AbstractHl7OverHttpDecoder extends AbstractHl7OverHttp {
 			}
 
 		} // while
+	}
 
-		return bos.toByteArray();
+	/**
+	 * Reads any trailers following the last chunk, up to and including the
+	 * blank line which ends the message. The only trailer which is used is
+	 * the signature, since signing encoders which stream the body can only
+	 * send the signature once the whole body has been written.
+	 */
+	private void readTrailers(InputStream theInputStream) throws IOException {
+		startReadTimer();
+		while (true) {
+			int nextChar;
+			try {
+				nextChar = theInputStream.read();
+			} catch (SocketTimeoutException e) {
+				// Be tolerant of senders which don't send the final CRLF
+				break;
+			}
+
+			if (nextChar == -1 || nextChar == '\n') {
+				break;
+			} else if (nextChar == '\r') {
+				while (true) {
+					try {
+						theInputStream.read();
+						break;
+					} catch (SocketTimeoutException e) {
+						handleTimedOutRead(e);
+					}
+				}
+				break;
+			}
+
+			String trailer = (char) nextChar + readLine(theInputStream);
+			ourLog.debug("Read HTTP trailer: {}", trailer);
+			int colonIndex = trailer.indexOf(':');
+			if (colonIndex > 0) {
+				String name = trailer.substring(0, colonIndex).trim();
+				String value = trailer.substring(colonIndex + 1).trim();
+				if (getHeaders() == null) {
+					setHeaders(new LinkedHashMap<String, String>());
+				}
+				getHeaders().put(name, value);
+				if (HTTP_HEADER_HL7_SIGNATURE_LC.equals(name.toLowerCase())) {
+					ourLog.trace("Found signature in trailer: {}", value);
+					mySignature = value;
+				}
+			}
+			startReadTimer();
+		}
 	}
 
 	private void verifySignature() throws SignatureVerificationException, DecodeException {
-		if (getSigner() != null && StringUtils.isBlank(mySignature)) {
-			String mode = (this instanceof Hl7OverHttpRequestDecoder) ? "request" : "response";
-			throw new SignatureVerificationException("No HL7 Signature found in " + mode);
-		}
+		verifySignaturePresent();
 		if (getSigner() != null) {
+			long start = startPhase();
 			try {
 				getSigner().verify(myBytes, mySignature);
 			} catch (SignatureFailureException e) {
 				throw new DecodeException("Failed to verify signature due to an error (signature may possibly be valid, but verification failed)", e);
 			}
+			endPhase(PhaseEnum.VERIFY, start);
 		}
 	}
 
+	private void verifySignaturePresent() throws SignatureVerificationException {
+		if (getSigner() != null && StringUtils.isBlank(mySignature)) {
+			String mode = (this instanceof Hl7OverHttpRequestDecoder) ? "request" : "response";
+			throw new SignatureVerificationException("No HL7 Signature found in " + mode);
+		}
+	}
+
+	/**
+	 * Verifies the signature of a body which was read using
+	 * {@link #readContentsAsStream(IHeaderSource, InputStream)}, once it has
+	 * been read to the end
+	 */
+	private void verifyStreamedSignature() throws SignatureVerificationException, DecodeException {
+		if (myVerifyingStream == null || mySignatureVerified) {
+			return;
+		}
+		if (mySignatureFailure instanceof SignatureVerificationException) {
+			throw (SignatureVerificationException) mySignatureFailure;
+		} else if (mySignatureFailure != null) {
+			throw (DecodeException) mySignatureFailure;
+		}
+
+		long start = startPhase();
+		try {
+			myVerifyingStream.verify();
+		} catch (SignatureVerificationException e) {
+			// The signature can only be checked once
+			mySignatureFailure = e;
+			throw e;
+		} catch (SignatureFailureException e) {
+			mySignatureFailure = new DecodeException("Failed to verify signature due to an error (signature may possibly be valid, but verification failed)", e);
+			throw (DecodeException) mySignatureFailure;
+		}
+		mySignatureVerified = true;
+		endPhase(PhaseEnum.VERIFY, start);
+	}
+
 	public List<String> getConformanceProblems() {
 		if (myConformanceProblems == null) {
 			myConformanceProblems = new ArrayList<String>();
@@ -387,15 +694,11 @@ public abstract class AbstractHl7OverHttpDecoder extends AbstractHl7OverHttp {
 
 	protected abstract String readActionLineAndDecode(InputStream theInputStream) throws IOException, NoMessageReceivedException, DecodeException;
 
-	private byte[] readBytesNonChunked(InputStream theInputStream) throws IOException {
+	private void readBytesNonChunked(InputStream theInputStream, PooledByteArrayOutputStream theBody) throws IOException {
 		ourLog.debug("Decoding message bytes using non-chunked encoding style");
 
-		int length = myContentLength > 0 ? myContentLength : IOUtils.DEFAULT_BUFFER_SIZE;
-		ByteArrayOutputStream bos = new ByteArrayOutputStream(length);
-
-		byte[] buffer = new byte[IOUtils.DEFAULT_BUFFER_SIZE];
-		myLastStartedReading = System.currentTimeMillis();
-		while ((myContentLength < 0 || bos.size() < myContentLength)) {
+		startReadTimer();
+		while ((myContentLength < 0 || theBody.size() < myContentLength)) {
 			if (myContentLength < 0) {
 				try {
 					if (theInputStream.available() <= 0) {
@@ -410,43 +713,30 @@ public abstract class AbstractHl7OverHttpDecoder extends AbstractHl7OverHttp {
 
 			int max;
 			if (myContentLength > 0) {
-				max = myContentLength - bos.size();
-				max = Math.min(max, buffer.length);
+				max = myContentLength - theBody.size();
 			} else {
-				max = buffer.length;
+				max = IOUtils.DEFAULT_BUFFER_SIZE;
 			}
 			
 			try {
-				int bytesRead = theInputStream.read(buffer, 0, max);
-				myLastStartedReading = System.currentTimeMillis();
+				int offset = theBody.size();
+				int bytesRead = theBody.readFrom(theInputStream, max);
+				startReadTimer();
 				if (bytesRead == -1) {
 					ourLog.trace("Read end of stream");
 					break;
 				} else {
 					if (ourLog.isTraceEnabled()) {
-						ourLog.trace("Read {} bytes from stream:\n{}", bytesRead, ByteUtils.formatBytesForLogging(bytesRead, 0, buffer));
+						ourLog.trace("Read {} bytes from stream:\n{}", bytesRead, ByteUtils.formatBytesForLogging(bytesRead, offset, theBody.getBuffer()));
 					}
 				}
-				bos.write(buffer, 0, bytesRead);
 			} catch (SocketTimeoutException e) {
-				long elapsed = System.currentTimeMillis() - myLastStartedReading;
-				if (elapsed > myReadTimeout) {
-					throw e;
-				} else {
-					ourLog.debug("Trying to read for {} / {}ms, going to keep trying", elapsed, myReadTimeout);
-					try {
-						Thread.sleep(100);
-					} catch (InterruptedException e1) {
-						// ignore
-					}
-				}
+				handleTimedOutRead(e);
 			} catch (IOException e) {
 				ourLog.debug("Received IOException while calling inputStream#available()", e);
 				throw e;
 			}
 		}
-
-		return bos.toByteArray();
 	}
 
 	/**
@@ -473,16 +763,229 @@ public abstract class AbstractHl7OverHttpDecoder extends AbstractHl7OverHttp {
 	public void readContentsFromInputStreamAndDecode(InputStream theInputStream) throws AuthorizationFailureException, DecodeException, IOException, SignatureVerificationException {
 		verifyNotUsed();
 
-		doReadContentsFromInputStreamAndDecode(theInputStream);
+		try {
+			doReadContentsFromInputStreamAndDecode(theInputStream);
+		} finally {
+			restoreSoTimeout();
+		}
+	}
+
+	/**
+	 * <p>
+	 * Decodes the headers, which are looked up by name from the given source,
+	 * and returns a stream over the decoded contents of the message body
+	 * without reading the body into memory. This is intended for servlet
+	 * containers and other callers which have already read the message head
+	 * and removed any transfer coding from the body, so the body is read from
+	 * the given stream as is, up to the <code>Content-Length</code> if one is
+	 * given. Compressed bodies are uncompressed as they are read.
+	 * </p>
+	 * <p>
+	 * If a {@link #setSigner(ca.uhn.hl7v2.hoh.sign.ISigner) signer} has been
+	 * provided, the signature is computed as the body is read and checked once
+	 * the end of the body is reached, in which case the stream throws an
+	 * {@link IOException} if verification fails. Signers which are not an
+	 * {@link IStreamingSigner} need the whole body, so it is also kept in
+	 * memory until then. Since the body may be abandoned before it has been
+	 * read to the end, {@link #finishReadingContents()} must be called once
+	 * the caller is done with it, and has the final say on whether the
+	 * signature is valid.
+	 * </p>
+	 *
+	 * @param theHeaders
+	 *            The source of the message headers
+	 * @param theInputStream
+	 *            The stream to read the message body from
+	 * @return A stream over the message contents, in the
+	 *         {@link #getCharset() charset} given in the
+	 *         <code>Content-Type</code> header
+	 * @throws AuthorizationFailureException
+	 *             If the authorization check fails. This will only be thrown if
+	 *             this decoder is decoding a request message, and an
+	 *             authorization callback has been provided, and the
+	 *             authorization fails.
+	 * @throws DecodeException
+	 *             If the message can not be decoded for any reason
+	 * @throws SignatureVerificationException
+	 *             If a signer has been provided but the message has no
+	 *             signature header
+	 */
+	public InputStream readContentsAsStream(IHeaderSource theHeaders, InputStream theInputStream) throws AuthorizationFailureException, DecodeException, SignatureVerificationException {
+		verifyNotUsed();
+
+		for (String next : DECODED_HEADERS) {
+			String value = theHeaders.getHeader(next);
+			if (value != null) {
+				ourLog.trace("Next header: {}={}", next, value);
+				decodeHeader(next, value);
+			}
+		}
+		authorize();
+
+		if (getContentType() == null) {
+			throw new DecodeException("Content-Type not specified");
+		}
+		if (getEncodingStyle() == null) {
+			throw new NonHl7ResponseException("Invalid Content-Type: " + getContentType(), getContentType(), null);
+		}
+
+		InputStream body = new BoundedInputStream(theInputStream, myContentLength);
+
+		verifySignaturePresent();
+		if (getSigner() != null) {
+			try {
+				if (getSigner() instanceof IStreamingSigner) {
+					myVerifyingStream = ((IStreamingSigner) getSigner()).createVerifyingInputStream(body, mySignature);
+				} else {
+					myVerifyingStream = new BufferingVerifyingInputStream(body);
+				}
+			} catch (SignatureFailureException e) {
+				throw new DecodeException("Failed to verify signature due to an error (signature may possibly be valid, but verification failed)", e);
+			}
+			body = myVerifyingStream;
+		}
+		myStreamedBody = body;
+
+		InputStream contents = body;
+		if (myCompressionDictionaryCoding) {
+			myCompressionDictionary = myCompressionDictionaryRegistry.get(myCompressionDictionaryId);
+			if (myCompressionDictionary == null) {
+				throw new DecodeException("Unknown compression dictionary: " + myCompressionDictionaryId);
+			}
+			ourLog.debug("Decoding message contents using compression dictionary {}", myCompressionDictionaryId);
+			contents = myCompressionDictionary.newInputStream(body, IOUtils.DEFAULT_BUFFER_SIZE);
+		} else if (myGzipCoding) {
+			ourLog.debug("Decoding message contents using GZIP encoding style");
+			try {
+				contents = new GZIPInputStream(body, IOUtils.DEFAULT_BUFFER_SIZE);
+			} catch (IOException e) {
+				throw new DecodeException("Failed to uncompress GZip content", e);
+			}
+		}
+
+		myStreamedContents = new ContentsInputStream(contents);
+		return myStreamedContents;
+	}
+
+	/**
+	 * Completes reading a body which was returned by
+	 * {@link #readContentsAsStream(IHeaderSource, InputStream)}. Any part of
+	 * the body which was not read is read and discarded, and the signature is
+	 * verified if a signer was provided.
+	 *
+	 * @throws DecodeException
+	 *             If the signature can not be verified due to an error
+	 * @throws IOException
+	 *             If there is a failure while reading the rest of the body
+	 * @throws SignatureVerificationException
+	 *             If the signature verification fails
+	 */
+	public void finishReadingContents() throws DecodeException, IOException, SignatureVerificationException {
+		if (myStreamedContents == null) {
+			throw new IllegalStateException("Contents are not being read as a stream");
+		}
+		try {
+			drain(myStreamedBody);
+			verifyStreamedSignature();
+		} finally {
+			// Releases any inflater, but not the underlying stream
+			myStreamedContents.close();
+		}
+	}
+
+	private static void drain(InputStream theInputStream) throws IOException {
+		byte[] buffer = new byte[IOUtils.DEFAULT_BUFFER_SIZE];
+		while (theInputStream.read(buffer) != -1) {
+			// discard
+		}
 	}
 
 	protected String readFirstLine(InputStream theInputStream) throws IOException, NoMessageReceivedException {
 		ourLog.trace("Entering readFirstLine(InputStream) with IS: {}", theInputStream);
-		String retVal = readLine(theInputStream, true);
+		// If the headers were provided, only the first line is read
+		readHead(theInputStream, true, super.getHeaders() != null);
+		String retVal = myHead.getLine(0);
 		ourLog.trace("Exiting readFirstLine(InputStream) with result: {}", retVal);
 		return retVal;
 	}
 
+	/**
+	 * Reads the head of the message (the first line and/or the headers) into
+	 * a buffer. If the stream supports marking (e.g. a
+	 * {@link java.io.BufferedInputStream}), bytes are read in bulk and any
+	 * bytes read past the end of the head are pushed back, otherwise bytes are
+	 * read one at a time so that no bytes belonging to the body are consumed.
+	 */
+	private void readHead(InputStream theInputStream, boolean theHasFirstLine, boolean theFirstLineOnly) throws IOException, NoMessageReceivedException {
+		HttpHead head = new HttpHead(theHasFirstLine, theFirstLineOnly);
+		boolean bulk = theInputStream.markSupported();
+
+		startReadTimer();
+		while (!head.isComplete()) {
+			byte[] buffer = head.getBufferForRead();
+			if (buffer == null) {
+				throw new IOException("HTTP head exceeds maximum size of " + HttpHead.MAX_HEAD_SIZE + " bytes");
+			}
+
+			int offset = head.getLength();
+			int bytesRead;
+			try {
+				if (bulk) {
+					int max = buffer.length - offset;
+					theInputStream.mark(max);
+					bytesRead = theInputStream.read(buffer, offset, max);
+				} else {
+					int next = theInputStream.read();
+					if (next != -1) {
+						buffer[offset] = (byte) next;
+					}
+					bytesRead = next == -1 ? -1 : 1;
+				}
+			} catch (SocketTimeoutException e) {
+				if (theHasFirstLine && !head.isSawContent()) {
+					ourLog.trace("No message received, aborting readHead(InputStream, boolean, boolean)");
+					throw new NoMessageReceivedException();
+				}
+				ourLog.trace("No complete HTTP head received in readHead(InputStream, boolean, boolean), going to continue");
+				handleTimedOutRead(e);
+				continue;
+			}
+
+			if (bytesRead == -1) {
+				ourLog.info("Read -1 from input stream, closing it");
+				theInputStream.close();
+				throw new SocketException("Received EOF from input stream");
+			}
+
+			if (ourLog.isTraceEnabled()) {
+				ourLog.trace("Read {} bytes of HTTP head:\n{}", bytesRead, ByteUtils.formatBytesForLogging(bytesRead, offset, buffer));
+			}
+
+			int headBytes = head.scan(bytesRead);
+			if (headBytes < bytesRead) {
+				// Read past the end of the head, so push the rest back
+				theInputStream.reset();
+				skipFully(theInputStream, headBytes);
+			}
+		}
+
+		myHead = head;
+	}
+
+	private static void skipFully(InputStream theInputStream, int theCount) throws IOException {
+		long remaining = theCount;
+		while (remaining > 0) {
+			long skipped = theInputStream.skip(remaining);
+			if (skipped <= 0) {
+				if (theInputStream.read() == -1) {
+					throw new SocketException("Received EOF from input stream");
+				}
+				skipped = 1;
+			}
+			remaining -= skipped;
+		}
+	}
+
 	/**
 	 * Note that if {@link #setPath(String)} is called, this method will assume
 	 * that the first line of the HTTP request has already been read from the
@@ -511,50 +1014,40 @@ public abstract class AbstractHl7OverHttpDecoder extends AbstractHl7OverHttp {
 	public void readHeadersAndContentsFromInputStreamAndDecode(InputStream theInputStream) throws IOException, DecodeException, NoMessageReceivedException, SignatureVerificationException {
 		verifyNotUsed();
 
+		try {
+			doReadHeadersAndContentsFromInputStreamAndDecode(theInputStream);
+		} finally {
+			restoreSoTimeout();
+		}
+	}
+
+	private void doReadHeadersAndContentsFromInputStreamAndDecode(InputStream theInputStream) throws IOException, DecodeException, NoMessageReceivedException, SignatureVerificationException {
+		long start = startPhase();
+		boolean readHeaders = super.getHeaders() == null;
 		String actionLine = readActionLineAndDecode(theInputStream);
 
 		ourLog.debug("Read action line: {}", actionLine);
 
-		if (getHeaders() == null) {
-			setHeaders(new LinkedHashMap<String, String>());
-
-			while (true) {
-				String nextLine = readLine(theInputStream);
-				if (nextLine.length() == 0) {
-					break;
-				}
-
-				int colonIndex = nextLine.indexOf(':');
-				if (colonIndex == -1) {
-					throw new DecodeException("Invalid HTTP header line detected. Value is: " + nextLine);
-				}
-
-				String key = nextLine.substring(0, colonIndex);
-				String value = nextLine.substring(colonIndex + 1).trim();
-				
-				ourLog.debug("Read header {}={}", key,value);
-				
-				getHeaders().put(key, value);
-			}
+		if (readHeaders && myHead == null) {
+			// The action line was provided, so the head only contains headers
+			readHead(theInputStream, false, false);
 		}
+		endPhase(PhaseEnum.READ_HEAD, start);
 
 		doReadContentsFromInputStreamAndDecode(theInputStream);
 
 	}
 
 	private String readLine(InputStream theInputStream) throws IOException {
-		try {
-			return readLine(theInputStream, false);
-		} catch (NoMessageReceivedException e) {
-			throw new Error("Threw a NoMessageReceivedException. This should not happen.", e);
-		}
-	}
-
-	private String readLine(InputStream theInputStream, boolean theFirstLine) throws IOException, NoMessageReceivedException {
 		
-		myLastStartedReading = System.currentTimeMillis();
+		startReadTimer();
+
+		if (myLineBuffer == null) {
+			myLineBuffer = new byte[64];
+		}
 
-		StringBuilder retVal = new StringBuilder();
+		int length = 0;
+		boolean eof = false;
 		while (true) {
 
 			int b;
@@ -564,52 +1057,114 @@ public abstract class AbstractHl7OverHttpDecoder extends AbstractHl7OverHttp {
 					ourLog.trace("Read byte: " + (char)b + " (" + b + ")");
 				}
 			} catch (SocketTimeoutException e) {
-				if (retVal.length() == 0 && theFirstLine) {
-					ourLog.trace("No message received, aborting readLine(InputStream, boolean)");
-					throw new NoMessageReceivedException();
-				}
-				ourLog.trace("No message received in readLine(InputStream, boolean), going to wait and continue");
-				pauseDuringTimedOutRead();
+				ourLog.trace("No message received in readLine(InputStream), going to continue");
+				handleTimedOutRead(e);
 				continue;
 			}
 
-			if (b == 13) {
-				continue;
-			} else if (b == 10) {
+			if (b == 10) {
 				break;
 			} else if (b == -1) {
-				ourLog.debug("Current read line is: {}", retVal);
-				ourLog.info("Read -1 from input stream, closing it");
-				theInputStream.close();
-				if (retVal.length() == 0) {
-					throw new SocketException("Received EOF from input stream");
-				}
+				eof = true;
 				break;
-			} else if (b < ' ') {
-				continue;
-			} else {
-				retVal.append((char) b);
 			}
+
+			if (length == myLineBuffer.length) {
+				myLineBuffer = Arrays.copyOf(myLineBuffer, length * 2);
+			}
+			myLineBuffer[length++] = (byte) b;
 		}
 
+		String retVal = HttpHead.toCollapsedString(myLineBuffer, 0, length);
 		ourLog.debug("Current read line is: {}", retVal);
 
-		return WHITESPACE_PATTERN.matcher(retVal.toString()).replaceAll(" ").trim();
+		if (eof) {
+			ourLog.info("Read -1 from input stream, closing it");
+			theInputStream.close();
+			if (retVal.length() == 0) {
+				throw new SocketException("Received EOF from input stream");
+			}
+		}
+
+		return retVal;
+	}
+
+	/**
+	 * Called when a read times out before the read timeout has elapsed (which
+	 * only happens if the stream's own timeout is shorter than the read
+	 * timeout). Throws an exception if the read timeout has elapsed, otherwise
+	 * returns immediately so that the read can be retried. No sleeping is
+	 * required since the retried read blocks until data arrives.
+	 */
+	private void handleTimedOutRead(SocketTimeoutException theException) throws SocketTimeoutException {
+		long remaining = myLastStartedReading + myReadTimeout - System.currentTimeMillis();
+		if (remaining <= 0) {
+			ourLog.trace("Read timeout of {}ms has elapsed, throwing SocketTimeoutException", myReadTimeout);
+			throw theException;
+		}
+		ourLog.debug("Read timed out with {} / {}ms remaining, going to keep trying", remaining, myReadTimeout);
+		setSoTimeout(remaining);
 	}
 
-	private void pauseDuringTimedOutRead() throws SocketTimeoutException {
-		long elapsed = System.currentTimeMillis() - myLastStartedReading;
-		if (elapsed > myReadTimeout) {
-			ourLog.trace("Elapsed time of {} exceeds max {}, throwing SocketTimeoutException", elapsed, myReadTimeout);
-			throw new SocketTimeoutException();
+	/**
+	 * Restores the socket's original SO_TIMEOUT, if it was changed
+	 */
+	private void restoreSoTimeout() {
+		if (mySocket != null && myOriginalSoTimeout != -1 && myCurrentSoTimeout != myOriginalSoTimeout) {
+			try {
+				mySocket.setSoTimeout(myOriginalSoTimeout);
+				myCurrentSoTimeout = myOriginalSoTimeout;
+			} catch (SocketException e) {
+				ourLog.debug("Failed to restore socket timeout", e);
+			}
+		}
+	}
+
+	/**
+	 * Sets the socket's SO_TIMEOUT so that the next read blocks for no longer
+	 * than the given number of millis. Does nothing if no socket was provided,
+	 * or if the timeout is already set to this value.
+	 */
+	private void setSoTimeout(long theMillis) throws SocketTimeoutException {
+		if (mySocket == null) {
+			return;
+		}
+		int timeout = (int) Math.min(Math.max(theMillis, 1), Integer.MAX_VALUE);
+		if (timeout == myCurrentSoTimeout) {
+			return;
 		}
 		try {
-			Thread.sleep(100);
-		} catch (InterruptedException e1) {
-			// ignore
+			if (myOriginalSoTimeout == -1) {
+				myOriginalSoTimeout = mySocket.getSoTimeout();
+			}
+			mySocket.setSoTimeout(timeout);
+			myCurrentSoTimeout = timeout;
+		} catch (SocketException e) {
+			SocketTimeoutException ex = new SocketTimeoutException("Failed to set socket timeout: " + e.getMessage());
+			ex.initCause(e);
+			throw ex;
 		}
 	}
 
+	/**
+	 * Provides the socket that the input stream being decoded reads from. If
+	 * set, the socket's SO_TIMEOUT is set so that each blocking read waits for
+	 * no longer than the remaining {@link #setReadTimeout(long) read timeout},
+	 * so reads never need to be retried after a timeout. The original
+	 * SO_TIMEOUT is restored once decoding is complete.
+	 */
+	public void setSocket(Socket theSocket) {
+		mySocket = theSocket;
+	}
+
+	/**
+	 * Marks the start of a read, which must complete within the read timeout
+	 */
+	private void startReadTimer() throws SocketTimeoutException {
+		myLastStartedReading = System.currentTimeMillis();
+		setSoTimeout(myReadTimeout);
+	}
+
 	/**
 	 * Sets the number of milliseconds that the decoder will attempt to read
 	 * from an InputStream before timing out and throwing an exception
@@ -634,4 +1189,153 @@ public abstract class AbstractHl7OverHttpDecoder extends AbstractHl7OverHttp {
 		myResponseStatus = theResponseStatus;
 	}
 
+	/**
+	 * Reads the body from a stream which it does not own, so closing it does
+	 * not close the underlying stream. If the length of the body is known, no
+	 * more than that is read.
+	 */
+	private static class BoundedInputStream extends InputStream {
+
+		private final InputStream myInputStream;
+		private int myRemaining;
+
+		/**
+		 * @param theLength
+		 *            The length of the body, or -1 to read to the end of the
+		 *            stream
+		 */
+		BoundedInputStream(InputStream theInputStream, int theLength) {
+			myInputStream = theInputStream;
+			myRemaining = theLength;
+		}
+
+		@Override
+		public int available() throws IOException {
+			int available = myInputStream.available();
+			return myRemaining < 0 ? available : Math.min(available, myRemaining);
+		}
+
+		@Override
+		public int read() throws IOException {
+			if (myRemaining < 0) {
+				return myInputStream.read();
+			}
+			if (myRemaining == 0) {
+				return -1;
+			}
+			int retVal = myInputStream.read();
+			if (retVal == -1) {
+				throw new EOFException("Reached EOF with " + myRemaining + " bytes of content remaining");
+			}
+			myRemaining--;
+			return retVal;
+		}
+
+		@Override
+		public int read(byte[] theBytes, int theOffset, int theLength) throws IOException {
+			if (myRemaining < 0) {
+				return myInputStream.read(theBytes, theOffset, theLength);
+			}
+			if (myRemaining == 0) {
+				return -1;
+			}
+			int retVal = myInputStream.read(theBytes, theOffset, Math.min(theLength, myRemaining));
+			if (retVal == -1) {
+				throw new EOFException("Reached EOF with " + myRemaining + " bytes of content remaining");
+			}
+			myRemaining -= retVal;
+			return retVal;
+		}
+
+	}
+
+	/**
+	 * Verifies the signature using a signer which is not an
+	 * {@link IStreamingSigner}, by keeping a copy of the body
+	 */
+	private class BufferingVerifyingInputStream extends VerifyingInputStream {
+
+		private final PooledByteArrayOutputStream myBody;
+
+		BufferingVerifyingInputStream(InputStream theIn) {
+			super(theIn);
+			myBody = new PooledByteArrayOutputStream(myContentLength > 0 ? myContentLength : IOUtils.DEFAULT_BUFFER_SIZE);
+		}
+
+		@Override
+		public int read() throws IOException {
+			int retVal = super.read();
+			if (retVal != -1) {
+				myBody.write(retVal);
+			}
+			return retVal;
+		}
+
+		@Override
+		public int read(byte[] theBytes, int theOffset, int theLength) throws IOException {
+			int retVal = super.read(theBytes, theOffset, theLength);
+			if (retVal > 0) {
+				myBody.write(theBytes, theOffset, retVal);
+			}
+			return retVal;
+		}
+
+		@Override
+		public void verify() throws SignatureVerificationException, SignatureFailureException {
+			try {
+				getSigner().verify(myBody.toByteArray(), mySignature);
+			} finally {
+				myBody.release();
+			}
+		}
+
+	}
+
+	/**
+	 * The decoded contents of a streamed body. The signature is verified as
+	 * soon as the end of the contents is reached, so that a caller which reads
+	 * to the end finds out about a bad signature before acting on them.
+	 */
+	private class ContentsInputStream extends FilterInputStream {
+
+		ContentsInputStream(InputStream theIn) {
+			super(theIn);
+		}
+
+		private void endOfContents() throws IOException {
+			try {
+				drain(myStreamedBody);
+				verifyStreamedSignature();
+			} catch (SignatureVerificationException e) {
+				throw new IOException("Signature verification failed", e);
+			} catch (DecodeException e) {
+				throw new IOException(e.getMessage(), e);
+			}
+		}
+
+		@Override
+		public boolean markSupported() {
+			return false;
+		}
+
+		@Override
+		public int read() throws IOException {
+			int retVal = super.read();
+			if (retVal == -1) {
+				endOfContents();
+			}
+			return retVal;
+		}
+
+		@Override
+		public int read(byte[] theBytes, int theOffset, int theLength) throws IOException {
+			int retVal = super.read(theBytes, theOffset, theLength);
+			if (retVal == -1) {
+				endOfContents();
+			}
+			return retVal;
+		}
+
+	}
+
 }
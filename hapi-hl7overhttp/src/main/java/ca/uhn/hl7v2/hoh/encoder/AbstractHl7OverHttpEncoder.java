@@ -2,22 +2,35 @@ package ca.uhn.hl7v2.hoh.encoder;
 
 import static ca.uhn.hl7v2.hoh.util.StringUtils.*;
 
+import java.io.BufferedOutputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.io.OutputStreamWriter;
-import java.text.DateFormat;
-import java.text.SimpleDateFormat;
-import java.util.Date;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.Charset;
 import java.util.LinkedHashMap;
 import java.util.Map;
-import java.util.zip.GZIPOutputStream;
+import java.util.zip.DeflaterOutputStream;
 
 import ca.uhn.hl7v2.hoh.api.EncodeException;
+import ca.uhn.hl7v2.hoh.api.IEncodedSendable;
 import ca.uhn.hl7v2.hoh.api.ISendable;
+import ca.uhn.hl7v2.hoh.metrics.PhaseEnum;
+import ca.uhn.hl7v2.hoh.sign.ISigner;
+import ca.uhn.hl7v2.hoh.sign.IStreamingSigner;
 import ca.uhn.hl7v2.hoh.sign.SignatureFailureException;
+import ca.uhn.hl7v2.hoh.sign.SigningOutputStream;
+import ca.uhn.hl7v2.hoh.util.CompressionDictionary;
 import ca.uhn.hl7v2.hoh.util.GZipUtils;
+import ca.uhn.hl7v2.hoh.util.HttpDateCache;
 import ca.uhn.hl7v2.hoh.util.HTTPUtils;
+import ca.uhn.hl7v2.hoh.util.IOUtils;
+import ca.uhn.hl7v2.hoh.util.PooledByteArrayOutputStream;
+import ca.uhn.hl7v2.hoh.util.PooledGZipOutputStream;
 
 /**
  * Base class that creates HL7 over HTTP requests. This class is intended to be
@@ -26,15 +39,41 @@ import ca.uhn.hl7v2.hoh.util.HTTPUtils;
 public abstract class AbstractHl7OverHttpEncoder extends AbstractHl7OverHttp {
 
 	private static final org.slf4j.Logger ourLog = org.slf4j.LoggerFactory.getLogger(AbstractHl7OverHttpEncoder.class);
-	private static DateFormat ourRfc1123DateFormat;
+	/**
+	 * Bodies up to this size are copied after the head so that both are written
+	 * to an output stream in one call
+	 */
+	private static final int MAX_COALESCED_BODY_SIZE = 8 * 1024;
 
-	static {
-		ourRfc1123DateFormat = new SimpleDateFormat("EEE, dd MMM yy HH:mm:ss z");
-	}
+	/**
+	 * Largest buffer kept for reuse by each thread. Heads which are larger than
+	 * this (e.g. because of a very large header) are encoded into a temporary
+	 * buffer instead, so that one unusual message doesn't pin a large buffer
+	 * to the thread for good.
+	 */
+	private static final int MAX_CACHED_HEAD_BUFFER_SIZE = 16 * 1024;
+
+	private static final ThreadLocal<ByteBuffer> ourDirectHeadBuffer = new ThreadLocal<ByteBuffer>() {
+		@Override
+		protected ByteBuffer initialValue() {
+			return ByteBuffer.allocateDirect(4 * 1024);
+		}
+	};
+
+	private static final ThreadLocal<HeadOutputStream> ourHeadOutputStream = new ThreadLocal<HeadOutputStream>() {
+		@Override
+		protected HeadOutputStream initialValue() {
+			return new HeadOutputStream();
+		}
+	};
 
 	private String myActionLine;
+	private CompressionDictionary myCompressionDictionary;
 	private boolean myGzipData;
+	private int myGzipThreshold = -1;
 	private ISendable<?> mySendable;
+	private boolean mySignatureInTrailer;
+	private TransferEncoding myTransferEncoding;
 
 	/**
 	 * Constructor
@@ -50,13 +89,20 @@ public abstract class AbstractHl7OverHttpEncoder extends AbstractHl7OverHttp {
 	public void encode() throws EncodeException {
 		ourLog.trace("Entering encode()");
 		verifyNotUsed();
+		long start = startPhase();
 
 		if (isBlank(getMessage()) && mySendable == null) {
 			throw new IllegalStateException("Either Message or Sendable must be set");
 		}
-		if (getMessage() != null) {
-			byte[] bytes = getMessage().getBytes(getCharset());
-			if (myGzipData) {
+		if (getMessage() != null || mySendable instanceof IEncodedSendable) {
+			byte[] bytes = getMessage() != null ? getMessage().getBytes(getCharset()) : ((IEncodedSendable<?>) mySendable).getEncodedMessage();
+			if (myCompressionDictionary != null) {
+				try {
+					bytes = myCompressionDictionary.compress(bytes, 0, bytes.length);
+				} catch (IOException e) {
+					throw new EncodeException("Failed to apply dictionary coding", e);
+				}
+			} else if (applyGzipThreshold(bytes.length)) {
 				try {
 					bytes = GZipUtils.compress(bytes);
 				} catch (IOException e) {
@@ -65,31 +111,81 @@ public abstract class AbstractHl7OverHttpEncoder extends AbstractHl7OverHttp {
 			}
 			setData(bytes);
 		} else {
-			ByteArrayOutputStream bos = new ByteArrayOutputStream();
-			OutputStream os;
-			if (myGzipData) {
+			// The uncompressed size must be known to apply the GZip threshold
+			PooledByteArrayOutputStream bos = new PooledByteArrayOutputStream(IOUtils.DEFAULT_BUFFER_SIZE);
+			try {
+				OutputStreamWriter w = new OutputStreamWriter(bos, getCharset());
 				try {
-					os = new GZIPOutputStream(bos);
+					mySendable.writeMessage(w);
+					w.close();
 				} catch (IOException e) {
-					throw new EncodeException("Failed to create GZip encoder", e);
+					throw new EncodeException("Failed to convert message to sendable bytes");
 				}
-			} else {
-				os = bos;
+				if (myCompressionDictionary != null) {
+					try {
+						setData(myCompressionDictionary.compress(bos.getBuffer(), 0, bos.size()));
+					} catch (IOException e) {
+						throw new EncodeException("Failed to apply dictionary coding", e);
+					}
+				} else if (applyGzipThreshold(bos.size())) {
+					try {
+						setData(GZipUtils.compress(bos.getBuffer(), 0, bos.size()));
+					} catch (IOException e) {
+						throw new EncodeException("Failed to apply GZip coding", e);
+					}
+				} else {
+					setData(bos.toByteArray());
+				}
+			} finally {
+				bos.release();
 			}
+		}
 
-			OutputStreamWriter w = new OutputStreamWriter(os, getCharset());
+		setActionLineAppropriately();
+
+		setHeaders(new LinkedHashMap<String, String>());
+		addContentTypeHeader();
+		getHeaders().put("Content-Length", Integer.toString(getData().length));
+		addSpecificHeaders();
+		addCompressionDictionaryHeaders();
+		addDateHeader();
+		endPhase(PhaseEnum.ENCODE, start);
+
+		if (getSigner() != null) {
+			long signStart = startPhase();
 			try {
-				mySendable.writeMessage(w);
-			} catch (IOException e) {
-				throw new EncodeException("Failed to convert message to sendable bytes");
+				getHeaders().put(HTTP_HEADER_HL7_SIGNATURE, getSigner().sign(getData()));
+			} catch (SignatureFailureException e) {
+				throw new EncodeException(e);
 			}
-			setData(bos.toByteArray());
+			endPhase(PhaseEnum.SIGN, signStart);
 		}
 
-		setActionLineAppropriately();
+		ourLog.trace("Exiting encode()");
+	}
 
-		setHeaders(new LinkedHashMap<String, String>());
+	/**
+	 * Turns on GZip coding if a threshold is set and the uncompressed body
+	 * reaches it
+	 *
+	 * @return Whether the body should be GZipped
+	 */
+	private boolean applyGzipThreshold(int theUncompressedLength) {
+		if (!myGzipData && myGzipThreshold >= 0 && theUncompressedLength >= myGzipThreshold) {
+			ourLog.debug("Body is {} bytes, which reaches the GZip threshold of {}", theUncompressedLength, myGzipThreshold);
+			myGzipData = true;
+		}
+		return myGzipData;
+	}
+
+	private void addCompressionDictionaryHeaders() {
+		if (myCompressionDictionary != null) {
+			getHeaders().put("Content-Encoding", CompressionDictionary.CONTENT_ENCODING);
+			getHeaders().put(HTTP_HEADER_HL7_DICTIONARY_ID, myCompressionDictionary.getId());
+		}
+	}
 
+	private void addContentTypeHeader() {
 		StringBuilder ctBuilder = new StringBuilder();
 		if (mySendable != null) {
 			ctBuilder.append(mySendable.getEncodingStyle().getContentType());
@@ -99,50 +195,261 @@ public abstract class AbstractHl7OverHttpEncoder extends AbstractHl7OverHttp {
 		ctBuilder.append("; charset=");
 		ctBuilder.append(getCharset().name());
 		getHeaders().put("Content-Type", ctBuilder.toString());
+	}
 
-		getHeaders().put("Content-Length", Integer.toString(getData().length));
+	private void addDateHeader() {
+		getHeaders().put("Date", HttpDateCache.getInstance().getValue());
+	}
 
-		addSpecificHeaders();
+	/**
+	 * Encodes the message and writes it to the given stream using chunked
+	 * transfer encoding, converting the message to bytes (and compressing it,
+	 * if GZip is enabled) as the chunks are written. The body is never held in
+	 * memory as a whole. If a signer is configured (which is only allowed if
+	 * {@link #setSignatureInTrailer(boolean) signing in a trailer} is
+	 * enabled), the signature is computed as the body is written and sent in
+	 * an <code>HL7-Signature</code> trailer after the last chunk. Signers which implement {@link IStreamingSigner}
+	 * sign without buffering, others are given a copy of the body once it has
+	 * been written.
+	 */
+	private void encodeChunkedToOutputStream(OutputStream theOutputStream) throws IOException, EncodeException {
+		ourLog.trace("Entering encodeChunkedToOutputStream()");
+		verifyNotUsed();
+		long start = startPhase();
 
-		synchronized (ourRfc1123DateFormat) {
-			getHeaders().put("Date", ourRfc1123DateFormat.format(new Date()));
+		if (isBlank(getMessage()) && mySendable == null) {
+			throw new IllegalStateException("Either Message or Sendable must be set");
 		}
 
+		setActionLineAppropriately();
+
+		setHeaders(new LinkedHashMap<String, String>());
+		addContentTypeHeader();
+		getHeaders().put("Transfer-Encoding", "chunked");
+		addSpecificHeaders();
+		addCompressionDictionaryHeaders();
+		addDateHeader();
 		if (getSigner() != null) {
+			getHeaders().put("Trailer", HTTP_HEADER_HL7_SIGNATURE);
+		}
+
+		ourLog.debug("Writing HTTP action: {}", getActionLine());
+		encodeHead().writeTo(theOutputStream);
+
+		ChunkedOutputStream chunked = new ChunkedOutputStream(theOutputStream);
+		OutputStream os = chunked;
+
+		SigningOutputStream signing = null;
+		if (getSigner() instanceof IStreamingSigner) {
 			try {
-				getHeaders().put(HTTP_HEADER_HL7_SIGNATURE, getSigner().sign(getData()));
+				signing = ((IStreamingSigner) getSigner()).createSigningOutputStream(os);
 			} catch (SignatureFailureException e) {
 				throw new EncodeException(e);
 			}
+			os = signing;
+		} else if (getSigner() != null) {
+			signing = new BufferingSigningOutputStream(os, getSigner());
+			os = signing;
 		}
 
-		ourLog.trace("Exiting encode()");
+		DeflaterOutputStream deflater = null;
+		if (myCompressionDictionary != null) {
+			deflater = myCompressionDictionary.newOutputStream(os, ChunkedOutputStream.DEFAULT_CHUNK_SIZE);
+			os = deflater;
+		} else if (myGzipData) {
+			deflater = new PooledGZipOutputStream(os, ChunkedOutputStream.DEFAULT_CHUNK_SIZE);
+			os = deflater;
+		}
+
+		if (mySendable instanceof IEncodedSendable) {
+			os.write(((IEncodedSendable<?>) mySendable).getEncodedMessage());
+		} else {
+			OutputStreamWriter w = new OutputStreamWriter(os, getCharset());
+			if (mySendable != null) {
+				mySendable.writeMessage(w);
+			} else {
+				w.write(getMessage());
+			}
+			w.flush();
+		}
+		if (deflater != null) {
+			deflater.finish();
+		}
+
+		Map<String, String> trailers = null;
+		if (signing != null) {
+			String signature;
+			long signStart = startPhase();
+			try {
+				signature = signing.finish();
+			} catch (SignatureFailureException e) {
+				throw new EncodeException(e);
+			}
+			endPhase(PhaseEnum.SIGN, signStart);
+			// Signing is reported separately, so leave it out of the write
+			start += startPhase() - signStart;
+			trailers = new LinkedHashMap<String, String>();
+			trailers.put(HTTP_HEADER_HL7_SIGNATURE, signature);
+			ourLog.debug("Writing HTTP trailer- {}: {}", HTTP_HEADER_HL7_SIGNATURE, signature);
+		}
+		chunked.finish(trailers);
+		endPhase(PhaseEnum.WRITE, start);
+
+		ourLog.trace("Exiting encodeChunkedToOutputStream()");
 	}
 
-	public void encodeToOutputStream(OutputStream theOutputStream) throws IOException, EncodeException {
+	/**
+	 * Encodes the message and writes it to the given channel, writing the
+	 * head and body with a single gathering write if the channel supports it.
+	 * The head is staged in a reusable direct buffer, and the body is written
+	 * from the encoded data without being copied. The channel must be in
+	 * blocking mode.
+	 * <p>
+	 * If {@link #setTransferEncoding(TransferEncoding) chunked transfer
+	 * encoding} is enabled, the message is instead streamed to the channel
+	 * through a buffer one chunk in size.
+	 * </p>
+	 */
+	public void encodeToChannel(WritableByteChannel theChannel) throws IOException, EncodeException {
+		if (isStreamingChunked()) {
+			// Don't close this stream, as that would close the channel
+			OutputStream os = new BufferedOutputStream(Channels.newOutputStream(theChannel), ChunkedOutputStream.DEFAULT_CHUNK_SIZE + 16);
+			encodeChunkedToOutputStream(os);
+			os.flush();
+			return;
+		}
+
 		encode();
+		long start = startPhase();
 
 		ourLog.debug("Writing HTTP action: {}", getActionLine());
 
-		OutputStreamWriter w = new OutputStreamWriter(theOutputStream, HTTPUtils.DEFAULT_CHARSET);
-		w.write(getActionLine());
-		w.write("\r\n");
+		HeadOutputStream head = encodeHead();
+		ByteBuffer headBuffer;
+		if (head.size() > MAX_CACHED_HEAD_BUFFER_SIZE) {
+			headBuffer = ByteBuffer.wrap(head.getBuffer(), 0, head.size());
+		} else {
+			headBuffer = ourDirectHeadBuffer.get();
+			if (headBuffer.capacity() < head.size()) {
+				headBuffer = ByteBuffer.allocateDirect(MAX_CACHED_HEAD_BUFFER_SIZE);
+				ourDirectHeadBuffer.set(headBuffer);
+			}
+			headBuffer.clear();
+			headBuffer.put(head.getBuffer(), 0, head.size());
+			headBuffer.flip();
+		}
+
+		ourLog.debug("Writing {} bytes of actual data", getData().length);
+		ByteBuffer body = ByteBuffer.wrap(getData());
 
-		for (Map.Entry<String, String> next : getHeaders().entrySet()) {
-			ourLog.debug("Writing HTTP header- {}: {}", next.getKey(), next.getValue());
+		if (theChannel instanceof GatheringByteChannel) {
+			ByteBuffer[] buffers = new ByteBuffer[] { headBuffer, body };
+			while (headBuffer.hasRemaining() || body.hasRemaining()) {
+				((GatheringByteChannel) theChannel).write(buffers);
+			}
+		} else {
+			while (headBuffer.hasRemaining()) {
+				theChannel.write(headBuffer);
+			}
+			while (body.hasRemaining()) {
+				theChannel.write(body);
+			}
+		}
+		endPhase(PhaseEnum.WRITE, start);
+	}
+
+	/**
+	 * Encodes the message and returns the head and the body as two buffers,
+	 * which may be written using a gathering write. The body buffer wraps the
+	 * encoded data rather than copying it. If
+	 * {@link #setTransferEncoding(TransferEncoding) chunked transfer encoding}
+	 * is enabled, the whole chunked request is returned in a single buffer.
+	 */
+	public ByteBuffer[] encodeToByteBuffers() throws EncodeException {
+		if (isStreamingChunked()) {
+			ByteArrayOutputStream bos = new ByteArrayOutputStream();
+			try {
+				encodeChunkedToOutputStream(bos);
+			} catch (IOException e) {
+				throw new EncodeException(e);
+			}
+			return new ByteBuffer[] { ByteBuffer.wrap(bos.toByteArray()) };
+		}
+
+		encode();
+
+		ourLog.debug("Encoding HTTP action: {}", getActionLine());
+
+		ByteArrayOutputStream head = encodeHead();
+		return new ByteBuffer[] { ByteBuffer.wrap(head.toByteArray()), ByteBuffer.wrap(getData()) };
+	}
 
-			w.write(next.getKey());
-			w.write(": ");
-			w.write(next.getValue());
-			w.write("\r\n");
+	public void encodeToOutputStream(OutputStream theOutputStream) throws IOException, EncodeException {
+		if (isStreamingChunked()) {
+			encodeChunkedToOutputStream(theOutputStream);
+			return;
 		}
 
-		w.write("\r\n");
-		w.flush();
+		encode();
+		long start = startPhase();
+
+		ourLog.debug("Writing HTTP action: {}", getActionLine());
+
+		ByteArrayOutputStream head = encodeHead();
 
 		ourLog.debug("Writing {} bytes of actual data", getData().length);
-		theOutputStream.write(getData());
+		if (getData().length <= MAX_COALESCED_BODY_SIZE) {
+			// Small bodies are appended to the head so that unbuffered streams
+			// see a single write
+			head.write(getData(), 0, getData().length);
+			head.writeTo(theOutputStream);
+		} else {
+			head.writeTo(theOutputStream);
+			theOutputStream.write(getData());
+		}
+		endPhase(PhaseEnum.WRITE, start);
+
+	}
 
+	/**
+	 * Encodes the action line, headers and the blank line which ends them into
+	 * this thread's reusable head buffer
+	 */
+	private HeadOutputStream encodeHead() {
+		HeadOutputStream retVal = ourHeadOutputStream.get();
+		if (retVal.getBuffer().length > MAX_CACHED_HEAD_BUFFER_SIZE) {
+			// Grew to fit a large head last time, don't keep it
+			retVal = new HeadOutputStream();
+			ourHeadOutputStream.set(retVal);
+		}
+		retVal.reset();
+		writeHead(retVal);
+		retVal.write('\r');
+		retVal.write('\n');
+		return retVal;
+	}
+
+	/**
+	 * Writes the action line and each header, each terminated by CRLF. The
+	 * blank line which ends the head is written by the caller.
+	 */
+	protected void writeHead(ByteArrayOutputStream theOutputStream) {
+		writeLine(theOutputStream, getActionLine());
+		for (Map.Entry<String, String> next : getHeaders().entrySet()) {
+			writeHeader(theOutputStream, next.getKey(), next.getValue());
+		}
+	}
+
+	static void writeHeader(ByteArrayOutputStream theOutputStream, String theName, String theValue) {
+		ourLog.debug("Writing HTTP header- {}: {}", theName, theValue);
+		writeLine(theOutputStream, theName + ": " + theValue);
+	}
+
+	static void writeLine(ByteArrayOutputStream theOutputStream, String theLine) {
+		byte[] bytes = theLine.getBytes(HTTPUtils.DEFAULT_CHARSET);
+		theOutputStream.write(bytes, 0, bytes.length);
+		theOutputStream.write('\r');
+		theOutputStream.write('\n');
 	}
 
 	/**
@@ -160,9 +467,24 @@ public abstract class AbstractHl7OverHttpEncoder extends AbstractHl7OverHttp {
 		myActionLine = theActionLine;
 	}
 
+	/**
+	 * Returns the charset of the message if it is an
+	 * {@link IEncodedSendable}, since its bytes are sent as they are, and
+	 * otherwise the charset which has been set
+	 */
+	@Override
+	public Charset getCharset() {
+		if (mySendable instanceof IEncodedSendable) {
+			return ((IEncodedSendable<?>) mySendable).getCharset();
+		}
+		return super.getCharset();
+	}
+
 	/**
 	 * Provide the message to send with a {@link ISendable} instance. Either
 	 * this method OR {@link #setMessage(String)} must be called, but not both.
+	 * If it is an {@link IEncodedSendable}, its bytes are sent exactly as they
+	 * are.
 	 */
 	public void setDataProvider(ISendable<?> theSendable) {
 		if (getMessage() != null) {
@@ -187,6 +509,82 @@ public abstract class AbstractHl7OverHttpEncoder extends AbstractHl7OverHttp {
 
 	protected abstract void setActionLineAppropriately();
 
+	/**
+	 * Returns the dictionary used to compress the body, or <code>null</code>
+	 */
+	public CompressionDictionary getCompressionDictionary() {
+		return myCompressionDictionary;
+	}
+
+	/**
+	 * If set, the body is compressed using the given preset dictionary, and
+	 * <code>Content-Encoding: x-hl7-dictionary</code> and
+	 * <code>HL7-Dictionary-Id</code> headers are added. This takes precedence
+	 * over GZip coding. The receiver must have the same dictionary registered
+	 * in order to decode the message.
+	 */
+	public void setCompressionDictionary(CompressionDictionary theCompressionDictionary) {
+		myCompressionDictionary = theCompressionDictionary;
+	}
+
+	/**
+	 * Returns the transfer encoding used to send the body, or <code>null</code>
+	 * if the body is sent with a <code>Content-Length</code> (the default)
+	 */
+	public TransferEncoding getTransferEncoding() {
+		return myTransferEncoding;
+	}
+
+	/**
+	 * Sets the transfer encoding used to send the body. If set to
+	 * {@link TransferEncoding#CHUNKED}, {@link #encodeToOutputStream(OutputStream)}
+	 * streams the body in chunks as the message is being converted to bytes,
+	 * instead of converting the whole message before anything is sent. This
+	 * is useful for very large messages. If set to <code>null</code> (the
+	 * default), a <code>Content-Length</code> header is sent.
+	 * <p>
+	 * If a signer is configured, the message is still sent with a
+	 * <code>Content-Length</code> and the signature in a header, unless
+	 * {@link #setSignatureInTrailer(boolean) signing in a trailer} is enabled.
+	 * </p>
+	 */
+	public void setTransferEncoding(TransferEncoding theTransferEncoding) {
+		myTransferEncoding = theTransferEncoding;
+	}
+
+	/**
+	 * Returns <code>true</code> if signed messages may be sent using chunked
+	 * transfer encoding, with the signature in a trailer
+	 * 
+	 * @see #setSignatureInTrailer(boolean)
+	 */
+	public boolean isSignatureInTrailer() {
+		return mySignatureInTrailer;
+	}
+
+	/**
+	 * If set to <code>true</code> and {@link #setTransferEncoding(TransferEncoding)
+	 * chunked transfer encoding} is enabled, signed messages are streamed too,
+	 * and the signature is sent in an <code>HL7-Signature</code> trailer after
+	 * the last chunk. Only enable this if the receiver reads the raw chunked
+	 * stream (e.g. {@link ca.uhn.hl7v2.hoh.raw.server.HohRawNioServer}), since
+	 * receivers which only see the headers, such as
+	 * {@link ca.uhn.hl7v2.hoh.raw.server.HohRawServlet}, can not verify it.
+	 * Default is <code>false</code>, meaning that signed messages are always
+	 * sent with the signature in a header.
+	 */
+	public void setSignatureInTrailer(boolean theSignatureInTrailer) {
+		mySignatureInTrailer = theSignatureInTrailer;
+	}
+
+	/**
+	 * Returns <code>true</code> if the body should be streamed using chunked
+	 * transfer encoding
+	 */
+	private boolean isStreamingChunked() {
+		return myTransferEncoding == TransferEncoding.CHUNKED && (getSigner() == null || mySignatureInTrailer);
+	}
+
 	boolean isGzipData() {
 		return myGzipData;
 	}
@@ -200,4 +598,61 @@ public abstract class AbstractHl7OverHttpEncoder extends AbstractHl7OverHttp {
 		myGzipData = theGzipData;
 	}
 
+	int getGzipThreshold() {
+		return myGzipThreshold;
+	}
+
+	/**
+	 * If set to zero or more, the encoded data is GZipped if its uncompressed
+	 * size is at least this many bytes. Set to -1 (the default) to only GZip
+	 * if {@link #setGzipData(boolean)} is set. The threshold does not apply
+	 * to chunked transfer encoding, since the size is not known before the
+	 * body is sent.
+	 */
+	void setGzipThreshold(int theGzipThreshold) {
+		myGzipThreshold = theGzipThreshold;
+	}
+
+	/**
+	 * Reusable buffer for encoding the head, which exposes its backing array
+	 * so that it can be copied to a direct buffer without an intermediate copy
+	 */
+	private static class HeadOutputStream extends ByteArrayOutputStream {
+
+		HeadOutputStream() {
+			super(1024);
+		}
+
+		byte[] getBuffer() {
+			return buf;
+		}
+
+	}
+
+	/**
+	 * Signs using a signer which can't sign a stream, by keeping a copy of the
+	 * bytes which pass through
+	 */
+	private static class BufferingSigningOutputStream extends SigningOutputStream {
+
+		private final ByteArrayOutputStream myBytes = new ByteArrayOutputStream();
+		private final ISigner mySigner;
+
+		BufferingSigningOutputStream(OutputStream theWrap, ISigner theSigner) {
+			super(theWrap);
+			mySigner = theSigner;
+		}
+
+		@Override
+		public String finish() throws SignatureFailureException {
+			return mySigner.sign(myBytes.toByteArray());
+		}
+
+		@Override
+		protected void update(byte[] theBytes, int theOffset, int theLength) {
+			myBytes.write(theBytes, theOffset, theLength);
+		}
+
+	}
+
 }
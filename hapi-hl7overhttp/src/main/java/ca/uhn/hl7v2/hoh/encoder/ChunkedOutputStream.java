@@ -0,0 +1,135 @@
+package ca.uhn.hl7v2.hoh.encoder;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Map;
+
+import ca.uhn.hl7v2.hoh.util.HTTPUtils;
+
+/**
+ * Writes everything written to it to a wrapped stream using HTTP chunked
+ * transfer encoding. Bytes are buffered until a full chunk is available, so
+ * that small writes do not each produce a chunk. Closing this stream does not
+ * close the wrapped stream.
+ */
+class ChunkedOutputStream extends OutputStream {
+
+	static final int DEFAULT_CHUNK_SIZE = 8 * 1024;
+
+	private static final byte[] CRLF = new byte[] { '\r', '\n' };
+
+	private final byte[] myBuffer;
+	private int myCount;
+	private boolean myFinished;
+	private final OutputStream myWrap;
+
+	/**
+	 * Constructor
+	 */
+	ChunkedOutputStream(OutputStream theWrap) {
+		this(theWrap, DEFAULT_CHUNK_SIZE);
+	}
+
+	/**
+	 * Constructor
+	 */
+	ChunkedOutputStream(OutputStream theWrap, int theChunkSize) {
+		myWrap = theWrap;
+		myBuffer = new byte[theChunkSize];
+	}
+
+	/**
+	 * Finishes the body without any trailers
+	 */
+	@Override
+	public void close() throws IOException {
+		finish(null);
+	}
+
+	/**
+	 * Writes any buffered bytes as a chunk, followed by the last chunk and the
+	 * given trailers (which may be <code>null</code>), then flushes the wrapped
+	 * stream. Does nothing if this stream is already finished.
+	 */
+	void finish(Map<String, String> theTrailers) throws IOException {
+		if (myFinished) {
+			return;
+		}
+		myFinished = true;
+
+		writeBufferedChunk();
+		myWrap.write('0');
+		myWrap.write(CRLF);
+		if (theTrailers != null) {
+			for (Map.Entry<String, String> next : theTrailers.entrySet()) {
+				myWrap.write((next.getKey() + ": " + next.getValue()).getBytes(HTTPUtils.DEFAULT_CHARSET));
+				myWrap.write(CRLF);
+			}
+		}
+		myWrap.write(CRLF);
+		myWrap.flush();
+	}
+
+	/**
+	 * Writes any buffered bytes as a chunk and flushes the wrapped stream
+	 */
+	@Override
+	public void flush() throws IOException {
+		verifyNotFinished();
+		writeBufferedChunk();
+		myWrap.flush();
+	}
+
+	private void verifyNotFinished() throws IOException {
+		if (myFinished) {
+			throw new IOException("Chunked body has already been finished");
+		}
+	}
+
+	@Override
+	public void write(byte[] theBytes, int theOffset, int theLength) throws IOException {
+		verifyNotFinished();
+		if (myCount == 0 && theLength >= myBuffer.length) {
+			// No point copying into the buffer
+			writeChunk(theBytes, theOffset, theLength);
+			return;
+		}
+
+		int offset = theOffset;
+		int remaining = theLength;
+		while (remaining > 0) {
+			int count = Math.min(remaining, myBuffer.length - myCount);
+			System.arraycopy(theBytes, offset, myBuffer, myCount, count);
+			myCount += count;
+			offset += count;
+			remaining -= count;
+			if (myCount == myBuffer.length) {
+				writeBufferedChunk();
+			}
+		}
+	}
+
+	@Override
+	public void write(int theByte) throws IOException {
+		verifyNotFinished();
+		myBuffer[myCount++] = (byte) theByte;
+		if (myCount == myBuffer.length) {
+			writeBufferedChunk();
+		}
+	}
+
+	private void writeBufferedChunk() throws IOException {
+		if (myCount > 0) {
+			writeChunk(myBuffer, 0, myCount);
+			myCount = 0;
+		}
+	}
+
+	private void writeChunk(byte[] theBytes, int theOffset, int theLength) throws IOException {
+		myWrap.write(Integer.toHexString(theLength).getBytes(HTTPUtils.DEFAULT_CHARSET));
+		myWrap.write(CRLF);
+		myWrap.write(theBytes, theOffset, theLength);
+		myWrap.write(CRLF);
+	}
+
+}
@@ -72,6 +72,24 @@ public class Hl7OverHttpRequestDecoder extends AbstractHl7OverHttpDecoder {
 		return myActionLine;
 	}
 
+	/**
+	 * Returns <code>true</code> if the request contained an
+	 * <code>Accept-Encoding</code> header which allows the response to be
+	 * GZipped
+	 */
+	@Override
+	public boolean isGzipAccepted() {
+		return super.isGzipAccepted();
+	}
+
+	/**
+	 * Returns true if the connection=close header was present in the request
+	 */
+	@Override
+	public boolean isConnectionCloseHeaderPresent() {
+		return super.isConnectionCloseHeaderPresent();
+	}
+
 	/**
 	 * @param theAuthorizationCallback
 	 *            the authorizationCallback to set
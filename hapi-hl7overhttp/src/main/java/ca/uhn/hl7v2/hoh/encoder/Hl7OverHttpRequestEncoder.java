@@ -1,22 +1,31 @@
 package ca.uhn.hl7v2.hoh.encoder;
 
-import static ca.uhn.hl7v2.hoh.util.StringUtils.*;
-
-import java.io.UnsupportedEncodingException;
-
-import ca.uhn.hl7v2.hoh.util.VersionLogger;
-import ca.uhn.hl7v2.hoh.util.repackage.Base64;
+import java.io.ByteArrayOutputStream;
+import java.util.Map;
 
 public class Hl7OverHttpRequestEncoder extends AbstractHl7OverHttpEncoder {
 
-	private static final org.slf4j.Logger ourLog = org.slf4j.LoggerFactory.getLogger(Hl7OverHttpRequestEncoder.class);
+	private boolean myAcceptGzip;
 	private String myHost;
 	private int myPort;
-        private String myextraHeaders;
+	private String myextraHeaders;
+	private Hl7OverHttpRequestTemplate myRequestTemplate;
+
+	/**
+	 * If set to <code>true</code> (default is <code>false</code>), an
+	 * <code>Accept-Encoding: gzip</code> header is added to the request,
+	 * allowing the server to GZip the response. Ignored if a
+	 * {@link #setRequestTemplate(Hl7OverHttpRequestTemplate) request template}
+	 * is provided.
+	 */
+	public void setAcceptGzip(boolean theAcceptGzip) {
+		myAcceptGzip = theAcceptGzip;
+	}
+
+	public void setExtraHeaders(String extraheaders) {
+		myextraHeaders = extraheaders;
+	}
 
-        public void setExtraHeaders(String extraheaders) {
-            myextraHeaders = extraheaders;
-        }
 	public void setHost(String theHost) {
 		myHost = theHost;
 	}
@@ -24,53 +33,51 @@ public class Hl7OverHttpRequestEncoder extends AbstractHl7OverHttpEncoder {
 	public void setPort(int thePort) {
 		myPort = thePort;
 	}
-	private boolean myAcceptGzip = false;
+
+	/**
+	 * Provides a template containing the action line and static headers for
+	 * this request, so that they do not need to be rebuilt for each message.
+	 * If a template is provided, the values it was built from are used instead
+	 * of the path, host, port, credentials and extra headers provided to this
+	 * encoder. If none is provided, one is built for this request only.
+	 */
+	public void setRequestTemplate(Hl7OverHttpRequestTemplate theRequestTemplate) {
+		myRequestTemplate = theRequestTemplate;
+	}
 
 	@Override
 	protected void addSpecificHeaders() {
-		if (isNotBlank(getUsername()) && isNotBlank(getPassword())) {
-                        String authorizationUnescaped = defaultString(getUsername()) + ":" + defaultString(getPassword());
-			String encoded;
-			try {
-				encoded = Base64.encodeBase64String(authorizationUnescaped.getBytes("ISO-8859-1"));
-			} catch (UnsupportedEncodingException e) {
-				throw new Error("Could not find US-ASCII encoding. This shouldn't happen!");
-			}
-			getHeaders().put("Authorization", "Basic " + encoded);
-		}
+		getHeaders().putAll(getRequestTemplate().getHeaders());
+	}
 
-		if (myAcceptGzip) {
-			getHeaders().put("Accept-Encoding", "gzip");
-		}
-		getHeaders().put("User-Agent", "HAPI (HL7 over HTTP) Client " + VersionLogger.getVersion());
-                 //Extra headers property defined
-                if (myextraHeaders != null) {
-                     String[] pairs = myextraHeaders.split("~");
-                     for (String pair : pairs) {
-                        int idx = pair.indexOf("=");
-                        if (idx > 0) {
-                            getHeaders().put(pair.substring(0, idx),pair.substring(idx + 1));
-                        }
-                     }
-                }
-		StringBuilder hostBuilder = new StringBuilder();
-		if (isNotBlank(myHost)) {
-			hostBuilder.append(myHost);
-			if (myPort > 0) {
-				hostBuilder.append(":");
-				hostBuilder.append(myPort);
-			} else {
-				ourLog.warn("Host has been set, but port has not");
-			}
-		} else {
-			ourLog.warn("Host has not been set");
+	private Hl7OverHttpRequestTemplate getRequestTemplate() {
+		if (myRequestTemplate == null) {
+			myRequestTemplate = new Hl7OverHttpRequestTemplate(getPath(), myHost, myPort, getUsername(), getPassword(), myextraHeaders, myAcceptGzip);
 		}
-		getHeaders().put("Host", hostBuilder.toString());
+		return myRequestTemplate;
 	}
 
 	@Override
 	protected void setActionLineAppropriately() {
-		setActionLine("POST " + getPath() + " HTTP/1.1");
+		setActionLine(getRequestTemplate().getActionLine());
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	protected void writeHead(ByteArrayOutputStream theOutputStream) {
+		// The action line and static headers are already encoded
+		Hl7OverHttpRequestTemplate template = getRequestTemplate();
+		byte[] headBytes = template.getHeadBytes();
+		theOutputStream.write(headBytes, 0, headBytes.length);
+
+		Map<String, String> staticHeaders = template.getHeaders();
+		for (Map.Entry<String, String> next : getHeaders().entrySet()) {
+			if (!staticHeaders.containsKey(next.getKey())) {
+				writeHeader(theOutputStream, next.getKey(), next.getValue());
+			}
+		}
 	}
 
 }
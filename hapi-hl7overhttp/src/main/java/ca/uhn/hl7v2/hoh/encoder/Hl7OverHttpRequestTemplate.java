@@ -0,0 +1,174 @@
+package ca.uhn.hl7v2.hoh.encoder;
+
+import static ca.uhn.hl7v2.hoh.util.StringUtils.*;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import ca.uhn.hl7v2.hoh.util.HTTPUtils;
+import ca.uhn.hl7v2.hoh.util.StringUtils;
+import ca.uhn.hl7v2.hoh.util.VersionLogger;
+import ca.uhn.hl7v2.hoh.util.repackage.Base64;
+
+/**
+ * <p>
+ * The parts of an HL7 over HTTP request which are the same for every message
+ * sent by a given client: the action line, and the <code>Authorization</code>,
+ * <code>User-Agent</code>, <code>Host</code>, <code>Accept-Encoding</code>
+ * and any extra headers. These are
+ * built and encoded to bytes once, so that each request only needs to compute
+ * the headers which actually vary (<code>Content-Type</code>,
+ * <code>Content-Length</code>, <code>Date</code> and the signature).
+ * </p>
+ * <p>
+ * Instances are immutable and may be shared between threads. Provide one to
+ * each encoder using
+ * {@link Hl7OverHttpRequestEncoder#setRequestTemplate(Hl7OverHttpRequestTemplate)}.
+ * </p>
+ */
+public class Hl7OverHttpRequestTemplate {
+
+	private static final org.slf4j.Logger ourLog = org.slf4j.LoggerFactory.getLogger(Hl7OverHttpRequestTemplate.class);
+
+	private final boolean myAcceptGzip;
+	private final String myActionLine;
+	private final byte[] myHeadBytes;
+	private final Map<String, String> myHeaders;
+	private final String myPassword;
+	private final String myUsername;
+
+	/**
+	 * Constructor
+	 *
+	 * @param thePath
+	 *            The path being requested, e.g. "/Apps/Receiver.jsp"
+	 * @param theHost
+	 *            The host, used in the <code>Host</code> header
+	 * @param thePort
+	 *            The port, used in the <code>Host</code> header
+	 * @param theUsername
+	 *            The username for basic authentication, or <code>null</code>
+	 * @param thePassword
+	 *            The password for basic authentication, or <code>null</code>
+	 * @param theExtraHeaders
+	 *            Extra headers to add to each request in the form
+	 *            <code>name1=value1~name2=value2</code>, or <code>null</code>
+	 */
+	public Hl7OverHttpRequestTemplate(String thePath, String theHost, int thePort, String theUsername, String thePassword, String theExtraHeaders) {
+		this(thePath, theHost, thePort, theUsername, thePassword, theExtraHeaders, false);
+	}
+
+	/**
+	 * Constructor
+	 *
+	 * @param thePath
+	 *            The path being requested, e.g. "/Apps/Receiver.jsp"
+	 * @param theHost
+	 *            The host, used in the <code>Host</code> header
+	 * @param thePort
+	 *            The port, used in the <code>Host</code> header
+	 * @param theUsername
+	 *            The username for basic authentication, or <code>null</code>
+	 * @param thePassword
+	 *            The password for basic authentication, or <code>null</code>
+	 * @param theExtraHeaders
+	 *            Extra headers to add to each request in the form
+	 *            <code>name1=value1~name2=value2</code>, or <code>null</code>
+	 * @param theAcceptGzip
+	 *            If <code>true</code>, an
+	 *            <code>Accept-Encoding: gzip</code> header is added, allowing
+	 *            the server to GZip its responses
+	 */
+	public Hl7OverHttpRequestTemplate(String thePath, String theHost, int thePort, String theUsername, String thePassword, String theExtraHeaders, boolean theAcceptGzip) {
+		myAcceptGzip = theAcceptGzip;
+		myUsername = theUsername;
+		myPassword = thePassword;
+		myActionLine = "POST " + thePath + " HTTP/1.1";
+
+		LinkedHashMap<String, String> headers = new LinkedHashMap<String, String>();
+		if (isNotBlank(theUsername) && isNotBlank(thePassword)) {
+			String authorizationUnescaped = defaultString(theUsername) + ":" + defaultString(thePassword);
+			String encoded = Base64.encodeBase64String(authorizationUnescaped.getBytes(HTTPUtils.DEFAULT_CHARSET));
+			headers.put("Authorization", "Basic " + encoded);
+		}
+
+		headers.put("User-Agent", "HAPI (HL7 over HTTP) Client " + VersionLogger.getVersion());
+		if (theAcceptGzip) {
+			headers.put("Accept-Encoding", "gzip");
+		}
+
+		if (theExtraHeaders != null) {
+			String[] pairs = theExtraHeaders.split("~");
+			for (String pair : pairs) {
+				int idx = pair.indexOf("=");
+				if (idx > 0) {
+					headers.put(pair.substring(0, idx), pair.substring(idx + 1));
+				}
+			}
+		}
+
+		StringBuilder hostBuilder = new StringBuilder();
+		if (isNotBlank(theHost)) {
+			hostBuilder.append(theHost);
+			if (thePort > 0) {
+				hostBuilder.append(":");
+				hostBuilder.append(thePort);
+			} else {
+				ourLog.warn("Host has been set, but port has not");
+			}
+		} else {
+			ourLog.warn("Host has not been set");
+		}
+		headers.put("Host", hostBuilder.toString());
+
+		myHeaders = Collections.unmodifiableMap(headers);
+
+		ByteArrayOutputStream bos = new ByteArrayOutputStream();
+		AbstractHl7OverHttpEncoder.writeLine(bos, myActionLine);
+		for (Map.Entry<String, String> next : headers.entrySet()) {
+			AbstractHl7OverHttpEncoder.writeLine(bos, next.getKey() + ": " + next.getValue());
+		}
+		myHeadBytes = bos.toByteArray();
+	}
+
+	/**
+	 * Returns the action line, e.g. <code>POST /path HTTP/1.1</code>
+	 */
+	public String getActionLine() {
+		return myActionLine;
+	}
+
+	/**
+	 * Returns the action line followed by each of the static headers, encoded
+	 * and terminated with CRLF. The returned array must not be modified.
+	 */
+	byte[] getHeadBytes() {
+		return myHeadBytes;
+	}
+
+	/**
+	 * Returns the static headers (unmodifiable)
+	 */
+	public Map<String, String> getHeaders() {
+		return myHeaders;
+	}
+
+	/**
+	 * Returns <code>true</code> if this template adds an
+	 * <code>Accept-Encoding: gzip</code> header
+	 */
+	public boolean isAcceptGzip() {
+		return myAcceptGzip;
+	}
+
+	/**
+	 * Returns <code>true</code> if this template was built using the given
+	 * credentials, meaning it can be reused for a request with those credentials
+	 */
+	public boolean hasCredentials(String theUsername, String thePassword) {
+		return StringUtils.equals(myUsername, theUsername) && StringUtils.equals(myPassword, thePassword);
+	}
+
+}
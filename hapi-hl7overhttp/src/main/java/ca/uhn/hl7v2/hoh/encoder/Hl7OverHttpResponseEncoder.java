@@ -4,6 +4,14 @@ import ca.uhn.hl7v2.hoh.util.VersionLogger;
 
 public class Hl7OverHttpResponseEncoder extends AbstractHl7OverHttpEncoder {
 
+	/**
+	 * Default size threshold (1KB) above which servers GZip responses for
+	 * clients which accept it
+	 *
+	 * @see #setGzipThreshold(int)
+	 */
+	public static final int DEFAULT_GZIP_THRESHOLD = 1024;
+
 	private boolean myAddConnectionCloseHeader;
 
 	@Override
@@ -39,4 +47,19 @@ public class Hl7OverHttpResponseEncoder extends AbstractHl7OverHttpEncoder {
 		super.setGzipData(theGzipData);
 	}
 
+	/**
+	 * If set to zero or more, the response is GZipped (and a
+	 * <code>Content-Encoding: gzip</code> header is added) if the uncompressed
+	 * body is at least this many bytes. Default is -1, meaning only
+	 * {@link #setGzipData(boolean)} applies. Only set this if the request
+	 * indicated that GZip coding is accepted.
+	 *
+	 * @see Hl7OverHttpRequestDecoder#isGzipAccepted()
+	 * @see #DEFAULT_GZIP_THRESHOLD
+	 */
+	@Override
+	public void setGzipThreshold(int theGzipThreshold) {
+		super.setGzipThreshold(theGzipThreshold);
+	}
+
 }
@@ -0,0 +1,273 @@
+package ca.uhn.hl7v2.hoh.encoder;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+
+/**
+ * <p>
+ * The raw bytes of an HTTP message head (the action or status line and the
+ * headers, up to and including the blank line which ends them), along with
+ * the position of each line within those bytes.
+ * </p>
+ * <p>
+ * Bytes are added using {@link #getBufferForRead()} and {@link #scan(int)}.
+ * Lines are terminated by LF, and all other control characters (including
+ * CR) are ignored. Strings are only created for the lines and header values
+ * which are actually requested, and header names are matched directly on the
+ * bytes.
+ * </p>
+ * <p>
+ * This class is not thread safe.
+ * </p>
+ */
+class HttpHead {
+
+	/**
+	 * Heads larger than this (64KB) are rejected
+	 */
+	static final int MAX_HEAD_SIZE = 64 * 1024;
+
+	private static final int INITIAL_SIZE = 512;
+
+	private byte[] myBytes = new byte[INITIAL_SIZE];
+	private boolean myComplete;
+	private final boolean myFirstLineOnly;
+	private final boolean myHasFirstLine;
+	private int myLength;
+	private int myLineCount;
+	private int[] myLineEnds = new int[16];
+	private boolean myLineHasContent;
+	private int myLineStart;
+	private int[] myLineStarts = new int[16];
+	private boolean mySawContent;
+
+	/**
+	 * Constructor
+	 *
+	 * @param theHasFirstLine
+	 *            Whether the head starts with an action or status line, as
+	 *            opposed to starting directly with the headers
+	 * @param theFirstLineOnly
+	 *            Whether the head ends after the first line, because the
+	 *            headers have been provided some other way
+	 */
+	HttpHead(boolean theHasFirstLine, boolean theFirstLineOnly) {
+		myHasFirstLine = theHasFirstLine;
+		myFirstLineOnly = theFirstLineOnly;
+	}
+
+	private void addLine(int theEnd) {
+		if (myLineCount == myLineStarts.length) {
+			myLineStarts = Arrays.copyOf(myLineStarts, myLineCount * 2);
+			myLineEnds = Arrays.copyOf(myLineEnds, myLineCount * 2);
+		}
+		myLineStarts[myLineCount] = myLineStart;
+		myLineEnds[myLineCount] = theEnd;
+		myLineCount++;
+	}
+
+	/**
+	 * Returns the buffer to read the next bytes into, starting at
+	 * {@link #getLength()}, growing it if it is full. Returns
+	 * <code>null</code> if the head has reached {@link #MAX_HEAD_SIZE}.
+	 */
+	byte[] getBufferForRead() {
+		if (myLength == myBytes.length) {
+			if (myLength >= MAX_HEAD_SIZE) {
+				return null;
+			}
+			myBytes = Arrays.copyOf(myBytes, Math.min(myLength * 2, MAX_HEAD_SIZE));
+		}
+		return myBytes;
+	}
+
+	/**
+	 * Returns the index of the first header line
+	 */
+	int getFirstHeaderLine() {
+		return myHasFirstLine ? 1 : 0;
+	}
+
+	/**
+	 * Returns the number of header lines, not including the first line or the
+	 * blank line which ends the head
+	 */
+	int getHeaderLineCount() {
+		if (myFirstLineOnly) {
+			return 0;
+		}
+		// The last line is the blank line
+		return Math.max(0, myLineCount - 1 - getFirstHeaderLine());
+	}
+
+	/**
+	 * Returns the number of bytes in the head
+	 */
+	int getLength() {
+		return myLength;
+	}
+
+	/**
+	 * Returns the given line, with control characters removed, runs of
+	 * whitespace collapsed to a single space, and leading and trailing
+	 * whitespace removed
+	 */
+	String getLine(int theLine) {
+		return toCollapsedString(myBytes, myLineStarts[theLine], myLineEnds[theLine]);
+	}
+
+	/**
+	 * Returns the value of the header on the given line, which follows the
+	 * given colon index, with whitespace collapsed as in {@link #getLine(int)}
+	 */
+	String getValue(int theLine, int theColonIndex) {
+		return toCollapsedString(myBytes, theColonIndex + 1, myLineEnds[theLine]);
+	}
+
+	/**
+	 * Returns the index of the first colon in the given line, or -1
+	 */
+	int indexOfColon(int theLine) {
+		for (int i = myLineStarts[theLine]; i < myLineEnds[theLine]; i++) {
+			if (myBytes[i] == ':') {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * Returns <code>true</code> if this head contains headers, as opposed to
+	 * only the first line
+	 */
+	boolean hasHeaders() {
+		return !myFirstLineOnly;
+	}
+
+	/**
+	 * Returns <code>true</code> once the blank line which ends the head (or
+	 * the first line, if only the first line is being read) has been scanned
+	 */
+	boolean isComplete() {
+		return myComplete;
+	}
+
+	/**
+	 * Returns <code>true</code> if any non-whitespace bytes have been scanned
+	 */
+	boolean isSawContent() {
+		return mySawContent;
+	}
+
+	/**
+	 * Returns <code>true</code> if the name of the header on the given line,
+	 * which ends at the given colon index, is equal to the given lower case
+	 * name, ignoring case and surrounding whitespace
+	 */
+	boolean nameEquals(int theLine, int theColonIndex, byte[] theLowerCaseName) {
+		int start = myLineStarts[theLine];
+		int end = theColonIndex;
+		while (start < end && (myBytes[start] & 0xFF) <= ' ') {
+			start++;
+		}
+		while (end > start && (myBytes[end - 1] & 0xFF) <= ' ') {
+			end--;
+		}
+		if (end - start != theLowerCaseName.length) {
+			return false;
+		}
+		for (int i = 0; i < theLowerCaseName.length; i++) {
+			int next = myBytes[start + i];
+			if (next >= 'A' && next <= 'Z') {
+				next += 'a' - 'A';
+			}
+			if (next != theLowerCaseName[i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Scans bytes which have just been read into the buffer, starting at
+	 * {@link #getLength()}
+	 *
+	 * @return The number of those bytes which belong to the head. This is less
+	 *         than <code>theCount</code> if the head ended part way through
+	 *         them, in which case the remaining bytes belong to the body.
+	 */
+	int scan(int theCount) {
+		int end = myLength + theCount;
+		for (int i = myLength; i < end; i++) {
+			int next = myBytes[i] & 0xFF;
+			if (next != '\n') {
+				if (next > ' ') {
+					myLineHasContent = true;
+					mySawContent = true;
+				}
+				continue;
+			}
+
+			addLine(i);
+			boolean blank = !myLineHasContent;
+			myLineHasContent = false;
+			myLineStart = i + 1;
+
+			boolean firstLine = myHasFirstLine && myLineCount == 1;
+			if ((firstLine && (myFirstLineOnly || blank)) || (!firstLine && blank)) {
+				// A blank first line means there is no message, so stop there
+				myComplete = true;
+				int retVal = i + 1 - myLength;
+				myLength = i + 1;
+				return retVal;
+			}
+		}
+		myLength = end;
+		return theCount;
+	}
+
+	/**
+	 * Returns a map containing each header, in the order they were received
+	 */
+	LinkedHashMap<String, String> toHeaderMap() {
+		LinkedHashMap<String, String> retVal = new LinkedHashMap<String, String>();
+		int first = getFirstHeaderLine();
+		for (int i = first; i < first + getHeaderLineCount(); i++) {
+			int colonIndex = indexOfColon(i);
+			if (colonIndex == -1) {
+				continue;
+			}
+			String name = toCollapsedString(myBytes, myLineStarts[i], colonIndex);
+			retVal.put(name, getValue(i, colonIndex));
+		}
+		return retVal;
+	}
+
+	/**
+	 * Creates a string from the given range of bytes, treating each byte as
+	 * an ISO-8859-1 character. Control characters other than tab are removed,
+	 * runs of spaces and tabs are collapsed to a single space, and leading and
+	 * trailing whitespace is removed.
+	 */
+	static String toCollapsedString(byte[] theBytes, int theStart, int theEnd) {
+		char[] chars = new char[theEnd - theStart];
+		int count = 0;
+		boolean pendingSpace = false;
+		for (int i = theStart; i < theEnd; i++) {
+			int next = theBytes[i] & 0xFF;
+			if (next == ' ' || next == '\t') {
+				pendingSpace = count > 0;
+			} else if (next < ' ') {
+				continue;
+			} else {
+				if (pendingSpace) {
+					chars[count++] = ' ';
+					pendingSpace = false;
+				}
+				chars[count++] = (char) next;
+			}
+		}
+		return new String(chars, 0, count);
+	}
+
+}
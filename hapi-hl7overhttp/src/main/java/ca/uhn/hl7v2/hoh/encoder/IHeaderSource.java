@@ -0,0 +1,24 @@
+package ca.uhn.hl7v2.hoh.encoder;
+
+/**
+ * Provides the value of HTTP headers by name, for callers which have already
+ * parsed the message head (e.g. a servlet container), so that a decoder can
+ * look up only the headers it uses instead of having every header copied
+ * into a map
+ *
+ * @see AbstractHl7OverHttpDecoder#readContentsAsStream(IHeaderSource,
+ *      java.io.InputStream)
+ */
+public interface IHeaderSource {
+
+	/**
+	 * Returns the value of the given header, or <code>null</code> if it is
+	 * not present
+	 *
+	 * @param theName
+	 *            The header name, in lower case. Header names must be matched
+	 *            ignoring case.
+	 */
+	String getHeader(String theName);
+
+}
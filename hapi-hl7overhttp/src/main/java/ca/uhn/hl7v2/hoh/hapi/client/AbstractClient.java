@@ -11,11 +11,15 @@ import ca.uhn.hl7v2.hoh.api.IAuthorizationClientCallback;
 import ca.uhn.hl7v2.hoh.api.IClient;
 import ca.uhn.hl7v2.hoh.api.IReceivable;
 import ca.uhn.hl7v2.hoh.api.ISendable;
+import ca.uhn.hl7v2.hoh.encoder.TransferEncoding;
 import ca.uhn.hl7v2.hoh.hapi.api.MessageReceivable;
 import ca.uhn.hl7v2.hoh.hapi.api.MessageSendable;
+import ca.uhn.hl7v2.hoh.metrics.IMetricsListener;
+import ca.uhn.hl7v2.hoh.metrics.PhaseEnum;
 import ca.uhn.hl7v2.hoh.raw.client.AbstractRawClient;
 import ca.uhn.hl7v2.hoh.sign.ISigner;
 import ca.uhn.hl7v2.hoh.sockets.ISocketFactory;
+import ca.uhn.hl7v2.hoh.util.CompressionDictionary;
 import ca.uhn.hl7v2.hoh.util.Validate;
 import ca.uhn.hl7v2.model.Message;
 import ca.uhn.hl7v2.parser.EncodingNotSupportedException;
@@ -50,6 +54,48 @@ public abstract class AbstractClient<T extends AbstractRawClient> implements ICl
 		return getRawClient().isKeepAlive();
 	}
 
+	/**
+	 * {@inheritDoc}
+	 */
+	public void setCompressionDictionary(CompressionDictionary theCompressionDictionary) {
+		getRawClient().setCompressionDictionary(theCompressionDictionary);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	public CompressionDictionary getCompressionDictionary() {
+		return getRawClient().getCompressionDictionary();
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	public void setMetricsListener(IMetricsListener theMetricsListener) {
+		getRawClient().setMetricsListener(theMetricsListener);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	public IMetricsListener getMetricsListener() {
+		return getRawClient().getMetricsListener();
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	public void setAcceptGzip(boolean theAcceptGzip) {
+		getRawClient().setAcceptGzip(theAcceptGzip);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	public boolean isAcceptGzip() {
+		return getRawClient().isAcceptGzip();
+	}
+
 	/**
 	 * {@inheritDoc}
 	 */
@@ -100,6 +146,27 @@ public abstract class AbstractClient<T extends AbstractRawClient> implements ICl
 		return myParser;
 	}
 
+	/**
+	 * {@inheritDoc}
+	 */
+	public int getPipelineDepth() {
+		return myRawClient.getPipelineDepth();
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	public TransferEncoding getRequestTransferEncoding() {
+		return myRawClient.getRequestTransferEncoding();
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	public boolean isRequestSignatureInTrailer() {
+		return myRawClient.isRequestSignatureInTrailer();
+	}
+
 	/**
 	 * {@inheritDoc}
 	 */
@@ -169,7 +236,22 @@ public abstract class AbstractClient<T extends AbstractRawClient> implements ICl
 	public IReceivable<Message> sendAndReceiveMessage(ISendable<Message> theMessageToSend) throws DecodeException, IOException, EncodeException, EncodingNotSupportedException, HL7Exception {
 		IReceivable<String> response = myRawClient.sendAndReceive(theMessageToSend);
 		Parser parser = myParser != null ? myParser : theMessageToSend.getMessage().getParser();
-		return new MessageReceivable(parser.parse(response.getMessage()));
+
+		IMetricsListener metricsListener = getRawClient().getMetricsListener();
+		if (metricsListener == null) {
+			return new MessageReceivable(parser.parse(response.getMessage()));
+		}
+
+		long start = System.nanoTime();
+		Message message;
+		try {
+			message = parser.parse(response.getMessage());
+		} catch (HL7Exception e) {
+			metricsListener.exchangeFailed(e);
+			throw e;
+		}
+		metricsListener.phaseCompleted(PhaseEnum.PARSE, System.nanoTime() - start);
+		return new MessageReceivable(message);
 	}
 
 	/**
@@ -238,6 +320,27 @@ public abstract class AbstractClient<T extends AbstractRawClient> implements ICl
 		myRawClient.setUriPath(thePath);
 	}
 
+	/**
+	 * {@inheritDoc}
+	 */
+	public void setPipelineDepth(int thePipelineDepth) {
+		myRawClient.setPipelineDepth(thePipelineDepth);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	public void setRequestTransferEncoding(TransferEncoding theTransferEncoding) {
+		myRawClient.setRequestTransferEncoding(theTransferEncoding);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	public void setRequestSignatureInTrailer(boolean theRequestSignatureInTrailer) {
+		myRawClient.setRequestSignatureInTrailer(theRequestSignatureInTrailer);
+	}
+
 	/**
 	 * {@inheritDoc}
 	 */
@@ -0,0 +1,499 @@
+package ca.uhn.hl7v2.hoh.hapi.client;
+
+import java.io.IOException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import ca.uhn.hl7v2.HL7Exception;
+import ca.uhn.hl7v2.hoh.api.DecodeException;
+import ca.uhn.hl7v2.hoh.api.EncodeException;
+import ca.uhn.hl7v2.hoh.api.IAuthorizationClientCallback;
+import ca.uhn.hl7v2.hoh.api.IReceivable;
+import ca.uhn.hl7v2.hoh.api.ISendable;
+import ca.uhn.hl7v2.hoh.hapi.api.MessageSendable;
+import ca.uhn.hl7v2.hoh.metrics.IMetricsListener;
+import ca.uhn.hl7v2.hoh.sign.ISigner;
+import ca.uhn.hl7v2.hoh.sockets.ISocketFactory;
+import ca.uhn.hl7v2.hoh.util.Validate;
+import ca.uhn.hl7v2.model.Message;
+import ca.uhn.hl7v2.parser.EncodingNotSupportedException;
+import ca.uhn.hl7v2.parser.Parser;
+
+/**
+ * <p>
+ * Message sender which spreads messages across several equivalent HL7 over
+ * HTTP endpoints (e.g. several instances of the same receiving application),
+ * without needing a separate load balancer in front of them.
+ * </p>
+ * <p>
+ * Each endpoint has its own {@link HohClientMultithreaded}, and so its own
+ * pool of persistent connections. The endpoint for each message is chosen
+ * according to the {@link #setStrategy(LoadBalancingStrategyEnum) strategy}
+ * from those which are not currently ejected. An endpoint is ejected for the
+ * {@link #setEjectionTime(long) ejection time} after
+ * {@link #setMaxConsecutiveFailures(int) several consecutive failures} to send
+ * a message or read its response, or (if a
+ * {@link #setSlowThreshold(long) slow threshold} is set) when its average
+ * response time exceeds the threshold. Once the ejection time has passed, it
+ * is tried again. If every endpoint is ejected, messages are sent to the one
+ * due to return soonest rather than not being sent at all.
+ * </p>
+ * <p>
+ * Messages are not automatically resent to another endpoint when sending
+ * fails, since the failed endpoint may have processed the message. The
+ * failure is thrown to the caller, who may resend it (and the next attempt
+ * will avoid the endpoint if it has been ejected).
+ * </p>
+ * <p>
+ * This client is safe to use from several threads at once. It uses an
+ * executor service which can start worker threads, so use caution if
+ * embedding within a J2EE container.
+ * </p>
+ */
+public class HohClientLoadBalanced {
+
+	/**
+	 * Default {@link #setEjectionTime(long) ejection time}, 30000ms
+	 */
+	public static final long DEFAULT_EJECTION_TIME = 30000;
+
+	/**
+	 * Default {@link #setMaxConsecutiveFailures(int) number of consecutive
+	 * failures} before an endpoint is ejected, 2
+	 */
+	public static final int DEFAULT_MAX_CONSECUTIVE_FAILURES = 2;
+
+	/**
+	 * Weight given to each new response time in the moving average
+	 */
+	private static final double EWMA_WEIGHT = 0.3;
+
+	private static final org.slf4j.Logger ourLog = org.slf4j.LoggerFactory.getLogger(HohClientLoadBalanced.class);
+
+	private volatile long myEjectionTime = DEFAULT_EJECTION_TIME;
+	private final List<Endpoint> myEndpoints;
+	private volatile int myMaxConsecutiveFailures = DEFAULT_MAX_CONSECUTIVE_FAILURES;
+	private final AtomicInteger myNextIndex = new AtomicInteger();
+	private volatile long mySlowThreshold = -1;
+	private volatile LoadBalancingStrategyEnum myStrategy = LoadBalancingStrategyEnum.LEAST_OUTSTANDING_REQUESTS;
+
+	/**
+	 * Constructor
+	 *
+	 * @param theUrls
+	 *            The URLs to send messages to (must contain at least one)
+	 */
+	public HohClientLoadBalanced(List<URL> theUrls) {
+		this(theUrls, null);
+	}
+
+	/**
+	 * Constructor
+	 *
+	 * @param theUrls
+	 *            The URLs to send messages to (must contain at least one)
+	 * @param theParser
+	 *            The Parser to use, or <code>null</code> in which case the
+	 *            parser of each sent message will be used
+	 */
+	public HohClientLoadBalanced(List<URL> theUrls, Parser theParser) {
+		this(theUrls, theParser, Executors.newScheduledThreadPool(1));
+	}
+
+	/**
+	 * Constructor
+	 *
+	 * @param theUrls
+	 *            The URLs to send messages to (must contain at least one)
+	 * @param theParser
+	 *            The Parser to use, or <code>null</code> in which case the
+	 *            parser of each sent message will be used
+	 * @param theExecutorService
+	 *            The executor service shared by the endpoint clients for
+	 *            closing idle connections
+	 */
+	public HohClientLoadBalanced(List<URL> theUrls, Parser theParser, ScheduledExecutorService theExecutorService) {
+		Validate.notNull(theUrls, "urls");
+		Validate.notNull(theExecutorService, "executorService");
+		if (theUrls.isEmpty()) {
+			throw new IllegalArgumentException("At least one URL must be provided");
+		}
+
+		List<Endpoint> endpoints = new ArrayList<Endpoint>();
+		for (URL next : theUrls) {
+			endpoints.add(new Endpoint(next, new HohClientMultithreaded(next, theParser, theExecutorService)));
+		}
+		myEndpoints = Collections.unmodifiableList(endpoints);
+	}
+
+	/**
+	 * Chooses the endpoint for the next message
+	 */
+	Endpoint chooseEndpoint() {
+		long now = System.currentTimeMillis();
+		LoadBalancingStrategyEnum strategy = myStrategy;
+		double defaultLatency = strategy == LoadBalancingStrategyEnum.EWMA_LATENCY ? getMeanLatency(now) : 0;
+
+		// Start from a different endpoint each time so that ties rotate
+		int size = myEndpoints.size();
+		int start = (myNextIndex.getAndIncrement() & Integer.MAX_VALUE) % size;
+
+		Endpoint retVal = null;
+		double bestScore = 0;
+		for (int i = 0; i < size; i++) {
+			Endpoint next = myEndpoints.get((start + i) % size);
+			if (!next.isAvailable(now)) {
+				continue;
+			}
+
+			double score;
+			if (strategy == LoadBalancingStrategyEnum.EWMA_LATENCY) {
+				double latency = next.myLatencyEwma >= 0 ? next.myLatencyEwma : defaultLatency;
+				score = latency * (next.myOutstandingRequests.get() + 1);
+			} else {
+				score = next.myOutstandingRequests.get();
+			}
+
+			if (retVal == null || score < bestScore) {
+				retVal = next;
+				bestScore = score;
+			}
+		}
+
+		if (retVal == null) {
+			for (Endpoint next : myEndpoints) {
+				if (retVal == null || next.myEjectedUntil.get() < retVal.myEjectedUntil.get()) {
+					retVal = next;
+				}
+			}
+			ourLog.warn("All endpoints are ejected, sending to {}", retVal.getUrl());
+		}
+
+		return retVal;
+	}
+
+	/**
+	 * Returns the number of millis an endpoint is ejected for
+	 */
+	public long getEjectionTime() {
+		return myEjectionTime;
+	}
+
+	/**
+	 * Returns the endpoints messages are sent to, in the order their URLs were
+	 * given
+	 */
+	public List<Endpoint> getEndpoints() {
+		return myEndpoints;
+	}
+
+	/**
+	 * Returns the number of consecutive failures after which an endpoint is
+	 * ejected
+	 */
+	public int getMaxConsecutiveFailures() {
+		return myMaxConsecutiveFailures;
+	}
+
+	/**
+	 * Returns the mean of the response time averages of the available
+	 * endpoints which have one, which is used for endpoints which have no
+	 * average yet, or 1 if there are none
+	 */
+	private double getMeanLatency(long theNow) {
+		double total = 0;
+		int count = 0;
+		for (Endpoint next : myEndpoints) {
+			double latency = next.myLatencyEwma;
+			if (latency >= 0 && next.isAvailable(theNow)) {
+				total += latency;
+				count++;
+			}
+		}
+		return count > 0 ? total / count : 1;
+	}
+
+	/**
+	 * Returns the average response time (in millis) above which an endpoint
+	 * is ejected, or -1 if slow endpoints are not ejected
+	 */
+	public long getSlowThreshold() {
+		return mySlowThreshold;
+	}
+
+	/**
+	 * Returns the strategy used to choose the endpoint for each message
+	 */
+	public LoadBalancingStrategyEnum getStrategy() {
+		return myStrategy;
+	}
+
+	/**
+	 * Sends a message to one of the endpoints, waits for the response, and
+	 * then returns the response if any
+	 *
+	 * @param theMessageToSend
+	 *            The message to send
+	 * @return The returned message, as well as associated metadata
+	 * @throws DecodeException
+	 *             If a problem occurs (read error, socket disconnect, etc.)
+	 *             during communication, or the response is invalid in some way.
+	 * @throws IOException
+	 *             If the client is unable to connect to the chosen endpoint
+	 * @throws EncodeException
+	 *             If a failure occurs while encoding the message into a
+	 *             sendable HTTP request
+	 * @throws HL7Exception
+	 *             If the response can not be parsed
+	 * @throws EncodingNotSupportedException
+	 *             If the encoding is not supported
+	 * @see HohClientMultithreaded#sendAndReceiveMessage(ISendable)
+	 */
+	public IReceivable<Message> sendAndReceiveMessage(ISendable<Message> theMessageToSend) throws DecodeException, IOException, EncodeException, EncodingNotSupportedException, HL7Exception {
+		Endpoint endpoint = chooseEndpoint();
+		ourLog.trace("Sending message to {}", endpoint.getUrl());
+
+		endpoint.myOutstandingRequests.incrementAndGet();
+		long start = System.nanoTime();
+		try {
+			IReceivable<Message> retVal = endpoint.getClient().sendAndReceiveMessage(theMessageToSend);
+			endpoint.succeeded(System.nanoTime() - start);
+			return retVal;
+		} catch (DecodeException e) {
+			endpoint.failed(e);
+			throw e;
+		} catch (IOException e) {
+			endpoint.failed(e);
+			throw e;
+		} finally {
+			endpoint.myOutstandingRequests.decrementAndGet();
+		}
+	}
+
+	/**
+	 * Sends a message to one of the endpoints, waits for the response, and
+	 * then returns the response if any (this method is a convenience method
+	 * for {@link #sendAndReceiveMessage(ISendable)})
+	 */
+	public IReceivable<Message> sendAndReceiveMessage(Message theMessageToSend) throws DecodeException, IOException, EncodeException, EncodingNotSupportedException, HL7Exception {
+		return sendAndReceiveMessage(new MessageSendable(theMessageToSend));
+	}
+
+	/**
+	 * Sets the authorization callback used by all endpoints
+	 */
+	public void setAuthorizationCallback(IAuthorizationClientCallback theAuthorizationCallback) {
+		for (Endpoint next : myEndpoints) {
+			next.getClient().setAuthorizationCallback(theAuthorizationCallback);
+		}
+	}
+
+	/**
+	 * Sets the number of millis an endpoint is ejected for before it is tried
+	 * again. Default is {@link #DEFAULT_EJECTION_TIME}.
+	 */
+	public void setEjectionTime(long theEjectionTime) {
+		if (theEjectionTime < 0) {
+			throw new IllegalArgumentException("Ejection time can not be negative");
+		}
+		myEjectionTime = theEjectionTime;
+	}
+
+	/**
+	 * Sets the number of consecutive failures (failures to connect, send or
+	 * read a response) after which an endpoint is ejected. Default is
+	 * {@link #DEFAULT_MAX_CONSECUTIVE_FAILURES}.
+	 */
+	public void setMaxConsecutiveFailures(int theMaxConsecutiveFailures) {
+		if (theMaxConsecutiveFailures < 1) {
+			throw new IllegalArgumentException("Max consecutive failures must be a positive integer");
+		}
+		myMaxConsecutiveFailures = theMaxConsecutiveFailures;
+	}
+
+	/**
+	 * Sets the maximum number of connections each endpoint may have open
+	 *
+	 * @see HohClientMultithreaded#setMaxTotalConnections(int)
+	 */
+	public void setMaxTotalConnectionsPerEndpoint(int theMaxTotalConnections) {
+		for (Endpoint next : myEndpoints) {
+			next.getClient().setMaxTotalConnections(theMaxTotalConnections);
+		}
+	}
+
+	/**
+	 * Sets the response timeout used by all endpoints
+	 */
+	public void setResponseTimeout(long theResponseTimeout) {
+		for (Endpoint next : myEndpoints) {
+			next.getClient().setResponseTimeout(theResponseTimeout);
+		}
+	}
+
+	/**
+	 * Sets the listener which all endpoints report phase timings to. A
+	 * shared {@link ca.uhn.hl7v2.hoh.metrics.InMemoryMetrics} summarizes the
+	 * pool as a whole, while giving each endpoint's client its own listener
+	 * allows endpoints to be compared.
+	 */
+	public void setMetricsListener(IMetricsListener theMetricsListener) {
+		for (Endpoint next : myEndpoints) {
+			next.getClient().setMetricsListener(theMetricsListener);
+		}
+	}
+
+	/**
+	 * Sets the signer used by all endpoints
+	 */
+	public void setSigner(ISigner theSigner) {
+		for (Endpoint next : myEndpoints) {
+			next.getClient().setSigner(theSigner);
+		}
+	}
+
+	/**
+	 * Sets the average response time (in millis) above which an endpoint is
+	 * ejected. A value of -1 (the default) means endpoints are never ejected
+	 * for being slow. When an endpoint returns, its average starts again.
+	 */
+	public void setSlowThreshold(long theSlowThreshold) {
+		if (theSlowThreshold < -1 || theSlowThreshold == 0) {
+			throw new IllegalArgumentException("Slow threshold must be -1 or a positive integer");
+		}
+		mySlowThreshold = theSlowThreshold;
+	}
+
+	/**
+	 * Sets the socket factory used by all endpoints
+	 */
+	public void setSocketFactory(ISocketFactory theSocketFactory) {
+		for (Endpoint next : myEndpoints) {
+			next.getClient().setSocketFactory(theSocketFactory);
+		}
+	}
+
+	/**
+	 * Sets the strategy used to choose the endpoint for each message. Default
+	 * is {@link LoadBalancingStrategyEnum#LEAST_OUTSTANDING_REQUESTS}.
+	 */
+	public void setStrategy(LoadBalancingStrategyEnum theStrategy) {
+		Validate.notNull(theStrategy, "strategy");
+		myStrategy = theStrategy;
+	}
+
+	/**
+	 * One of the endpoints messages are sent to, along with its statistics.
+	 * Settings which are not available on {@link HohClientLoadBalanced} can
+	 * be changed on each endpoint's {@link #getClient() client}.
+	 */
+	public class Endpoint {
+
+		private final HohClientMultithreaded myClient;
+		private final AtomicInteger myConsecutiveFailures = new AtomicInteger();
+		private final AtomicLong myEjectedUntil = new AtomicLong();
+		private volatile double myLatencyEwma = -1;
+		private final AtomicInteger myOutstandingRequests = new AtomicInteger();
+		private final URL myUrl;
+
+		Endpoint(URL theUrl, HohClientMultithreaded theClient) {
+			myUrl = theUrl;
+			myClient = theClient;
+		}
+
+		private void eject(String theReason) {
+			long ejectedUntil = System.currentTimeMillis() + myEjectionTime;
+			myEjectedUntil.set(ejectedUntil);
+			myLatencyEwma = -1;
+			ourLog.warn("Ejecting endpoint {} until {}: {}", new Object[] { myUrl, new Date(ejectedUntil), theReason });
+		}
+
+		void failed(Exception theException) {
+			if (myConsecutiveFailures.incrementAndGet() >= myMaxConsecutiveFailures) {
+				myConsecutiveFailures.set(0);
+				eject(myMaxConsecutiveFailures + " consecutive failures, last was " + theException.toString());
+			}
+		}
+
+		/**
+		 * Returns the client used to send messages to this endpoint
+		 */
+		public HohClientMultithreaded getClient() {
+			return myClient;
+		}
+
+		/**
+		 * Returns the exponentially weighted moving average of this
+		 * endpoint's response time in millis, or -1 if there have been no
+		 * responses since the endpoint was created or last ejected
+		 */
+		public double getLatencyEwmaMillis() {
+			double retVal = myLatencyEwma;
+			return retVal >= 0 ? retVal / TimeUnit.MILLISECONDS.toNanos(1) : -1;
+		}
+
+		/**
+		 * Returns the number of requests currently in progress
+		 */
+		public int getOutstandingRequests() {
+			return myOutstandingRequests.get();
+		}
+
+		/**
+		 * Returns the URL of this endpoint
+		 */
+		public URL getUrl() {
+			return myUrl;
+		}
+
+		/**
+		 * Returns true if this endpoint is ejected, i.e. will not be sent
+		 * messages unless all endpoints are ejected
+		 */
+		public boolean isEjected() {
+			return !isAvailable(System.currentTimeMillis());
+		}
+
+		boolean isAvailable(long theNow) {
+			long ejectedUntil = myEjectedUntil.get();
+			if (ejectedUntil == 0) {
+				return true;
+			}
+			if (ejectedUntil > theNow) {
+				return false;
+			}
+			if (myEjectedUntil.compareAndSet(ejectedUntil, 0)) {
+				ourLog.info("Ejection time has passed, returning endpoint {}", myUrl);
+			}
+			return true;
+		}
+
+		synchronized void succeeded(long theElapsedNanos) {
+			myConsecutiveFailures.set(0);
+
+			double latency = myLatencyEwma;
+			latency = latency < 0 ? theElapsedNanos : latency + EWMA_WEIGHT * (theElapsedNanos - latency);
+			myLatencyEwma = latency;
+
+			long slowThreshold = mySlowThreshold;
+			if (slowThreshold > 0 && latency > TimeUnit.MILLISECONDS.toNanos(slowThreshold)) {
+				eject("average response time of " + TimeUnit.NANOSECONDS.toMillis((long) latency) + "ms exceeds " + slowThreshold + "ms");
+			}
+		}
+
+		@Override
+		public String toString() {
+			return "Endpoint[url=" + myUrl + ", outstanding=" + getOutstandingRequests() + ", ejected=" + isEjected() + "]";
+		}
+
+	}
+
+}
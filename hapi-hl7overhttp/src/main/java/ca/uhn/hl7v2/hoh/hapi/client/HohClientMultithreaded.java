@@ -1,5 +1,6 @@
 package ca.uhn.hl7v2.hoh.hapi.client;
 
+import java.io.IOException;
 import java.net.URL;
 import java.util.concurrent.ScheduledExecutorService;
 
@@ -83,6 +84,22 @@ public class HohClientMultithreaded extends AbstractClient<HohRawClientMultithre
 		super(new HohRawClientMultithreaded(theUrl), theParser);
 	}
 
+	/**
+	 * Constructor
+	 * 
+	 * @param theUrl
+	 *            The URL to send messages to
+	 * @param theParser
+	 *            The Parser to use, or <code>null</code> in which case a
+	 *            PipeParser will be used
+	 * @param theExecutorService
+	 *            The executor service to use for detecting stale sockets,
+	 *            which may be shared with other clients
+	 */
+	public HohClientMultithreaded(URL theUrl, Parser theParser, ScheduledExecutorService theExecutorService) {
+		super(new HohRawClientMultithreaded(theUrl, theExecutorService), theParser);
+	}
+
 	/**
 	 * {@inheritDoc}
 	 */
@@ -96,6 +113,69 @@ public class HohClientMultithreaded extends AbstractClient<HohRawClientMultithre
 	public void setSocketTimeout(long theSocketTimeout) {
 		getRawClient().setSocketTimeout(theSocketTimeout);
 	}
-        
+
+	/**
+	 * {@inheritDoc}
+	 */
+	public int getMaxTotalConnections() {
+		return getRawClient().getMaxTotalConnections();
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	public void setMaxTotalConnections(int theMaxTotalConnections) {
+		getRawClient().setMaxTotalConnections(theMaxTotalConnections);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	public int getMaxIdleConnections() {
+		return getRawClient().getMaxIdleConnections();
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	public void setMaxIdleConnections(int theMaxIdleConnections) {
+		getRawClient().setMaxIdleConnections(theMaxIdleConnections);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	public int getMinIdleConnections() {
+		return getRawClient().getMinIdleConnections();
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	public void setMinIdleConnections(int theMinIdleConnections) {
+		getRawClient().setMinIdleConnections(theMinIdleConnections);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	public long getValidateAfterIdle() {
+		return getRawClient().getValidateAfterIdle();
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	public void setValidateAfterIdle(long theValidateAfterIdle) {
+		getRawClient().setValidateAfterIdle(theValidateAfterIdle);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	public int warmUp(int theConnectionCount) throws IOException {
+		return getRawClient().warmUp(theConnectionCount);
+	}
+
 
 }
@@ -0,0 +1,23 @@
+package ca.uhn.hl7v2.hoh.hapi.client;
+
+/**
+ * Strategies used by {@link HohClientLoadBalanced} to choose the endpoint each
+ * message is sent to
+ */
+public enum LoadBalancingStrategyEnum {
+
+	/**
+	 * Send to the endpoint with the fewest requests currently in progress.
+	 * Ties are broken in turn, so idle endpoints share traffic evenly.
+	 */
+	LEAST_OUTSTANDING_REQUESTS,
+
+	/**
+	 * Send to the endpoint with the lowest exponentially weighted moving
+	 * average (EWMA) of response time, multiplied by its number of requests
+	 * in progress plus one, so that a fast endpoint is not sent more than it
+	 * can handle
+	 */
+	EWMA_LATENCY
+
+}
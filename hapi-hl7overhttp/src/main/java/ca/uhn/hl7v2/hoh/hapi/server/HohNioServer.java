@@ -0,0 +1,105 @@
+package ca.uhn.hl7v2.hoh.hapi.server;
+
+import java.io.IOException;
+import java.util.HashMap;
+
+import ca.uhn.hl7v2.HL7Exception;
+import ca.uhn.hl7v2.hoh.api.IMessageHandler;
+import ca.uhn.hl7v2.hoh.api.IReceivable;
+import ca.uhn.hl7v2.hoh.api.IResponseSendable;
+import ca.uhn.hl7v2.hoh.api.MessageProcessingException;
+import ca.uhn.hl7v2.hoh.raw.api.RawSendable;
+import ca.uhn.hl7v2.hoh.raw.server.HohRawNioServer;
+import ca.uhn.hl7v2.model.Message;
+import ca.uhn.hl7v2.protocol.ApplicationRouter;
+import ca.uhn.hl7v2.protocol.ReceivingApplication;
+import ca.uhn.hl7v2.protocol.Transportable;
+import ca.uhn.hl7v2.protocol.impl.AppRoutingDataImpl;
+import ca.uhn.hl7v2.protocol.impl.ApplicationRouterImpl;
+import ca.uhn.hl7v2.protocol.impl.TransportableImpl;
+
+/**
+ * Standalone HL7 over HTTP server which passes messages to HAPI
+ * {@link ReceivingApplication}s, in the same way as {@link HohServlet} but
+ * without needing a servlet container.
+ *
+ * @see HohRawNioServer
+ */
+public class HohNioServer extends HohRawNioServer {
+
+	private ApplicationRouter myApplicationRouter;
+
+	/**
+	 * Constructor
+	 *
+	 * @param thePort
+	 *            The port to listen on, or 0 to listen on any free port
+	 */
+	public HohNioServer(int thePort) {
+		super(thePort);
+		super.setMessageHandler(new MessageHandlerImpl());
+	}
+
+	/**
+	 * <p>
+	 * Route all messages to a single application
+	 * </p>
+	 * <p>
+	 * This method should not be called if {@link #setApplicationRouter(ApplicationRouter)} has been called
+	 * </p>
+	 */
+	public void setApplication(ReceivingApplication<? extends Message> theApplication) {
+		myApplicationRouter = new ApplicationRouterImpl();
+		myApplicationRouter.bindApplication(new AppRoutingDataImpl("*", "*", "*", "*"), theApplication);
+	}
+
+	/**
+	 * <p>
+	 * Sets an ApplicationRouter which may direct different types of messages
+	 * to different applications
+	 * </p>
+	 * <p>
+	 * Does not need to be provided if {@link #setApplication(ReceivingApplication)} has been called.
+	 * </p>
+	 */
+	public void setApplicationRouter(ApplicationRouter theApplicationRouter) {
+		myApplicationRouter = theApplicationRouter;
+	}
+
+	/**
+	 * Must not be called
+	 */
+	@Override
+	public void setMessageHandler(IMessageHandler<String> theMessageHandler) {
+		throw new UnsupportedOperationException();
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public void start() throws IOException {
+		if (myApplicationRouter == null) {
+			throw new IllegalStateException("No application or application router has been set");
+		}
+		super.start();
+	}
+
+	private class MessageHandlerImpl implements IMessageHandler<String> {
+
+		public IResponseSendable<String> messageReceived(IReceivable<String> theMessage) throws MessageProcessingException {
+
+			Transportable received = new TransportableImpl(theMessage.getMessage(), new HashMap<String, Object>(theMessage.getMetadata()));
+			Transportable response;
+			try {
+				response = myApplicationRouter.processMessage(received);
+			} catch (HL7Exception e) {
+				throw new MessageProcessingException(e);
+			}
+
+			return new RawSendable(response.getMessage());
+		}
+
+	}
+
+}
@@ -8,7 +8,10 @@ import java.nio.charset.Charset;
 import ca.uhn.hl7v2.app.TwoPortService;
 import ca.uhn.hl7v2.hoh.api.IAuthorizationClientCallback;
 import ca.uhn.hl7v2.hoh.api.IAuthorizationServerCallback;
+import ca.uhn.hl7v2.hoh.encoder.Hl7OverHttpResponseEncoder;
 import ca.uhn.hl7v2.hoh.sign.ISigner;
+import ca.uhn.hl7v2.hoh.util.CompressionDictionary;
+import ca.uhn.hl7v2.hoh.util.CompressionDictionaryRegistry;
 import ca.uhn.hl7v2.hoh.util.ServerRoleEnum;
 import ca.uhn.hl7v2.llp.HL7Reader;
 import ca.uhn.hl7v2.llp.HL7Writer;
@@ -27,17 +30,48 @@ import ca.uhn.hl7v2.llp.LowerLayerProtocol;
  * <li>It will not work on a duel socket server such as {@link TwoPortService}
  * </ul>
  * </p>
+ * 
+ * <p>
+ * Each connection is kept open and used for any number of messages. In
+ * {@link ServerRoleEnum#SERVER SERVER} mode, responses are always written in
+ * the order that requests arrived on the connection, even if the application
+ * processes them concurrently, and an idle connection may be closed after a
+ * {@link #setKeepAliveTimeout(long) timeout}. In
+ * {@link ServerRoleEnum#CLIENT CLIENT} mode, several requests may be
+ * {@link #setMaxOutstandingRequests(int) sent} before their responses have
+ * been read.
+ * </p>
+ * 
+ * <p>
+ * A single instance may be shared by any number of connections, as long as
+ * the reader and writer for each connection are created by the same thread.
+ * </p>
  */
 public class Hl7OverHttpLowerLayerProtocol extends LowerLayerProtocol {
 
+	/**
+	 * The default time in milliseconds that a thread waits to send a request
+	 * while the {@link #setMaxOutstandingRequests(int) maximum number} of
+	 * requests are already outstanding (30000ms)
+	 *
+	 * @see #setSendWaitTimeout(long)
+	 */
+	public static final long DEFAULT_SEND_WAIT_TIMEOUT = 30 * 1000;
+
+	private boolean myAcceptGzip = true;
 	private IAuthorizationClientCallback myAuthorizationClientCallback;
 	private IAuthorizationServerCallback myAuthorizationServerCallback;
-	private HohLlpReader myNextReader;
-	private HohLlpWriter myNextWriter;
+	private CompressionDictionary myCompressionDictionary;
+	private long myKeepAliveTimeout;
+	private int myMaxOutstandingRequests;
+	private long mySendWaitTimeout = DEFAULT_SEND_WAIT_TIMEOUT;
+	private final ThreadLocal<HohLlpReader> myNextReader = new ThreadLocal<HohLlpReader>();
+	private final ThreadLocal<HohLlpWriter> myNextWriter = new ThreadLocal<HohLlpWriter>();
 	private ServerRoleEnum myRole;
 	private ISigner mySigner;
 	private String myUriPath = "/";
 	private Charset myPreferredCharset;
+	private int myGzipThreshold = Hl7OverHttpResponseEncoder.DEFAULT_GZIP_THRESHOLD;
 	
 	public Hl7OverHttpLowerLayerProtocol(ServerRoleEnum theRole) {
 		myRole = theRole;
@@ -65,22 +99,50 @@ public class Hl7OverHttpLowerLayerProtocol extends LowerLayerProtocol {
 	 */
 	@Override
 	public HL7Reader getReader(InputStream theArg0) throws LLPException {
-		if (myNextReader == null && myNextWriter != null) {
-			myNextWriter = null;
+		if (myNextReader.get() == null && myNextWriter.get() != null) {
+			myNextWriter.remove();
 			throw new LLPException("Hl7OverHttpLowerLayerProtocol can not be used with a multi socket implementation");
 		}
 		prepareReadersIfNeeded();
-		HohLlpReader retVal = myNextReader;
+		HohLlpReader retVal = myNextReader.get();
+		myNextReader.remove();
 		try {
 			retVal.setInputStream(theArg0);
 		} catch (IOException e) {
 			throw new LLPException("Failed to set stream: " + e.getMessage(), e);
 		}
 
-		myNextReader = null;
 		return retVal;
 	}
 
+	/**
+	 * @see #setCompressionDictionary(CompressionDictionary)
+	 */
+	CompressionDictionary getCompressionDictionary() {
+		return myCompressionDictionary;
+	}
+
+	/**
+	 * @see #setGzipThreshold(int)
+	 */
+	int getGzipThreshold() {
+		return myGzipThreshold;
+	}
+
+	/**
+	 * @see #setKeepAliveTimeout(long)
+	 */
+	long getKeepAliveTimeout() {
+		return myKeepAliveTimeout;
+	}
+
+	/**
+	 * @see #setMaxOutstandingRequests(int)
+	 */
+	int getMaxOutstandingRequests() {
+		return myMaxOutstandingRequests;
+	}
+
 	/**
 	 * Returns the server role this protocol implementation is being used for
 	 */
@@ -88,6 +150,13 @@ public class Hl7OverHttpLowerLayerProtocol extends LowerLayerProtocol {
 		return myRole;
 	}
 
+	/**
+	 * @see #setSendWaitTimeout(long)
+	 */
+	long getSendWaitTimeout() {
+		return mySendWaitTimeout;
+	}
+
 	/**
 	 * @return The signature profile signer
 	 * @see #setSigner(ISigner)
@@ -109,12 +178,13 @@ public class Hl7OverHttpLowerLayerProtocol extends LowerLayerProtocol {
 	 */
 	@Override
 	public HL7Writer getWriter(OutputStream theArg0) throws LLPException {
-		if (myNextReader != null && myNextWriter == null) {
-			myNextReader = null;
+		if (myNextReader.get() != null && myNextWriter.get() == null) {
+			myNextReader.remove();
 			throw new LLPException("Hl7OverHttpLowerLayerProtocol can not be used with a multi socket implementation");
 		}
 		prepareReadersIfNeeded();
-		HohLlpWriter retVal = myNextWriter;
+		HohLlpWriter retVal = myNextWriter.get();
+		myNextWriter.remove();
 		retVal.setPreferredCharset(myPreferredCharset);
 		try {
 			retVal.setOutputStream(theArg0);
@@ -122,15 +192,16 @@ public class Hl7OverHttpLowerLayerProtocol extends LowerLayerProtocol {
 			throw new LLPException("Failed to set stream: " + e.getMessage(), e);
 		}
 
-		myNextWriter = null;
 		return retVal;
 	}
 
 	private void prepareReadersIfNeeded() {
-		if (myNextReader == null && myNextWriter == null) {
-			myNextReader = new HohLlpReader(this);
-			myNextWriter = new HohLlpWriter(this);
-			myNextReader.setWriter(myNextWriter);
+		if (myNextReader.get() == null && myNextWriter.get() == null) {
+			HohLlpReader reader = new HohLlpReader(this);
+			HohLlpWriter writer = new HohLlpWriter(this);
+			reader.setWriter(writer);
+			myNextReader.set(reader);
+			myNextWriter.set(writer);
 		}
 	}
 
@@ -156,6 +227,93 @@ public class Hl7OverHttpLowerLayerProtocol extends LowerLayerProtocol {
 		myAuthorizationServerCallback = theAuthorizationCallback;
 	}
 
+	/**
+	 * @see #setAcceptGzip(boolean)
+	 */
+	boolean isAcceptGzip() {
+		return myAcceptGzip;
+	}
+
+	/**
+	 * If this LLP instance is in {@link ServerRoleEnum#CLIENT CLIENT} mode,
+	 * sets whether requests advertise that GZipped responses are accepted
+	 * (default is <code>true</code>)
+	 */
+	public void setAcceptGzip(boolean theAcceptGzip) {
+		myAcceptGzip = theAcceptGzip;
+	}
+
+	/**
+	 * If this LLP instance is in {@link ServerRoleEnum#CLIENT CLIENT} mode,
+	 * sets a dictionary used to compress requests. The dictionary is also
+	 * registered in the {@link CompressionDictionaryRegistry#getDefaultInstance()
+	 * default registry} so that responses compressed with it can be decoded.
+	 * In {@link ServerRoleEnum#SERVER SERVER} mode, responses are compressed
+	 * using the same dictionary as the request, as long as the dictionary is
+	 * registered.
+	 */
+	public void setCompressionDictionary(CompressionDictionary theCompressionDictionary) {
+		myCompressionDictionary = theCompressionDictionary;
+		if (theCompressionDictionary != null) {
+			CompressionDictionaryRegistry.getDefaultInstance().register(theCompressionDictionary);
+		}
+	}
+
+	/**
+	 * If this LLP instance is in {@link ServerRoleEnum#SERVER SERVER} mode,
+	 * sets the response size (in bytes) at or above which responses are
+	 * GZipped, if the request allows it. Set to -1 to never compress
+	 * responses. Defaults to
+	 * {@link Hl7OverHttpResponseEncoder#DEFAULT_GZIP_THRESHOLD}.
+	 */
+	public void setGzipThreshold(int theGzipThreshold) {
+		myGzipThreshold = theGzipThreshold;
+	}
+
+	/**
+	 * If this LLP instance is in {@link ServerRoleEnum#SERVER SERVER} mode,
+	 * sets the time (in milliseconds) after which a connection is closed if
+	 * no request has arrived on it and no response is waiting to be sent. The
+	 * idle time is checked each time a read on the socket times out, so the
+	 * connection may stay open a little longer than this. Defaults to 0,
+	 * meaning idle connections are never closed.
+	 */
+	public void setKeepAliveTimeout(long theKeepAliveTimeout) {
+		if (theKeepAliveTimeout < 0) {
+			throw new IllegalArgumentException("Keep alive timeout must not be negative");
+		}
+		myKeepAliveTimeout = theKeepAliveTimeout;
+	}
+
+	/**
+	 * If this LLP instance is in {@link ServerRoleEnum#CLIENT CLIENT} mode,
+	 * sets the number of requests which may be sent on one connection before
+	 * the response to the first has been received (HTTP pipelining). Sending
+	 * threads wait once this many requests are outstanding. Set to 1 to make
+	 * each request wait for the response to the one before it. Defaults to 0,
+	 * meaning there is no limit.
+	 */
+	public void setMaxOutstandingRequests(int theMaxOutstandingRequests) {
+		if (theMaxOutstandingRequests < 0) {
+			throw new IllegalArgumentException("Max outstanding requests must not be negative");
+		}
+		myMaxOutstandingRequests = theMaxOutstandingRequests;
+	}
+
+	/**
+	 * If this LLP instance is in {@link ServerRoleEnum#CLIENT CLIENT} mode
+	 * and a {@link #setMaxOutstandingRequests(int) maximum number of
+	 * outstanding requests} is set, sets the time (in milliseconds) a thread
+	 * waits for the response to an earlier request before it gives up on
+	 * sending its own. Defaults to {@link #DEFAULT_SEND_WAIT_TIMEOUT}.
+	 */
+	public void setSendWaitTimeout(long theSendWaitTimeout) {
+		if (theSendWaitTimeout < 1) {
+			throw new IllegalArgumentException("Send wait timeout must be at least 1");
+		}
+		mySendWaitTimeout = theSendWaitTimeout;
+	}
+
 	/**
 	 * @param theSigner The signature profile signer
 	 */
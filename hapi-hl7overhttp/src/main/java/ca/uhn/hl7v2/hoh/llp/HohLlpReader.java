@@ -1,8 +1,9 @@
 package ca.uhn.hl7v2.hoh.llp;
 
+import java.io.BufferedInputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.nio.charset.Charset;
+import java.net.SocketException;
 
 import ca.uhn.hl7v2.hoh.api.DecodeException;
 import ca.uhn.hl7v2.hoh.api.IAuthorizationServerCallback;
@@ -11,7 +12,6 @@ import ca.uhn.hl7v2.hoh.encoder.Hl7OverHttpRequestDecoder;
 import ca.uhn.hl7v2.hoh.encoder.Hl7OverHttpResponseDecoder;
 import ca.uhn.hl7v2.hoh.encoder.NoMessageReceivedException;
 import ca.uhn.hl7v2.hoh.sign.SignatureVerificationException;
-import ca.uhn.hl7v2.hoh.util.HTTPUtils;
 import ca.uhn.hl7v2.hoh.util.ServerRoleEnum;
 import ca.uhn.hl7v2.llp.HL7Reader;
 import ca.uhn.hl7v2.llp.LLPException;
@@ -38,6 +38,10 @@ class HohLlpReader implements HL7Reader {
 	}
 
 	public String getMessage() throws LLPException, IOException {
+		if (myProtocol.getRole() == ServerRoleEnum.CLIENT && myWriter.isClosed()) {
+			throw new SocketException("Connection has been closed by the server");
+		}
+
 		AbstractHl7OverHttpDecoder decoder;
 
 		if (myProtocol.getRole() == ServerRoleEnum.CLIENT) {
@@ -54,42 +58,68 @@ class HohLlpReader implements HL7Reader {
 			decoder.readHeadersAndContentsFromInputStreamAndDecode(myInputStream);
 		} catch (DecodeException e) {
 			if (myProtocol.getRole() == ServerRoleEnum.CLIENT) {
+				myWriter.connectionClosed();
 				throw new LLPException("Failed to process response", e);
 			} else {
 				ourLog.info("Failed to read contents", e);
-				HTTPUtils.write400BadRequest(myWriter.getOutputStream(), e.getMessage());
+				myWriter.writeError(400, e.getMessage());
 
 				myInputStream.close();
-				myWriter.getOutputStream().close();
+				myWriter.close();
 
 				throw new LLPException("Failed to read message", e);
 			}
 		} catch (NoMessageReceivedException e) {
+			closeIfIdle();
 			return null;
 		} catch (SignatureVerificationException e) {
 			throw new LLPException("Failed to verify message signature", e);
 		}
 		
 		if (myProtocol.getRole() == ServerRoleEnum.SERVER) {
-			Charset charset = decoder.getCharset();
-			myWriter.setCharsetForNextMessage(charset);
-			
 			IAuthorizationServerCallback authorizationCallback = myProtocol.getAuthorizationServerCallback();
 			if (authorizationCallback != null) {
 				boolean auth = authorizationCallback.authorize(decoder.getPath(), decoder.getUsername(), decoder.getPassword());
 				if (!auth) {
-					HTTPUtils.write401Unauthorized(myWriter.getOutputStream());
+					myWriter.writeError(401, null);
 					throw new LLPException("Authorization at URI[" + decoder.getPath() + "] failed for user[" + decoder.getUsername() + "]");
 				}
 			}
+
+			myWriter.requestReceived((Hl7OverHttpRequestDecoder) decoder);
+		} else {
+			myWriter.responseReceived(decoder.getMessage(), ((Hl7OverHttpResponseDecoder) decoder).isConnectionCloseHeaderPresent());
 		}
 
 		return decoder.getMessage();
 
 	}
 
+	/**
+	 * In {@link ServerRoleEnum#SERVER SERVER} mode, closes the connection if
+	 * it has been idle for longer than the
+	 * {@link Hl7OverHttpLowerLayerProtocol#setKeepAliveTimeout(long) keep
+	 * alive timeout}. A connection is never closed while a response is still
+	 * to be written.
+	 */
+	private void closeIfIdle() throws IOException {
+		long keepAliveTimeout = myProtocol.getKeepAliveTimeout();
+		if (myProtocol.getRole() != ServerRoleEnum.SERVER || keepAliveTimeout <= 0 || myWriter.hasPendingExchanges()) {
+			return;
+		}
+
+		long idle = System.currentTimeMillis() - myWriter.getLastActivity();
+		if (idle > keepAliveTimeout) {
+			ourLog.debug("Closing connection after {}ms idle", idle);
+			myInputStream.close();
+			myWriter.close();
+			throw new SocketException("Connection closed after being idle for " + idle + "ms");
+		}
+	}
+
 	public void setInputStream(InputStream theInputStream) throws IOException {
-		myInputStream = theInputStream;
+		// Buffered so that the decoder can read each message head in bulk
+		myInputStream = new BufferedInputStream(theInputStream);
 	}
 
 	void setWriter(HohLlpWriter theWriter) {
@@ -1,43 +1,195 @@
 package ca.uhn.hl7v2.hoh.llp;
 
-import java.io.DataOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
+import java.net.SocketException;
 import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
 
+import ca.uhn.hl7v2.HL7Exception;
 import ca.uhn.hl7v2.hoh.api.EncodeException;
 import ca.uhn.hl7v2.hoh.encoder.AbstractHl7OverHttpEncoder;
+import ca.uhn.hl7v2.hoh.encoder.Hl7OverHttpRequestDecoder;
 import ca.uhn.hl7v2.hoh.encoder.Hl7OverHttpRequestEncoder;
+import ca.uhn.hl7v2.hoh.encoder.Hl7OverHttpRequestTemplate;
 import ca.uhn.hl7v2.hoh.encoder.Hl7OverHttpResponseEncoder;
+import ca.uhn.hl7v2.hoh.util.CompressionDictionary;
+import ca.uhn.hl7v2.hoh.util.HTTPUtils;
 import ca.uhn.hl7v2.hoh.util.ServerRoleEnum;
+import ca.uhn.hl7v2.hoh.util.StringUtils;
 import ca.uhn.hl7v2.llp.HL7Writer;
 import ca.uhn.hl7v2.llp.LLPException;
+import ca.uhn.hl7v2.preparser.PreParser;
 
+/**
+ * <p>
+ * Writer for one connection, which also holds the state of the connection
+ * shared with its {@link HohLlpReader}.
+ * </p>
+ * <p>
+ * In {@link ServerRoleEnum#SERVER SERVER} mode, HAPI may process several
+ * requests received on the connection at once and write their responses in
+ * any order, but HTTP requires responses in the order the requests arrived.
+ * Each request is therefore queued as it is read, each response is matched
+ * to its request (by MSA-2 if more than one is waiting), and responses are
+ * written as soon as all earlier ones have been. An error response for a
+ * request which could not be read takes its place in the same order.
+ * </p>
+ * <p>
+ * In {@link ServerRoleEnum#CLIENT CLIENT} mode, requests are written one at
+ * a time, and if a
+ * {@link Hl7OverHttpLowerLayerProtocol#setMaxOutstandingRequests(int)
+ * maximum} is set, no more than that are sent before their responses are
+ * read.
+ * </p>
+ */
 class HohLlpWriter implements HL7Writer {
 
+	/**
+	 * How long an error response waits for the responses to earlier requests
+	 * to be written before the connection is closed without it
+	 */
+	private static final long ERROR_RESPONSE_TIMEOUT = 30 * 1000;
+
+	private static final org.slf4j.Logger ourLog = org.slf4j.LoggerFactory.getLogger(HohLlpWriter.class);
+
+	private volatile boolean myClosed;
+	private volatile long myLastActivity = System.currentTimeMillis();
 	private OutputStream myOutputStream;
+	private final Queue<String> myOutstandingRequests = new ConcurrentLinkedQueue<String>();
+	private final LinkedList<Exchange> myPendingExchanges = new LinkedList<Exchange>();
 	private Charset myPreferredCharset;
 	private Hl7OverHttpLowerLayerProtocol myProtocol;
-	private Charset myCharsetForNextMessage;
+	private Hl7OverHttpRequestTemplate myRequestTemplate;
+	private String myRequestTemplatePath;
+	private Semaphore myRequestPermits;
+	private final Object myWriteLock = new Object();
 
 	/**
 	 * Constructor
 	 */
 	public HohLlpWriter(Hl7OverHttpLowerLayerProtocol theProtocol) {
 		myProtocol = theProtocol;
+		if (myProtocol.getRole() == ServerRoleEnum.CLIENT && myProtocol.getMaxOutstandingRequests() > 0) {
+			myRequestPermits = new Semaphore(myProtocol.getMaxOutstandingRequests());
+		}
 	}
 
 	/**
 	 * {@inheritDoc}
 	 */
 	public void close() throws IOException {
+		connectionClosed();
 		myOutputStream.close();
 	}
 
+	/**
+	 * Called when the connection is closed or can no longer be used, so that
+	 * no more requests are written and any waiting to be written fail
+	 */
+	void connectionClosed() {
+		myClosed = true;
+		if (myRequestPermits != null) {
+			myRequestPermits.release(myProtocol.getMaxOutstandingRequests());
+		}
+	}
+
+	private AbstractHl7OverHttpEncoder createRequestEncoder() {
+		Hl7OverHttpRequestEncoder requestEncoder = new Hl7OverHttpRequestEncoder();
+		String path = myProtocol.getUriPath();
+		String username = null;
+		String password = null;
+		if (myProtocol.getAuthorizationClientCallback() != null) {
+			username = myProtocol.getAuthorizationClientCallback().provideUsername(path);
+			password = myProtocol.getAuthorizationClientCallback().providePassword(path);
+			requestEncoder.setUsername(username);
+			requestEncoder.setPassword(password);
+		}
+		boolean acceptGzip = myProtocol.isAcceptGzip();
+		if (myRequestTemplate == null || !StringUtils.equals(myRequestTemplatePath, path) || !myRequestTemplate.hasCredentials(username, password) || myRequestTemplate.isAcceptGzip() != acceptGzip) {
+			myRequestTemplate = new Hl7OverHttpRequestTemplate(path, null, 0, username, password, null, acceptGzip);
+			myRequestTemplatePath = path;
+		}
+		requestEncoder.setRequestTemplate(myRequestTemplate);
+		requestEncoder.setCompressionDictionary(myProtocol.getCompressionDictionary());
+		requestEncoder.setSigner(myProtocol.getSigner());
+		return requestEncoder;
+	}
+
+	private void encode(AbstractHl7OverHttpEncoder theEncoder, String theRawMessage, Charset theCharset) throws LLPException, IOException {
+		theEncoder.setMessage(theRawMessage);
+		if (theCharset != null) {
+			theEncoder.setCharset(theCharset);
+		} else if (getPreferredCharset() != null) {
+			theEncoder.setCharset(getPreferredCharset());
+		}
+
+		theEncoder.setPath(myProtocol.getUriPath());
+		try {
+			theEncoder.encodeToOutputStream(myOutputStream);
+		} catch (EncodeException e) {
+			throw new LLPException("Failed to encode message", e);
+		}
+		myLastActivity = System.currentTimeMillis();
+	}
+
+	/**
+	 * Returns the exchange which a response belongs to, or <code>null</code>
+	 * if no request is waiting for a response
+	 */
+	private Exchange findExchange(String theResponse) {
+		Exchange first = null;
+		int unanswered = 0;
+		for (Exchange next : myPendingExchanges) {
+			if (!next.isReady()) {
+				if (first == null) {
+					first = next;
+				}
+				unanswered++;
+			}
+		}
+		if (unanswered <= 1) {
+			return first;
+		}
+
+		String ackId = getField(theResponse, "MSA-2");
+		if (ackId != null) {
+			for (Exchange next : myPendingExchanges) {
+				if (!next.isReady() && ackId.equals(next.getControlId())) {
+					return next;
+				}
+			}
+		}
+		ourLog.debug("Response with MSA-2 {} does not match a waiting request, sending it in reply to the oldest", ackId);
+		return first;
+	}
+
+	/**
+	 * Returns the time when a message was last read or written
+	 */
+	long getLastActivity() {
+		return myLastActivity;
+	}
+
 	OutputStream getOutputStream() {
 		return myOutputStream;
 	}
 
+	/**
+	 * Returns <code>true</code> if no more requests may be written on this
+	 * connection
+	 */
+	boolean isClosed() {
+		return myClosed;
+	}
+
 	/**
 	 * @return the preferredCharset
 	 */
@@ -45,6 +197,84 @@ class HohLlpWriter implements HL7Writer {
 		return myPreferredCharset;
 	}
 
+	/**
+	 * Returns <code>true</code> if a request has been read which has not yet
+	 * been responded to
+	 */
+	boolean hasPendingExchanges() {
+		synchronized (myPendingExchanges) {
+			return !myPendingExchanges.isEmpty();
+		}
+	}
+
+	/**
+	 * Called by the reader in {@link ServerRoleEnum#SERVER SERVER} mode when
+	 * a request has been read, in the order requests arrive
+	 */
+	void requestReceived(Hl7OverHttpRequestDecoder theDecoder) {
+		myLastActivity = System.currentTimeMillis();
+		Exchange exchange = new Exchange(theDecoder);
+		synchronized (myPendingExchanges) {
+			myPendingExchanges.add(exchange);
+		}
+	}
+
+	/**
+	 * Called by the reader in {@link ServerRoleEnum#CLIENT CLIENT} mode when
+	 * a response has been read
+	 */
+	void responseReceived(String theResponse, boolean theConnectionClose) {
+		myLastActivity = System.currentTimeMillis();
+		String controlId = myOutstandingRequests.poll();
+		if (controlId != null && controlId.length() > 0) {
+			String ackId = getField(theResponse, "MSA-2");
+			if (!controlId.equals(ackId)) {
+				ourLog.warn("Received response for message {} when the response for message {} was expected next", ackId, controlId);
+			}
+		}
+		if (theConnectionClose) {
+			ourLog.debug("Server will close the connection after this response");
+			connectionClosed();
+		} else if (controlId != null && myRequestPermits != null) {
+			myRequestPermits.release();
+		}
+	}
+
+	/**
+	 * Writes an error response, for a request which could not be read. The
+	 * error is written after the responses to all earlier requests, and this
+	 * method waits until it has been, since the connection is closed once it
+	 * returns.
+	 */
+	void writeError(int theStatus, String theMessage) throws IOException {
+		Exchange exchange = new Exchange(theStatus, theMessage);
+		synchronized (myPendingExchanges) {
+			myPendingExchanges.add(exchange);
+		}
+		try {
+			writeReady();
+		} catch (LLPException e) {
+			throw new IOException("Failed to write response: " + e.getMessage());
+		}
+
+		synchronized (myPendingExchanges) {
+			long deadline = System.currentTimeMillis() + ERROR_RESPONSE_TIMEOUT;
+			while (!exchange.myWritten) {
+				long remaining = deadline - System.currentTimeMillis();
+				if (remaining <= 0) {
+					ourLog.warn("Timed out waiting for responses to earlier requests, closing connection without sending HTTP {}", theStatus);
+					return;
+				}
+				try {
+					myPendingExchanges.wait(remaining);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					return;
+				}
+			}
+		}
+	}
+
 	/**
 	 * {@inheritDoc}
 	 */
@@ -64,44 +294,203 @@ class HohLlpWriter implements HL7Writer {
 	 * {@inheritDoc}
 	 */
 	public void writeMessage(String theRawMessage) throws LLPException, IOException {
-
-		AbstractHl7OverHttpEncoder e;
 		if (myProtocol.getRole() == ServerRoleEnum.CLIENT) {
-			e = new Hl7OverHttpRequestEncoder();
-			if (myProtocol.getAuthorizationClientCallback() != null) {
-				e.setUsername(myProtocol.getAuthorizationClientCallback().provideUsername(myProtocol.getUriPath()));
-				e.setPassword(myProtocol.getAuthorizationClientCallback().providePassword(myProtocol.getUriPath()));
-			}
+			writeRequest(theRawMessage);
 		} else {
-			e = new Hl7OverHttpResponseEncoder();
+			writeResponse(theRawMessage);
 		}
+	}
 
-		if (myProtocol.getRole() == ServerRoleEnum.CLIENT) {
-			e.setSigner(myProtocol.getSigner());
+	private void writeRequest(String theRawMessage) throws LLPException, IOException {
+		if (myRequestPermits != null) {
+			try {
+				if (!myRequestPermits.tryAcquire(myProtocol.getSendWaitTimeout(), TimeUnit.MILLISECONDS)) {
+					throw new LLPException("Timed out waiting for responses to earlier requests on this connection");
+				}
+			} catch (InterruptedException e) {
+				throw new LLPException("Interrupted while waiting for responses to earlier requests on this connection", e);
+			}
 		}
-		
-		e.setMessage(theRawMessage);
-		if (myCharsetForNextMessage != null) {
-			e.setCharset(myCharsetForNextMessage);
-			myCharsetForNextMessage = null;
-		} else if (getPreferredCharset() != null) {
-			e.setCharset(getPreferredCharset());
+		if (myClosed) {
+			if (myRequestPermits != null) {
+				// Pass the permit on so that any other waiting thread fails too
+				myRequestPermits.release();
+			}
+			throw new SocketException("Connection has been closed");
 		}
 
-		e.setPath(myProtocol.getUriPath());
-		DataOutputStream dos = new DataOutputStream(myOutputStream);
-		try {
-			e.encodeToOutputStream(dos);
-		} catch (EncodeException e1) {
-			throw new LLPException("Failed to encode message", e1);
+		// Only check the order of responses if requests may be pipelined
+		String controlId = "";
+		if (myProtocol.getMaxOutstandingRequests() != 1) {
+			controlId = StringUtils.defaultString(getField(theRawMessage, "MSH-10"));
+		}
+
+		synchronized (myWriteLock) {
+			myOutstandingRequests.add(controlId);
+			try {
+				encode(createRequestEncoder(), theRawMessage, null);
+				myOutputStream.flush();
+			} catch (LLPException e) {
+				myOutstandingRequests.remove(controlId);
+				if (myRequestPermits != null) {
+					myRequestPermits.release();
+				}
+				throw e;
+			} catch (IOException e) {
+				connectionClosed();
+				throw e;
+			}
+		}
+	}
+
+	private void writeResponse(String theRawMessage) throws LLPException, IOException {
+		synchronized (myWriteLock) {
+			synchronized (myPendingExchanges) {
+				Exchange exchange = findExchange(theRawMessage);
+				if (exchange == null) {
+					ourLog.debug("No request is waiting for a response, writing message as is");
+					encode(new Hl7OverHttpResponseEncoder(), theRawMessage, null);
+					myOutputStream.flush();
+					return;
+				}
+				exchange.myResponse = theRawMessage;
+			}
+			writeReady();
+		}
+	}
+
+	/**
+	 * Writes every response at the head of the queue which is ready to be
+	 * written
+	 */
+	private void writeReady() throws LLPException, IOException {
+		synchronized (myWriteLock) {
+			List<Exchange> ready = new ArrayList<Exchange>();
+			synchronized (myPendingExchanges) {
+				for (Iterator<Exchange> iter = myPendingExchanges.iterator(); iter.hasNext();) {
+					Exchange next = iter.next();
+					if (!next.isReady()) {
+						break;
+					}
+					ready.add(next);
+					iter.remove();
+				}
+			}
+
+			if (ready.isEmpty()) {
+				ourLog.debug("Holding response until responses to earlier requests have been written");
+				return;
+			}
+
+			try {
+				writeExchanges(ready);
+			} finally {
+				synchronized (myPendingExchanges) {
+					for (Exchange next : ready) {
+						next.myWritten = true;
+					}
+					myPendingExchanges.notifyAll();
+				}
+			}
 		}
+	}
 
-		dos.flush();
+	private void writeExchanges(List<Exchange> theExchanges) throws LLPException, IOException {
+		for (Exchange next : theExchanges) {
+			// The connection is closed after an error, so nothing follows it
+			if (next.myErrorStatus != 0) {
+				if (next.myErrorStatus == 401) {
+					HTTPUtils.write401Unauthorized(myOutputStream);
+				} else {
+					HTTPUtils.write400BadRequest(myOutputStream, next.myErrorMessage);
+				}
+				myOutputStream.flush();
+				return;
+			}
 
+			Hl7OverHttpResponseEncoder responseEncoder = new Hl7OverHttpResponseEncoder();
+			if (next.myGzipAccepted) {
+				responseEncoder.setGzipThreshold(myProtocol.getGzipThreshold());
+			}
+			// Reply using the same dictionary as the request, if any
+			responseEncoder.setCompressionDictionary(next.myCompressionDictionary);
+			responseEncoder.setAddConnectionCloseHeader(next.myConnectionClose);
+			encode(responseEncoder, next.myResponse, next.myCharset);
+			if (next.myConnectionClose) {
+				ourLog.debug("Closing connection as requested by the client");
+				myOutputStream.flush();
+				close();
+				return;
+			}
+		}
+		myOutputStream.flush();
+	}
+
+	private static String getField(String theMessage, String theSpec) {
+		try {
+			String[] fields = PreParser.getFields(theMessage, theSpec);
+			return fields.length > 0 ? fields[0] : null;
+		} catch (HL7Exception e) {
+			ourLog.debug("Failed to find " + theSpec + " in message", e);
+			return null;
+		}
 	}
 
-	void setCharsetForNextMessage(Charset theCharset) {
-		myCharsetForNextMessage = theCharset;
+	/**
+	 * A request read in {@link ServerRoleEnum#SERVER SERVER} mode, and
+	 * everything needed to write its response
+	 */
+	private static class Exchange {
+
+		private final Charset myCharset;
+		private final CompressionDictionary myCompressionDictionary;
+		private final boolean myConnectionClose;
+		private String myControlId;
+		private final String myErrorMessage;
+		private final int myErrorStatus;
+		private final boolean myGzipAccepted;
+		private String myRequest;
+		private String myResponse;
+		private boolean myWritten;
+
+		Exchange(Hl7OverHttpRequestDecoder theDecoder) {
+			myCharset = theDecoder.getCharset();
+			myCompressionDictionary = theDecoder.getCompressionDictionary();
+			myConnectionClose = theDecoder.isConnectionCloseHeaderPresent();
+			myGzipAccepted = theDecoder.isGzipAccepted();
+			myRequest = theDecoder.getMessage();
+			myErrorStatus = 0;
+			myErrorMessage = null;
+		}
+
+		/**
+		 * An error response for a request which could not be read
+		 */
+		Exchange(int theErrorStatus, String theErrorMessage) {
+			myCharset = null;
+			myCompressionDictionary = null;
+			myConnectionClose = true;
+			myGzipAccepted = false;
+			myErrorStatus = theErrorStatus;
+			myErrorMessage = theErrorMessage;
+		}
+
+		boolean isReady() {
+			return myResponse != null || myErrorStatus != 0;
+		}
+
+		/**
+		 * The control ID is only needed if several requests are waiting, so
+		 * it is found the first time it is asked for
+		 */
+		String getControlId() {
+			if (myRequest != null) {
+				myControlId = getField(myRequest, "MSH-10");
+				myRequest = null;
+			}
+			return myControlId;
+		}
+
 	}
 
 }
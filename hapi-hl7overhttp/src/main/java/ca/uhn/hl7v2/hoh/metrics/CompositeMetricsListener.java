@@ -0,0 +1,51 @@
+package ca.uhn.hl7v2.hoh.metrics;
+
+import java.util.Arrays;
+import java.util.List;
+
+import ca.uhn.hl7v2.hoh.util.Validate;
+
+/**
+ * Reports to several listeners, e.g. an {@link InMemoryMetrics} and a
+ * listener which exports to the host application's metrics system
+ */
+public class CompositeMetricsListener implements IMetricsListener {
+
+	private final IMetricsListener[] myListeners;
+
+	/**
+	 * Constructor
+	 */
+	public CompositeMetricsListener(IMetricsListener... theListeners) {
+		for (IMetricsListener next : theListeners) {
+			Validate.notNull(next, "listener");
+		}
+		myListeners = theListeners.clone();
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	public void exchangeFailed(Exception theException) {
+		for (IMetricsListener next : myListeners) {
+			next.exchangeFailed(theException);
+		}
+	}
+
+	/**
+	 * Returns the listeners which are reported to
+	 */
+	public List<IMetricsListener> getListeners() {
+		return Arrays.asList(myListeners.clone());
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	public void phaseCompleted(PhaseEnum thePhase, long theElapsedNanos) {
+		for (IMetricsListener next : myListeners) {
+			next.phaseCompleted(thePhase, theElapsedNanos);
+		}
+	}
+
+}
@@ -0,0 +1,39 @@
+package ca.uhn.hl7v2.hoh.metrics;
+
+/**
+ * <p>
+ * Receives the time taken by each {@link PhaseEnum phase} of sending and
+ * receiving messages. Clients, decoders, encoders and servlets accept a
+ * listener and report to it as each phase completes.
+ * </p>
+ * <p>
+ * {@link InMemoryMetrics} keeps histograms which can be summarized. To export
+ * timings to another metrics system, implement this interface, and use
+ * {@link CompositeMetricsListener} if they should be kept in memory as well.
+ * </p>
+ * <p>
+ * Listeners are called on the thread doing the work, often by several threads
+ * at once, so implementations must be thread safe, should return quickly and
+ * must not throw exceptions.
+ * </p>
+ */
+public interface IMetricsListener {
+
+	/**
+	 * Called when an exchange fails because of an exception. Phases which
+	 * completed before the failure will already have been reported, and the
+	 * failed phase and {@link PhaseEnum#TOTAL} will not be.
+	 */
+	void exchangeFailed(Exception theException);
+
+	/**
+	 * Called when a phase has completed
+	 *
+	 * @param thePhase
+	 *            The phase
+	 * @param theElapsedNanos
+	 *            The time taken, as measured by {@link System#nanoTime()}
+	 */
+	void phaseCompleted(PhaseEnum thePhase, long theElapsedNanos);
+
+}
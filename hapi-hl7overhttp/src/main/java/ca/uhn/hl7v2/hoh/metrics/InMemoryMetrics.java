@@ -0,0 +1,91 @@
+package ca.uhn.hl7v2.hoh.metrics;
+
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * <p>
+ * Keeps a {@link LatencyHistogram} for each phase in memory, from which
+ * p50/p99/p999 summaries can be obtained. A single instance may be shared by
+ * any number of clients and servlets, which is useful for seeing where time
+ * goes in an exchange as a whole, or each may be given its own.
+ * </p>
+ * <p>
+ * This class is thread safe.
+ * </p>
+ */
+public class InMemoryMetrics implements IMetricsListener {
+
+	private final AtomicLong myFailureCount = new AtomicLong();
+	private final Map<PhaseEnum, LatencyHistogram> myHistograms = new EnumMap<PhaseEnum, LatencyHistogram>(PhaseEnum.class);
+
+	/**
+	 * Constructor
+	 */
+	public InMemoryMetrics() {
+		for (PhaseEnum next : PhaseEnum.values()) {
+			myHistograms.put(next, new LatencyHistogram());
+		}
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	public void exchangeFailed(Exception theException) {
+		myFailureCount.incrementAndGet();
+	}
+
+	/**
+	 * Returns the number of exchanges which failed
+	 */
+	public long getFailureCount() {
+		return myFailureCount.get();
+	}
+
+	/**
+	 * Returns the histogram for the given phase
+	 */
+	public LatencyHistogram getHistogram(PhaseEnum thePhase) {
+		return myHistograms.get(thePhase);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	public void phaseCompleted(PhaseEnum thePhase, long theElapsedNanos) {
+		myHistograms.get(thePhase).record(theElapsedNanos);
+	}
+
+	/**
+	 * Discards all recorded timings and failures
+	 */
+	public void reset() {
+		for (LatencyHistogram next : myHistograms.values()) {
+			next.reset();
+		}
+		myFailureCount.set(0);
+	}
+
+	/**
+	 * Returns a summary of the timings recorded for the given phase
+	 */
+	public LatencySummary summarize(PhaseEnum thePhase) {
+		return myHistograms.get(thePhase).summarize();
+	}
+
+	/**
+	 * Returns a summary of each phase which has been recorded, one per line
+	 */
+	@Override
+	public String toString() {
+		StringBuilder b = new StringBuilder("InMemoryMetrics[failures=").append(getFailureCount()).append("]");
+		for (Map.Entry<PhaseEnum, LatencyHistogram> next : myHistograms.entrySet()) {
+			if (next.getValue().getCount() > 0) {
+				b.append("\n  ").append(next.getKey()).append(": ").append(next.getValue().summarize());
+			}
+		}
+		return b.toString();
+	}
+
+}
@@ -0,0 +1,142 @@
+package ca.uhn.hl7v2.hoh.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * <p>
+ * A fixed size histogram of durations in nanoseconds. Each power of two is
+ * split into 16 equal buckets, so any duration from one nanosecond to
+ * hundreds of years is counted to within about 6% using under 8KB of memory,
+ * and recording a value is a few arithmetic operations and an atomic
+ * increment, with no allocation or locking.
+ * </p>
+ * <p>
+ * This class is thread safe. Values recorded while a percentile is being
+ * calculated may or may not be included.
+ * </p>
+ */
+public class LatencyHistogram {
+
+	private static final int SUB_BUCKET_BITS = 4;
+	private static final int SUB_BUCKET_COUNT = 1 << SUB_BUCKET_BITS;
+	private static final int BUCKET_COUNT = (64 - SUB_BUCKET_BITS) * SUB_BUCKET_COUNT;
+
+	private final AtomicLongArray myBuckets = new AtomicLongArray(BUCKET_COUNT);
+	private final AtomicLong myCount = new AtomicLong();
+	private final AtomicLong myMax = new AtomicLong();
+	private final AtomicLong myTotal = new AtomicLong();
+
+	/**
+	 * Returns the number of values recorded
+	 */
+	public long getCount() {
+		return myCount.get();
+	}
+
+	/**
+	 * Returns the largest value recorded, or 0 if none have been
+	 */
+	public long getMaxNanos() {
+		return myMax.get();
+	}
+
+	/**
+	 * Returns the mean of the values recorded, or 0 if none have been
+	 */
+	public double getMeanNanos() {
+		long count = myCount.get();
+		if (count == 0) {
+			return 0;
+		}
+		return (double) myTotal.get() / count;
+	}
+
+	/**
+	 * Returns the value which the given percentage of recorded values are
+	 * less than or equal to, rounded up to the top of its bucket, or 0 if no
+	 * values have been recorded
+	 *
+	 * @param thePercentile
+	 *            The percentile, e.g. 99.9
+	 */
+	public long getValueAtPercentile(double thePercentile) {
+		if (thePercentile < 0 || thePercentile > 100) {
+			throw new IllegalArgumentException("Percentile must be between 0 and 100");
+		}
+
+		long[] counts = new long[BUCKET_COUNT];
+		long total = 0;
+		for (int i = 0; i < BUCKET_COUNT; i++) {
+			counts[i] = myBuckets.get(i);
+			total += counts[i];
+		}
+		if (total == 0) {
+			return 0;
+		}
+
+		long rank = Math.max(1, (long) Math.ceil(thePercentile / 100.0 * total));
+		long seen = 0;
+		for (int i = 0; i < BUCKET_COUNT; i++) {
+			seen += counts[i];
+			if (seen >= rank) {
+				return Math.min(highestValueInBucket(i), getMaxNanos());
+			}
+		}
+		return getMaxNanos();
+	}
+
+	/**
+	 * Records a value. Negative values are recorded as zero.
+	 */
+	public void record(long theNanos) {
+		long value = Math.max(0, theNanos);
+		myBuckets.incrementAndGet(bucketIndex(value));
+		myCount.incrementAndGet();
+		myTotal.addAndGet(value);
+
+		long max = myMax.get();
+		while (value > max && !myMax.compareAndSet(max, value)) {
+			max = myMax.get();
+		}
+	}
+
+	/**
+	 * Discards all recorded values
+	 */
+	public void reset() {
+		for (int i = 0; i < BUCKET_COUNT; i++) {
+			myBuckets.set(i, 0);
+		}
+		myCount.set(0);
+		myTotal.set(0);
+		myMax.set(0);
+	}
+
+	/**
+	 * Returns a snapshot of the count, mean, maximum and common percentiles
+	 */
+	public LatencySummary summarize() {
+		return new LatencySummary(getCount(), getMeanNanos(), getValueAtPercentile(50), getValueAtPercentile(99), getValueAtPercentile(99.9), getMaxNanos());
+	}
+
+	static int bucketIndex(long theValue) {
+		if (theValue < SUB_BUCKET_COUNT) {
+			return (int) theValue;
+		}
+		int exponent = 63 - Long.numberOfLeadingZeros(theValue);
+		int shift = exponent - SUB_BUCKET_BITS;
+		int subBucket = (int) (theValue >>> shift) & (SUB_BUCKET_COUNT - 1);
+		return (shift + 1) * SUB_BUCKET_COUNT + subBucket;
+	}
+
+	static long highestValueInBucket(int theIndex) {
+		if (theIndex < SUB_BUCKET_COUNT) {
+			return theIndex;
+		}
+		int shift = theIndex / SUB_BUCKET_COUNT - 1;
+		long lowest = (long) (SUB_BUCKET_COUNT + theIndex % SUB_BUCKET_COUNT) << shift;
+		return lowest + (1L << shift) - 1;
+	}
+
+}
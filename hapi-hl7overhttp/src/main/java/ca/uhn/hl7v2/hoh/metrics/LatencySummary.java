@@ -0,0 +1,70 @@
+package ca.uhn.hl7v2.hoh.metrics;
+
+/**
+ * An immutable snapshot of a {@link LatencyHistogram}. Times are in
+ * nanoseconds.
+ */
+public class LatencySummary {
+
+	private final long myCount;
+	private final long myMax;
+	private final double myMean;
+	private final long myP50;
+	private final long myP99;
+	private final long myP999;
+
+	/**
+	 * Constructor
+	 */
+	public LatencySummary(long theCount, double theMean, long theP50, long theP99, long theP999, long theMax) {
+		myCount = theCount;
+		myMean = theMean;
+		myP50 = theP50;
+		myP99 = theP99;
+		myP999 = theP999;
+		myMax = theMax;
+	}
+
+	public long getCount() {
+		return myCount;
+	}
+
+	public long getMax() {
+		return myMax;
+	}
+
+	public double getMean() {
+		return myMean;
+	}
+
+	/**
+	 * Returns the median
+	 */
+	public long getP50() {
+		return myP50;
+	}
+
+	/**
+	 * Returns the 99th percentile
+	 */
+	public long getP99() {
+		return myP99;
+	}
+
+	/**
+	 * Returns the 99.9th percentile
+	 */
+	public long getP999() {
+		return myP999;
+	}
+
+	@Override
+	public String toString() {
+		return "count=" + myCount + ", mean=" + toMillis(myMean) + "ms, p50=" + toMillis(myP50) + "ms, p99=" + toMillis(myP99) + "ms, p999=" + toMillis(myP999) + "ms, max=" + toMillis(myMax) + "ms";
+	}
+
+	private static String toMillis(double theNanos) {
+		return String.format("%.3f", theNanos / 1000000.0);
+	}
+
+}
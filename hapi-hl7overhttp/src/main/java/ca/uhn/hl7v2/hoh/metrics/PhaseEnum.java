@@ -0,0 +1,76 @@
+package ca.uhn.hl7v2.hoh.metrics;
+
+/**
+ * The phases of sending or receiving a message which are timed and reported
+ * to an {@link IMetricsListener}. Phases are reported by whichever side
+ * performs them, so for example {@link #ENCODE} is the request on a client and
+ * the response on a server. Phases do not overlap, except for {@link #TOTAL},
+ * and a phase which does not apply to an exchange (e.g. {@link #SIGN} when no
+ * signer is configured) is not reported.
+ */
+public enum PhaseEnum {
+
+	/**
+	 * Establishing a new connection to the remote host, including any TLS
+	 * handshake. Not reported when a pooled connection is reused.
+	 */
+	CONNECT,
+
+	/**
+	 * Converting the message to bytes and compressing it. When chunked
+	 * transfer encoding is used, encoding is interleaved with writing and is
+	 * reported as part of {@link #WRITE}.
+	 */
+	ENCODE,
+
+	/**
+	 * Computing the signature of an outgoing message
+	 */
+	SIGN,
+
+	/**
+	 * Writing the head and body of an outgoing message to the connection
+	 */
+	WRITE,
+
+	/**
+	 * Reading the head of an incoming message, including the time spent
+	 * waiting for its first byte. On a client, this is mostly the time taken
+	 * by the server to process the request.
+	 */
+	READ_HEAD,
+
+	/**
+	 * Reading the body of an incoming message
+	 */
+	READ_BODY,
+
+	/**
+	 * Uncompressing the body of an incoming message and converting it to a
+	 * string
+	 */
+	DECODE,
+
+	/**
+	 * Verifying the signature of an incoming message
+	 */
+	VERIFY,
+
+	/**
+	 * Parsing an incoming message string into a HAPI message structure
+	 */
+	PARSE,
+
+	/**
+	 * Processing a request in the server's message handler
+	 */
+	PROCESS,
+
+	/**
+	 * A whole exchange, from the moment a client starts sending a request (or
+	 * a server starts reading one) until the response has been read (or
+	 * written). On a client this does not include {@link #PARSE}.
+	 */
+	TOTAL
+
+}
@@ -0,0 +1,65 @@
+package ca.uhn.hl7v2.hoh.raw.api;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.Charset;
+
+import ca.uhn.hl7v2.hoh.api.IEncodedSendable;
+import ca.uhn.hl7v2.hoh.encoder.EncodingStyle;
+
+/**
+ * A raw message which is sent as the exact bytes it was received as, for
+ * example by a relay which passes messages through without parsing them
+ */
+public class RawEncodedSendable implements IEncodedSendable<String> {
+
+	private final Charset myCharset;
+	private final byte[] myEncodedMessage;
+	private final EncodingStyle myEncodingStyle;
+	private String myRawMessage;
+
+	/**
+	 * Constructor
+	 * 
+	 * @param theEncodedMessage
+	 *            The message to send, which must not be modified afterwards
+	 * @param theCharset
+	 *            The character set in which the message is encoded
+	 */
+	public RawEncodedSendable(byte[] theEncodedMessage, Charset theCharset) {
+		if (theEncodedMessage == null) {
+			throw new NullPointerException("Encoded Message may not be null");
+		}
+		if (theCharset == null) {
+			throw new NullPointerException("Charset may not be null");
+		}
+		myEncodedMessage = theEncodedMessage;
+		myCharset = theCharset;
+		myEncodingStyle = EncodingStyle.detect(getMessage());
+	}
+
+	public Charset getCharset() {
+		return myCharset;
+	}
+
+	public byte[] getEncodedMessage() {
+		return myEncodedMessage;
+	}
+
+	public EncodingStyle getEncodingStyle() {
+		return myEncodingStyle;
+	}
+
+	public synchronized String getMessage() {
+		if (myRawMessage == null) {
+			myRawMessage = new String(myEncodedMessage, myCharset);
+		}
+		return myRawMessage;
+	}
+
+	public void writeMessage(Writer theWriter) throws IOException {
+		theWriter.write(getMessage());
+		theWriter.flush();
+	}
+
+}
@@ -0,0 +1,65 @@
+package ca.uhn.hl7v2.hoh.raw.api;
+
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.Charset;
+
+import ca.uhn.hl7v2.hoh.api.AbstractReceivable;
+import ca.uhn.hl7v2.hoh.api.IReceivable;
+
+/**
+ * A received message whose contents are read as they arrive instead of
+ * being held in memory. The contents may be read either as characters using
+ * {@link #getMessage()} or as bytes using {@link #getInputStream()}, but not
+ * both, and may only be read once.
+ */
+public class RawStreamingReceivable extends AbstractReceivable<Reader> implements IReceivable<Reader> {
+
+	private final Charset myCharset;
+	private final InputStream myInputStream;
+	private Reader myReader;
+
+	/**
+	 * Constructor
+	 *
+	 * @param theInputStream
+	 *            The message contents
+	 * @param theCharset
+	 *            The charset the contents are encoded in
+	 */
+	public RawStreamingReceivable(InputStream theInputStream, Charset theCharset) {
+		myInputStream = theInputStream;
+		myCharset = theCharset;
+	}
+
+	/**
+	 * Returns the charset that the message contents are encoded in
+	 */
+	public Charset getCharset() {
+		return myCharset;
+	}
+
+	/**
+	 * Returns the message contents as bytes, encoded in the
+	 * {@link #getCharset() charset} of the message
+	 */
+	public InputStream getInputStream() {
+		return myInputStream;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * <p>
+	 * Returns a reader over the message contents. The same reader is returned
+	 * each time this method is called.
+	 * </p>
+	 */
+	public synchronized Reader getMessage() {
+		if (myReader == null) {
+			myReader = new InputStreamReader(myInputStream, myCharset);
+		}
+		return myReader;
+	}
+
+}
@@ -2,16 +2,15 @@ package ca.uhn.hl7v2.hoh.raw.client;
 
 import static ca.uhn.hl7v2.hoh.util.StringUtils.isBlank;
 
-import java.io.BufferedInputStream;
-import java.io.BufferedOutputStream;
 import java.io.IOException;
-import java.io.OutputStream;
 import java.net.InetSocketAddress;
 import java.net.MalformedURLException;
 import java.net.Socket;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
 import java.nio.charset.Charset;
 
 import ca.uhn.hl7v2.hoh.api.DecodeException;
@@ -22,14 +21,20 @@ import ca.uhn.hl7v2.hoh.api.IReceivable;
 import ca.uhn.hl7v2.hoh.api.ISendable;
 import ca.uhn.hl7v2.hoh.api.MessageMetadataKeys;
 import ca.uhn.hl7v2.hoh.encoder.Hl7OverHttpRequestEncoder;
+import ca.uhn.hl7v2.hoh.encoder.Hl7OverHttpRequestTemplate;
 import ca.uhn.hl7v2.hoh.encoder.Hl7OverHttpResponseDecoder;
 import ca.uhn.hl7v2.hoh.encoder.NoMessageReceivedException;
+import ca.uhn.hl7v2.hoh.encoder.TransferEncoding;
+import ca.uhn.hl7v2.hoh.metrics.IMetricsListener;
+import ca.uhn.hl7v2.hoh.metrics.PhaseEnum;
 import ca.uhn.hl7v2.hoh.raw.api.RawReceivable;
 import ca.uhn.hl7v2.hoh.sign.ISigner;
 import ca.uhn.hl7v2.hoh.sign.SignatureVerificationException;
 import ca.uhn.hl7v2.hoh.sockets.ISocketFactory;
 import ca.uhn.hl7v2.hoh.sockets.StandardSocketFactory;
 import ca.uhn.hl7v2.hoh.sockets.TlsSocketFactory;
+import ca.uhn.hl7v2.hoh.util.CompressionDictionary;
+import ca.uhn.hl7v2.hoh.util.CompressionDictionaryRegistry;
 
 public abstract class AbstractRawClient implements IClient {
 
@@ -53,15 +58,20 @@ public abstract class AbstractRawClient implements IClient {
 
 	private static final org.slf4j.Logger ourLog = org.slf4j.LoggerFactory.getLogger(HohRawClientSimple.class);
 
+	private boolean myAcceptGzip = true;
 	private IAuthorizationClientCallback myAuthorizationCallback;
+	private CompressionDictionary myCompressionDictionary;
 	private Charset myCharset = DEFAULT_CHARSET;
 	private int myConnectionTimeout = DEFAULT_CONNECTION_TIMEOUT;
 	private String myHost;
-	private BufferedInputStream myInputStream;
 	private boolean myKeepAlive = true;
-	private OutputStream myOutputStream;
+	private volatile IMetricsListener myMetricsListener;
 	private String myPath;
+	private final RequestPipeline myPipeline = new RequestPipeline(this);
 	private int myPort;
+	private boolean myRequestSignatureInTrailer;
+	private volatile Hl7OverHttpRequestTemplate myRequestTemplate;
+	private TransferEncoding myRequestTransferEncoding;
 	private long myResponseTimeout = DEFAULT_RESPONSE_TIMEOUT;
 	private ISigner mySigner;
 	private ISocketFactory mySocketFactory = DEFAULT_SOCKET_FACTORY;
@@ -107,6 +117,10 @@ public abstract class AbstractRawClient implements IClient {
 		setUrl(theUrl);
 	}
 
+	protected void closeConnection(ClientConnection theConnection) {
+		closeSocket(theConnection.getSocket());
+	}
+
 	protected void closeSocket(Socket theSocket) {
 		ourLog.debug("Closing socket");
 		try {
@@ -116,70 +130,153 @@ public abstract class AbstractRawClient implements IClient {
 		}
 	}
 
+	/**
+	 * Opens a new socket to the remote host
+	 */
 	protected Socket connect() throws IOException {
 		ourLog.debug("Creating new connection to {}:{} for URI {}", new Object[] { myHost, myPort, myPath });
 
+		IMetricsListener metricsListener = myMetricsListener;
+		long start = metricsListener != null ? System.nanoTime() : 0;
 		Socket socket = mySocketFactory.createClientSocket();
 		socket.connect(new InetSocketAddress(myHost, myPort), myConnectionTimeout);
 		socket.setSoTimeout(mySoTimeout);
 		socket.setKeepAlive(myKeepAlive);
+		if (metricsListener != null) {
+			metricsListener.phaseCompleted(PhaseEnum.CONNECT, System.nanoTime() - start);
+		}
 		ourLog.trace("Connection established to {}:{}", myHost, myPort);
-		myOutputStream = new BufferedOutputStream(socket.getOutputStream());
-		myInputStream = new BufferedInputStream(socket.getInputStream());
 		return socket;
 	}
 
-	private IReceivable<String> doSendAndReceiveInternal(ISendable<?> theMessageToSend, Socket socket) throws IOException, DecodeException, SignatureVerificationException, EncodeException {
-		ourLog.trace("Entering doSendAndReceiveInternal()");
-		
+	/**
+	 * Opens a new connection to the remote host, using a socket opened by
+	 * {@link #connect()}
+	 */
+	protected ClientConnection openConnection() throws IOException {
+		Socket socket = connect();
+		try {
+			return new ClientConnection(socket);
+		} catch (IOException e) {
+			closeSocket(socket);
+			throw e;
+		}
+	}
+
+	/**
+	 * Creates an encoder which is configured to write the given message as a
+	 * request to the remote host, using this client's path, credentials,
+	 * signer and extra headers
+	 */
+	protected Hl7OverHttpRequestEncoder createRequestEncoder(ISendable<?> theMessageToSend) {
 		Hl7OverHttpRequestEncoder enc = new Hl7OverHttpRequestEncoder();
 		enc.setPath(myPath);
-		enc.setHost(myHost);
-		enc.setPort(myPort);
 		enc.setCharset(myCharset);
+		String username = null;
+		String password = null;
 		if (myAuthorizationCallback != null) {
-			enc.setUsername(myAuthorizationCallback.provideUsername(myPath));
-			enc.setPassword(myAuthorizationCallback.providePassword(myPath));
+			username = myAuthorizationCallback.provideUsername(myPath);
+			password = myAuthorizationCallback.providePassword(myPath);
 		}
+		enc.setUsername(username);
+		enc.setPassword(password);
+		enc.setRequestTemplate(getRequestTemplate(username, password));
 		enc.setSigner(mySigner);
+		enc.setTransferEncoding(myRequestTransferEncoding);
+		enc.setSignatureInTrailer(myRequestSignatureInTrailer);
+		enc.setCompressionDictionary(myCompressionDictionary);
+		enc.setMetricsListener(myMetricsListener);
 		enc.setDataProvider(theMessageToSend);
-                enc.setExtraHeaders(myextraHeaders);
-        	ourLog.debug("Writing message to OutputStream");
-		enc.encodeToOutputStream(myOutputStream);
-		myOutputStream.flush();
+		return enc;
+	}
 
-		ourLog.debug("Reading response from OutputStream");
+	/**
+	 * Returns the template holding the static parts of each request, building
+	 * a new one if none has been built yet, if the settings it depends on have
+	 * changed, or if the callback provided different credentials
+	 */
+	private Hl7OverHttpRequestTemplate getRequestTemplate(String theUsername, String thePassword) {
+		Hl7OverHttpRequestTemplate retVal = myRequestTemplate;
+		if (retVal == null || !retVal.hasCredentials(theUsername, thePassword)) {
+			retVal = new Hl7OverHttpRequestTemplate(myPath, myHost, myPort, theUsername, thePassword, myextraHeaders, myAcceptGzip);
+			myRequestTemplate = retVal;
+		}
+		return retVal;
+	}
+
+	/**
+	 * Creates a decoder which is configured to read a response from the remote
+	 * host
+	 */
+	protected Hl7OverHttpResponseDecoder createResponseDecoder() {
+		Hl7OverHttpResponseDecoder d = new Hl7OverHttpResponseDecoder();
+		d.setSigner(mySigner);
+		d.setReadTimeout(myResponseTimeout);
+		d.setMetricsListener(myMetricsListener);
+		return d;
+	}
+
+	/**
+	 * Creates a receivable for a decoded response, including metadata about
+	 * the connection it was received on
+	 */
+	RawReceivable createReceivable(Hl7OverHttpResponseDecoder theDecoder, ClientConnection theConnection) {
+		RawReceivable response = new RawReceivable(theDecoder.getMessage());
+		InetSocketAddress remoteSocketAddress = (InetSocketAddress) theConnection.getSocket().getRemoteSocketAddress();
+		String hostAddress = remoteSocketAddress.getAddress() != null ? remoteSocketAddress.getAddress().getHostAddress() : null;
+		response.addMetadata(MessageMetadataKeys.REMOTE_HOST_ADDRESS.name(), hostAddress);
+		response.addMetadata(MessageMetadataKeys.RESPONSE_STATUS_CODE.name(), theDecoder.getResponseStatus());
+		return response;
+	}
+
+	private IReceivable<String> doSendAndReceiveInternal(ISendable<?> theMessageToSend, ClientConnection theConnection) throws IOException, DecodeException, SignatureVerificationException, EncodeException {
+		ourLog.trace("Entering doSendAndReceiveInternal()");
+		
+		Hl7OverHttpRequestEncoder enc = createRequestEncoder(theMessageToSend);
+		SocketChannel channel = theConnection.getSocket().getChannel();
+		if (channel != null && channel.isBlocking()) {
+			ourLog.debug("Writing message to SocketChannel");
+			enc.encodeToChannel(channel);
+		} else {
+			ourLog.debug("Writing message to OutputStream");
+			enc.encodeToOutputStream(theConnection.getOutputStream());
+			theConnection.getOutputStream().flush();
+		}
 
 		RawReceivable response = null;
-		long endTime = System.currentTimeMillis() + myResponseTimeout;
-		do {
-			try {
-				Hl7OverHttpResponseDecoder d = new Hl7OverHttpResponseDecoder();
-				d.setSigner(mySigner);
-				d.setReadTimeout(myResponseTimeout);
-				d.readHeadersAndContentsFromInputStreamAndDecode(myInputStream);
-
-				response = new RawReceivable(d.getMessage());
-				InetSocketAddress remoteSocketAddress = (InetSocketAddress) socket.getRemoteSocketAddress();
-				String hostAddress = remoteSocketAddress.getAddress() != null ? remoteSocketAddress.getAddress().getHostAddress() : null;
-				response.addMetadata(MessageMetadataKeys.REMOTE_HOST_ADDRESS.name(), hostAddress);
-
-				if (d.isConnectionCloseHeaderPresent()) {
-					ourLog.debug("Found Connection=close header, closing socket");
-					closeSocket(socket);
-				}
-				
-			} catch (NoMessageReceivedException ex) {
-				ourLog.debug("No message received yet");
-			} catch (IOException e) {
-				throw new DecodeException("Failed to read response from remote host", e);
+		Hl7OverHttpResponseDecoder d = readResponse(theConnection);
+		if (d != null) {
+			response = createReceivable(d, theConnection);
+			if (d.isConnectionCloseHeaderPresent()) {
+				ourLog.debug("Found Connection=close header, closing socket");
+				closeConnection(theConnection);
 			}
-		} while (response == null && System.currentTimeMillis() < endTime);
+		}
 
 		ourLog.trace("Leaving doSendAndReceiveInternal()");
 		return response;
 	}
 
+	/**
+	 * Encodes a message into a complete HTTP request, ready to be written to
+	 * a connection
+	 */
+	byte[] encodeRequest(ISendable<?> theMessageToSend) throws EncodeException {
+		ByteBuffer[] buffers = createRequestEncoder(theMessageToSend).encodeToByteBuffers();
+		int length = 0;
+		for (ByteBuffer next : buffers) {
+			length += next.remaining();
+		}
+		byte[] retVal = new byte[length];
+		int offset = 0;
+		for (ByteBuffer next : buffers) {
+			int count = next.remaining();
+			next.get(retVal, offset, count);
+			offset += count;
+		}
+		return retVal;
+	}
+
         /*
 	 * (non-Javadoc)
 	 * 
@@ -241,6 +338,56 @@ public abstract class AbstractRawClient implements IClient {
 		return myUrl;
 	}
 
+	/**
+	 * Returns the number of milliseconds to wait for a new connection to be
+	 * established before timing out
+	 */
+	public int getConnectionTimeout() {
+		return myConnectionTimeout;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	public int getPipelineDepth() {
+		return myPipeline.getDepth();
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	public IMetricsListener getMetricsListener() {
+		return myMetricsListener;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	public CompressionDictionary getCompressionDictionary() {
+		return myCompressionDictionary;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	public TransferEncoding getRequestTransferEncoding() {
+		return myRequestTransferEncoding;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	public boolean isRequestSignatureInTrailer() {
+		return myRequestSignatureInTrailer;
+	}
+
+	/**
+	 * Returns the number of milliseconds to wait for a response before timing out
+	 */
+	public long getResponseTimeout() {
+		return myResponseTimeout;
+	}
+
 	/**
 	 * {@inheritDoc}
 	 */
@@ -248,24 +395,94 @@ public abstract class AbstractRawClient implements IClient {
 		return getUrl().toExternalForm();
 	}
 
+	/**
+	 * Reads a single response from the given connection
+	 * 
+	 * @return The decoder containing the response, or <code>null</code> if no
+	 *         response arrived before the response timeout
+	 */
+	Hl7OverHttpResponseDecoder readResponse(ClientConnection theConnection) throws DecodeException, SignatureVerificationException {
+		ourLog.debug("Reading response from OutputStream");
+
+		long endTime = System.currentTimeMillis() + myResponseTimeout;
+		long remaining = myResponseTimeout;
+		do {
+			try {
+				// The decoder sets the socket timeout to the remaining time, so
+				// this blocks until a response arrives or the deadline passes
+				Hl7OverHttpResponseDecoder d = createResponseDecoder();
+				d.setReadTimeout(remaining);
+				d.setSocket(theConnection.getSocket());
+				d.readHeadersAndContentsFromInputStreamAndDecode(theConnection.getInputStream());
+				return d;
+			} catch (NoMessageReceivedException ex) {
+				ourLog.debug("No message received yet");
+			} catch (IOException e) {
+				throw new DecodeException("Failed to read response from remote host", e);
+			}
+			remaining = endTime - System.currentTimeMillis();
+		} while (remaining > 0);
+
+		return null;
+	}
+
 	public boolean isKeepAlive() {
 		return myKeepAlive;
 	}
 
-	boolean isSocketConnected(Socket socket) {
-		return socket != null && !socket.isClosed() && !socket.isInputShutdown() && !socket.isOutputShutdown();
+	/**
+	 * {@inheritDoc}
+	 */
+	public boolean isAcceptGzip() {
+		return myAcceptGzip;
 	}
 
 	/**
-	 * Subclasses must override to provide a connected socket
+	 * Subclasses must override to provide a connection. This method may be
+	 * called by several threads at once.
+	 * <p>
+	 * The default implementation wraps the socket provided by
+	 * {@link #provideSocket()}, so that subclasses written before connections
+	 * were introduced keep working.
+	 * </p>
 	 */
-	protected abstract Socket provideSocket() throws IOException;
+	protected ClientConnection provideConnection() throws IOException {
+		return new ClientConnection(provideSocket());
+	}
+
+	/**
+	 * Subclasses which override {@link #provideConnection()} should also
+	 * override this method
+	 * 
+	 * @deprecated Override {@link #provideConnection()} instead, which allows
+	 *             the streams of each socket to be reused
+	 */
+	@Deprecated
+	protected Socket provideSocket() throws IOException {
+		throw new UnsupportedOperationException(getClass().getName() + " must override provideConnection()");
+	}
+
+	/**
+	 * Returns the connection provided by {@link #provideConnection()}. This
+	 * method will always be called after the request is finished.
+	 * <p>
+	 * The default implementation passes the socket to
+	 * {@link #returnSocket(Socket)}.
+	 * </p>
+	 */
+	protected void returnConnection(ClientConnection theConnection) {
+		returnSocket(theConnection.getSocket());
+	}
 
 	/**
-	 * Returns the socket provided by {@link #provideSocket()}. This method will
-	 * always be called after the request is finished.
+	 * Returns the socket provided by {@link #provideSocket()}
+	 * 
+	 * @deprecated Override {@link #returnConnection(ClientConnection)} instead
 	 */
-	protected abstract void returnSocket(Socket theSocket);
+	@Deprecated
+	protected void returnSocket(Socket theSocket) {
+		throw new UnsupportedOperationException(getClass().getName() + " must override returnConnection(ClientConnection)");
+	}
 
 	/**
 	 * Sends a message, waits for the response, and then returns the response if
@@ -287,24 +504,58 @@ public abstract class AbstractRawClient implements IClient {
 	 *             If a failure occurs while encoding the message into a
 	 *             sendable HTTP request
 	 */
-	public synchronized IReceivable<String> sendAndReceive(ISendable<?> theMessageToSend) throws DecodeException, IOException, EncodeException {
+	public IReceivable<String> sendAndReceive(ISendable<?> theMessageToSend) throws DecodeException, IOException, EncodeException {
+		IMetricsListener metricsListener = myMetricsListener;
+		if (metricsListener == null) {
+			return doSendAndReceive(theMessageToSend);
+		}
+
+		long start = System.nanoTime();
+		IReceivable<String> retVal;
+		try {
+			retVal = doSendAndReceive(theMessageToSend);
+		} catch (DecodeException e) {
+			metricsListener.exchangeFailed(e);
+			throw e;
+		} catch (IOException e) {
+			metricsListener.exchangeFailed(e);
+			throw e;
+		} catch (EncodeException e) {
+			metricsListener.exchangeFailed(e);
+			throw e;
+		}
+		metricsListener.phaseCompleted(PhaseEnum.TOTAL, System.nanoTime() - start);
+		return retVal;
+	}
+
+	/**
+	 * Sends a message and waits for the response. This is called by
+	 * {@link #sendAndReceive(ISendable)}, which reports the outcome to the
+	 * {@link #setMetricsListener(IMetricsListener) metrics listener}, so
+	 * subclasses which send messages differently should override this method
+	 * rather than {@link #sendAndReceive(ISendable)}.
+	 */
+	protected IReceivable<String> doSendAndReceive(ISendable<?> theMessageToSend) throws DecodeException, IOException, EncodeException {
+		if (myPipeline.isEnabled()) {
+			return myPipeline.sendAndReceive(theMessageToSend);
+		}
 
-		Socket socket = provideSocket();
+		ClientConnection connection = provideConnection();
 		try {
-			return doSendAndReceiveInternal(theMessageToSend, socket);
+			return doSendAndReceiveInternal(theMessageToSend, connection);
 		} catch (DecodeException e) {
 			ourLog.debug("Decode exception, going to close socket", e);
-			closeSocket(socket);
+			closeConnection(connection);
 			throw e;
 		} catch (IOException e) {
 			ourLog.debug("Caught IOException, going to close socket", e);
-			closeSocket(socket);
+			closeConnection(connection);
 			throw e;
 		} catch (SignatureVerificationException e) {
 			ourLog.debug("Failed to verify message signature", e);
 			throw new DecodeException("Failed to verify message signature", e);
 		} finally {
-			returnSocket(socket);
+			returnConnection(connection);
 		}
 
 	}
@@ -334,13 +585,14 @@ public abstract class AbstractRawClient implements IClient {
 	 */
 	public void setExtraHeaders(String theExtraHeaders) {
 		myextraHeaders = theExtraHeaders;
-		
+		myRequestTemplate = null;
 	}
 	/**
 	 * {@inheritDoc}
 	 */
 	public void setHost(String theHost) {
 		myHost = theHost;
+		myRequestTemplate = null;
 		if (isBlank(theHost)) {
 			throw new IllegalArgumentException("Host can not be blank/null");
 		}
@@ -353,11 +605,61 @@ public abstract class AbstractRawClient implements IClient {
 		myKeepAlive = theKeepAlive;
 	}
 
+	/**
+	 * {@inheritDoc}
+	 */
+	public void setAcceptGzip(boolean theAcceptGzip) {
+		myAcceptGzip = theAcceptGzip;
+		myRequestTemplate = null;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	public void setMetricsListener(IMetricsListener theMetricsListener) {
+		myMetricsListener = theMetricsListener;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	public void setPipelineDepth(int thePipelineDepth) {
+		if (thePipelineDepth < 1) {
+			throw new IllegalArgumentException("Pipeline depth must be >= 1");
+		}
+		myPipeline.setDepth(thePipelineDepth);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	public void setCompressionDictionary(CompressionDictionary theCompressionDictionary) {
+		myCompressionDictionary = theCompressionDictionary;
+		if (theCompressionDictionary != null) {
+			CompressionDictionaryRegistry.getDefaultInstance().register(theCompressionDictionary);
+		}
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	public void setRequestTransferEncoding(TransferEncoding theTransferEncoding) {
+		myRequestTransferEncoding = theTransferEncoding;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	public void setRequestSignatureInTrailer(boolean theRequestSignatureInTrailer) {
+		myRequestSignatureInTrailer = theRequestSignatureInTrailer;
+	}
+
 	/**
 	 * {@inheritDoc}
 	 */
 	public void setPort(int thePort) {
 		myPort = thePort;
+		myRequestTemplate = null;
 		if (thePort <= 0) {
 			throw new IllegalArgumentException("Port must be a positive integer");
 		}
@@ -403,6 +705,7 @@ public abstract class AbstractRawClient implements IClient {
 	 */
 	public void setUriPath(String thePath) {
 		myPath = thePath;
+		myRequestTemplate = null;
 
 		if (isBlank(thePath)) {
 			myPath = "/";
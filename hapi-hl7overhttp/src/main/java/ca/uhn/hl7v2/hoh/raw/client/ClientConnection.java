@@ -0,0 +1,141 @@
+package ca.uhn.hl7v2.hoh.raw.client;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+
+/**
+ * A connected client socket, along with the buffered streams used to read from
+ * and write to it. Each socket owns its own stream pair so that several
+ * connections belonging to the same client may be used at the same time.
+ */
+public class ClientConnection {
+
+	private static final org.slf4j.Logger ourLog = org.slf4j.LoggerFactory.getLogger(ClientConnection.class);
+
+	private final BufferedInputStream myInputStream;
+	private final OutputStream myOutputStream;
+	private final Socket mySocket;
+	private volatile long myIdleSince;
+	private volatile long myLastValidated;
+
+	/**
+	 * Constructor
+	 *
+	 * @param theSocket
+	 *            The connected socket
+	 * @throws IOException
+	 *             If the socket streams can not be opened
+	 */
+	public ClientConnection(Socket theSocket) throws IOException {
+		mySocket = theSocket;
+		myInputStream = new BufferedInputStream(theSocket.getInputStream());
+		myOutputStream = new BufferedOutputStream(theSocket.getOutputStream());
+	}
+
+	/**
+	 * Closes the underlying socket
+	 */
+	public void close() throws IOException {
+		mySocket.close();
+	}
+
+	/**
+	 * Returns the time (in millis since the epoch) at which this connection
+	 * was last returned to its owner
+	 */
+	public long getIdleSince() {
+		return myIdleSince;
+	}
+
+	/**
+	 * Returns the time (in millis since the epoch) at which this connection
+	 * was last known to be usable, i.e. the later of the time it became idle
+	 * and the time it last passed a {@link #isStale() staleness check}
+	 */
+	long getLastKnownGood() {
+		return Math.max(myIdleSince, myLastValidated);
+	}
+
+	/**
+	 * Returns the buffered input stream for this connection
+	 */
+	public BufferedInputStream getInputStream() {
+		return myInputStream;
+	}
+
+	/**
+	 * Returns the buffered output stream for this connection
+	 */
+	public OutputStream getOutputStream() {
+		return myOutputStream;
+	}
+
+	/**
+	 * Returns the underlying socket
+	 */
+	public Socket getSocket() {
+		return mySocket;
+	}
+
+	/**
+	 * @return Returns true if the socket appears to be connected and not shut
+	 *         down
+	 */
+	public boolean isConnected() {
+		return !mySocket.isClosed() && !mySocket.isInputShutdown() && !mySocket.isOutputShutdown();
+	}
+
+	/**
+	 * Checks whether an idle connection can still be used, by briefly trying
+	 * to read from it. A connection is stale if the remote host has closed it
+	 * (the read reaches the end of the stream or fails), or if it has sent
+	 * data nobody asked for, which would otherwise be mistaken for the
+	 * response to the next request. A healthy idle connection times out
+	 * without reading anything, so this check blocks for about a millisecond.
+	 * It must only be called by the thread which currently owns the
+	 * connection.
+	 */
+	boolean isStale() {
+		if (!isConnected()) {
+			return true;
+		}
+
+		int soTimeout;
+		try {
+			soTimeout = mySocket.getSoTimeout();
+		} catch (IOException e) {
+			return true;
+		}
+
+		try {
+			mySocket.setSoTimeout(1);
+			if (myInputStream.read() == -1) {
+				ourLog.debug("Connection with local port {} has been closed by the remote host", mySocket.getLocalPort());
+			} else {
+				ourLog.debug("Connection with local port {} has unexpected data waiting", mySocket.getLocalPort());
+			}
+			return true;
+		} catch (SocketTimeoutException e) {
+			myLastValidated = System.currentTimeMillis();
+			return false;
+		} catch (IOException e) {
+			ourLog.debug("Connection with local port {} failed staleness check: {}", mySocket.getLocalPort(), e.toString());
+			return true;
+		} finally {
+			try {
+				mySocket.setSoTimeout(soTimeout);
+			} catch (IOException e) {
+				// The socket is closed, which the next user will find out
+			}
+		}
+	}
+
+	void setIdleSince(long theIdleSince) {
+		myIdleSince = theIdleSince;
+	}
+
+}
@@ -0,0 +1,357 @@
+package ca.uhn.hl7v2.hoh.raw.client;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Pool of {@link ClientConnection connections} used by
+ * {@link HohRawClientMultithreaded}. Connections are handed out to any number
+ * of threads at once (up to the configured maximum), and idle connections are
+ * kept in a concurrent deque so that checking connections in and out, and
+ * reaping idle ones, never requires a lock on the owning client.
+ */
+class ConnectionPool {
+
+	private static final org.slf4j.Logger ourLog = org.slf4j.LoggerFactory.getLogger(ConnectionPool.class);
+
+	/**
+	 * Most recently returned connections are at the head, so the oldest idle
+	 * connections are found at the tail
+	 */
+	private final LinkedBlockingDeque<ClientConnection> myIdleConnections = new LinkedBlockingDeque<ClientConnection>();
+	private volatile int myMaxIdle;
+	private int myMaxTotal;
+	private volatile int myMinIdle;
+	private final AbstractRawClient myOwner;
+	private final ResizableSemaphore myPermits;
+	private volatile long myValidateAfterIdle = -1;
+
+	/**
+	 * Constructor
+	 */
+	ConnectionPool(AbstractRawClient theOwner, int theMaxTotal, int theMaxIdle) {
+		myOwner = theOwner;
+		myMaxTotal = theMaxTotal;
+		myMaxIdle = theMaxIdle;
+		myPermits = new ResizableSemaphore(theMaxTotal);
+	}
+
+	/**
+	 * Borrows a connection from the pool, opening a new one if no idle
+	 * connections are available. If the maximum number of connections are
+	 * already in use, waits up to the given number of millis for one to be
+	 * returned.
+	 * <p>
+	 * Idle connections which have not been known to work for longer than the
+	 * {@link #setValidateAfterIdle(long) validation threshold} are checked
+	 * before being handed out, and stale ones are discarded. Connections
+	 * which have been idle for longer than the given idle timeout are
+	 * discarded without being checked, unless the pool is keeping a
+	 * {@link #setMinIdle(int) minimum} number of idle connections, in which
+	 * case they are always checked instead, whatever the validation
+	 * threshold.
+	 * </p>
+	 */
+	ClientConnection borrow(long theMaxWaitMillis, long theIdleTimeout) throws IOException {
+		try {
+			if (!myPermits.tryAcquire(theMaxWaitMillis, TimeUnit.MILLISECONDS)) {
+				throw new IOException("Timed out after " + theMaxWaitMillis + "ms waiting for a free connection to " + myOwner.getHost() + ":" + myOwner.getPort() + " (maximum is " + myMaxTotal + ")");
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while waiting for a free connection", e);
+		}
+
+		boolean success = false;
+		try {
+			ClientConnection retVal;
+			long now = System.currentTimeMillis();
+			long closeIfIdleBefore = Long.MIN_VALUE;
+			long validateAfterIdle = myValidateAfterIdle;
+			long validateIfIdleBefore = validateAfterIdle >= 0 ? now - validateAfterIdle : Long.MIN_VALUE;
+			if (theIdleTimeout > 0) {
+				if (myMinIdle == 0) {
+					closeIfIdleBefore = now - theIdleTimeout;
+				} else {
+					// The server may well have closed connections kept past
+					// the idle timeout, so never hand one out unchecked
+					validateIfIdleBefore = Math.max(validateIfIdleBefore, now - theIdleTimeout);
+				}
+			}
+			while ((retVal = myIdleConnections.pollFirst()) != null) {
+				if (!retVal.isConnected()) {
+					ourLog.trace("Found existing remote connection to {}:{} but it was closed, discarding it", myOwner.getHost(), myOwner.getPort());
+				} else if (retVal.getIdleSince() <= closeIfIdleBefore) {
+					ourLog.trace("Found existing remote connection to {}:{} but it has timed out, discarding it", myOwner.getHost(), myOwner.getPort());
+					myOwner.closeConnection(retVal);
+				} else if (retVal.getLastKnownGood() <= validateIfIdleBefore && retVal.isStale()) {
+					ourLog.debug("Found existing remote connection to {}:{} but it is stale, discarding it", myOwner.getHost(), myOwner.getPort());
+					myOwner.closeConnection(retVal);
+				} else {
+					ourLog.trace("Returning existing remote connection to {}:{}", myOwner.getHost(), myOwner.getPort());
+					success = true;
+					return retVal;
+				}
+			}
+
+			ourLog.info("Creating new remote connection to {}:{}", myOwner.getHost(), myOwner.getPort());
+			retVal = myOwner.openConnection();
+			success = true;
+			return retVal;
+		} finally {
+			if (!success) {
+				myPermits.release();
+			}
+		}
+	}
+
+	/**
+	 * Closes all idle connections
+	 */
+	void closeIdle() {
+		ClientConnection next;
+		while ((next = myIdleConnections.pollFirst()) != null) {
+			myOwner.closeConnection(next);
+		}
+	}
+
+	/**
+	 * Returns the number of connections currently sitting idle in the pool
+	 */
+	int getIdleCount() {
+		return myIdleConnections.size();
+	}
+
+	/**
+	 * Returns the time at which the oldest idle connection became idle, or
+	 * <code>null</code> if there are no idle connections
+	 */
+	Long getOldestIdleSince() {
+		ClientConnection oldest = myIdleConnections.peekLast();
+		return oldest != null ? oldest.getIdleSince() : null;
+	}
+
+	int getMaxIdle() {
+		return myMaxIdle;
+	}
+
+	int getMinIdle() {
+		return myMinIdle;
+	}
+
+	synchronized int getMaxTotal() {
+		return myMaxTotal;
+	}
+
+	long getValidateAfterIdle() {
+		return myValidateAfterIdle;
+	}
+
+	/**
+	 * Closes and removes any idle connections which became idle before the
+	 * given time, apart from the {@link #setMinIdle(int) minimum} number of
+	 * idle connections
+	 */
+	void reapIdleBefore(long theCloseIfIdleBefore) {
+		for (Iterator<ClientConnection> iter = myIdleConnections.descendingIterator(); iter.hasNext();) {
+			ClientConnection next = iter.next();
+			if (myIdleConnections.size() <= myMinIdle) {
+				break;
+			}
+			if (next.getIdleSince() > theCloseIfIdleBefore) {
+				if (ourLog.isDebugEnabled()) {
+					ourLog.debug("Next socket has " + (next.getIdleSince() - theCloseIfIdleBefore) + "ms remaining");
+				}
+				break;
+			}
+
+			// Only close the connection if nobody borrowed it in the meantime
+			if (myIdleConnections.removeLastOccurrence(next)) {
+				ourLog.info("Closing idle socket with local port {} because it has been idle since {}", next.getSocket().getLocalPort(), new Date(next.getIdleSince()));
+				myOwner.closeConnection(next);
+			}
+		}
+	}
+
+	/**
+	 * Returns a previously borrowed connection to the pool. Closed connections,
+	 * and connections beyond the maximum idle count, are discarded.
+	 */
+	void release(ClientConnection theConnection, boolean theKeepIdle) {
+		try {
+			if (!theKeepIdle || !theConnection.isConnected()) {
+				if (theConnection.isConnected()) {
+					myOwner.closeConnection(theConnection);
+				}
+				return;
+			}
+
+			if (myMaxIdle >= 0 && myIdleConnections.size() >= myMaxIdle) {
+				ourLog.debug("Pool already has {} idle connections, closing returned connection", myMaxIdle);
+				myOwner.closeConnection(theConnection);
+				return;
+			}
+
+			theConnection.setIdleSince(System.currentTimeMillis());
+			myIdleConnections.offerFirst(theConnection);
+		} finally {
+			// Release after the connection is back in the deque so that a
+			// waiting borrower finds it rather than opening another one
+			myPermits.release();
+		}
+	}
+
+	void setMaxIdle(int theMaxIdle) {
+		myMaxIdle = theMaxIdle;
+		while (theMaxIdle >= 0 && myIdleConnections.size() > theMaxIdle) {
+			ClientConnection next = myIdleConnections.pollLast();
+			if (next == null) {
+				break;
+			}
+			myOwner.closeConnection(next);
+		}
+	}
+
+	/**
+	 * Sets the number of idle connections which are exempt from the idle
+	 * timeout. The pool does not open connections to reach this number
+	 * itself, see {@link #warmUp(int)}.
+	 */
+	void setMinIdle(int theMinIdle) {
+		myMinIdle = theMinIdle;
+	}
+
+	synchronized void setMaxTotal(int theMaxTotal) {
+		int delta = theMaxTotal - myMaxTotal;
+		if (delta > 0) {
+			myPermits.release(delta);
+		} else if (delta < 0) {
+			myPermits.reducePermits(-delta);
+		}
+		myMaxTotal = theMaxTotal;
+	}
+
+	/**
+	 * Sets the number of millis a connection may sit idle (without being
+	 * checked) before it is checked for staleness when it is next borrowed.
+	 * -1 means connections are never checked.
+	 */
+	void setValidateAfterIdle(long theValidateAfterIdle) {
+		myValidateAfterIdle = theValidateAfterIdle;
+	}
+
+	/**
+	 * Checks each idle connection which has not been known to work for longer
+	 * than the {@link #setValidateAfterIdle(long) validation threshold}, and
+	 * closes the stale ones. Each connection is taken out of the pool while it
+	 * is checked so that nobody borrows it in the meantime. Good connections
+	 * are put back at the old end of the pool, oldest last.
+	 *
+	 * @return The number of stale connections closed
+	 */
+	int validateIdle() {
+		long validateAfterIdle = myValidateAfterIdle;
+		if (validateAfterIdle < 0) {
+			return 0;
+		}
+		long validateIfIdleBefore = System.currentTimeMillis() - validateAfterIdle;
+
+		int retVal = 0;
+		List<ClientConnection> checked = new ArrayList<ClientConnection>();
+		for (Iterator<ClientConnection> iter = myIdleConnections.descendingIterator(); iter.hasNext();) {
+			ClientConnection next = iter.next();
+			if (next.getLastKnownGood() > validateIfIdleBefore) {
+				continue;
+			}
+
+			// Somebody may have borrowed it in the meantime
+			if (!myIdleConnections.removeLastOccurrence(next)) {
+				continue;
+			}
+
+			if (next.isStale()) {
+				myOwner.closeConnection(next);
+				retVal++;
+			} else {
+				checked.add(next);
+			}
+		}
+
+		for (int i = checked.size() - 1; i >= 0; i--) {
+			myIdleConnections.offerLast(checked.get(i));
+		}
+
+		if (retVal > 0) {
+			ourLog.info("Closed {} stale idle connections to {}:{}", new Object[] { retVal, myOwner.getHost(), myOwner.getPort() });
+		}
+		return retVal;
+	}
+
+	/**
+	 * Opens new connections until at least the given number are idle, or
+	 * until the maximum number of idle or total connections is reached
+	 *
+	 * @return The number of connections opened
+	 * @throws IOException
+	 *             If a connection can not be opened. Connections opened before
+	 *             the failure are kept.
+	 */
+	int warmUp(int theIdleCount) throws IOException {
+		int retVal = 0;
+		while (myIdleConnections.size() < theIdleCount) {
+			int maxIdle = myMaxIdle;
+			if (maxIdle >= 0 && myIdleConnections.size() >= maxIdle) {
+				break;
+			}
+
+			// Hold a permit while connecting so that the maximum is respected
+			if (!myPermits.tryAcquire()) {
+				break;
+			}
+
+			ClientConnection connection;
+			try {
+				connection = myOwner.openConnection();
+			} catch (IOException e) {
+				myPermits.release();
+				throw e;
+			} catch (RuntimeException e) {
+				myPermits.release();
+				throw e;
+			}
+			release(connection, true);
+			retVal++;
+		}
+
+		if (retVal > 0) {
+			ourLog.info("Opened {} new idle connections to {}:{}", new Object[] { retVal, myOwner.getHost(), myOwner.getPort() });
+		}
+		return retVal;
+	}
+
+	/**
+	 * Semaphore whose number of permits can be reduced while permits are
+	 * outstanding
+	 */
+	private static class ResizableSemaphore extends Semaphore {
+
+		private static final long serialVersionUID = 1L;
+
+		ResizableSemaphore(int thePermits) {
+			super(thePermits);
+		}
+
+		@Override
+		protected void reducePermits(int theReduction) {
+			super.reducePermits(theReduction);
+		}
+
+	}
+
+}
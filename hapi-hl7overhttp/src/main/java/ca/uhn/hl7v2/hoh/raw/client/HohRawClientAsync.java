@@ -0,0 +1,1072 @@
+package ca.uhn.hl7v2.hoh.raw.client;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import ca.uhn.hl7v2.hoh.api.DecodeException;
+import ca.uhn.hl7v2.hoh.api.EncodeException;
+import ca.uhn.hl7v2.hoh.api.IClientAsync;
+import ca.uhn.hl7v2.hoh.api.IReceivable;
+import ca.uhn.hl7v2.hoh.api.IResponseCallback;
+import ca.uhn.hl7v2.hoh.api.ISendable;
+import ca.uhn.hl7v2.hoh.api.MessageMetadataKeys;
+import ca.uhn.hl7v2.hoh.encoder.Hl7OverHttpResponseDecoder;
+import ca.uhn.hl7v2.hoh.encoder.NoMessageReceivedException;
+import ca.uhn.hl7v2.hoh.metrics.IMetricsListener;
+import ca.uhn.hl7v2.hoh.metrics.PhaseEnum;
+import ca.uhn.hl7v2.hoh.raw.api.RawReceivable;
+import ca.uhn.hl7v2.hoh.sign.SignatureVerificationException;
+import ca.uhn.hl7v2.hoh.sockets.ISocketFactory;
+import ca.uhn.hl7v2.hoh.sockets.StandardSocketFactory;
+
+/**
+ * <p>
+ * Raw message sender using the HL7 over HTTP specification which does not
+ * block the calling thread while waiting for a response. All connections are
+ * serviced by a single background I/O thread using non-blocking channels, so a
+ * large number of requests may be outstanding at once without requiring a
+ * thread per request.
+ * </p>
+ * <p>
+ * Requests are encoded (and signed, if a signer has been provided) on the
+ * calling thread. Requests are sent on an idle connection if there is one, or
+ * on a new connection if fewer than {@link #setMaxConnections(int) the
+ * maximum} are open. If a {@link #setPipelineDepth(int) pipeline depth}
+ * greater than 1 has been set, requests are then pipelined onto the least busy
+ * open connection. Otherwise they are queued until a connection becomes free.
+ * </p>
+ * <p>
+ * Responses are decoded (and their signatures verified), and callbacks are
+ * notified, on a pool of {@link #setWorkerThreads(int) worker threads} rather
+ * than on the I/O thread, so that a slow callback does not hold up other
+ * connections.
+ * </p>
+ * <p>
+ * This client does not support TLS, since it does not use the
+ * {@link ISocketFactory socket factory} to create its connections. Use
+ * {@link HohRawClientMultithreaded} to send messages over HTTPS.
+ * </p>
+ * <p>
+ * This client is thread safe. The I/O thread is started when the first message
+ * is sent, and is stopped by calling {@link #close()}.
+ * </p>
+ */
+public class HohRawClientAsync extends AbstractRawClient implements IClientAsync {
+
+	/**
+	 * Default number of millis to keep an idle connection open: 10000
+	 */
+	public static final long DEFAULT_IDLE_TIMEOUT = 10000;
+
+	/**
+	 * Default maximum number of connections to the remote host: 10
+	 */
+	public static final int DEFAULT_MAX_CONNECTIONS = 10;
+
+	/**
+	 * Default maximum response size (head and body, in bytes): 16MB
+	 */
+	public static final int DEFAULT_MAX_RESPONSE_SIZE = 16 * 1024 * 1024;
+
+	/**
+	 * Default number of threads which decode responses and notify callbacks: 2
+	 */
+	public static final int DEFAULT_WORKER_THREADS = 2;
+
+	/**
+	 * Number of times a pipelined request is sent again after the server
+	 * closes the connection without responding to it, before it fails. A
+	 * server which only answers one request per connection makes a request
+	 * queued behind others on a connection be replayed once for each of
+	 * them, so this allows for a reasonable pipeline depth.
+	 */
+	static final int MAX_REPLAYS = 10;
+
+	private static final org.slf4j.Logger ourLog = org.slf4j.LoggerFactory.getLogger(HohRawClientAsync.class);
+
+	/**
+	 * Maximum time the I/O thread waits in a select before checking timeouts
+	 */
+	private static final long MAX_SELECT_WAIT = 1000;
+
+	private ExecutorService myExecutorService;
+	private volatile long myIdleTimeout = DEFAULT_IDLE_TIMEOUT;
+	private IoLoop myIoLoop;
+	private volatile int myMaxConnections = DEFAULT_MAX_CONNECTIONS;
+	private volatile int myMaxResponseSize = DEFAULT_MAX_RESPONSE_SIZE;
+	private int myWorkerThreads = DEFAULT_WORKER_THREADS;
+
+	/**
+	 * Constructor
+	 *
+	 * @param theHost
+	 *            The HOST (name/address). E.g. "192.168.1.1"
+	 * @param thePort
+	 *            The PORT. E.g. "8080"
+	 * @param theUriPath
+	 *            The URI path being requested (must either be blank or start
+	 *            with '/' and contain a path). E.g. "/Apps/Receiver.jsp"
+	 */
+	public HohRawClientAsync(String theHost, int thePort, String theUriPath) {
+		super(theHost, thePort, theUriPath);
+	}
+
+	/**
+	 * Constructor
+	 *
+	 * @param theUrl
+	 *            The URL to connect to. Must use the "http" protocol.
+	 * @throws IllegalArgumentException
+	 *             If the URL does not use the "http" protocol
+	 */
+	public HohRawClientAsync(URL theUrl) {
+		super(theUrl);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	public synchronized void close() {
+		if (myIoLoop != null) {
+			myIoLoop.stop();
+			myIoLoop = null;
+		}
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	public long getIdleTimeout() {
+		return myIdleTimeout;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	public int getMaxConnections() {
+		return myMaxConnections;
+	}
+
+	/**
+	 * Returns the largest response (head and body, in bytes) which will be
+	 * accepted
+	 */
+	public int getMaxResponseSize() {
+		return myMaxResponseSize;
+	}
+
+	/**
+	 * Returns the running I/O thread, starting a new one if there is none
+	 * (or if the last one has stopped)
+	 */
+	private synchronized IoLoop getOrStartIoLoop() throws IOException {
+		if (myIoLoop == null || myIoLoop.isStopped()) {
+			IoLoop ioLoop;
+			if (myExecutorService != null) {
+				ioLoop = new IoLoop(Selector.open(), myExecutorService, false);
+			} else {
+				ioLoop = new IoLoop(Selector.open(), Executors.newFixedThreadPool(myWorkerThreads, new WorkerThreadFactory()), true);
+			}
+			Thread thread = new Thread(ioLoop, "hoh-async-client-" + getHost() + ":" + getPort());
+			thread.setDaemon(true);
+			thread.start();
+			myIoLoop = ioLoop;
+		}
+		return myIoLoop;
+	}
+
+	/**
+	 * Called by the I/O thread when it exits, for whatever reason, so that
+	 * the next message sent starts a new one
+	 */
+	private synchronized void ioLoopStopped(IoLoop theIoLoop) {
+		if (myIoLoop == theIoLoop) {
+			myIoLoop = null;
+		}
+	}
+
+	/**
+	 * Opens a new blocking connection to the remote host. Messages sent by
+	 * this client are carried by its I/O thread and never use this method,
+	 * but subclasses may use it if they need a connection of their own.
+	 */
+	@Override
+	protected ClientConnection provideConnection() throws IOException {
+		return openConnection();
+	}
+
+	/**
+	 * Closes a connection opened by {@link #provideConnection()}
+	 */
+	@Override
+	protected void returnConnection(ClientConnection theConnection) {
+		closeConnection(theConnection);
+	}
+
+	/**
+	 * Sends the message through the I/O thread and blocks until the response
+	 * has been received, so {@link #sendAndReceive(ISendable)} is equivalent
+	 * to calling {@link #sendAndReceiveAsync(ISendable)} and waiting for the
+	 * result.
+	 */
+	@Override
+	protected IReceivable<String> doSendAndReceive(ISendable<?> theMessageToSend) throws DecodeException, IOException, EncodeException {
+		// The caller reports the outcome to the metrics listener
+		Future<IReceivable<String>> future = submit(theMessageToSend, null, null, 0);
+		try {
+			return future.get();
+		} catch (InterruptedException e) {
+			future.cancel(true);
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while waiting for response", e);
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof DecodeException) {
+				throw (DecodeException) cause;
+			} else if (cause instanceof IOException) {
+				throw (IOException) cause;
+			} else if (cause instanceof RuntimeException) {
+				throw (RuntimeException) cause;
+			}
+			throw new DecodeException("Failed to read response from remote host", cause);
+		}
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	public Future<IReceivable<String>> sendAndReceiveAsync(ISendable<?> theMessageToSend) throws EncodeException {
+		return sendAndReceiveAsync(theMessageToSend, null);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * <p>
+	 * If a {@link #setMetricsListener(IMetricsListener) metrics listener} is
+	 * set, the outcome of the exchange is reported to it when the future
+	 * completes, in the same way as for {@link #sendAndReceive(ISendable)}.
+	 * </p>
+	 */
+	public Future<IReceivable<String>> sendAndReceiveAsync(ISendable<?> theMessageToSend, IResponseCallback<String> theCallback) throws EncodeException {
+		IMetricsListener metricsListener = getMetricsListener();
+		if (metricsListener == null) {
+			return submit(theMessageToSend, theCallback, null, 0);
+		}
+
+		long start = System.nanoTime();
+		try {
+			return submit(theMessageToSend, theCallback, metricsListener, start);
+		} catch (EncodeException e) {
+			metricsListener.exchangeFailed(e);
+			throw e;
+		}
+	}
+
+	/**
+	 * Sets the executor which decodes responses and notifies callbacks. If
+	 * not set, a pool of {@link #setWorkerThreads(int) worker threads} is
+	 * created when the first message is sent, and shut down when the client
+	 * is closed. An executor which is provided is not shut down by this
+	 * client. Takes effect the next time the I/O thread is started.
+	 */
+	public synchronized void setExecutorService(ExecutorService theExecutorService) {
+		myExecutorService = theExecutorService;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	public void setIdleTimeout(long theIdleTimeout) {
+		if (theIdleTimeout < 0) {
+			throw new IllegalArgumentException("Idle timeout must be >= 0");
+		}
+		myIdleTimeout = theIdleTimeout;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	public void setMaxConnections(int theMaxConnections) {
+		if (theMaxConnections < 1) {
+			throw new IllegalArgumentException("Max connections must be >= 1");
+		}
+		myMaxConnections = theMaxConnections;
+		wakeup();
+	}
+
+	/**
+	 * Sets the largest response (head and body, in bytes) which will be
+	 * accepted. A larger response, or a malformed chunk size, fails the
+	 * requests outstanding on that connection and closes it. Default is
+	 * {@link #DEFAULT_MAX_RESPONSE_SIZE}.
+	 */
+	public void setMaxResponseSize(int theMaxResponseSize) {
+		if (theMaxResponseSize <= 0) {
+			throw new IllegalArgumentException("Max response size must be greater than 0");
+		}
+		myMaxResponseSize = theMaxResponseSize;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * <p>
+	 * Requests are only pipelined once {@link #setMaxConnections(int) the
+	 * maximum number of connections} are open, so a value greater than 1
+	 * allows up to <code>maxConnections * pipelineDepth</code> requests to be
+	 * outstanding at once.
+	 * </p>
+	 */
+	@Override
+	public void setPipelineDepth(int thePipelineDepth) {
+		super.setPipelineDepth(thePipelineDepth);
+		wakeup();
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * <p>
+	 * This client only supports {@link StandardSocketFactory plain sockets}
+	 * </p>
+	 *
+	 * @throws IllegalArgumentException
+	 *             If the socket factory is not a {@link StandardSocketFactory}
+	 */
+	@Override
+	public void setSocketFactory(ISocketFactory theSocketFactory) {
+		if (theSocketFactory != null && !(theSocketFactory instanceof StandardSocketFactory)) {
+			throw new IllegalArgumentException(getClass().getSimpleName() + " does not support custom socket factories or TLS");
+		}
+		super.setSocketFactory(theSocketFactory);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 *
+	 * @throws IllegalArgumentException
+	 *             If the URL does not use the "http" protocol, since this
+	 *             client does not support TLS
+	 */
+	@Override
+	public void setUrl(URL theUrl) {
+		if (!"http".equalsIgnoreCase(theUrl.getProtocol())) {
+			throw new IllegalArgumentException(getClass().getSimpleName() + " only supports the http protocol, not: " + theUrl.getProtocol());
+		}
+		super.setUrl(theUrl);
+	}
+
+	private ResponseFuture submit(ISendable<?> theMessageToSend, IResponseCallback<String> theCallback, IMetricsListener theMetricsListener, long theStart) throws EncodeException {
+		ByteBuffer[] request = createRequestEncoder(theMessageToSend).encodeToByteBuffers();
+
+		ResponseFuture future = new ResponseFuture(theCallback, theMetricsListener, theStart);
+		Exchange exchange = new Exchange(request, future, System.currentTimeMillis() + getResponseTimeout());
+		try {
+			while (!getOrStartIoLoop().submit(exchange)) {
+				// The I/O thread stopped in the meantime, so start another
+			}
+		} catch (IOException e) {
+			future.fail(e);
+		}
+		return future;
+	}
+
+	/**
+	 * Sets the number of threads which decode responses and notify callbacks,
+	 * if no {@link #setExecutorService(ExecutorService) executor} is provided.
+	 * Default is {@link #DEFAULT_WORKER_THREADS}. Takes effect the next time
+	 * the I/O thread is started.
+	 */
+	public synchronized void setWorkerThreads(int theWorkerThreads) {
+		if (theWorkerThreads <= 0) {
+			throw new IllegalArgumentException("Worker threads must be greater than 0");
+		}
+		myWorkerThreads = theWorkerThreads;
+	}
+
+	private void wakeup() {
+		IoLoop ioLoop;
+		synchronized (this) {
+			ioLoop = myIoLoop;
+		}
+		if (ioLoop != null) {
+			ioLoop.wakeup();
+		}
+	}
+
+	/**
+	 * A single connection to the remote host, owned by the I/O thread
+	 */
+	private class AsyncConnection {
+
+		private final SocketChannel myChannel;
+		private boolean myClosed;
+		private boolean myConnected;
+		private final long myConnectDeadline;
+		private final long myConnectStart = System.nanoTime();
+		/**
+		 * Requests which have been assigned to this connection and have not
+		 * yet received a response, in the order they are written
+		 */
+		private final LinkedList<Exchange> myExchanges = new LinkedList<Exchange>();
+		private long myIdleSince;
+		private SelectionKey myKey;
+		private final ResponseBuffer myResponseBuffer = new ResponseBuffer(myMaxResponseSize);
+		private boolean myReused;
+		/** The request currently being written, or null */
+		private ByteBuffer[] myWriteBuffers;
+		/** The number of requests at the head of the queue which are completely written */
+		private int myWritten;
+
+		AsyncConnection(SocketChannel theChannel, long theConnectDeadline) {
+			myChannel = theChannel;
+			myConnectDeadline = theConnectDeadline;
+		}
+
+		void close() {
+			myClosed = true;
+			if (myKey != null) {
+				myKey.cancel();
+			}
+			try {
+				myChannel.close();
+			} catch (IOException e) {
+				ourLog.warn("Problem closing socket", e);
+			}
+		}
+
+		void finishConnect() throws IOException {
+			myChannel.finishConnect();
+			myConnected = true;
+			IMetricsListener metricsListener = getMetricsListener();
+			if (metricsListener != null) {
+				metricsListener.phaseCompleted(PhaseEnum.CONNECT, System.nanoTime() - myConnectStart);
+			}
+			Socket socket = myChannel.socket();
+			socket.setKeepAlive(isKeepAlive());
+			ourLog.trace("Connection established to {}:{}", getHost(), getPort());
+			updateInterestOps();
+		}
+
+		String getRemoteHostAddress() {
+			InetSocketAddress remoteSocketAddress = (InetSocketAddress) myChannel.socket().getRemoteSocketAddress();
+			return remoteSocketAddress != null && remoteSocketAddress.getAddress() != null ? remoteSocketAddress.getAddress().getHostAddress() : null;
+		}
+
+		boolean isIdle() {
+			return myExchanges.isEmpty();
+		}
+
+		/**
+		 * Returns <code>true</code> if at least part of the request at the
+		 * given position in the queue may have been sent
+		 */
+		boolean isSent(int theIndex) {
+			return theIndex < myWritten || (theIndex == myWritten && myWriteBuffers != null);
+		}
+
+		void start(Exchange theExchange) {
+			myExchanges.addLast(theExchange);
+			if (myWriteBuffers == null) {
+				startNextWrite();
+				updateInterestOps();
+			}
+		}
+
+		private void startNextWrite() {
+			if (myWritten >= myExchanges.size()) {
+				myWriteBuffers = null;
+				return;
+			}
+			// Duplicate so that a replayed exchange is written from the start
+			ByteBuffer[] request = myExchanges.get(myWritten).myRequest;
+			myWriteBuffers = new ByteBuffer[request.length];
+			for (int i = 0; i < myWriteBuffers.length; i++) {
+				myWriteBuffers[i] = request[i].duplicate();
+			}
+		}
+
+		/**
+		 * Removes the request at the head of the queue, whose response has
+		 * been received. If the server responded before the request was
+		 * completely written, the rest of it is abandoned.
+		 */
+		Exchange takeHead() {
+			Exchange retVal = myExchanges.removeFirst();
+			if (myWritten > 0) {
+				myWritten--;
+			} else {
+				myWriteBuffers = null;
+			}
+			return retVal;
+		}
+
+		private void updateInterestOps() {
+			if (myConnected && !myClosed) {
+				myKey.interestOps(myWriteBuffers != null ? SelectionKey.OP_READ | SelectionKey.OP_WRITE : SelectionKey.OP_READ);
+			}
+		}
+
+		void write() throws IOException {
+			while (myWriteBuffers != null) {
+				myChannel.write(myWriteBuffers);
+				for (ByteBuffer next : myWriteBuffers) {
+					if (next.hasRemaining()) {
+						return;
+					}
+				}
+				ourLog.trace("Finished writing request to {}:{}", getHost(), getPort());
+				myWritten++;
+				startNextWrite();
+			}
+			updateInterestOps();
+		}
+
+	}
+
+	/**
+	 * A single request and its eventual response
+	 */
+	private static class Exchange {
+
+		private final long myDeadline;
+		private final ResponseFuture myFuture;
+		private int myReplays;
+		/** The head and body, which must not be consumed directly */
+		private final ByteBuffer[] myRequest;
+		private boolean myRetried;
+
+		Exchange(ByteBuffer[] theRequest, ResponseFuture theFuture, long theDeadline) {
+			myRequest = theRequest;
+			myFuture = theFuture;
+			myDeadline = theDeadline;
+		}
+
+	}
+
+	/**
+	 * Decodes a response and completes its exchange, on a worker thread
+	 */
+	private class DecodeTask implements Runnable {
+
+		private final Exchange myExchange;
+		private final String myRemoteHostAddress;
+		private final byte[] myResponseBytes;
+
+		DecodeTask(Exchange theExchange, byte[] theResponseBytes, String theRemoteHostAddress) {
+			myExchange = theExchange;
+			myResponseBytes = theResponseBytes;
+			myRemoteHostAddress = theRemoteHostAddress;
+		}
+
+		public void run() {
+			try {
+				Hl7OverHttpResponseDecoder d = createResponseDecoder();
+				d.readHeadersAndContentsFromInputStreamAndDecode(new ByteArrayInputStream(myResponseBytes));
+
+				RawReceivable response = new RawReceivable(d.getMessage());
+				response.addMetadata(MessageMetadataKeys.REMOTE_HOST_ADDRESS.name(), myRemoteHostAddress);
+				response.addMetadata(MessageMetadataKeys.RESPONSE_STATUS_CODE.name(), d.getResponseStatus());
+				myExchange.myFuture.succeed(response);
+			} catch (DecodeException e) {
+				myExchange.myFuture.fail(e);
+			} catch (NoMessageReceivedException e) {
+				myExchange.myFuture.fail(new DecodeException("No response received from remote host", e));
+			} catch (IOException e) {
+				myExchange.myFuture.fail(new DecodeException("Failed to read response from remote host", e));
+			} catch (SignatureVerificationException e) {
+				ourLog.debug("Failed to verify message signature", e);
+				myExchange.myFuture.fail(new DecodeException("Failed to verify message signature", e));
+			} catch (RuntimeException e) {
+				ourLog.error("Failed to decode response from " + getHost() + ":" + getPort(), e);
+				myExchange.myFuture.fail(new DecodeException("Failed to decode response from remote host", e));
+			}
+		}
+
+	}
+
+	/**
+	 * The I/O thread. All fields other than the submission queue are only
+	 * accessed by the I/O thread itself.
+	 */
+	private class IoLoop implements Runnable {
+
+		private final List<AsyncConnection> myConnections = new ArrayList<AsyncConnection>();
+		private final LinkedList<AsyncConnection> myIdleConnections = new LinkedList<AsyncConnection>();
+		private final LinkedBlockingDeque<Exchange> myPendingExchanges = new LinkedBlockingDeque<Exchange>();
+		private final ByteBuffer myReadBuffer = ByteBuffer.allocate(8192);
+		private final Selector mySelector;
+		private final boolean myShutDownWorkers;
+		private volatile boolean myStopped;
+		private final ExecutorService myWorkers;
+
+		IoLoop(Selector theSelector, ExecutorService theWorkers, boolean theShutDownWorkers) {
+			mySelector = theSelector;
+			myWorkers = theWorkers;
+			myShutDownWorkers = theShutDownWorkers;
+		}
+
+		private void assignPendingExchanges(long theNow) {
+			Exchange next;
+			while ((next = myPendingExchanges.peekFirst()) != null) {
+				if (next.myFuture.isDone()) {
+					// Cancelled or timed out while waiting
+					myPendingExchanges.pollFirst();
+					continue;
+				}
+
+				AsyncConnection connection = pollIdleConnection();
+				if (connection == null && myConnections.size() < myMaxConnections) {
+					try {
+						connection = openConnection(theNow);
+					} catch (IOException e) {
+						myPendingExchanges.pollFirst();
+						ourLog.debug("Failed to connect to " + getHost() + ":" + getPort(), e);
+						failLater(next, e);
+						continue;
+					}
+				}
+				if (connection == null) {
+					connection = findPipelineConnection();
+					if (connection == null) {
+						return;
+					}
+				}
+
+				myPendingExchanges.pollFirst();
+				connection.start(next);
+			}
+		}
+
+		private void checkTimeouts(long theNow) {
+			for (Iterator<Exchange> iter = myPendingExchanges.iterator(); iter.hasNext();) {
+				Exchange next = iter.next();
+				if (next.myDeadline <= theNow) {
+					iter.remove();
+					failLater(next, new IOException("Timed out waiting for a free connection to " + getHost() + ":" + getPort()));
+				}
+			}
+
+			for (AsyncConnection next : new ArrayList<AsyncConnection>(myConnections)) {
+				if (!next.myConnected && next.myConnectDeadline <= theNow) {
+					fail(next, new SocketTimeoutException("Timed out connecting to " + getHost() + ":" + getPort()), false);
+				} else if (findEarliestDeadline(next) <= theNow) {
+					// Responses arrive in order, so once one is abandoned the
+					// connection can't be used for the others either
+					fail(next, new DecodeException("Failed to read response from remote host", new SocketTimeoutException("Timed out waiting for response")), false);
+				}
+			}
+
+			long closeIfIdleBefore = theNow - myIdleTimeout;
+			for (Iterator<AsyncConnection> iter = myIdleConnections.iterator(); iter.hasNext();) {
+				AsyncConnection next = iter.next();
+				if (next.myIdleSince <= closeIfIdleBefore) {
+					ourLog.debug("Closing connection to {}:{} because it has been idle for {}ms", new Object[] { getHost(), getPort(), theNow - next.myIdleSince });
+					iter.remove();
+					discard(next);
+				}
+			}
+		}
+
+		/**
+		 * Hands a complete response to a worker thread to be decoded, and
+		 * decides whether the connection may be used again
+		 */
+		private void complete(AsyncConnection theConnection, byte[] theResponseBytes, boolean theConnectionClose, boolean theEndOfStream) {
+			boolean written = theConnection.myWritten > 0;
+			Exchange exchange = theConnection.takeHead();
+			dispatch(new DecodeTask(exchange, theResponseBytes, theConnection.getRemoteHostAddress()));
+
+			boolean keepOpen = false;
+			if (theConnectionClose) {
+				ourLog.debug("Found Connection=close header, closing socket");
+			} else if (!written) {
+				ourLog.debug("Response received before request was completely written, closing socket");
+			} else {
+				keepOpen = true;
+			}
+
+			if (!keepOpen || theEndOfStream) {
+				replayAndDiscard(theConnection);
+				return;
+			}
+			if (!theConnection.isIdle()) {
+				// Further pipelined responses are expected
+				return;
+			}
+
+			theConnection.myResponseBuffer.skipLeadingLineBreaks();
+			if (myIdleTimeout > 0 && theConnection.myResponseBuffer.isEmpty()) {
+				theConnection.myReused = true;
+				theConnection.myIdleSince = System.currentTimeMillis();
+				myIdleConnections.addFirst(theConnection);
+			} else {
+				discard(theConnection);
+			}
+		}
+
+		private long computeSelectWait(long theNow) {
+			long retVal = MAX_SELECT_WAIT;
+			if (myPendingExchanges.size() > 0) {
+				retVal = Math.min(retVal, myPendingExchanges.peekFirst().myDeadline - theNow);
+			}
+			for (AsyncConnection next : myConnections) {
+				if (!next.myConnected) {
+					retVal = Math.min(retVal, next.myConnectDeadline - theNow);
+				}
+				retVal = Math.min(retVal, findEarliestDeadline(next) - theNow);
+			}
+			if (myIdleConnections.size() > 0) {
+				retVal = Math.min(retVal, myIdleConnections.getLast().myIdleSince + myIdleTimeout - theNow);
+			}
+			return Math.max(retVal, 1);
+		}
+
+		/**
+		 * Runs the given task on a worker thread, or on the current thread if
+		 * the executor has been shut down
+		 */
+		private void dispatch(Runnable theTask) {
+			try {
+				myWorkers.execute(theTask);
+			} catch (RejectedExecutionException e) {
+				ourLog.debug("Worker executor rejected task, running it on the I/O thread");
+				try {
+					theTask.run();
+				} catch (RuntimeException e2) {
+					ourLog.error("Task failed", e2);
+				}
+			}
+		}
+
+		private void discard(AsyncConnection theConnection) {
+			myConnections.remove(theConnection);
+			myIdleConnections.remove(theConnection);
+			theConnection.close();
+		}
+
+		/**
+		 * Handles a failure on the given connection. Requests which have not
+		 * been written yet are sent on another connection. If the connection
+		 * had previously been used and no response has been received since,
+		 * the server has most likely closed the connection while it was idle,
+		 * so the requests which were written are retried once on a new
+		 * connection. Any others fail.
+		 */
+		private void fail(AsyncConnection theConnection, Exception theException, boolean theRetryable) {
+			boolean retryable = theRetryable && theConnection.myReused && theConnection.myResponseBuffer.isEmpty();
+			List<Exchange> exchanges = new ArrayList<Exchange>(theConnection.myExchanges);
+			List<Exchange> requeue = new ArrayList<Exchange>();
+			for (int i = 0; i < exchanges.size(); i++) {
+				Exchange next = exchanges.get(i);
+				if (!theConnection.isSent(i)) {
+					requeue.add(next);
+				} else if (retryable && !next.myRetried) {
+					ourLog.debug("Connection to {}:{} was closed before response was received, going to retry on a new connection", getHost(), getPort());
+					next.myRetried = true;
+					requeue.add(next);
+				} else {
+					failLater(next, theException);
+				}
+			}
+			theConnection.myExchanges.clear();
+			discard(theConnection);
+
+			if (exchanges.isEmpty()) {
+				ourLog.debug("Idle connection to {}:{} was closed", getHost(), getPort());
+			}
+			requeueFirst(requeue);
+		}
+
+		/**
+		 * Fails the given exchange on a worker thread, so that callbacks are
+		 * never notified on the I/O thread
+		 */
+		private void failLater(final Exchange theExchange, final Exception theException) {
+			dispatch(new Runnable() {
+				public void run() {
+					theExchange.myFuture.fail(theException);
+				}
+			});
+		}
+
+		private long findEarliestDeadline(AsyncConnection theConnection) {
+			long retVal = Long.MAX_VALUE;
+			for (Exchange next : theConnection.myExchanges) {
+				retVal = Math.min(retVal, next.myDeadline);
+			}
+			return retVal;
+		}
+
+		/**
+		 * Returns the least busy connection which has room for another
+		 * pipelined request, or <code>null</code>
+		 */
+		private AsyncConnection findPipelineConnection() {
+			int depth = getPipelineDepth();
+			if (depth <= 1) {
+				return null;
+			}
+			AsyncConnection retVal = null;
+			for (AsyncConnection next : myConnections) {
+				int outstanding = next.myExchanges.size();
+				if (outstanding > 0 && outstanding < depth && (retVal == null || outstanding < retVal.myExchanges.size())) {
+					retVal = next;
+				}
+			}
+			return retVal;
+		}
+
+		private AsyncConnection openConnection(long theNow) throws IOException {
+			ourLog.info("Creating new remote connection to {}:{}", getHost(), getPort());
+
+			SocketChannel channel = SocketChannel.open();
+			try {
+				channel.configureBlocking(false);
+				AsyncConnection retVal = new AsyncConnection(channel, theNow + getConnectionTimeout());
+				boolean connected = channel.connect(new InetSocketAddress(getHost(), getPort()));
+				retVal.myKey = channel.register(mySelector, connected ? SelectionKey.OP_READ : SelectionKey.OP_CONNECT, retVal);
+				if (connected) {
+					retVal.finishConnect();
+				}
+				myConnections.add(retVal);
+				return retVal;
+			} catch (IOException e) {
+				channel.close();
+				throw e;
+			}
+		}
+
+		private AsyncConnection pollIdleConnection() {
+			AsyncConnection retVal;
+			while ((retVal = myIdleConnections.pollFirst()) != null) {
+				if (retVal.myChannel.isOpen()) {
+					ourLog.trace("Returning existing remote connection to {}:{}", getHost(), getPort());
+					return retVal;
+				}
+				myConnections.remove(retVal);
+			}
+			return null;
+		}
+
+		private void read(AsyncConnection theConnection) throws IOException {
+			myReadBuffer.clear();
+			int bytesRead = theConnection.myChannel.read(myReadBuffer);
+			if (bytesRead == -1) {
+				readEndOfStream(theConnection);
+				return;
+			}
+
+			myReadBuffer.flip();
+			if (theConnection.isIdle()) {
+				theConnection.myResponseBuffer.append(myReadBuffer);
+				theConnection.myResponseBuffer.skipLeadingLineBreaks();
+				if (theConnection.myResponseBuffer.isEmpty()) {
+					return;
+				}
+				ourLog.warn("Received {} unexpected bytes on idle connection to {}:{}, closing it", new Object[] { bytesRead, getHost(), getPort() });
+				discard(theConnection);
+				return;
+			}
+			theConnection.myResponseBuffer.append(myReadBuffer);
+
+			// The buffer may hold several pipelined responses
+			while (!theConnection.myClosed && !theConnection.isIdle()) {
+				int end;
+				try {
+					end = theConnection.myResponseBuffer.findResponseEnd();
+				} catch (DecodeException e) {
+					fail(theConnection, e, false);
+					return;
+				}
+				if (end == -1) {
+					return;
+				}
+				complete(theConnection, theConnection.myResponseBuffer.take(end), theConnection.myResponseBuffer.isConnectionClose(), false);
+			}
+		}
+
+		private void readEndOfStream(AsyncConnection theConnection) {
+			ResponseBuffer responseBuffer = theConnection.myResponseBuffer;
+			if (!theConnection.isIdle() && !responseBuffer.isEmpty()) {
+				// Responses with no length are terminated by the connection closing
+				complete(theConnection, responseBuffer.take(responseBuffer.size()), true, true);
+			} else {
+				fail(theConnection, new DecodeException("Connection closed by remote host before response was received"), true);
+			}
+		}
+
+		/**
+		 * Closes a connection which the server has asked to be closed, and
+		 * sends any requests which are still outstanding on it again on
+		 * another connection. A request is only sent {@link #MAX_REPLAYS}
+		 * times, in case the server closes every connection after responding
+		 * to one request.
+		 */
+		private void replayAndDiscard(AsyncConnection theConnection) {
+			List<Exchange> requeue = new ArrayList<Exchange>();
+			for (int i = 0; i < theConnection.myExchanges.size(); i++) {
+				Exchange next = theConnection.myExchanges.get(i);
+				if (!theConnection.isSent(i)) {
+					requeue.add(next);
+				} else if (next.myReplays < MAX_REPLAYS) {
+					next.myReplays++;
+					requeue.add(next);
+				} else {
+					failLater(next, new DecodeException("Remote host closed the connection without responding " + (MAX_REPLAYS + 1) + " times"));
+				}
+			}
+			if (!requeue.isEmpty()) {
+				ourLog.debug("Connection to {}:{} was closed with {} pipelined requests outstanding, replaying them on a new connection", new Object[] { getHost(), getPort(), requeue.size() });
+			}
+			theConnection.myExchanges.clear();
+			discard(theConnection);
+			requeueFirst(requeue);
+		}
+
+		/**
+		 * Puts the given exchanges back at the head of the queue, in order
+		 */
+		private void requeueFirst(List<Exchange> theExchanges) {
+			for (int i = theExchanges.size() - 1; i >= 0; i--) {
+				myPendingExchanges.offerFirst(theExchanges.get(i));
+			}
+		}
+
+		public void run() {
+			ourLog.debug("Starting I/O thread for {}:{}", getHost(), getPort());
+			try {
+				while (!myStopped) {
+					long now = System.currentTimeMillis();
+					assignPendingExchanges(now);
+					mySelector.select(computeSelectWait(now));
+
+					for (Iterator<SelectionKey> iter = mySelector.selectedKeys().iterator(); iter.hasNext();) {
+						SelectionKey key = iter.next();
+						iter.remove();
+						AsyncConnection connection = (AsyncConnection) key.attachment();
+						try {
+							if (key.isValid() && key.isConnectable()) {
+								connection.finishConnect();
+							}
+							if (key.isValid() && key.isWritable()) {
+								connection.write();
+							}
+							if (key.isValid() && key.isReadable()) {
+								read(connection);
+							}
+						} catch (IOException e) {
+							ourLog.debug("Caught IOException, going to close socket", e);
+							fail(connection, e, true);
+						} catch (RuntimeException e) {
+							// Only the requests on this connection are affected
+							ourLog.error("Unexpected failure on connection to " + getHost() + ":" + getPort() + ", going to close socket", e);
+							fail(connection, new DecodeException("Failed to read response from remote host", e), false);
+						}
+					}
+
+					checkTimeouts(System.currentTimeMillis());
+				}
+			} catch (IOException e) {
+				ourLog.error("I/O thread failed", e);
+			} catch (RuntimeException e) {
+				ourLog.error("I/O thread failed", e);
+			} finally {
+				shutdown();
+				ioLoopStopped(this);
+			}
+		}
+
+		boolean isStopped() {
+			return myStopped;
+		}
+
+		private void shutdown() {
+			boolean wasClosed = myStopped;
+			myStopped = true;
+			ourLog.debug("Stopping I/O thread for {}:{}", getHost(), getPort());
+
+			IOException closed;
+			if (wasClosed) {
+				closed = new IOException("Client was closed");
+			} else {
+				closed = new IOException("I/O thread for " + getHost() + ":" + getPort() + " stopped unexpectedly");
+			}
+			for (AsyncConnection next : new ArrayList<AsyncConnection>(myConnections)) {
+				for (Exchange nextExchange : next.myExchanges) {
+					failLater(nextExchange, closed);
+				}
+				discard(next);
+			}
+			Exchange next;
+			while ((next = myPendingExchanges.pollFirst()) != null) {
+				failLater(next, closed);
+			}
+			try {
+				mySelector.close();
+			} catch (IOException e) {
+				ourLog.warn("Problem closing selector", e);
+			}
+			if (myShutDownWorkers) {
+				// Lets responses which have already been received finish decoding
+				myWorkers.shutdown();
+			}
+		}
+
+		void stop() {
+			myStopped = true;
+			mySelector.wakeup();
+		}
+
+		/**
+		 * Queues an exchange to be sent
+		 * 
+		 * @return <code>false</code> if this I/O thread has stopped, in which
+		 *         case the exchange was not queued
+		 */
+		boolean submit(Exchange theExchange) {
+			myPendingExchanges.offerLast(theExchange);
+			if (myStopped && myPendingExchanges.remove(theExchange)) {
+				return false;
+			}
+			mySelector.wakeup();
+			return true;
+		}
+
+		void wakeup() {
+			mySelector.wakeup();
+		}
+
+	}
+
+	private class WorkerThreadFactory implements ThreadFactory {
+
+		private final AtomicInteger myCount = new AtomicInteger();
+
+		public Thread newThread(Runnable theRunnable) {
+			Thread retVal = new Thread(theRunnable, "hoh-async-client-" + getHost() + ":" + getPort() + "-worker-" + myCount.incrementAndGet());
+			retVal.setDaemon(true);
+			return retVal;
+		}
+
+	}
+
+}
@@ -1,19 +1,14 @@
 package ca.uhn.hl7v2.hoh.raw.client;
 
 import java.io.IOException;
-import java.net.Socket;
 import java.net.URL;
 import java.text.SimpleDateFormat;
-import java.util.ArrayList;
 import java.util.Date;
-import java.util.IdentityHashMap;
-import java.util.Iterator;
-import java.util.List;
-import java.util.Map;
-import java.util.Map.Entry;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import ca.uhn.hl7v2.hoh.api.IClientMultithreaded;
 import ca.uhn.hl7v2.hoh.util.Validate;
@@ -25,6 +20,20 @@ import ca.uhn.hl7v2.hoh.util.Validate;
  * persistent connections which time out and close automatically.
  * </p>
  * <p>
+ * This client is safe to use from several threads at once. Each concurrent
+ * request is sent over its own pooled connection, up to the configured
+ * {@link #setMaxTotalConnections(int) maximum}.
+ * </p>
+ * <p>
+ * To avoid paying for a new connection (and possibly a TLS handshake) on the
+ * first request after a quiet period, connections may be opened ahead of time
+ * using {@link #warmUp(int)}, and a {@link #setMinIdleConnections(int)
+ * minimum number} of idle connections can be kept open by a background
+ * keeper which replaces any the server closes. Connections which have been
+ * idle for a while are checked before they are used, so that a connection
+ * closed by the server is not handed out only to fail.
+ * </p>
+ * <p>
  * This connector uses an executor service which can start worker threads, so
  * use caution if embedding within a J2EE container.
  * </p>
@@ -36,19 +45,38 @@ public class HohRawClientMultithreaded extends AbstractRawClient implements ICli
 	 */
 	public static final long DEFAULT_SOCKET_TIMEOUT = 10000;
 
+	/**
+	 * Default {@link #setMaxTotalConnections(int) maximum number of connections}, which is effectively unlimited
+	 */
+	public static final int DEFAULT_MAX_TOTAL_CONNECTIONS = Integer.MAX_VALUE;
+
+	/**
+	 * Default {@link #setKeeperInterval(long) keeper interval}, 5000ms
+	 */
+	public static final long DEFAULT_KEEPER_INTERVAL = 5000;
+
+	/**
+	 * Default {@link #setValidateAfterIdle(long) idle time before a connection is checked}, 2000ms
+	 */
+	public static final long DEFAULT_VALIDATE_AFTER_IDLE = 2000;
+
+	private static final String LOG_TIME_FORMAT = "HH:mm:ss,SSS";
+
 	private static final org.slf4j.Logger ourLog = org.slf4j.LoggerFactory.getLogger(HohRawClientMultithreaded.class);
 
 	private final ScheduledExecutorService myExecutorService;
-	private Map<Socket, Long> myIdleSocketsToTimeBecameIdle = new IdentityHashMap<Socket, Long>();
-	private final SimpleDateFormat myLogTimeFormat = new SimpleDateFormat("HH:mm:ss,SSS");
-	private boolean myReapingScheduled;
-	private long mySocketTimeout = DEFAULT_SOCKET_TIMEOUT;
+	private final ConnectionPool myPool = new ConnectionPool(this, DEFAULT_MAX_TOTAL_CONNECTIONS, -1);
+	private ScheduledFuture<?> myKeeper;
+	private long myKeeperInterval = DEFAULT_KEEPER_INTERVAL;
+	private final AtomicBoolean myReapingScheduled = new AtomicBoolean();
+	private volatile long mySocketTimeout = DEFAULT_SOCKET_TIMEOUT;
 
 	/**
 	 * Constructor
 	 */
 	public HohRawClientMultithreaded() {
 		myExecutorService = Executors.newScheduledThreadPool(1);
+		myPool.setValidateAfterIdle(DEFAULT_VALIDATE_AFTER_IDLE);
 	}
 
 	/**
@@ -88,6 +116,7 @@ public class HohRawClientMultithreaded extends AbstractRawClient implements ICli
 		Validate.notNull(theExecutorService, "executorService");
 
 		myExecutorService = theExecutorService;
+		myPool.setValidateAfterIdle(DEFAULT_VALIDATE_AFTER_IDLE);
 	}
 
 	/**
@@ -116,83 +145,192 @@ public class HohRawClientMultithreaded extends AbstractRawClient implements ICli
 		Validate.notNull(theExecutorService, "executorService");
 
 		myExecutorService = theExecutorService;
+		myPool.setValidateAfterIdle(DEFAULT_VALIDATE_AFTER_IDLE);
 	}
 
 	@Override
-	protected synchronized Socket provideSocket() throws IOException {
-		Socket retVal;
-		if (myIdleSocketsToTimeBecameIdle.size() == 0) {
-			ourLog.info("Creating new remote connection to {}:{}", getHost(), getPort());
-			retVal = connect();
-		} else {
-			retVal = myIdleSocketsToTimeBecameIdle.keySet().iterator().next();
-			myIdleSocketsToTimeBecameIdle.remove(retVal);
-			if (retVal.isClosed()) {
-				ourLog.trace("Found existing remote connection to {}:{} but it was closed, to going to open a new one", getHost(), getPort());
-				retVal = connect();
-			} else {
-				ourLog.trace("Returning existing remote connection to {}:{}", getHost(), getPort());
-			}
-		}
-		return retVal;
+	protected ClientConnection provideConnection() throws IOException {
+		return myPool.borrow(getResponseTimeout(), mySocketTimeout);
 	}
 
 	/**
-	 * Returns a socket to the pool. If the socket is closed, it will
+	 * Returns a connection to the pool. If the socket is closed, it will
 	 * not be returned.
 	 */
 	@Override
-	protected synchronized void returnSocket(Socket theSocket) {
-		if (theSocket.isClosed()) {
+	protected void returnConnection(ClientConnection theConnection) {
+		if (mySocketTimeout == 0) {
+			ourLog.debug("Socket timeout is 0, closing socket immediately");
+			myPool.release(theConnection, false);
 			return;
 		}
-		
-		long now = System.currentTimeMillis();
 
-		// TODO: reap immediately if timeout is 0
-		
 		if (ourLog.isDebugEnabled()) {
 			if (mySocketTimeout == -1) {
 				ourLog.debug("Returning socket, will not attempt to reap");
 			} else {
-				ourLog.debug("Returning socket, will be eligible for reaping at " + myLogTimeFormat.format(new Date(now + mySocketTimeout)));
+				ourLog.debug("Returning socket, will be eligible for reaping at " + new SimpleDateFormat(LOG_TIME_FORMAT).format(new Date(System.currentTimeMillis() + mySocketTimeout)));
 			}
 		}
 
-		myIdleSocketsToTimeBecameIdle.put(theSocket, now);
+		myPool.release(theConnection, true);
 		scheduleReaping();
 	}
 
 	private void scheduleReaping() {
-		long now = System.currentTimeMillis();
-		if (myReapingScheduled) {
-			ourLog.debug("Reaping already scheduled");
+		if (mySocketTimeout <= 0) {
 			return;
 		}
 
-		if (myIdleSocketsToTimeBecameIdle.size() < 1) {
+		// Connections up to the minimum are never reaped
+		if (myPool.getIdleCount() <= myPool.getMinIdle()) {
 			return;
 		}
 
-		if (mySocketTimeout == -1) {
+		Long oldestIdleSince = myPool.getOldestIdleSince();
+		if (oldestIdleSince == null) {
 			return;
 		}
-		
-		long earliestReapingTime = Long.MAX_VALUE;
-		for (Long next : myIdleSocketsToTimeBecameIdle.values()) {
-			long nextReapingTime = next + mySocketTimeout;
-			if (nextReapingTime < earliestReapingTime) {
-				earliestReapingTime = nextReapingTime;
-			}
+
+		if (!myReapingScheduled.compareAndSet(false, true)) {
+			ourLog.debug("Reaping already scheduled");
+			return;
 		}
 
-		long delay = earliestReapingTime - now;
+		long earliestReapingTime = oldestIdleSince + mySocketTimeout;
+		long delay = Math.max(0, earliestReapingTime - System.currentTimeMillis());
 		if (ourLog.isDebugEnabled()) {
-			ourLog.debug("Scheduling socket reaping in {} ms at {}", delay, myLogTimeFormat.format(new Date(earliestReapingTime)));
+			ourLog.debug("Scheduling socket reaping in {} ms at {}", delay, new SimpleDateFormat(LOG_TIME_FORMAT).format(new Date(earliestReapingTime)));
 		}
 
 		myExecutorService.schedule(new TimeoutTask(), delay, TimeUnit.MILLISECONDS);
-		myReapingScheduled = true;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	public int getMaxIdleConnections() {
+		return myPool.getMaxIdle();
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	public int getMaxTotalConnections() {
+		return myPool.getMaxTotal();
+	}
+
+	/**
+	 * Returns the number of millis between runs of the keeper which maintains
+	 * the {@link #setMinIdleConnections(int) minimum idle connections}
+	 */
+	public synchronized long getKeeperInterval() {
+		return myKeeperInterval;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	public int getMinIdleConnections() {
+		return myPool.getMinIdle();
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	public long getValidateAfterIdle() {
+		return myPool.getValidateAfterIdle();
+	}
+
+	/**
+	 * Sets the number of millis between runs of the keeper which maintains
+	 * the {@link #setMinIdleConnections(int) minimum idle connections}.
+	 * Default is {@link #DEFAULT_KEEPER_INTERVAL}. This should be shorter than
+	 * the time the server keeps idle connections open.
+	 */
+	public synchronized void setKeeperInterval(long theKeeperInterval) {
+		if (theKeeperInterval < 1) {
+			throw new IllegalArgumentException("Keeper interval must be a positive integer");
+		}
+		myKeeperInterval = theKeeperInterval;
+		scheduleKeeper();
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	public synchronized void setMinIdleConnections(int theMinIdleConnections) {
+		if (theMinIdleConnections < 0) {
+			throw new IllegalArgumentException("Min idle connections must be 0 or a positive integer");
+		}
+		myPool.setMinIdle(theMinIdleConnections);
+		scheduleKeeper();
+		scheduleReaping();
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	public void setValidateAfterIdle(long theValidateAfterIdle) {
+		if (theValidateAfterIdle < -1) {
+			throw new IllegalArgumentException("Validate after idle must be -1, 0, or a positive integer");
+		}
+		myPool.setValidateAfterIdle(theValidateAfterIdle);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	public int warmUp(int theConnectionCount) throws IOException {
+		if (theConnectionCount < 0) {
+			throw new IllegalArgumentException("Connection count must be 0 or a positive integer");
+		}
+		try {
+			return myPool.warmUp(theConnectionCount);
+		} finally {
+			scheduleReaping();
+		}
+	}
+
+	/**
+	 * Starts, restarts or stops the keeper, according to the current settings
+	 */
+	private synchronized void scheduleKeeper() {
+		if (myKeeper != null) {
+			myKeeper.cancel(false);
+			myKeeper = null;
+		}
+		if (myPool.getMinIdle() > 0) {
+			ourLog.debug("Scheduling keeper to maintain {} idle connections every {}ms", myPool.getMinIdle(), myKeeperInterval);
+			myKeeper = myExecutorService.scheduleWithFixedDelay(new KeeperTask(), 0, myKeeperInterval, TimeUnit.MILLISECONDS);
+		}
+	}
+
+	/**
+	 * Sets the maximum number of idle connections which will be kept open.
+	 * Connections returned to the pool beyond this number are closed. A value
+	 * of -1 (the default) means no limit.
+	 */
+	public void setMaxIdleConnections(int theMaxIdleConnections) {
+		if (theMaxIdleConnections < -1) {
+			throw new IllegalArgumentException("Max idle connections must be -1, 0, or a positive integer");
+		}
+		myPool.setMaxIdle(theMaxIdleConnections);
+	}
+
+	/**
+	 * Sets the maximum number of connections (idle and in use) which may be
+	 * open at the same time. Threads which call
+	 * {@link #sendAndReceive(ca.uhn.hl7v2.hoh.api.ISendable) sendAndReceive}
+	 * while this many connections are in use will wait (up to the
+	 * {@link #setResponseTimeout(long) response timeout}) for one to be
+	 * returned. Default is {@link #DEFAULT_MAX_TOTAL_CONNECTIONS}.
+	 */
+	public void setMaxTotalConnections(int theMaxTotalConnections) {
+		if (theMaxTotalConnections < 1) {
+			throw new IllegalArgumentException("Max total connections must be a positive integer");
+		}
+		myPool.setMaxTotal(theMaxTotalConnections);
 	}
 
 	/**
@@ -205,50 +343,43 @@ public class HohRawClientMultithreaded extends AbstractRawClient implements ICli
 	/**
 	 * {@inheritDoc}
 	 */
-	public synchronized void setSocketTimeout(long theSocketTimeout) {
-		if (mySocketTimeout < -1) {
+	public void setSocketTimeout(long theSocketTimeout) {
+		if (theSocketTimeout < -1) {
 			throw new IllegalArgumentException("Socket timeout must be -1, 0, or a positive integer");
 		}
 		mySocketTimeout = theSocketTimeout;
-		myReapingScheduled = false;
+		if (theSocketTimeout == 0) {
+			myPool.closeIdle();
+		}
+		myReapingScheduled.set(false);
 		scheduleReaping();
 	}
 
+	private class KeeperTask implements Runnable {
+		public void run() {
+			try {
+				myPool.validateIdle();
+				myPool.warmUp(myPool.getMinIdle());
+			} catch (IOException e) {
+				ourLog.warn("Failed to open idle connection to {}:{} - {}", new Object[] { getHost(), getPort(), e.toString() });
+			} catch (Throwable e) {
+				ourLog.error("Failure during keeper pass", e);
+			}
+		}
+	}
+
 	private class TimeoutTask implements Runnable {
 		public void run() {
+			myReapingScheduled.set(false);
 
-			if (mySocketTimeout == -1) {
+			if (mySocketTimeout <= 0) {
 				return;
 			}
-			
+
 			ourLog.debug("Beginning socket reaping pass");
 			try {
-
-				List<Socket> socketsToClose = new ArrayList<Socket>();
-				long closeIfActiveBefore = System.currentTimeMillis() - mySocketTimeout;
-				synchronized (HohRawClientMultithreaded.this) {
-
-					for (Iterator<Map.Entry<Socket, Long>> iter = myIdleSocketsToTimeBecameIdle.entrySet().iterator(); iter.hasNext();) {
-						Entry<Socket, Long> nextEntry = iter.next();
-						if (nextEntry.getValue() <= closeIfActiveBefore) {
-							Socket key = nextEntry.getKey();
-							socketsToClose.add(key);
-							ourLog.info("Closing idle socket with local port {} because it has been idle since {}", key.getLocalPort(), new Date(nextEntry.getValue()));
-							iter.remove();
-						} else {
-							if (ourLog.isDebugEnabled()) {
-								ourLog.debug("Next socket has " + (nextEntry.getValue() - closeIfActiveBefore) + "ms remaining");
-							}
-						}
-					}
-
-					myReapingScheduled = false;
-					scheduleReaping();
-				}
-
-				for (Socket next : socketsToClose) {
-					closeSocket(next);
-				}
+				myPool.reapIdleBefore(System.currentTimeMillis() - mySocketTimeout);
+				scheduleReaping();
 			} catch (Throwable e) {
 				ourLog.error("Failure during reaper pass", e);
 			}
@@ -1,8 +1,8 @@
 package ca.uhn.hl7v2.hoh.raw.client;
 
 import java.io.IOException;
-import java.net.Socket;
 import java.net.URL;
+import java.util.concurrent.locks.ReentrantLock;
 
 import ca.uhn.hl7v2.hoh.api.DecodeException;
 import ca.uhn.hl7v2.hoh.api.EncodeException;
@@ -29,7 +29,8 @@ import ca.uhn.hl7v2.hoh.sockets.TlsSocketFactory;
 public class HohRawClientSimple extends AbstractRawClient implements IClientSimple {
 
 	private boolean myAutoClose = true;
-	private Socket mySocket;
+	private ClientConnection myConnection;
+	private final ReentrantLock mySendLock = new ReentrantLock();
 
 	/**
 	 * Constructor
@@ -50,9 +51,20 @@ public class HohRawClientSimple extends AbstractRawClient implements IClientSimp
 	 * {@inheritDoc}
 	 */
 	@Override
-	public synchronized IReceivable<String> sendAndReceive(ISendable<?> theMessageToSend) throws DecodeException, IOException, EncodeException {
-		// **** Overridden to add synchronization
-		return super.sendAndReceive(theMessageToSend);
+	public IReceivable<String> sendAndReceive(ISendable<?> theMessageToSend) throws DecodeException, IOException, EncodeException {
+		if (getPipelineDepth() > 1) {
+			// Pipelined requests share the connection, the pipeline handles concurrency
+			return super.sendAndReceive(theMessageToSend);
+		}
+
+		// **** Overridden to add synchronization. A lock is used rather than a
+		// synchronized block so that virtual threads are not pinned during I/O
+		mySendLock.lock();
+		try {
+			return super.sendAndReceive(theMessageToSend);
+		} finally {
+			mySendLock.unlock();
+		}
 	}
 
 	/**
@@ -69,8 +81,8 @@ public class HohRawClientSimple extends AbstractRawClient implements IClientSimp
 	 * {@inheritDoc}
 	 */
 	public void close() {
-		if (mySocket != null) {
-			closeSocket(mySocket);
+		if (myConnection != null) {
+			closeConnection(myConnection);
 		}
 	}
 
@@ -85,7 +97,7 @@ public class HohRawClientSimple extends AbstractRawClient implements IClientSimp
 	 * @see ca.uhn.hl7v2.hoh.raw.client.IClientSimple#isConnected()
 	 */
 	public boolean isConnected() {
-		return isSocketConnected(mySocket);
+		return myConnection != null && myConnection.isConnected();
 	}
 
 
@@ -93,20 +105,20 @@ public class HohRawClientSimple extends AbstractRawClient implements IClientSimp
 	 * {@inheritDoc}
 	 */
 	@Override
-	protected Socket provideSocket() throws IOException {
-		if (mySocket == null || mySocket.isClosed() || mySocket.isInputShutdown() || mySocket.isOutputShutdown()) {
-			mySocket = connect();
+	protected ClientConnection provideConnection() throws IOException {
+		if (myConnection == null || !myConnection.isConnected()) {
+			myConnection = openConnection();
 		}
-		return mySocket;
+		return myConnection;
 	}
 
 	/**
 	 * {@inheritDoc}
 	 */
 	@Override
-	protected void returnSocket(Socket theSocket) {
+	protected void returnConnection(ClientConnection theConnection) {
 		if (isAutoClose()) {
-			close();
+			closeConnection(theConnection);
 		}
 	}
 
@@ -0,0 +1,388 @@
+package ca.uhn.hl7v2.hoh.raw.client;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import ca.uhn.hl7v2.hoh.api.DecodeException;
+import ca.uhn.hl7v2.hoh.api.EncodeException;
+import ca.uhn.hl7v2.hoh.api.IReceivable;
+import ca.uhn.hl7v2.hoh.api.ISendable;
+import ca.uhn.hl7v2.hoh.encoder.Hl7OverHttpResponseDecoder;
+import ca.uhn.hl7v2.hoh.sign.SignatureVerificationException;
+
+/**
+ * <p>
+ * Sends requests from any number of threads over a single kept-alive
+ * connection without waiting for each response before sending the next
+ * request (HTTP/1.1 pipelining). Responses arrive in the same order as the
+ * requests were written, so they are matched to their requests in FIFO order.
+ * </p>
+ * <p>
+ * If the server responds with a <code>Connection: close</code> header while
+ * further requests are outstanding, those requests are replayed on a new
+ * connection, up to {@link #MAX_REPLAYS} times each. If the connection fails
+ * for any other reason, outstanding requests fail, since the server may or
+ * may not have processed them.
+ * </p>
+ * <p>
+ * Blocking operations use explicit locks rather than monitors, so that
+ * virtual threads are not pinned while waiting for I/O.
+ * </p>
+ * <p>
+ * Connections are obtained from the owning client using
+ * {@link AbstractRawClient#provideConnection()}, and are returned as soon as
+ * no requests are outstanding on them.
+ * </p>
+ */
+class RequestPipeline {
+
+	/**
+	 * Number of times a request is sent again after the server closes the
+	 * connection without responding to it, before it fails. This stops a
+	 * server which closes every connection after one response from making
+	 * a request loop forever.
+	 */
+	static final int MAX_REPLAYS = 10;
+
+	private static final org.slf4j.Logger ourLog = org.slf4j.LoggerFactory.getLogger(RequestPipeline.class);
+
+	private final Condition myChanged;
+	private boolean myConnecting;
+	private PipelinedConnection myCurrent;
+	private volatile int myDepth = 1;
+	private final ReentrantLock myLock = new ReentrantLock();
+	private final AbstractRawClient myOwner;
+
+	/**
+	 * Constructor
+	 */
+	RequestPipeline(AbstractRawClient theOwner) {
+		myOwner = theOwner;
+		myChanged = myLock.newCondition();
+	}
+
+	int getDepth() {
+		return myDepth;
+	}
+
+	boolean isEnabled() {
+		return myDepth > 1;
+	}
+
+	/**
+	 * Joins the current connection if it has room for another request, or
+	 * opens a new one if there is no usable connection
+	 */
+	private PipelinedConnection join() throws IOException {
+		long deadline = System.currentTimeMillis() + myOwner.getResponseTimeout();
+		myLock.lock();
+		try {
+			while (true) {
+				if (myCurrent != null && !myCurrent.isClosed()) {
+					if (myCurrent.myOutstanding < myDepth) {
+						myCurrent.myOutstanding++;
+						return myCurrent;
+					}
+				} else if (!myConnecting) {
+					myConnecting = true;
+					break;
+				}
+
+				long remaining = deadline - System.currentTimeMillis();
+				if (remaining <= 0) {
+					throw new IOException("Timed out waiting for room in the request pipeline to " + myOwner.getHost() + ":" + myOwner.getPort());
+				}
+				try {
+					myChanged.await(remaining, TimeUnit.MILLISECONDS);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new IOException("Interrupted while waiting for room in the request pipeline", e);
+				}
+			}
+		} finally {
+			myLock.unlock();
+		}
+
+		// Connect without holding the lock, since providing a connection may
+		// block until another pipeline returns its connection
+		PipelinedConnection retVal = null;
+		try {
+			retVal = new PipelinedConnection(myOwner.provideConnection());
+			return retVal;
+		} finally {
+			myLock.lock();
+			try {
+				myConnecting = false;
+				if (retVal != null) {
+					retVal.myOutstanding = 1;
+					myCurrent = retVal;
+				}
+				myChanged.signalAll();
+			} finally {
+				myLock.unlock();
+			}
+		}
+	}
+
+	/**
+	 * Leaves the given connection, returning it to the owner if no more
+	 * requests are outstanding on it
+	 */
+	private void leave(PipelinedConnection theConnection) {
+		boolean retire;
+		myLock.lock();
+		try {
+			theConnection.myOutstanding--;
+			retire = theConnection.myOutstanding == 0;
+			if (retire && myCurrent == theConnection) {
+				myCurrent = null;
+			}
+			myChanged.signalAll();
+		} finally {
+			myLock.unlock();
+		}
+		if (retire) {
+			myOwner.returnConnection(theConnection.myConnection);
+		}
+	}
+
+	IReceivable<String> sendAndReceive(ISendable<?> theMessageToSend) throws DecodeException, IOException, EncodeException {
+		byte[] request = myOwner.encodeRequest(theMessageToSend);
+
+		int replays = 0;
+		while (true) {
+			PipelinedConnection connection = join();
+			PipelinedRequest pipelinedRequest = new PipelinedRequest(request);
+			try {
+				connection.send(pipelinedRequest);
+				connection.awaitResponse(pipelinedRequest);
+			} finally {
+				leave(connection);
+			}
+
+			if (!pipelinedRequest.isReplay()) {
+				return pipelinedRequest.getResponse();
+			}
+			if (pipelinedRequest.isWritten() && ++replays > MAX_REPLAYS) {
+				throw new DecodeException("Remote host closed the connection without responding " + replays + " times");
+			}
+			ourLog.debug("Server closed pipelined connection before responding, replaying request on a new connection");
+		}
+	}
+
+	void setDepth(int theDepth) {
+		myLock.lock();
+		try {
+			myDepth = theDepth;
+			myChanged.signalAll();
+		} finally {
+			myLock.unlock();
+		}
+	}
+
+	/**
+	 * A connection along with the requests which have been written to it
+	 * but have not yet received a response
+	 */
+	private class PipelinedConnection {
+
+		private boolean myClosed;
+		private final ClientConnection myConnection;
+		private final LinkedList<PipelinedRequest> myInFlight = new LinkedList<PipelinedRequest>();
+		/** Guarded by the enclosing RequestPipeline's lock */
+		private int myOutstanding;
+		private final ReentrantLock myReadLock = new ReentrantLock();
+		private final ReentrantLock myWriteLock = new ReentrantLock();
+
+		PipelinedConnection(ClientConnection theConnection) {
+			myConnection = theConnection;
+		}
+
+		/**
+		 * Blocks until the given request has a response, reading responses
+		 * for any requests which were written before it along the way
+		 */
+		void awaitResponse(PipelinedRequest theRequest) {
+			myReadLock.lock();
+			try {
+				while (!theRequest.isDone()) {
+					PipelinedRequest head;
+					synchronized (this) {
+						head = myInFlight.peekFirst();
+					}
+					if (head == null) {
+						// Can only happen if the connection was closed
+						theRequest.replay();
+						break;
+					}
+					readNextResponse(head);
+				}
+			} finally {
+				myReadLock.unlock();
+			}
+		}
+
+		/**
+		 * Closes the connection and completes all requests which have not yet
+		 * received a response, either by failing them or by marking them for
+		 * replay
+		 */
+		private void close(DecodeException theFailure) {
+			List<PipelinedRequest> unanswered;
+			synchronized (this) {
+				myClosed = true;
+				unanswered = new ArrayList<PipelinedRequest>(myInFlight);
+				myInFlight.clear();
+			}
+			myOwner.closeConnection(myConnection);
+
+			for (PipelinedRequest next : unanswered) {
+				if (theFailure != null) {
+					next.fail(theFailure);
+				} else {
+					next.replay();
+				}
+			}
+		}
+
+		synchronized boolean isClosed() {
+			return myClosed;
+		}
+
+		private void readNextResponse(PipelinedRequest theHead) {
+			Hl7OverHttpResponseDecoder d;
+			try {
+				d = myOwner.readResponse(myConnection);
+			} catch (DecodeException e) {
+				ourLog.debug("Decode exception, going to close pipelined socket", e);
+				close(e);
+				return;
+			} catch (SignatureVerificationException e) {
+				// The response was read completely, so the pipeline is still usable
+				ourLog.debug("Failed to verify message signature", e);
+				synchronized (this) {
+					myInFlight.removeFirst();
+				}
+				theHead.fail(new DecodeException("Failed to verify message signature", e));
+				return;
+			}
+
+			if (d == null) {
+				close(new DecodeException("Timed out waiting for response from remote host"));
+				return;
+			}
+
+			synchronized (this) {
+				myInFlight.removeFirst();
+			}
+			theHead.succeed(myOwner.createReceivable(d, myConnection));
+
+			if (d.isConnectionCloseHeaderPresent()) {
+				ourLog.debug("Found Connection=close header, closing pipelined socket");
+				close(null);
+			}
+		}
+
+		/**
+		 * Writes the given request to the connection, or marks it for replay
+		 * if the connection has already been closed
+		 */
+		void send(PipelinedRequest theRequest) throws IOException {
+			myWriteLock.lock();
+			try {
+				synchronized (this) {
+					if (myClosed) {
+						theRequest.replay();
+						return;
+					}
+					myInFlight.addLast(theRequest);
+				}
+
+				try {
+					OutputStream outputStream = myConnection.getOutputStream();
+					theRequest.written();
+					outputStream.write(theRequest.myRequest);
+					outputStream.flush();
+				} catch (IOException e) {
+					ourLog.debug("Caught IOException, going to close pipelined socket", e);
+					synchronized (this) {
+						myInFlight.remove(theRequest);
+					}
+					close(new DecodeException("Failed to write to remote host", e));
+					throw e;
+				}
+			} finally {
+				myWriteLock.unlock();
+			}
+		}
+
+	}
+
+	/**
+	 * A single request, and its outcome once known
+	 */
+	private static class PipelinedRequest {
+
+		private boolean myDone;
+		private DecodeException myFailure;
+		private boolean myReplay;
+		private final byte[] myRequest;
+		private IReceivable<String> myResponse;
+		private boolean myWritten;
+
+		PipelinedRequest(byte[] theRequest) {
+			myRequest = theRequest;
+		}
+
+		synchronized void fail(DecodeException theFailure) {
+			myFailure = theFailure;
+			myDone = true;
+		}
+
+		synchronized IReceivable<String> getResponse() throws DecodeException {
+			if (myFailure != null) {
+				throw myFailure;
+			}
+			return myResponse;
+		}
+
+		synchronized boolean isDone() {
+			return myDone;
+		}
+
+		synchronized boolean isReplay() {
+			return myReplay;
+		}
+
+		/**
+		 * Returns <code>true</code> if the request may have reached the
+		 * server, as opposed to being replayed because its connection was
+		 * closed before it could be written
+		 */
+		synchronized boolean isWritten() {
+			return myWritten;
+		}
+
+		synchronized void replay() {
+			myReplay = true;
+			myDone = true;
+		}
+
+		synchronized void written() {
+			myWritten = true;
+		}
+
+		synchronized void succeed(IReceivable<String> theResponse) {
+			myResponse = theResponse;
+			myDone = true;
+		}
+
+	}
+
+}
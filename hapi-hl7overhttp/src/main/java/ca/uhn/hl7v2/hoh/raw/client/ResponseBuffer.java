@@ -0,0 +1,241 @@
+package ca.uhn.hl7v2.hoh.raw.client;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import ca.uhn.hl7v2.hoh.api.DecodeException;
+import ca.uhn.hl7v2.hoh.util.HTTPUtils;
+import ca.uhn.hl7v2.hoh.util.IOUtils;
+
+/**
+ * Accumulates bytes read from a non-blocking channel and determines where each
+ * complete HTTP response ends, so that the response may be handed to a
+ * {@link ca.uhn.hl7v2.hoh.encoder.Hl7OverHttpResponseDecoder} in one piece.
+ * This class is not thread safe.
+ */
+class ResponseBuffer {
+
+	private byte[] myBytes = new byte[IOUtils.DEFAULT_BUFFER_SIZE];
+	private boolean myConnectionClose;
+	private int myLength;
+	private final int myMaxResponseSize;
+
+	/**
+	 * Constructor
+	 *
+	 * @param theMaxResponseSize
+	 *            The largest response (head and body, in bytes) which will be
+	 *            accepted
+	 */
+	ResponseBuffer(int theMaxResponseSize) {
+		myMaxResponseSize = theMaxResponseSize;
+	}
+
+	/**
+	 * Appends the remaining contents of the given buffer
+	 */
+	void append(ByteBuffer theBuffer) {
+		int count = theBuffer.remaining();
+		if (myLength + count > myBytes.length) {
+			myBytes = Arrays.copyOf(myBytes, Math.max(myBytes.length * 2, myLength + count));
+		}
+		theBuffer.get(myBytes, myLength, count);
+		myLength += count;
+	}
+
+	void clear() {
+		myLength = 0;
+	}
+
+	/**
+	 * Returns the length of the first complete response in the buffer, or -1
+	 * if the buffer does not yet contain a complete response. Responses which
+	 * have neither a <code>Content-Length</code> nor a chunked transfer
+	 * encoding are only complete when the connection closes, so -1 is returned
+	 * for these.
+	 *
+	 * @throws DecodeException
+	 *             If the response is malformed or larger than the maximum
+	 *             size, in which case the rest of the stream can't be framed
+	 */
+	int findResponseEnd() throws DecodeException {
+		int retVal = doFindResponseEnd();
+		if (retVal == -1 && myLength > myMaxResponseSize) {
+			throw new DecodeException("Response exceeds the maximum size of " + myMaxResponseSize + " bytes");
+		}
+		return retVal;
+	}
+
+	private int doFindResponseEnd() throws DecodeException {
+		skipLeadingLineBreaks();
+
+		int headerEnd = findHeaderEnd();
+		if (headerEnd == -1) {
+			return -1;
+		}
+
+		int contentLength = -1;
+		boolean chunked = false;
+		myConnectionClose = false;
+		int lineStart = 0;
+		while (lineStart < headerEnd) {
+			int lineEnd = indexOf((byte) '\n', lineStart, headerEnd);
+			if (lineEnd == -1) {
+				lineEnd = headerEnd;
+			}
+			String line = new String(myBytes, lineStart, lineEnd - lineStart, HTTPUtils.DEFAULT_CHARSET).trim();
+			lineStart = lineEnd + 1;
+
+			int colonIndex = line.indexOf(':');
+			if (colonIndex == -1) {
+				continue;
+			}
+			String name = line.substring(0, colonIndex).trim();
+			String value = line.substring(colonIndex + 1).trim();
+			if ("content-length".equalsIgnoreCase(name)) {
+				try {
+					contentLength = Integer.parseInt(value);
+				} catch (NumberFormatException e) {
+					throw new DecodeException("Invalid Content-Length: " + value);
+				}
+				if (contentLength < 0 || contentLength > myMaxResponseSize - headerEnd) {
+					throw new DecodeException("Invalid Content-Length: " + value);
+				}
+			} else if ("connection".equalsIgnoreCase(name)) {
+				myConnectionClose = "close".equalsIgnoreCase(value);
+			} else if ("transfer-encoding".equalsIgnoreCase(name)) {
+				chunked = "chunked".equalsIgnoreCase(value);
+			}
+		}
+
+		if (chunked) {
+			return findChunkedEnd(headerEnd);
+		}
+		if (contentLength >= 0) {
+			int end = headerEnd + contentLength;
+			return end <= myLength ? end : -1;
+		}
+		return -1;
+	}
+
+	private int findChunkedEnd(int theBodyStart) throws DecodeException {
+		int pos = theBodyStart;
+		while (true) {
+			int lineEnd = indexOf((byte) '\n', pos, myLength);
+			if (lineEnd == -1) {
+				return -1;
+			}
+			String sizeLine = new String(myBytes, pos, lineEnd - pos, HTTPUtils.DEFAULT_CHARSET).trim();
+			pos = lineEnd + 1;
+
+			int extIndex = sizeLine.indexOf(';');
+			if (extIndex != -1) {
+				sizeLine = sizeLine.substring(0, extIndex).trim();
+			}
+			int size;
+			try {
+				size = Integer.parseInt(sizeLine, 16);
+			} catch (NumberFormatException e) {
+				throw new DecodeException("Failed to decode CHUNKED encoding, invalid size: " + sizeLine);
+			}
+			if (size < 0 || size > myMaxResponseSize - pos) {
+				throw new DecodeException("Received invalid octet count in chunked transfer encoding: " + sizeLine);
+			}
+
+			if (size == 0) {
+				// Skip any trailers until the terminating blank line
+				while (true) {
+					lineEnd = indexOf((byte) '\n', pos, myLength);
+					if (lineEnd == -1) {
+						return -1;
+					}
+					boolean blank = lineEnd == pos || (lineEnd == pos + 1 && myBytes[pos] == '\r');
+					pos = lineEnd + 1;
+					if (blank) {
+						return pos;
+					}
+				}
+			}
+
+			pos += size;
+			if (pos < myLength && myBytes[pos] == '\r') {
+				pos++;
+			}
+			if (pos >= myLength) {
+				return -1;
+			}
+			if (myBytes[pos] == '\n') {
+				pos++;
+			}
+		}
+	}
+
+	/**
+	 * Returns the index just past the blank line which terminates the headers,
+	 * or -1
+	 */
+	private int findHeaderEnd() {
+		for (int i = 0; i < myLength; i++) {
+			if (myBytes[i] != '\n') {
+				continue;
+			}
+			if (i + 1 < myLength && myBytes[i + 1] == '\n') {
+				return i + 2;
+			}
+			if (i + 2 < myLength && myBytes[i + 1] == '\r' && myBytes[i + 2] == '\n') {
+				return i + 3;
+			}
+		}
+		return -1;
+	}
+
+	private int indexOf(byte theByte, int theFrom, int theTo) {
+		for (int i = theFrom; i < theTo; i++) {
+			if (myBytes[i] == theByte) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * Returns <code>true</code> if the response most recently found by
+	 * {@link #findResponseEnd()} has a <code>Connection: close</code> header
+	 */
+	boolean isConnectionClose() {
+		return myConnectionClose;
+	}
+
+	boolean isEmpty() {
+		return myLength == 0;
+	}
+
+	int size() {
+		return myLength;
+	}
+
+	/**
+	 * Removes and returns the first given number of bytes
+	 */
+	byte[] take(int theLength) {
+		byte[] retVal = Arrays.copyOf(myBytes, theLength);
+		System.arraycopy(myBytes, theLength, myBytes, 0, myLength - theLength);
+		myLength -= theLength;
+		return retVal;
+	}
+
+	/**
+	 * Some servers send extra line breaks after a chunked response, these are
+	 * discarded before the next response is read
+	 */
+	void skipLeadingLineBreaks() {
+		int skip = 0;
+		while (skip < myLength && (myBytes[skip] == '\r' || myBytes[skip] == '\n')) {
+			skip++;
+		}
+		if (skip > 0) {
+			take(skip);
+		}
+	}
+
+}
@@ -0,0 +1,152 @@
+package ca.uhn.hl7v2.hoh.raw.client;
+
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import ca.uhn.hl7v2.hoh.api.IReceivable;
+import ca.uhn.hl7v2.hoh.api.IResponseCallback;
+import ca.uhn.hl7v2.hoh.metrics.IMetricsListener;
+import ca.uhn.hl7v2.hoh.metrics.PhaseEnum;
+
+/**
+ * Future which is completed by the I/O thread of an asynchronous client
+ */
+class ResponseFuture implements Future<IReceivable<String>> {
+
+	private static final org.slf4j.Logger ourLog = org.slf4j.LoggerFactory.getLogger(ResponseFuture.class);
+
+	private final IResponseCallback<String> myCallback;
+	private volatile boolean myCancelled;
+	private final AtomicBoolean myDone = new AtomicBoolean();
+	private volatile Exception myException;
+	private final CountDownLatch myLatch = new CountDownLatch(1);
+	private final IMetricsListener myMetricsListener;
+	private volatile IReceivable<String> myResponse;
+	private final long myStart;
+
+	/**
+	 * Constructor
+	 * 
+	 * @param theCallback
+	 *            The callback to notify on completion (may be null)
+	 * @param theMetricsListener
+	 *            The listener to report the total time or the failure to
+	 *            (may be null)
+	 * @param theStart
+	 *            The value of {@link System#nanoTime()} when the exchange
+	 *            started
+	 */
+	ResponseFuture(IResponseCallback<String> theCallback, IMetricsListener theMetricsListener, long theStart) {
+		myCallback = theCallback;
+		myMetricsListener = theMetricsListener;
+		myStart = theStart;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	public boolean cancel(boolean theMayInterruptIfRunning) {
+		if (!myDone.compareAndSet(false, true)) {
+			return false;
+		}
+		myCancelled = true;
+		myLatch.countDown();
+		return true;
+	}
+
+	/**
+	 * Marks this future as failed
+	 * 
+	 * @return Returns <code>false</code> if the future was already complete
+	 */
+	boolean fail(Exception theException) {
+		if (!myDone.compareAndSet(false, true)) {
+			return false;
+		}
+		myException = theException;
+		if (myMetricsListener != null) {
+			myMetricsListener.exchangeFailed(theException);
+		}
+		myLatch.countDown();
+		if (myCallback != null) {
+			try {
+				myCallback.onFailure(theException);
+			} catch (RuntimeException e) {
+				ourLog.error("Response callback threw an exception", e);
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	public IReceivable<String> get() throws InterruptedException, ExecutionException {
+		myLatch.await();
+		return getResult();
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	public IReceivable<String> get(long theTimeout, TimeUnit theUnit) throws InterruptedException, ExecutionException, TimeoutException {
+		if (!myLatch.await(theTimeout, theUnit)) {
+			throw new TimeoutException();
+		}
+		return getResult();
+	}
+
+	private IReceivable<String> getResult() throws ExecutionException {
+		if (myCancelled) {
+			throw new CancellationException();
+		}
+		if (myException != null) {
+			throw new ExecutionException(myException);
+		}
+		return myResponse;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	public boolean isCancelled() {
+		return myCancelled;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	public boolean isDone() {
+		return myDone.get();
+	}
+
+	/**
+	 * Marks this future as successfully completed
+	 * 
+	 * @return Returns <code>false</code> if the future was already complete
+	 */
+	boolean succeed(IReceivable<String> theResponse) {
+		if (!myDone.compareAndSet(false, true)) {
+			return false;
+		}
+		myResponse = theResponse;
+		if (myMetricsListener != null) {
+			myMetricsListener.phaseCompleted(PhaseEnum.TOTAL, System.nanoTime() - myStart);
+		}
+		myLatch.countDown();
+		if (myCallback != null) {
+			try {
+				myCallback.onResponse(theResponse);
+			} catch (RuntimeException e) {
+				ourLog.error("Response callback threw an exception", e);
+			}
+		}
+		return true;
+	}
+
+}
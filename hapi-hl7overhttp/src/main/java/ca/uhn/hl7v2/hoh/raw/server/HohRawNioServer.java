@@ -0,0 +1,954 @@
+package ca.uhn.hl7v2.hoh.raw.server;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import ca.uhn.hl7v2.hoh.api.DecodeException;
+import ca.uhn.hl7v2.hoh.api.EncodeException;
+import ca.uhn.hl7v2.hoh.api.IAuthorizationServerCallback;
+import ca.uhn.hl7v2.hoh.api.IMessageHandler;
+import ca.uhn.hl7v2.hoh.api.IResponseSendable;
+import ca.uhn.hl7v2.hoh.api.MessageMetadataKeys;
+import ca.uhn.hl7v2.hoh.api.MessageProcessingException;
+import ca.uhn.hl7v2.hoh.encoder.AuthorizationFailureException;
+import ca.uhn.hl7v2.hoh.encoder.Hl7OverHttpRequestDecoder;
+import ca.uhn.hl7v2.hoh.encoder.Hl7OverHttpResponseEncoder;
+import ca.uhn.hl7v2.hoh.encoder.NoMessageReceivedException;
+import ca.uhn.hl7v2.hoh.metrics.IMetricsListener;
+import ca.uhn.hl7v2.hoh.metrics.PhaseEnum;
+import ca.uhn.hl7v2.hoh.raw.api.RawReceivable;
+import ca.uhn.hl7v2.hoh.sign.ISigner;
+import ca.uhn.hl7v2.hoh.sign.SignatureVerificationException;
+import ca.uhn.hl7v2.hoh.util.HTTPUtils;
+
+/**
+ * <p>
+ * Standalone HL7 over HTTP server, which receives messages without needing a
+ * servlet container. It provides the same processing as
+ * {@link HohRawServlet}, using the same decoder, encoder, authorization
+ * callback and signer, and passes each message to an
+ * {@link IMessageHandler}.
+ * </p>
+ * <p>
+ * A small number of selector threads handle all connections and read each
+ * request until it is complete, and a pool of worker threads decodes and
+ * processes the requests. Connections are kept open between requests.
+ * Requests on the same connection are processed one at a time, and the
+ * connection is not read from until the response to the current request has
+ * been written, so responses are always in request order and clients which
+ * send faster than messages can be processed are slowed down by TCP flow
+ * control.
+ * </p>
+ * <p>
+ * This server does not support TLS.
+ * </p>
+ */
+public class HohRawNioServer {
+
+	/**
+	 * The default maximum size of a request, in bytes: 16MB
+	 */
+	public static final int DEFAULT_MAX_REQUEST_SIZE = 16 * 1024 * 1024;
+
+	/**
+	 * The default time after which an idle connection is closed, in millis:
+	 * 60000
+	 */
+	public static final long DEFAULT_IDLE_TIMEOUT = 60 * 1000;
+
+	/**
+	 * The default number of worker threads: 10
+	 */
+	public static final int DEFAULT_WORKER_THREADS = 10;
+
+	private static final int MAX_HEAD_SIZE = 64 * 1024;
+
+	/**
+	 * How far the input may grow beyond the maximum request size, whatever
+	 * state parsing is in, to allow for the head, chunk size lines and
+	 * trailers
+	 */
+	static final int MAX_OVERHEAD = MAX_HEAD_SIZE;
+
+	private static final int READ_BUFFER_SIZE = 8192;
+	private static final org.slf4j.Logger ourLog = org.slf4j.LoggerFactory.getLogger(HohRawNioServer.class);
+
+	private IAuthorizationServerCallback myAuthorizationCallback;
+	private ExecutorService myExecutorService;
+	private int myGzipThreshold = Hl7OverHttpResponseEncoder.DEFAULT_GZIP_THRESHOLD;
+	private long myIdleTimeout = DEFAULT_IDLE_TIMEOUT;
+	private final List<SelectorLoop> myLoops = new ArrayList<SelectorLoop>();
+	private int myMaxRequestSize = DEFAULT_MAX_REQUEST_SIZE;
+	private IMessageHandler<String> myMessageHandler;
+	private IMetricsListener myMetricsListener;
+	private final AtomicInteger myNextLoop = new AtomicInteger();
+	private final int myPort;
+	private int mySelectorThreads = 1;
+	private ServerSocketChannel myServerChannel;
+	private boolean myShutDownWorkers;
+	private ISigner mySigner;
+	private volatile boolean myStopped;
+	private final List<Thread> myThreads = new ArrayList<Thread>();
+	private ExecutorService myWorkers;
+	private int myWorkerThreads = DEFAULT_WORKER_THREADS;
+
+	/**
+	 * Constructor
+	 *
+	 * @param thePort
+	 *            The port to listen on, or 0 to listen on any free port (the
+	 *            port chosen is returned by {@link #getPort()} once started)
+	 */
+	public HohRawNioServer(int thePort) {
+		myPort = thePort;
+	}
+
+	/**
+	 * Returns the port this server is listening on
+	 */
+	public int getPort() {
+		if (myServerChannel != null) {
+			return myServerChannel.socket().getLocalPort();
+		}
+		return myPort;
+	}
+
+	/**
+	 * Returns <code>true</code> if the server has been started and not
+	 * stopped
+	 */
+	public boolean isRunning() {
+		return myServerChannel != null && !myStopped;
+	}
+
+	/**
+	 * If set, provides a callback which will be used to validate incoming
+	 * credentials
+	 */
+	public void setAuthorizationCallback(IAuthorizationServerCallback theAuthorizationCallback) {
+		myAuthorizationCallback = theAuthorizationCallback;
+	}
+
+	/**
+	 * Sets the executor which processes requests. If not set, a pool of
+	 * {@link #setWorkerThreads(int) worker threads} is created when the
+	 * server is started, and shut down when it is stopped. An executor which
+	 * is provided is not shut down by this server.
+	 */
+	public void setExecutorService(ExecutorService theExecutorService) {
+		myExecutorService = theExecutorService;
+	}
+
+	/**
+	 * Sets the response size (in bytes) at or above which responses are
+	 * GZipped, if the request included an <code>Accept-Encoding</code> header
+	 * allowing it. Set to -1 to never compress responses. Defaults to
+	 * {@link Hl7OverHttpResponseEncoder#DEFAULT_GZIP_THRESHOLD}.
+	 */
+	public void setGzipThreshold(int theGzipThreshold) {
+		myGzipThreshold = theGzipThreshold;
+	}
+
+	/**
+	 * Sets the time in millis after which a connection is closed if nothing
+	 * has been read from or written to it, unless a request received on it is
+	 * being processed. This also closes connections on which a request
+	 * stops arriving part way through. Set to 0 to never close idle
+	 * connections. Defaults to {@link #DEFAULT_IDLE_TIMEOUT}.
+	 */
+	public void setIdleTimeout(long theIdleTimeout) {
+		if (theIdleTimeout < 0) {
+			throw new IllegalArgumentException("Idle timeout must not be negative");
+		}
+		myIdleTimeout = theIdleTimeout;
+	}
+
+	/**
+	 * Sets the largest request (head and body, in bytes) which will be
+	 * accepted. Larger requests are rejected with HTTP 413 and the connection
+	 * is closed. Defaults to {@link #DEFAULT_MAX_REQUEST_SIZE}.
+	 */
+	public void setMaxRequestSize(int theMaxRequestSize) {
+		if (theMaxRequestSize <= 0) {
+			throw new IllegalArgumentException("Max request size must be greater than 0");
+		}
+		myMaxRequestSize = theMaxRequestSize;
+	}
+
+	/**
+	 * Sets the handler which processes each message
+	 */
+	public void setMessageHandler(IMessageHandler<String> theMessageHandler) {
+		myMessageHandler = theMessageHandler;
+	}
+
+	/**
+	 * Sets a listener which the time taken by each phase of handling a
+	 * request is reported to. {@link PhaseEnum#TOTAL} runs from when the
+	 * whole request has been received until the response is ready to be
+	 * written.
+	 */
+	public void setMetricsListener(IMetricsListener theMetricsListener) {
+		myMetricsListener = theMetricsListener;
+	}
+
+	/**
+	 * Sets the number of threads which read requests and write responses.
+	 * Default is 1, which is enough for most servers since these threads
+	 * never block.
+	 */
+	public void setSelectorThreads(int theSelectorThreads) {
+		if (theSelectorThreads <= 0) {
+			throw new IllegalArgumentException("Selector threads must be greater than 0");
+		}
+		mySelectorThreads = theSelectorThreads;
+	}
+
+	/**
+	 * Sets the message signer if signature profile is being used
+	 */
+	public void setSigner(ISigner theSigner) {
+		mySigner = theSigner;
+	}
+
+	/**
+	 * Sets the number of threads which process requests, if no
+	 * {@link #setExecutorService(ExecutorService) executor} is provided.
+	 * Default is {@link #DEFAULT_WORKER_THREADS}.
+	 */
+	public void setWorkerThreads(int theWorkerThreads) {
+		if (theWorkerThreads <= 0) {
+			throw new IllegalArgumentException("Worker threads must be greater than 0");
+		}
+		myWorkerThreads = theWorkerThreads;
+	}
+
+	/**
+	 * Starts listening. This method returns as soon as the server is ready to
+	 * accept connections.
+	 *
+	 * @throws IOException
+	 *             If the port can not be bound
+	 */
+	public void start() throws IOException {
+		if (myServerChannel != null) {
+			throw new IllegalStateException("Server has already been started");
+		}
+		if (myMessageHandler == null) {
+			throw new IllegalStateException("No message handler has been set");
+		}
+
+		if (myExecutorService != null) {
+			myWorkers = myExecutorService;
+			myShutDownWorkers = false;
+		} else {
+			myWorkers = Executors.newFixedThreadPool(myWorkerThreads, new WorkerThreadFactory());
+			myShutDownWorkers = true;
+		}
+
+		myServerChannel = ServerSocketChannel.open();
+		myServerChannel.configureBlocking(false);
+		myServerChannel.socket().setReuseAddress(true);
+		myServerChannel.socket().bind(new InetSocketAddress(myPort));
+
+		for (int i = 0; i < mySelectorThreads; i++) {
+			myLoops.add(new SelectorLoop());
+		}
+		myServerChannel.register(myLoops.get(0).mySelector, SelectionKey.OP_ACCEPT);
+
+		for (int i = 0; i < myLoops.size(); i++) {
+			Thread thread = new Thread(myLoops.get(i), "hoh-server-" + getPort() + "-selector-" + (i + 1));
+			thread.setDaemon(false);
+			myThreads.add(thread);
+			thread.start();
+		}
+		ourLog.info("HL7 over HTTP server listening on port {}", getPort());
+	}
+
+	/**
+	 * Stops listening and closes all connections. Requests which are being
+	 * processed are not responded to.
+	 */
+	public void stop() throws InterruptedException {
+		if (myServerChannel == null) {
+			return;
+		}
+		ourLog.info("Stopping HL7 over HTTP server on port {}", getPort());
+		myStopped = true;
+		try {
+			myServerChannel.close();
+		} catch (IOException e) {
+			ourLog.warn("Failed to close server socket", e);
+		}
+		for (SelectorLoop next : myLoops) {
+			next.mySelector.wakeup();
+		}
+		for (Thread next : myThreads) {
+			next.join();
+		}
+		myThreads.clear();
+		myLoops.clear();
+		if (myShutDownWorkers) {
+			myWorkers.shutdownNow();
+		}
+	}
+
+	/**
+	 * Decodes and processes one complete request
+	 */
+	private Response process(byte[] theRequest, InetSocketAddress theRemoteAddress) {
+		IMetricsListener metricsListener = myMetricsListener;
+		long start = metricsListener != null ? System.nanoTime() : 0;
+
+		Hl7OverHttpRequestDecoder decoder = new Hl7OverHttpRequestDecoder();
+		decoder.setAuthorizationCallback(myAuthorizationCallback);
+		decoder.setSigner(mySigner);
+		decoder.setMetricsListener(metricsListener);
+		try {
+			decoder.readHeadersAndContentsFromInputStreamAndDecode(new ByteArrayInputStream(theRequest));
+		} catch (AuthorizationFailureException e) {
+			reportFailure(metricsListener, e);
+			ourLog.error("Authorization failed on request for {}", decoder.getPath());
+			return createErrorResponse(401, e);
+		} catch (SignatureVerificationException e) {
+			reportFailure(metricsListener, e);
+			ourLog.error("Signature verification failed on request for {}", decoder.getPath());
+			return createErrorResponse(400, e);
+		} catch (DecodeException e) {
+			reportFailure(metricsListener, e);
+			ourLog.error("Request failure from " + theRemoteAddress, e);
+			return createErrorResponse(400, e);
+		} catch (NoMessageReceivedException e) {
+			ourLog.debug("Request from {} had no request line", theRemoteAddress);
+			return createErrorResponse(400, new DecodeException("No request line found"));
+		} catch (IOException e) {
+			// Can't happen when reading from memory
+			reportFailure(metricsListener, e);
+			return createErrorResponse(400, e);
+		}
+
+		RawReceivable rawMessage = new RawReceivable(decoder.getMessage());
+		rawMessage.addMetadata(MessageMetadataKeys.REMOTE_HOST_ADDRESS.name(), theRemoteAddress.getAddress().getHostAddress());
+
+		long processStart = metricsListener != null ? System.nanoTime() : 0;
+		IResponseSendable<String> response;
+		try {
+			response = myMessageHandler.messageReceived(rawMessage);
+		} catch (MessageProcessingException e) {
+			reportFailure(metricsListener, e);
+			ourLog.error("Processing problem for " + decoder.getPath(), e);
+			return createErrorResponse(500, e);
+		} catch (RuntimeException e) {
+			reportFailure(metricsListener, e);
+			ourLog.error("Processing problem for " + decoder.getPath(), e);
+			return createErrorResponse(500, e);
+		}
+		if (metricsListener != null) {
+			metricsListener.phaseCompleted(PhaseEnum.PROCESS, System.nanoTime() - processStart);
+		}
+
+		boolean close = decoder.isConnectionCloseHeaderPresent();
+		Hl7OverHttpResponseEncoder encoder = new Hl7OverHttpResponseEncoder();
+		encoder.setMetricsListener(metricsListener);
+		encoder.setCharset(decoder.getCharset());
+		encoder.setMessage(response.getMessage());
+		if (decoder.isGzipAccepted()) {
+			encoder.setGzipThreshold(myGzipThreshold);
+		}
+		// Reply using the same dictionary as the request, if any
+		encoder.setCompressionDictionary(decoder.getCompressionDictionary());
+		encoder.setAddConnectionCloseHeader(close);
+
+		ByteBuffer[] buffers;
+		try {
+			buffers = encoder.encodeToByteBuffers();
+		} catch (EncodeException e) {
+			reportFailure(metricsListener, e);
+			ourLog.error("Failed to encode response for " + decoder.getPath(), e);
+			return createErrorResponse(500, e);
+		}
+		if (metricsListener != null) {
+			metricsListener.phaseCompleted(PhaseEnum.TOTAL, System.nanoTime() - start);
+		}
+		return new Response(buffers, close);
+	}
+
+	private static Response createErrorResponse(int theStatus, Exception theException) {
+		ByteArrayOutputStream body = new ByteArrayOutputStream();
+		String statusLine;
+		try {
+			switch (theStatus) {
+			case 401:
+				statusLine = "HTTP/1.1 401 Unauthorized";
+				HTTPUtils.write401Unauthorized(body, false);
+				break;
+			case 413:
+				statusLine = "HTTP/1.1 413 Request Entity Too Large";
+				HTTPUtils.write413RequestEntityTooLarge(body, theException.getMessage(), false);
+				break;
+			case 500:
+				statusLine = "HTTP/1.1 500 Internal Server Error";
+				HTTPUtils.write500InternalServerError(body, theException.getMessage(), false);
+				break;
+			default:
+				statusLine = "HTTP/1.1 400 Bad Request";
+				if (theException instanceof SignatureVerificationException) {
+					HTTPUtils.write400SignatureVerificationFailed(body, false);
+				} else {
+					HTTPUtils.write400BadRequest(body, theException.getMessage(), false);
+				}
+				break;
+			}
+		} catch (IOException e) {
+			// Can't happen when writing to memory
+			throw new Error(e);
+		}
+
+		StringBuilder head = new StringBuilder();
+		head.append(statusLine).append("\r\n");
+		head.append("Content-Type: text/html; charset=ISO-8859-1\r\n");
+		head.append("Content-Length: ").append(body.size()).append("\r\n");
+		head.append("Connection: close\r\n");
+		head.append("\r\n");
+
+		ByteBuffer[] buffers = new ByteBuffer[] { ByteBuffer.wrap(head.toString().getBytes(HTTPUtils.DEFAULT_CHARSET)), ByteBuffer.wrap(body.toByteArray()) };
+		return new Response(buffers, true);
+	}
+
+	private static void reportFailure(IMetricsListener theMetricsListener, Exception theException) {
+		if (theMetricsListener != null) {
+			theMetricsListener.exchangeFailed(theException);
+		}
+	}
+
+	/**
+	 * The state of one inbound connection. All methods are called by the
+	 * connection's selector thread.
+	 */
+	private class Connection {
+
+		private final SocketChannel myChannel;
+		private boolean myChunked;
+		private int myHeadEnd = -1;
+		private byte[] myInput = new byte[READ_BUFFER_SIZE];
+		private boolean myInTrailer;
+		private int myInputLength;
+		private SelectionKey myKey;
+		private long myLastActivity = System.currentTimeMillis();
+		private int myLineSearchPosition;
+		private final SelectorLoop myLoop;
+		private boolean myProcessing;
+		private final InetSocketAddress myRemoteAddress;
+		private int myRequestEnd = -1;
+		private int myScanPosition;
+		private Response myResponse;
+
+		private Connection(SocketChannel theChannel, SelectorLoop theLoop) {
+			myChannel = theChannel;
+			myLoop = theLoop;
+			myRemoteAddress = (InetSocketAddress) theChannel.socket().getRemoteSocketAddress();
+		}
+
+		private void close() {
+			if (myKey != null) {
+				myKey.cancel();
+			}
+			try {
+				myChannel.close();
+			} catch (IOException e) {
+				ourLog.debug("Failed to close channel", e);
+			}
+		}
+
+		/**
+		 * Returns the offset just past the end of the request at the start of
+		 * the input, or -1 if it has not all been received yet
+		 */
+		private int findRequestEnd() throws DecodeException {
+			if (myInputLength > myMaxRequestSize + MAX_OVERHEAD) {
+				throw new RequestTooLargeException("Request exceeds " + myMaxRequestSize + " bytes");
+			}
+
+			if (myHeadEnd == -1) {
+				for (int i = Math.max(myScanPosition, 3); i < myInputLength; i++) {
+					if (myInput[i] == '\n' && myInput[i - 1] == '\r' && myInput[i - 2] == '\n' && myInput[i - 3] == '\r') {
+						myHeadEnd = i + 1;
+						break;
+					}
+				}
+				if (myHeadEnd == -1) {
+					if (myInputLength > MAX_HEAD_SIZE) {
+						throw new DecodeException("Request head exceeds " + MAX_HEAD_SIZE + " bytes");
+					}
+					myScanPosition = myInputLength;
+					return -1;
+				}
+				parseHead();
+			}
+
+			if (!myChunked) {
+				return myInputLength >= myRequestEnd ? myRequestEnd : -1;
+			}
+
+			while (true) {
+				int lineEnd = indexOfLineEnd(myScanPosition);
+				if (lineEnd == -1) {
+					return -1;
+				}
+				if (myInTrailer) {
+					if (lineEnd == myScanPosition) {
+						return lineEnd + 2;
+					}
+					myScanPosition = lineEnd + 2;
+					continue;
+				}
+
+				String sizeLine = new String(myInput, myScanPosition, lineEnd - myScanPosition, HTTPUtils.DEFAULT_CHARSET);
+				int extension = sizeLine.indexOf(';');
+				if (extension != -1) {
+					sizeLine = sizeLine.substring(0, extension);
+				}
+				long size;
+				try {
+					size = Long.parseLong(sizeLine.trim(), 16);
+				} catch (NumberFormatException e) {
+					throw new DecodeException("Invalid chunk size: " + sizeLine);
+				}
+				if (size == 0) {
+					myInTrailer = true;
+					myScanPosition = lineEnd + 2;
+					continue;
+				}
+
+				long chunkEnd = lineEnd + 2 + size + 2;
+				if (size < 0) {
+					throw new DecodeException("Invalid chunk size: " + sizeLine);
+				}
+				if (chunkEnd > myMaxRequestSize) {
+					throw new RequestTooLargeException("Request exceeds " + myMaxRequestSize + " bytes");
+				}
+				if (chunkEnd > myInputLength) {
+					return -1;
+				}
+				myScanPosition = (int) chunkEnd;
+			}
+		}
+
+		/**
+		 * Returns the offset of the CRLF ending the line which starts at the
+		 * given offset, or -1 if it has not been received yet. Input which
+		 * has already been searched is not searched again.
+		 */
+		private int indexOfLineEnd(int theStart) {
+			for (int i = Math.max(theStart + 1, myLineSearchPosition); i < myInputLength; i++) {
+				if (myInput[i] == '\n' && myInput[i - 1] == '\r') {
+					return i - 1;
+				}
+			}
+			myLineSearchPosition = Math.max(theStart + 1, myInputLength);
+			return -1;
+		}
+
+		/**
+		 * Returns <code>true</code> if this connection has been idle for
+		 * longer than the idle timeout
+		 */
+		private boolean isIdle(long theNow) {
+			return !myProcessing && theNow - myLastActivity > myIdleTimeout;
+		}
+
+		/**
+		 * Finds the headers which determine where the body ends
+		 */
+		private void parseHead() throws DecodeException {
+			String head = new String(myInput, 0, myHeadEnd, HTTPUtils.DEFAULT_CHARSET);
+			long contentLength = 0;
+			myChunked = false;
+			for (String next : head.split("\r\n")) {
+				int colon = next.indexOf(':');
+				if (colon == -1) {
+					continue;
+				}
+				String name = next.substring(0, colon).trim();
+				String value = next.substring(colon + 1).trim();
+				if ("Content-Length".equalsIgnoreCase(name)) {
+					try {
+						contentLength = Long.parseLong(value);
+					} catch (NumberFormatException e) {
+						throw new DecodeException("Invalid Content-Length: " + value);
+					}
+				} else if ("Transfer-Encoding".equalsIgnoreCase(name) && value.toLowerCase().contains("chunked")) {
+					myChunked = true;
+				}
+			}
+
+			if (myChunked) {
+				myScanPosition = myHeadEnd;
+			} else {
+				if (contentLength < 0) {
+					throw new DecodeException("Invalid Content-Length: " + contentLength);
+				}
+				if (myHeadEnd + contentLength > myMaxRequestSize) {
+					throw new RequestTooLargeException("Request exceeds " + myMaxRequestSize + " bytes");
+				}
+				myRequestEnd = (int) (myHeadEnd + contentLength);
+			}
+		}
+
+		/**
+		 * Looks for a complete request in the input, and dispatches it
+		 *
+		 * @return true if a request was dispatched, in which case the
+		 *         connection must not be read from until it is responded to
+		 */
+		private boolean processInput() {
+			int end;
+			try {
+				end = findRequestEnd();
+			} catch (DecodeException e) {
+				ourLog.info("Rejecting request from {}: {}", myRemoteAddress, e.getMessage());
+				myKey.interestOps(0);
+				respond(createErrorResponse(e instanceof RequestTooLargeException ? 413 : 400, e));
+				return true;
+			}
+			if (end == -1) {
+				return false;
+			}
+
+			byte[] request = new byte[end];
+			System.arraycopy(myInput, 0, request, 0, end);
+			myInputLength -= end;
+			if (myInputLength == 0 && myInput.length > READ_BUFFER_SIZE * 8) {
+				// Don't hold on to the space used by a large request
+				myInput = new byte[READ_BUFFER_SIZE];
+			} else {
+				System.arraycopy(myInput, end, myInput, 0, myInputLength);
+			}
+			myHeadEnd = -1;
+			myRequestEnd = -1;
+			myScanPosition = 0;
+			myLineSearchPosition = 0;
+			myInTrailer = false;
+
+			myKey.interestOps(0);
+			myProcessing = true;
+			try {
+				myWorkers.execute(new WorkerTask(this, request));
+			} catch (RejectedExecutionException e) {
+				// Only happens while stopping
+				close();
+			}
+			return true;
+		}
+
+		private void read() throws IOException {
+			if (myInput.length - myInputLength < READ_BUFFER_SIZE / 2) {
+				// Never more than one read past the point where the request is rejected
+				int newLength = Math.min(myInput.length * 2, myMaxRequestSize + MAX_OVERHEAD + READ_BUFFER_SIZE);
+				if (newLength > myInput.length) {
+					byte[] newInput = new byte[newLength];
+					System.arraycopy(myInput, 0, newInput, 0, myInputLength);
+					myInput = newInput;
+				}
+			}
+
+			int count = myChannel.read(ByteBuffer.wrap(myInput, myInputLength, myInput.length - myInputLength));
+			if (count == -1) {
+				ourLog.debug("Connection from {} closed by remote host", myRemoteAddress);
+				close();
+				return;
+			}
+			if (count > 0) {
+				myLastActivity = System.currentTimeMillis();
+			}
+			myInputLength += count;
+			processInput();
+		}
+
+		private void respond(Response theResponse) {
+			myProcessing = false;
+			myLastActivity = System.currentTimeMillis();
+			myResponse = theResponse;
+			try {
+				write();
+			} catch (IOException e) {
+				ourLog.info("Closing connection from {}: {}", myRemoteAddress, e.toString());
+				close();
+			}
+		}
+
+		private void write() throws IOException {
+			ByteBuffer[] buffers = myResponse.myBuffers;
+			if (myChannel.write(buffers) > 0) {
+				myLastActivity = System.currentTimeMillis();
+			}
+			if (buffers[buffers.length - 1].hasRemaining()) {
+				myKey.interestOps(SelectionKey.OP_WRITE);
+				return;
+			}
+
+			boolean close = myResponse.myClose;
+			myResponse = null;
+			if (close) {
+				close();
+				return;
+			}
+
+			// The input may already hold the next request
+			if (!processInput()) {
+				myKey.interestOps(SelectionKey.OP_READ);
+			}
+		}
+
+	}
+
+	/**
+	 * Delivers a response to a connection, on its selector thread
+	 */
+	private class RespondTask implements Runnable {
+
+		private final Connection myConnection;
+		private final Response myResponse;
+
+		private RespondTask(Connection theConnection, Response theResponse) {
+			myConnection = theConnection;
+			myResponse = theResponse;
+		}
+
+		public void run() {
+			if (!myConnection.myKey.isValid()) {
+				return;
+			}
+			myConnection.respond(myResponse);
+		}
+
+	}
+
+	/**
+	 * Thrown when a request is larger than the maximum request size
+	 */
+	private static class RequestTooLargeException extends DecodeException {
+
+		private static final long serialVersionUID = 1L;
+
+		RequestTooLargeException(String theMessage) {
+			super(theMessage);
+		}
+
+	}
+
+	private static class Response {
+
+		private final ByteBuffer[] myBuffers;
+		private final boolean myClose;
+
+		private Response(ByteBuffer[] theBuffers, boolean theClose) {
+			myBuffers = theBuffers;
+			myClose = theClose;
+		}
+
+	}
+
+	private class SelectorLoop implements Runnable {
+
+		private long myLastIdleCheck = System.currentTimeMillis();
+		private final Selector mySelector;
+		private final Queue<Runnable> myTasks = new ConcurrentLinkedQueue<Runnable>();
+
+		private SelectorLoop() throws IOException {
+			mySelector = Selector.open();
+		}
+
+		private void accept() throws IOException {
+			SocketChannel channel;
+			while ((channel = myServerChannel.accept()) != null) {
+				ourLog.debug("Accepted connection from {}", channel.socket().getRemoteSocketAddress());
+				channel.configureBlocking(false);
+				channel.socket().setTcpNoDelay(true);
+				SelectorLoop loop = myLoops.get((myNextLoop.getAndIncrement() & Integer.MAX_VALUE) % myLoops.size());
+				loop.execute(new RegisterTask(channel, loop));
+			}
+		}
+
+		/**
+		 * Closes connections which have been idle for longer than the idle
+		 * timeout. This is called after every select, but only checks the
+		 * connections once per check interval.
+		 */
+		private void closeIdleConnections() {
+			long now = System.currentTimeMillis();
+			if (myIdleTimeout <= 0 || now - myLastIdleCheck < getIdleCheckInterval()) {
+				return;
+			}
+			myLastIdleCheck = now;
+			for (SelectionKey next : mySelector.keys()) {
+				if (!(next.attachment() instanceof Connection)) {
+					continue;
+				}
+				Connection connection = (Connection) next.attachment();
+				if (connection.isIdle(now)) {
+					ourLog.debug("Closing connection from {} after being idle for {}ms", connection.myRemoteAddress, now - connection.myLastActivity);
+					connection.close();
+				}
+			}
+		}
+
+		private void closeAll() {
+			for (SelectionKey next : mySelector.keys()) {
+				try {
+					next.channel().close();
+				} catch (IOException e) {
+					ourLog.debug("Failed to close channel", e);
+				}
+			}
+			try {
+				mySelector.close();
+			} catch (IOException e) {
+				ourLog.debug("Failed to close selector", e);
+			}
+		}
+
+		private void execute(Runnable theTask) {
+			myTasks.add(theTask);
+			mySelector.wakeup();
+		}
+
+		public void run() {
+			while (!myStopped) {
+				try {
+					mySelector.select(myIdleTimeout > 0 ? getIdleCheckInterval() : 0);
+				} catch (IOException e) {
+					ourLog.error("Selector failed on port " + getPort(), e);
+					break;
+				}
+
+				Runnable task;
+				while ((task = myTasks.poll()) != null) {
+					task.run();
+				}
+
+				Iterator<SelectionKey> keys = mySelector.selectedKeys().iterator();
+				while (keys.hasNext()) {
+					SelectionKey key = keys.next();
+					keys.remove();
+					if (!key.isValid()) {
+						continue;
+					}
+
+					if (key.isAcceptable()) {
+						try {
+							accept();
+						} catch (IOException e) {
+							if (!myStopped) {
+								ourLog.error("Failed to accept connection on port " + getPort(), e);
+							}
+						}
+						continue;
+					}
+
+					Connection connection = (Connection) key.attachment();
+					try {
+						if (key.isReadable()) {
+							connection.read();
+						} else if (key.isWritable()) {
+							connection.write();
+						}
+					} catch (IOException e) {
+						ourLog.info("Closing connection from {}: {}", connection.myRemoteAddress, e.toString());
+						connection.close();
+					} catch (RuntimeException e) {
+						ourLog.error("Failed to handle connection from " + connection.myRemoteAddress, e);
+						connection.close();
+					}
+				}
+
+				closeIdleConnections();
+			}
+
+			closeAll();
+		}
+
+	}
+
+	/**
+	 * Returns how often the selector loops check for idle connections
+	 */
+	private long getIdleCheckInterval() {
+		return Math.max(1, Math.min(myIdleTimeout, 1000));
+	}
+
+	private class RegisterTask implements Runnable {
+
+		private final SocketChannel myChannel;
+		private final SelectorLoop myLoop;
+
+		private RegisterTask(SocketChannel theChannel, SelectorLoop theLoop) {
+			myChannel = theChannel;
+			myLoop = theLoop;
+		}
+
+		public void run() {
+			Connection connection = new Connection(myChannel, myLoop);
+			try {
+				connection.myKey = myChannel.register(myLoop.mySelector, SelectionKey.OP_READ, connection);
+			} catch (IOException e) {
+				ourLog.warn("Failed to register connection from {}: {}", connection.myRemoteAddress, e.toString());
+				connection.close();
+			}
+		}
+
+	}
+
+	private class WorkerTask implements Runnable {
+
+		private final Connection myConnection;
+		private final byte[] myRequest;
+
+		private WorkerTask(Connection theConnection, byte[] theRequest) {
+			myConnection = theConnection;
+			myRequest = theRequest;
+		}
+
+		public void run() {
+			Response response;
+			try {
+				response = process(myRequest, myConnection.myRemoteAddress);
+			} catch (RuntimeException e) {
+				ourLog.error("Failed to process request from " + myConnection.myRemoteAddress, e);
+				response = createErrorResponse(500, e);
+			}
+			myConnection.myLoop.execute(new RespondTask(myConnection, response));
+		}
+
+	}
+
+	private class WorkerThreadFactory implements ThreadFactory {
+
+		private final AtomicInteger myCount = new AtomicInteger();
+
+		public Thread newThread(Runnable theRunnable) {
+			Thread retVal = new Thread(theRunnable, "hoh-server-" + getPort() + "-worker-" + myCount.incrementAndGet());
+			retVal.setDaemon(true);
+			return retVal;
+		}
+
+	}
+
+}
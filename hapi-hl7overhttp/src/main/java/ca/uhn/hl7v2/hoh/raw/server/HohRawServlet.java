@@ -1,35 +1,61 @@
 package ca.uhn.hl7v2.hoh.raw.server;
 
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.StringWriter;
 import java.nio.charset.Charset;
 import java.util.Enumeration;
 import java.util.LinkedHashMap;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServlet;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
+import ca.uhn.hl7v2.hoh.api.AsyncResponse;
 import ca.uhn.hl7v2.hoh.api.DecodeException;
+import ca.uhn.hl7v2.hoh.api.IAsyncMessageHandler;
 import ca.uhn.hl7v2.hoh.api.IAuthorizationServerCallback;
 import ca.uhn.hl7v2.hoh.api.IMessageHandler;
 import ca.uhn.hl7v2.hoh.api.IResponseSendable;
+import ca.uhn.hl7v2.hoh.api.IStreamingMessageHandler;
 import ca.uhn.hl7v2.hoh.api.MessageMetadataKeys;
 import ca.uhn.hl7v2.hoh.api.MessageProcessingException;
 import ca.uhn.hl7v2.hoh.encoder.AuthorizationFailureException;
 import ca.uhn.hl7v2.hoh.encoder.Hl7OverHttpRequestDecoder;
+import ca.uhn.hl7v2.hoh.encoder.Hl7OverHttpResponseEncoder;
+import ca.uhn.hl7v2.hoh.encoder.IHeaderSource;
+import ca.uhn.hl7v2.hoh.metrics.IMetricsListener;
+import ca.uhn.hl7v2.hoh.metrics.PhaseEnum;
 import ca.uhn.hl7v2.hoh.raw.api.RawReceivable;
+import ca.uhn.hl7v2.hoh.raw.api.RawStreamingReceivable;
 import ca.uhn.hl7v2.hoh.sign.ISigner;
 import ca.uhn.hl7v2.hoh.sign.SignatureVerificationException;
+import ca.uhn.hl7v2.hoh.util.CompressionDictionary;
+import ca.uhn.hl7v2.hoh.util.GZipUtils;
 import ca.uhn.hl7v2.hoh.util.HTTPUtils;
 
 public class HohRawServlet extends HttpServlet {
 
+	/**
+	 * The default timeout for asynchronous requests, in millis: 60000
+	 */
+	public static final long DEFAULT_ASYNC_TIMEOUT = 60000;
+
 	private static final org.slf4j.Logger ourLog = org.slf4j.LoggerFactory.getLogger(HohRawServlet.class);
 	private static final long serialVersionUID = 1L;
+	private IAsyncMessageHandler<String> myAsyncMessageHandler;
+	private long myAsyncTimeout = DEFAULT_ASYNC_TIMEOUT;
 	private IAuthorizationServerCallback myAuthorizationCallback;
+	private int myGzipThreshold = Hl7OverHttpResponseEncoder.DEFAULT_GZIP_THRESHOLD;
 	private IMessageHandler<String> myMessageHandler;
+	private volatile IMetricsListener myMetricsListener;
 	private ISigner mySigner;
+	private IStreamingMessageHandler myStreamingMessageHandler;
 
 	/**
 	 * {@inheritDoc}
@@ -50,8 +76,20 @@ public class HohRawServlet extends HttpServlet {
 	 */
 	@Override
 	protected void doPost(HttpServletRequest theReq, HttpServletResponse theResp) throws ServletException, IOException {
+		IMetricsListener metricsListener = myMetricsListener;
+		long start = metricsListener != null ? System.nanoTime() : 0;
 
 		Hl7OverHttpRequestDecoder decoder = new Hl7OverHttpRequestDecoder();
+		decoder.setPath(theReq.getRequestURI());
+		decoder.setAuthorizationCallback(myAuthorizationCallback);
+		decoder.setSigner(mySigner);
+		decoder.setMetricsListener(metricsListener);
+
+		if (myStreamingMessageHandler != null) {
+			doPostStreaming(theReq, theResp, decoder, metricsListener, start);
+			return;
+		}
+
 		decoder.setHeaders(new LinkedHashMap<String, String>());
 
 		Enumeration<?> headerNames = theReq.getHeaderNames();
@@ -60,26 +98,16 @@ public class HohRawServlet extends HttpServlet {
 			decoder.getHeaders().put(nextName, theReq.getHeader(nextName));
 		}
 
-		decoder.setPath(theReq.getRequestURI());
-		decoder.setAuthorizationCallback(myAuthorizationCallback);
-		decoder.setSigner(mySigner);
-
 		try {
 			decoder.readContentsFromInputStreamAndDecode(theReq.getInputStream());
 		} catch (AuthorizationFailureException e) {
-			ourLog.error("Authorization failed on request for {}", theReq.getRequestURI());
-			theResp.setStatus(HttpServletResponse.SC_UNAUTHORIZED);
-			HTTPUtils.write401Unauthorized(theResp.getOutputStream(), false);
+			writeDecodeFailure(theReq, theResp, metricsListener, e);
 			return;
 		} catch (DecodeException e) {
-			ourLog.error("Request failure for " + theReq.getRequestURI(), e);
-			theResp.setStatus(HttpServletResponse.SC_BAD_REQUEST);
-			HTTPUtils.write400BadRequest(theResp.getOutputStream(), e.getMessage(), false);
+			writeDecodeFailure(theReq, theResp, metricsListener, e);
 			return;
 		} catch (SignatureVerificationException e) {
-			ourLog.error("Signature verification failed on request for {}", theReq.getRequestURI());
-			theResp.setStatus(HttpServletResponse.SC_BAD_REQUEST);
-			HTTPUtils.write400SignatureVerificationFailed(theResp.getOutputStream(), false);
+			writeDecodeFailure(theReq, theResp, metricsListener, e);
 			return;
 		}
 
@@ -89,24 +117,250 @@ public class HohRawServlet extends HttpServlet {
 		RawReceivable rawMessage = new RawReceivable(decoder.getMessage());
 		rawMessage.addMetadata(MessageMetadataKeys.REMOTE_HOST_ADDRESS.name(), theReq.getRemoteAddr());
 
+		long processStart = metricsListener != null ? System.nanoTime() : 0;
+		if (myAsyncMessageHandler != null) {
+			processAsync(theReq, theResp, decoder, rawMessage, metricsListener, start, processStart);
+			return;
+		}
+
 		IResponseSendable<String> response;
 		try {
 			response = myMessageHandler.messageReceived(rawMessage);
 		} catch (MessageProcessingException e) {
-			ourLog.error("Processing problem for " + theReq.getRequestURI(), e);
-			theResp.setStatus(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
-			HTTPUtils.write500InternalServerError(theResp.getOutputStream(), e.getMessage(), false);
+			writeProcessingFailure(theReq, theResp, metricsListener, e);
+			return;
+		}
+		writeResponse(theResp, decoder, response, metricsListener, start, processStart);
+	}
+
+	/**
+	 * Handles a request using the streaming message handler, which reads the
+	 * body as it arrives
+	 */
+	private void doPostStreaming(final HttpServletRequest theReq, HttpServletResponse theResp, Hl7OverHttpRequestDecoder theDecoder, IMetricsListener theMetricsListener, long theStart) throws IOException {
+		IHeaderSource headers = new IHeaderSource() {
+			public String getHeader(String theName) {
+				return theReq.getHeader(theName);
+			}
+		};
+
+		InputStream contents;
+		try {
+			contents = theDecoder.readContentsAsStream(headers, theReq.getInputStream());
+		} catch (AuthorizationFailureException e) {
+			writeDecodeFailure(theReq, theResp, theMetricsListener, e);
+			return;
+		} catch (DecodeException e) {
+			writeDecodeFailure(theReq, theResp, theMetricsListener, e);
+			return;
+		} catch (SignatureVerificationException e) {
+			writeDecodeFailure(theReq, theResp, theMetricsListener, e);
+			return;
+		}
+
+		RawStreamingReceivable message = new RawStreamingReceivable(contents, theDecoder.getCharset());
+		message.addMetadata(MessageMetadataKeys.REMOTE_HOST_ADDRESS.name(), theReq.getRemoteAddr());
+
+		long processStart = theMetricsListener != null ? System.nanoTime() : 0;
+		IResponseSendable<String> response = null;
+		MessageProcessingException failure = null;
+		try {
+			response = myStreamingMessageHandler.messageReceived(message);
+		} catch (MessageProcessingException e) {
+			failure = e;
+		}
+
+		// Whatever the handler did, the client only gets its response if the
+		// whole body arrived and the signature is valid
+		try {
+			theDecoder.finishReadingContents();
+		} catch (DecodeException e) {
+			writeDecodeFailure(theReq, theResp, theMetricsListener, e);
+			return;
+		} catch (SignatureVerificationException e) {
+			writeDecodeFailure(theReq, theResp, theMetricsListener, e);
 			return;
 		}
 
+		if (failure != null) {
+			writeProcessingFailure(theReq, theResp, theMetricsListener, failure);
+			return;
+		}
+		writeResponse(theResp, theDecoder, response, theMetricsListener, theStart, processStart);
+	}
+
+	private void processAsync(final HttpServletRequest theReq, final HttpServletResponse theResp, final Hl7OverHttpRequestDecoder theDecoder, RawReceivable theRawMessage, final IMetricsListener theMetricsListener, final long theStart, final long theProcessStart) throws IOException {
+		final AsyncResponse<String> response;
+		try {
+			response = myAsyncMessageHandler.messageReceived(theRawMessage);
+		} catch (MessageProcessingException e) {
+			writeProcessingFailure(theReq, theResp, theMetricsListener, e);
+			return;
+		}
+
+		Runnable timeoutHandler = new Runnable() {
+			public void run() {
+				try {
+					writeProcessingFailure(theReq, theResp, theMetricsListener, new MessageProcessingException("Timed out waiting for response"));
+				} catch (IOException e) {
+					ourLog.info("Failed to write response for {}: {}", theReq.getRequestURI(), e.toString());
+				}
+			}
+		};
+		final ServletAsyncSupport async = response.isDone() ? null : ServletAsyncSupport.startAsync(theReq, myAsyncTimeout, timeoutHandler);
+		if (async == null) {
+			// Either the response is already here, or the container can't
+			// process the request asynchronously, so wait for it
+			writeAsyncResponse(theReq, theResp, theDecoder, response, theMetricsListener, theStart, theProcessStart);
+			return;
+		}
+
+		ourLog.debug("Request for {} will be completed asynchronously", theReq.getRequestURI());
+		response.addListener(new Runnable() {
+			public void run() {
+				if (!async.finish()) {
+					// The container has already ended the request, so the
+					// response object may have been recycled
+					ourLog.info("Discarding late response for {}", theReq.getRequestURI());
+					return;
+				}
+				try {
+					writeAsyncResponse(theReq, theResp, theDecoder, response, theMetricsListener, theStart, theProcessStart);
+				} catch (IOException e) {
+					reportFailure(theMetricsListener, e);
+					ourLog.info("Failed to write response for {}: {}", theReq.getRequestURI(), e.toString());
+				} finally {
+					async.complete();
+				}
+			}
+		});
+	}
+
+	private void writeAsyncResponse(HttpServletRequest theReq, HttpServletResponse theResp, Hl7OverHttpRequestDecoder theDecoder, AsyncResponse<String> theResponse, IMetricsListener theMetricsListener, long theStart, long theProcessStart) throws IOException {
+		IResponseSendable<String> response;
+		try {
+			response = myAsyncTimeout > 0 ? theResponse.get(myAsyncTimeout, TimeUnit.MILLISECONDS) : theResponse.get();
+		} catch (TimeoutException e) {
+			writeProcessingFailure(theReq, theResp, theMetricsListener, new MessageProcessingException("Timed out waiting for response"));
+			return;
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			MessageProcessingException failure = cause instanceof MessageProcessingException ? (MessageProcessingException) cause : new MessageProcessingException(cause);
+			writeProcessingFailure(theReq, theResp, theMetricsListener, failure);
+			return;
+		} catch (CancellationException e) {
+			writeProcessingFailure(theReq, theResp, theMetricsListener, new MessageProcessingException("Processing was cancelled"));
+			return;
+		} catch (InterruptedException e) {
+			writeProcessingFailure(theReq, theResp, theMetricsListener, new MessageProcessingException("Interrupted while waiting for response", e));
+			return;
+		}
+		writeResponse(theResp, theDecoder, response, theMetricsListener, theStart, theProcessStart);
+	}
+
+	private void writeDecodeFailure(HttpServletRequest theReq, HttpServletResponse theResp, IMetricsListener theMetricsListener, Exception theException) throws IOException {
+		reportFailure(theMetricsListener, theException);
+		if (theException instanceof AuthorizationFailureException) {
+			ourLog.error("Authorization failed on request for {}", theReq.getRequestURI());
+			theResp.setStatus(HttpServletResponse.SC_UNAUTHORIZED);
+			HTTPUtils.write401Unauthorized(theResp.getOutputStream(), false);
+		} else if (theException instanceof SignatureVerificationException) {
+			ourLog.error("Signature verification failed on request for {}", theReq.getRequestURI());
+			theResp.setStatus(HttpServletResponse.SC_BAD_REQUEST);
+			HTTPUtils.write400SignatureVerificationFailed(theResp.getOutputStream(), false);
+		} else {
+			ourLog.error("Request failure for " + theReq.getRequestURI(), theException);
+			theResp.setStatus(HttpServletResponse.SC_BAD_REQUEST);
+			HTTPUtils.write400BadRequest(theResp.getOutputStream(), theException.getMessage(), false);
+		}
+	}
+
+	private void writeProcessingFailure(HttpServletRequest theReq, HttpServletResponse theResp, IMetricsListener theMetricsListener, MessageProcessingException theException) throws IOException {
+		reportFailure(theMetricsListener, theException);
+		ourLog.error("Processing problem for " + theReq.getRequestURI(), theException);
+		theResp.setStatus(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
+		HTTPUtils.write500InternalServerError(theResp.getOutputStream(), theException.getMessage(), false);
+	}
+
+	private void writeResponse(HttpServletResponse theResp, Hl7OverHttpRequestDecoder theDecoder, IResponseSendable<String> theResponse, IMetricsListener theMetricsListener, long theStart, long theProcessStart) throws IOException {
+		if (theMetricsListener != null) {
+			theMetricsListener.phaseCompleted(PhaseEnum.PROCESS, System.nanoTime() - theProcessStart);
+		}
+
+		Charset charset = theDecoder.getCharset();
 		theResp.setCharacterEncoding(charset.name());
-		theResp.setContentType(response.getEncodingStyle().getContentType());
-		theResp.setStatus(response.getResponseCode().getCode());
+		theResp.setContentType(theResponse.getEncodingStyle().getContentType());
+		theResp.setStatus(theResponse.getResponseCode().getCode());
 
-		// n.b. don't ask for the writer until headers are set
-		response.writeMessage(theResp.getWriter());
+		long writeStart = theMetricsListener != null ? System.nanoTime() : 0;
+		CompressionDictionary dictionary = theDecoder.getCompressionDictionary();
+		if (dictionary != null || (myGzipThreshold >= 0 && theDecoder.isGzipAccepted())) {
+			// The size must be known before deciding whether to compress
+			StringWriter w = new StringWriter();
+			theResponse.writeMessage(w);
+			byte[] bytes = w.toString().getBytes(charset);
+			if (dictionary != null) {
+				// The client evidently has the dictionary, so reply using it
+				bytes = dictionary.compress(bytes, 0, bytes.length);
+				theResp.setHeader("Content-Encoding", CompressionDictionary.CONTENT_ENCODING);
+				theResp.setHeader(Hl7OverHttpRequestDecoder.HTTP_HEADER_HL7_DICTIONARY_ID, dictionary.getId());
+			} else if (bytes.length >= myGzipThreshold) {
+				ourLog.debug("Compressing response of {} bytes", bytes.length);
+				bytes = GZipUtils.compress(bytes);
+				theResp.setHeader("Content-Encoding", "gzip");
+			}
+			if (theMetricsListener != null) {
+				long now = System.nanoTime();
+				theMetricsListener.phaseCompleted(PhaseEnum.ENCODE, now - writeStart);
+				writeStart = now;
+			}
+			theResp.setContentLength(bytes.length);
+			theResp.getOutputStream().write(bytes);
+		} else {
+			// n.b. don't ask for the writer until headers are set
+			theResponse.writeMessage(theResp.getWriter());
+		}
 		theResp.flushBuffer();
 
+		if (theMetricsListener != null) {
+			long now = System.nanoTime();
+			theMetricsListener.phaseCompleted(PhaseEnum.WRITE, now - writeStart);
+			theMetricsListener.phaseCompleted(PhaseEnum.TOTAL, now - theStart);
+		}
+	}
+
+	private static void reportFailure(IMetricsListener theMetricsListener, Exception theException) {
+		if (theMetricsListener != null) {
+			theMetricsListener.exchangeFailed(theException);
+		}
+	}
+
+	/**
+	 * <p>
+	 * Sets a handler which processes messages asynchronously. If set, it is
+	 * used instead of the {@link #setMessageHandler(IMessageHandler) message
+	 * handler}.
+	 * </p>
+	 * <p>
+	 * In a Servlet 3.0 container, with asynchronous support enabled for this
+	 * servlet, the container thread is released as soon as the handler
+	 * returns, and the response is written by the thread which completes the
+	 * {@link AsyncResponse}. Otherwise the container thread waits for the
+	 * response, as it would with a message handler.
+	 * </p>
+	 */
+	public void setAsyncMessageHandler(IAsyncMessageHandler<String> theAsyncMessageHandler) {
+		myAsyncMessageHandler = theAsyncMessageHandler;
+	}
+
+	/**
+	 * Sets the time in millis that the container waits for an
+	 * {@link #setAsyncMessageHandler(IAsyncMessageHandler) asynchronous}
+	 * response before ending the request with an error. 0 means wait forever.
+	 * Default is {@link #DEFAULT_ASYNC_TIMEOUT}
+	 */
+	public void setAsyncTimeout(long theAsyncTimeout) {
+		myAsyncTimeout = theAsyncTimeout;
 	}
 
 	/**
@@ -117,6 +371,16 @@ public class HohRawServlet extends HttpServlet {
 		myAuthorizationCallback = theAuthorizationCallback;
 	}
 
+	/**
+	 * Sets the response size (in bytes) at or above which responses are
+	 * GZipped, if the request included an <code>Accept-Encoding</code> header
+	 * allowing it. Set to -1 to never compress responses. Defaults to
+	 * {@link Hl7OverHttpResponseEncoder#DEFAULT_GZIP_THRESHOLD}.
+	 */
+	public void setGzipThreshold(int theGzipThreshold) {
+		myGzipThreshold = theGzipThreshold;
+	}
+
 	/**
 	 * @param theMessageHandler
 	 *            the messageHandler to set
@@ -125,6 +389,44 @@ public class HohRawServlet extends HttpServlet {
 		myMessageHandler = theMessageHandler;
 	}
 
+	/**
+	 * Sets a listener which the time taken by each phase of handling a
+	 * request is reported to. The servlet container reads the request head,
+	 * so {@link PhaseEnum#READ_HEAD} is not reported, and
+	 * {@link PhaseEnum#TOTAL} runs from when the body starts to be read.
+	 * Unless the client accepts a compressed response, the response is
+	 * encoded as it is written, so {@link PhaseEnum#ENCODE} is reported as
+	 * part of {@link PhaseEnum#WRITE}.
+	 */
+	public void setMetricsListener(IMetricsListener theMetricsListener) {
+		myMetricsListener = theMetricsListener;
+	}
+
+	/**
+	 * <p>
+	 * Sets a handler which reads each message as it arrives, instead of
+	 * receiving it once the whole message has been read into memory. If set,
+	 * it is used instead of the {@link #setMessageHandler(IMessageHandler)
+	 * message handler} and the
+	 * {@link #setAsyncMessageHandler(IAsyncMessageHandler) asynchronous
+	 * message handler}.
+	 * </p>
+	 * <p>
+	 * Only the headers which are needed are looked up from the request, the
+	 * body is uncompressed as it is read, and if a
+	 * {@link #setSigner(ISigner) signer} is set the signature is computed as
+	 * the body is read, so memory use doesn't grow with the size of the
+	 * message (unless the signer is not an
+	 * {@link ca.uhn.hl7v2.hoh.sign.IStreamingSigner}). Since reading and
+	 * processing overlap, the {@link PhaseEnum#READ_BODY} and
+	 * {@link PhaseEnum#DECODE} phases are reported as part of
+	 * {@link PhaseEnum#PROCESS}.
+	 * </p>
+	 */
+	public void setStreamingMessageHandler(IStreamingMessageHandler theStreamingMessageHandler) {
+		myStreamingMessageHandler = theStreamingMessageHandler;
+	}
+
 	/**
 	 * Sets the message signer if signature profile is being used
 	 */
@@ -0,0 +1,178 @@
+package ca.uhn.hl7v2.hoh.raw.server;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+
+import javax.servlet.ServletRequest;
+
+/**
+ * Access to the asynchronous processing support of Servlet 3.0 containers.
+ * This library is built against the Servlet 2.5 API, so the Servlet 3.0
+ * methods are called reflectively when the container provides them.
+ * <p>
+ * A request is ended exactly once: either by the response becoming available
+ * (see {@link #finish()}), or by the container timing the request out or
+ * reporting an error, in which case the timeout handler writes the response.
+ * </p>
+ */
+class ServletAsyncSupport {
+
+	private static final org.slf4j.Logger ourLog = org.slf4j.LoggerFactory.getLogger(ServletAsyncSupport.class);
+	private static final Method ourAddListener;
+	private static final Class<?> ourAsyncListener;
+	private static final Method ourComplete;
+	private static final Method ourIsAsyncSupported;
+	private static final Method ourSetTimeout;
+	private static final Method ourStartAsync;
+
+	static {
+		Method addListener = null;
+		Class<?> asyncListener = null;
+		Method complete = null;
+		Method isAsyncSupported = null;
+		Method setTimeout = null;
+		Method startAsync = null;
+		try {
+			Class<?> asyncContext = Class.forName("javax.servlet.AsyncContext");
+			asyncListener = Class.forName("javax.servlet.AsyncListener");
+			addListener = asyncContext.getMethod("addListener", asyncListener);
+			complete = asyncContext.getMethod("complete");
+			setTimeout = asyncContext.getMethod("setTimeout", long.class);
+			isAsyncSupported = ServletRequest.class.getMethod("isAsyncSupported");
+			startAsync = ServletRequest.class.getMethod("startAsync");
+		} catch (Exception e) {
+			ourLog.debug("Servlet 3.0 asynchronous processing is not available: {}", e.toString());
+			addListener = null;
+			asyncListener = null;
+			complete = null;
+			isAsyncSupported = null;
+			setTimeout = null;
+			startAsync = null;
+		}
+		ourAddListener = addListener;
+		ourAsyncListener = asyncListener;
+		ourComplete = complete;
+		ourIsAsyncSupported = isAsyncSupported;
+		ourSetTimeout = setTimeout;
+		ourStartAsync = startAsync;
+	}
+
+	private final Object myAsyncContext;
+	private final Method myComplete;
+	private boolean myFinished;
+	private final Runnable myTimeoutHandler;
+
+	ServletAsyncSupport(Object theAsyncContext, Method theComplete, Runnable theTimeoutHandler) {
+		myAsyncContext = theAsyncContext;
+		myComplete = theComplete;
+		myTimeoutHandler = theTimeoutHandler;
+	}
+
+	/**
+	 * Completes the request, committing the response
+	 */
+	void complete() {
+		try {
+			myComplete.invoke(myAsyncContext);
+		} catch (IllegalAccessException e) {
+			throw new IllegalStateException(e);
+		} catch (InvocationTargetException e) {
+			ourLog.warn("Failed to complete asynchronous request: {}", e.getCause().toString());
+		}
+	}
+
+	/**
+	 * Claims the request so that the response may be written. This must be
+	 * called before writing the response, and the response must only be
+	 * written (followed by {@link #complete()}) if it returns
+	 * <code>true</code>.
+	 * 
+	 * @return <code>false</code> if the request has already been ended
+	 *         because it timed out or failed
+	 */
+	synchronized boolean finish() {
+		if (myFinished) {
+			return false;
+		}
+		myFinished = true;
+		return true;
+	}
+
+	/**
+	 * Called when the container reports that the request timed out or
+	 * failed. Unless the response is already being written, the timeout
+	 * handler writes a response and the request is completed.
+	 */
+	void timedOut() {
+		if (!finish()) {
+			return;
+		}
+		try {
+			myTimeoutHandler.run();
+		} finally {
+			complete();
+		}
+	}
+
+	/**
+	 * Puts the request into asynchronous mode, so that the container thread
+	 * may return without the response being committed
+	 * 
+	 * @param theTimeout
+	 *            The timeout in millis, after which the container ends the
+	 *            request with an error. 0 means no timeout.
+	 * @param theTimeoutHandler
+	 *            Writes the response if the request times out or fails
+	 *            before {@link #finish()} is called
+	 * @return <code>null</code> if the container does not support
+	 *         asynchronous processing for this request
+	 */
+	static ServletAsyncSupport startAsync(ServletRequest theRequest, long theTimeout, Runnable theTimeoutHandler) {
+		if (ourStartAsync == null) {
+			return null;
+		}
+		try {
+			if (!((Boolean) ourIsAsyncSupported.invoke(theRequest))) {
+				return null;
+			}
+			Object asyncContext = ourStartAsync.invoke(theRequest);
+			ourSetTimeout.invoke(asyncContext, theTimeout);
+			ServletAsyncSupport retVal = new ServletAsyncSupport(asyncContext, ourComplete, theTimeoutHandler);
+			Object listener = Proxy.newProxyInstance(ServletAsyncSupport.class.getClassLoader(), new Class<?>[] { ourAsyncListener }, retVal.new ListenerInvocationHandler());
+			ourAddListener.invoke(asyncContext, listener);
+			return retVal;
+		} catch (IllegalAccessException e) {
+			throw new IllegalStateException(e);
+		} catch (InvocationTargetException e) {
+			ourLog.warn("Failed to start asynchronous request, going to wait for the response instead: {}", e.getCause().toString());
+			return null;
+		}
+	}
+
+	/**
+	 * Implements <code>javax.servlet.AsyncListener</code>, which is not
+	 * available at compile time
+	 */
+	private class ListenerInvocationHandler implements InvocationHandler {
+
+		public Object invoke(Object theProxy, Method theMethod, Object[] theArgs) {
+			String name = theMethod.getName();
+			if ("onTimeout".equals(name) || "onError".equals(name)) {
+				ourLog.debug("Asynchronous request ended by container: {}", name);
+				timedOut();
+				return null;
+			} else if ("equals".equals(name)) {
+				return theProxy == theArgs[0];
+			} else if ("hashCode".equals(name)) {
+				return System.identityHashCode(theProxy);
+			} else if ("toString".equals(name)) {
+				return "AsyncListener[" + myAsyncContext + "]";
+			}
+			return null;
+		}
+
+	}
+
+}
@@ -0,0 +1,233 @@
+package ca.uhn.hl7v2.hoh.relay;
+
+import java.nio.charset.Charset;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.concurrent.atomic.AtomicLong;
+
+import ca.uhn.hl7v2.HL7Exception;
+import ca.uhn.hl7v2.protocol.ApplicationRouter.AppRoutingData;
+import ca.uhn.hl7v2.protocol.impl.AppRoutingDataImpl;
+
+/**
+ * <p>
+ * The fields of the MSH segment of an ER7 encoded message, extracted without
+ * parsing the rest of the message. This is all the relay needs in order to
+ * route a message and to acknowledge it itself, so messages can be relayed
+ * without ever being converted to HAPI's object model.
+ * </p>
+ * <p>
+ * Fields are numbered as in the HL7 specification, so {@link #getField(int)
+ * getField(1)} is the field separator and <code>getField(10)</code> is the
+ * message control ID. Fields after MSH-21 are ignored.
+ * </p>
+ */
+public class MessageHeader {
+
+	private static final Charset ISO_8859_1 = Charset.forName("ISO-8859-1");
+	private static final int MAX_FIELD = 21;
+	private static final AtomicLong ourNextAckControlId = new AtomicLong(System.currentTimeMillis() * 1000);
+
+	private final char myComponentSeparator;
+	private final String[] myFields;
+
+	private MessageHeader(String[] theFields) {
+		myFields = theFields;
+		myComponentSeparator = theFields[2].charAt(0);
+	}
+
+	/**
+	 * Returns an ER7 encoded acknowledgement of this message, using the same
+	 * delimiters and version
+	 *
+	 * @param theAcknowledgementCode
+	 *            The code for MSA-1, e.g. "AA" or "AE"
+	 * @param theText
+	 *            Text for MSA-3, or <code>null</code>. Delimiters in the text
+	 *            are replaced with spaces.
+	 */
+	public String generateAck(String theAcknowledgementCode, String theText) {
+		char fieldSep = myFields[1].charAt(0);
+		String timestamp = new SimpleDateFormat("yyyyMMddHHmmss.SSSZ").format(new Date());
+
+		StringBuilder b = new StringBuilder();
+		b.append("MSH").append(fieldSep).append(myFields[2]);
+		appendField(b, getField(5));
+		appendField(b, getField(6));
+		appendField(b, getField(3));
+		appendField(b, getField(4));
+		appendField(b, timestamp);
+		appendField(b, "");
+		appendField(b, "ACK" + myComponentSeparator + getTriggerEvent() + myComponentSeparator + "ACK");
+		appendField(b, Long.toString(ourNextAckControlId.incrementAndGet()));
+		appendField(b, getField(11));
+		appendField(b, getField(12));
+		b.append('\r');
+
+		b.append("MSA");
+		appendField(b, theAcknowledgementCode);
+		appendField(b, getControlId());
+		if (theText != null) {
+			appendField(b, removeDelimiters(theText));
+		}
+		b.append('\r');
+		return b.toString();
+	}
+
+	private void appendField(StringBuilder theBuilder, String theValue) {
+		theBuilder.append(myFields[1]).append(theValue);
+	}
+
+	/**
+	 * Returns a component of the given field (numbered from 1), or an empty
+	 * string
+	 */
+	public String getComponent(int theField, int theComponent) {
+		String field = getField(theField);
+		int start = 0;
+		for (int i = 1; i < theComponent; i++) {
+			start = field.indexOf(myComponentSeparator, start) + 1;
+			if (start == 0) {
+				return "";
+			}
+		}
+		int end = field.indexOf(myComponentSeparator, start);
+		return end == -1 ? field.substring(start) : field.substring(start, end);
+	}
+
+	/**
+	 * Returns MSH-10, the message control ID
+	 */
+	public String getControlId() {
+		return getField(10);
+	}
+
+	/**
+	 * Returns the HL7 name of the character set in MSH-18, or an empty
+	 * string if none is given
+	 */
+	public String getCharacterSet() {
+		return getComponent(18, 1);
+	}
+
+	/**
+	 * Returns the given field, or an empty string if the message doesn't
+	 * have it
+	 */
+	public String getField(int theField) {
+		if (theField < 1 || theField > MAX_FIELD) {
+			throw new IllegalArgumentException("Field must be between 1 and " + MAX_FIELD);
+		}
+		String retVal = myFields[theField];
+		return retVal != null ? retVal : "";
+	}
+
+	/**
+	 * Returns MSH-9-1
+	 */
+	public String getMessageType() {
+		return getComponent(9, 1);
+	}
+
+	/**
+	 * Returns MSH-11-1
+	 */
+	public String getProcessingId() {
+		return getComponent(11, 1);
+	}
+
+	/**
+	 * Returns the values used to route this message to a receiving
+	 * application, as HAPI's application router would extract them
+	 */
+	public AppRoutingData getRoutingData() {
+		return new AppRoutingDataImpl(getMessageType(), getTriggerEvent(), getProcessingId(), getVersionId());
+	}
+
+	/**
+	 * Returns MSH-9-2
+	 */
+	public String getTriggerEvent() {
+		return getComponent(9, 2);
+	}
+
+	/**
+	 * Returns MSH-12-1
+	 */
+	public String getVersionId() {
+		return getComponent(12, 1);
+	}
+
+	private String removeDelimiters(String theText) {
+		StringBuilder b = new StringBuilder(theText.length());
+		String delimiters = myFields[1] + myFields[2] + "\r\n";
+		for (int i = 0; i < theText.length(); i++) {
+			char next = theText.charAt(i);
+			b.append(delimiters.indexOf(next) == -1 ? next : ' ');
+		}
+		return b.toString();
+	}
+
+	/**
+	 * Extracts the MSH segment from the start of an encoded message. Only
+	 * the MSH segment is decoded, using ISO-8859-1, which is sufficient for
+	 * reading the routing fields and MSH-18 in any character set which MLLP
+	 * supports.
+	 *
+	 * @throws HL7Exception
+	 *             If the message doesn't start with a valid MSH segment
+	 */
+	public static MessageHeader parse(byte[] theBytes, int theOffset, int theLength) throws HL7Exception {
+		int start = theOffset;
+		int end = theOffset + theLength;
+		if (theLength >= 3 && (theBytes[start] & 0xFF) == 0xEF && (theBytes[start + 1] & 0xFF) == 0xBB && (theBytes[start + 2] & 0xFF) == 0xBF) {
+			// UTF-8 byte order mark
+			start += 3;
+		}
+		int segmentEnd = start;
+		while (segmentEnd < end && theBytes[segmentEnd] != '\r' && theBytes[segmentEnd] != '\n') {
+			segmentEnd++;
+		}
+		return parse(new String(theBytes, start, segmentEnd - start, ISO_8859_1));
+	}
+
+	/**
+	 * Extracts the MSH segment from the start of an ER7 encoded message
+	 *
+	 * @throws HL7Exception
+	 *             If the message doesn't start with a valid MSH segment
+	 */
+	public static MessageHeader parse(String theMessage) throws HL7Exception {
+		int start = 0;
+		if (theMessage.length() > 0 && theMessage.charAt(0) == '\uFEFF') {
+			start = 1;
+		}
+		if (!theMessage.startsWith("MSH", start) || theMessage.length() < start + 5) {
+			throw new HL7Exception("Message does not begin with an MSH segment");
+		}
+
+		int end = start;
+		while (end < theMessage.length() && theMessage.charAt(end) != '\r' && theMessage.charAt(end) != '\n') {
+			end++;
+		}
+
+		char fieldSep = theMessage.charAt(start + 3);
+		String[] fields = new String[MAX_FIELD + 1];
+		fields[1] = String.valueOf(fieldSep);
+		int fieldStart = start + 4;
+		for (int fieldNum = 2; fieldNum <= MAX_FIELD && fieldStart <= end; fieldNum++) {
+			int fieldEnd = theMessage.indexOf(fieldSep, fieldStart);
+			if (fieldEnd == -1 || fieldEnd > end) {
+				fieldEnd = end;
+			}
+			fields[fieldNum] = theMessage.substring(fieldStart, fieldEnd);
+			fieldStart = fieldEnd + 1;
+		}
+
+		if (fields[2].length() == 0) {
+			throw new HL7Exception("MSH segment has no encoding characters");
+		}
+		return new MessageHeader(fields);
+	}
+
+}
@@ -0,0 +1,177 @@
+package ca.uhn.hl7v2.hoh.relay.listener;
+
+import java.net.InetSocketAddress;
+import java.nio.charset.Charset;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import ca.uhn.hl7v2.HL7Exception;
+import ca.uhn.hl7v2.hoh.relay.MessageHeader;
+import ca.uhn.hl7v2.hoh.relay.sender.IRelayPassthroughSender;
+import ca.uhn.hl7v2.model.Message;
+import ca.uhn.hl7v2.protocol.ApplicationRouter;
+import ca.uhn.hl7v2.protocol.ApplicationRouter.AppRoutingData;
+import ca.uhn.hl7v2.protocol.MetadataKeys;
+import ca.uhn.hl7v2.protocol.ReceivingApplication;
+import ca.uhn.hl7v2.protocol.impl.ApplicationRouterImpl;
+import ca.uhn.hl7v2.protocol.impl.TransportableImpl;
+
+/**
+ * Turns a received MLLP frame into the frame to send back, for the MLLP
+ * servers which {@link RelayMllpListener} runs itself. In passthrough mode
+ * messages are routed using only their MSH segment and handed to an
+ * {@link IRelayPassthroughSender} as received. Otherwise they are handed to
+ * HAPI's application router, exactly as <code>SimpleServer</code> would.
+ * <p>
+ * This class is thread safe.
+ * </p>
+ */
+class MllpMessageRouter {
+
+	private static final Map<String, String> ourHl7CharsetNames = new HashMap<String, String>();
+	private static final org.slf4j.Logger ourLog = org.slf4j.LoggerFactory.getLogger(MllpMessageRouter.class);
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	static {
+		// HL7 table 0211, as understood by HAPI's extended MLLP implementation
+		ourHl7CharsetNames.put("ASCII", "US-ASCII");
+		ourHl7CharsetNames.put("8859/1", "ISO-8859-1");
+		ourHl7CharsetNames.put("8859/2", "ISO-8859-2");
+		ourHl7CharsetNames.put("8859/3", "ISO-8859-3");
+		ourHl7CharsetNames.put("8859/4", "ISO-8859-4");
+		ourHl7CharsetNames.put("8859/5", "ISO-8859-5");
+		ourHl7CharsetNames.put("8859/6", "ISO-8859-6");
+		ourHl7CharsetNames.put("8859/7", "ISO-8859-7");
+		ourHl7CharsetNames.put("8859/8", "ISO-8859-8");
+		ourHl7CharsetNames.put("8859/9", "ISO-8859-9");
+		ourHl7CharsetNames.put("8859/15", "ISO-8859-15");
+		ourHl7CharsetNames.put("ISO IR6", "US-ASCII");
+		ourHl7CharsetNames.put("ISO IR14", "JIS_X0201");
+		ourHl7CharsetNames.put("ISO IR87", "x-JIS0208");
+		ourHl7CharsetNames.put("ISO IR159", "JIS_X0212-1990");
+		ourHl7CharsetNames.put("GB 18030-2000", "GB18030");
+		ourHl7CharsetNames.put("KS X 1001", "EUC-KR");
+		ourHl7CharsetNames.put("CNS 11643-1992", "x-EUC-TW");
+		ourHl7CharsetNames.put("BIG-5", "Big5");
+		ourHl7CharsetNames.put("UNICODE", "UTF-8");
+		ourHl7CharsetNames.put("UNICODE UTF-8", "UTF-8");
+		ourHl7CharsetNames.put("UNICODE UTF-16", "UTF-16");
+		ourHl7CharsetNames.put("UNICODE UTF-32", "UTF-32");
+	}
+
+	private final ApplicationRouterImpl myApplicationRouter;
+	private final List<Binding> myBindings = new CopyOnWriteArrayList<Binding>();
+
+	/**
+	 * Constructor for passthrough mode
+	 */
+	MllpMessageRouter() {
+		myApplicationRouter = null;
+	}
+
+	/**
+	 * Constructor for a router which parses messages using the given router
+	 */
+	MllpMessageRouter(ApplicationRouterImpl theApplicationRouter) {
+		myApplicationRouter = theApplicationRouter;
+	}
+
+	private IRelayPassthroughSender findSender(AppRoutingData theRoutingData) {
+		IRelayPassthroughSender retVal = null;
+
+		// As in HAPI's application router, the last matching binding wins
+		for (Binding next : myBindings) {
+			if (ApplicationRouterImpl.matches(theRoutingData, next.myRoutingData)) {
+				retVal = next.mySender;
+			}
+		}
+		return retVal;
+	}
+
+	private Charset getCharset(MessageHeader theHeader) {
+		String name = theHeader.getCharacterSet();
+		if (name.length() == 0) {
+			return UTF8;
+		}
+		String javaName = ourHl7CharsetNames.get(name);
+		if (javaName != null && Charset.isSupported(javaName)) {
+			return Charset.forName(javaName);
+		}
+		ourLog.warn("Unknown character set \"{}\" in message {}, using UTF-8", name, theHeader.getControlId());
+		return UTF8;
+	}
+
+	/**
+	 * Processes a message
+	 *
+	 * @param theFrame
+	 *            The contents of the MLLP frame which was received
+	 * @param theRemoteAddress
+	 *            The sending system
+	 * @return The contents of the MLLP frame to send back
+	 * @throws HL7Exception
+	 *             If the frame does not start with an MSH segment, in which
+	 *             case there is no way to respond to it and the connection
+	 *             should be closed
+	 */
+	byte[] process(byte[] theFrame, InetSocketAddress theRemoteAddress) throws HL7Exception {
+		MessageHeader header = MessageHeader.parse(theFrame, 0, theFrame.length);
+		Charset charset = getCharset(header);
+		String message = new String(theFrame, charset);
+
+		Map<String, Object> metadata = new HashMap<String, Object>();
+		metadata.put(ApplicationRouter.METADATA_KEY_SENDING_IP, theRemoteAddress.getAddress().getHostAddress());
+		metadata.put(ApplicationRouter.METADATA_KEY_SENDING_PORT, theRemoteAddress.getPort());
+
+		String response;
+		if (myApplicationRouter != null) {
+			response = myApplicationRouter.processMessage(new TransportableImpl(message, metadata)).getMessage();
+		} else {
+			response = relay(theFrame, charset, message, header, metadata);
+		}
+		return response.getBytes(charset);
+	}
+
+	void registerApplication(AppRoutingData theRoutingData, ReceivingApplication<? extends Message> theApplication) {
+		if (myApplicationRouter != null) {
+			myApplicationRouter.bindApplication(theRoutingData, theApplication);
+		} else {
+			myBindings.add(new Binding(theRoutingData, (IRelayPassthroughSender) theApplication));
+		}
+	}
+
+	private String relay(byte[] theFrame, Charset theCharset, String theMessage, MessageHeader theHeader, Map<String, Object> theMetadata) {
+		IRelayPassthroughSender sender = findSender(theHeader.getRoutingData());
+		if (sender == null) {
+			ourLog.warn("No sender is registered for message {} of type {}^{}", new Object[] { theHeader.getControlId(), theHeader.getMessageType(), theHeader.getTriggerEvent() });
+			return theHeader.generateAck("AR", "No appropriate destination could be found to which this message could be routed.");
+		}
+
+		theMetadata.put(ApplicationRouter.METADATA_KEY_MESSAGE_CONTROL_ID, theHeader.getControlId());
+		theMetadata.put(MetadataKeys.IN_RAW_MESSAGE, theMessage);
+
+		try {
+			return sender.relayRawMessage(theFrame, theCharset, theHeader, theMetadata);
+		} catch (HL7Exception e) {
+			return theHeader.generateAck("AE", e.getMessage());
+		} catch (RuntimeException e) {
+			ourLog.error("Failed to relay message " + theHeader.getControlId(), e);
+			return theHeader.generateAck("AE", e.toString());
+		}
+	}
+
+	private static class Binding {
+
+		private final AppRoutingData myRoutingData;
+		private final IRelayPassthroughSender mySender;
+
+		private Binding(AppRoutingData theRoutingData, IRelayPassthroughSender theSender) {
+			myRoutingData = theRoutingData;
+			mySender = theSender;
+		}
+
+	}
+
+}
@@ -0,0 +1,508 @@
+package ca.uhn.hl7v2.hoh.relay.listener;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import ca.uhn.hl7v2.HL7Exception;
+
+/**
+ * <p>
+ * Non-blocking MLLP server used by {@link RelayMllpListener}. A small number
+ * of selector threads handle all connections and do the MLLP framing, and
+ * each complete message is handed to a bounded worker pool which passes it
+ * to an {@link MllpMessageRouter}.
+ * </p>
+ * <p>
+ * Each connection has at most one message being processed at a time, and is
+ * not read from until its response has been written. Once the maximum number
+ * of pending messages is reached, connections with a complete message wait
+ * (in arrival order) for a worker to become free, and are not read from in
+ * the meantime. The sending systems are therefore slowed down by TCP flow
+ * control when the HTTP side falls behind, instead of messages piling up in
+ * memory.
+ * </p>
+ */
+class NioMllpServer {
+
+	private static final byte END_BYTE1 = 0x1c;
+	private static final byte END_BYTE2 = 0x0d;
+	private static final int READ_BUFFER_SIZE = 8192;
+	private static final byte START_BYTE = 0x0b;
+	private static final int STATE_BETWEEN_FRAMES = 0;
+	private static final int STATE_IN_FRAME = 1;
+	private static final int STATE_SAW_END_BYTE1 = 2;
+
+	private static final org.slf4j.Logger ourLog = org.slf4j.LoggerFactory.getLogger(NioMllpServer.class);
+
+	private final List<SelectorLoop> myLoops = new ArrayList<SelectorLoop>();
+	private final int myMaxMessageSize;
+	private final AtomicInteger myNextLoop = new AtomicInteger();
+	private final Semaphore myPermits;
+	private final int myPort;
+	private final MllpMessageRouter myRouter;
+	private ServerSocketChannel myServerChannel;
+	private volatile boolean myStopped;
+	private final List<Thread> myThreads = new ArrayList<Thread>();
+	private final Queue<Connection> myWaiting = new ConcurrentLinkedQueue<Connection>();
+	private final ExecutorService myWorkers;
+
+	/**
+	 * Constructor
+	 *
+	 * @param thePort
+	 *            The port to listen on
+	 * @param theRouter
+	 *            Processes each message
+	 * @param theSelectorThreads
+	 *            The number of selector threads
+	 * @param theWorkers
+	 *            The worker pool, which must be able to accept at least
+	 *            <code>theMaxPendingMessages</code> tasks without rejecting
+	 *            any
+	 * @param theMaxPendingMessages
+	 *            The maximum number of messages which have been received but
+	 *            not yet processed
+	 * @param theMaxMessageSize
+	 *            The maximum size of a single message in bytes. A connection
+	 *            which sends a larger message is closed.
+	 */
+	NioMllpServer(int thePort, MllpMessageRouter theRouter, int theSelectorThreads, ExecutorService theWorkers, int theMaxPendingMessages, int theMaxMessageSize) throws IOException {
+		myPort = thePort;
+		myMaxMessageSize = theMaxMessageSize;
+		myRouter = theRouter;
+		myWorkers = theWorkers;
+		myPermits = new Semaphore(theMaxPendingMessages);
+		for (int i = 0; i < theSelectorThreads; i++) {
+			myLoops.add(new SelectorLoop());
+		}
+	}
+
+	/**
+	 * Hands queued messages to workers for as long as there are permits
+	 * available. This is called whenever a message is queued or a permit is
+	 * released, so a queued message can't be missed.
+	 */
+	private void dispatchWaiting() {
+		while (!myWaiting.isEmpty() && myPermits.tryAcquire()) {
+			Connection next = myWaiting.poll();
+			if (next == null) {
+				myPermits.release();
+				return;
+			}
+			submit(next);
+		}
+	}
+
+	/**
+	 * Returns the number of connections holding a complete message which are
+	 * waiting for a worker
+	 */
+	int getWaitingCount() {
+		return myWaiting.size();
+	}
+
+	void start() throws IOException {
+		myServerChannel = ServerSocketChannel.open();
+		myServerChannel.configureBlocking(false);
+		myServerChannel.socket().setReuseAddress(true);
+		myServerChannel.socket().bind(new InetSocketAddress(myPort));
+		myServerChannel.register(myLoops.get(0).mySelector, SelectionKey.OP_ACCEPT);
+
+		for (int i = 0; i < myLoops.size(); i++) {
+			Thread thread = new Thread(myLoops.get(i), "hoh-port-" + myPort + "-selector-" + (i + 1));
+			thread.setDaemon(false);
+			myThreads.add(thread);
+			thread.start();
+		}
+	}
+
+	void stop() throws InterruptedException {
+		myStopped = true;
+		try {
+			myServerChannel.close();
+		} catch (IOException e) {
+			ourLog.warn("Failed to close server socket", e);
+		}
+		for (SelectorLoop next : myLoops) {
+			next.mySelector.wakeup();
+		}
+		for (Thread next : myThreads) {
+			next.join();
+		}
+		myThreads.clear();
+	}
+
+	private void submit(Connection theConnection) {
+		try {
+			myWorkers.execute(new WorkerTask(theConnection));
+		} catch (RejectedExecutionException e) {
+			// Only happens while stopping
+			myPermits.release();
+			theConnection.myLoop.execute(new CloseTask(theConnection));
+		} catch (RuntimeException e) {
+			ourLog.error("Failed to hand message from " + theConnection.myRemoteAddress + " to a worker, closing connection", e);
+			myPermits.release();
+			theConnection.myLoop.execute(new CloseTask(theConnection));
+		}
+	}
+
+	private class CloseTask implements Runnable {
+
+		private final Connection myConnection;
+
+		private CloseTask(Connection theConnection) {
+			myConnection = theConnection;
+		}
+
+		public void run() {
+			myConnection.close();
+		}
+
+	}
+
+	/**
+	 * The state of one inbound connection. All methods are called by the
+	 * connection's selector thread.
+	 */
+	private class Connection {
+
+		private final SocketChannel myChannel;
+		private final ByteArrayOutputStream myFrame = new ByteArrayOutputStream();
+		private SelectionKey myKey;
+		private final SelectorLoop myLoop;
+		private volatile byte[] myPendingFrame;
+		private final ByteBuffer myReadBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+		private final InetSocketAddress myRemoteAddress;
+		private int myState = STATE_BETWEEN_FRAMES;
+		private ByteBuffer myWriteBuffer;
+
+		private Connection(SocketChannel theChannel, SelectorLoop theLoop) {
+			myChannel = theChannel;
+			myLoop = theLoop;
+			myRemoteAddress = (InetSocketAddress) theChannel.socket().getRemoteSocketAddress();
+		}
+
+		private void close() {
+			if (myKey != null) {
+				myKey.cancel();
+			}
+			try {
+				myChannel.close();
+			} catch (IOException e) {
+				ourLog.debug("Failed to close channel", e);
+			}
+		}
+
+		/**
+		 * Frames bytes from the read buffer until a complete message is
+		 * found, and dispatches it
+		 *
+		 * @return true if a message was dispatched, in which case the
+		 *         connection must not be read from until it is responded to,
+		 *         or if the connection was closed because the message was too
+		 *         large
+		 */
+		private boolean processInput() {
+			myReadBuffer.flip();
+			byte[] array = myReadBuffer.array();
+			boolean complete = false;
+			while (myReadBuffer.hasRemaining() && !complete) {
+				int pos = myReadBuffer.position();
+				switch (myState) {
+				case STATE_BETWEEN_FRAMES:
+					if (myReadBuffer.get() == START_BYTE) {
+						myState = STATE_IN_FRAME;
+					}
+					break;
+				case STATE_IN_FRAME:
+					int end = pos;
+					int limit = myReadBuffer.limit();
+					while (end < limit && array[end] != END_BYTE1) {
+						end++;
+					}
+					myFrame.write(array, pos, end - pos);
+					if (end < limit) {
+						myState = STATE_SAW_END_BYTE1;
+						end++;
+					}
+					myReadBuffer.position(end);
+					break;
+				case STATE_SAW_END_BYTE1:
+					byte next = myReadBuffer.get();
+					if (next == END_BYTE2) {
+						myState = STATE_BETWEEN_FRAMES;
+						complete = true;
+					} else {
+						myFrame.write(END_BYTE1);
+						if (next != END_BYTE1) {
+							myFrame.write(next);
+							myState = STATE_IN_FRAME;
+						}
+					}
+					break;
+				}
+			}
+			myReadBuffer.compact();
+
+			if (myFrame.size() > myMaxMessageSize) {
+				ourLog.warn("Closing connection from {}, message exceeds the maximum size of {} bytes", myRemoteAddress, myMaxMessageSize);
+				close();
+				return true;
+			}
+
+			if (!complete) {
+				return false;
+			}
+
+			myPendingFrame = myFrame.toByteArray();
+			myFrame.reset();
+			myKey.interestOps(0);
+			if (myWaiting.isEmpty() && myPermits.tryAcquire()) {
+				submit(this);
+			} else {
+				ourLog.debug("Too many pending messages, connection from {} will wait", myRemoteAddress);
+				myWaiting.add(this);
+				dispatchWaiting();
+			}
+			return true;
+		}
+
+		private void read() throws IOException {
+			int count = myChannel.read(myReadBuffer);
+			if (count == -1) {
+				ourLog.debug("Connection from {} closed by remote host", myRemoteAddress);
+				close();
+				return;
+			}
+			processInput();
+		}
+
+		private void respond(byte[] theResponse) throws IOException {
+			if (theResponse == null) {
+				close();
+				return;
+			}
+			myWriteBuffer = ByteBuffer.allocate(theResponse.length + 3);
+			myWriteBuffer.put(START_BYTE);
+			myWriteBuffer.put(theResponse);
+			myWriteBuffer.put(END_BYTE1);
+			myWriteBuffer.put(END_BYTE2);
+			myWriteBuffer.flip();
+			write();
+		}
+
+		private void write() throws IOException {
+			myChannel.write(myWriteBuffer);
+			if (myWriteBuffer.hasRemaining()) {
+				myKey.interestOps(SelectionKey.OP_WRITE);
+				return;
+			}
+			myWriteBuffer = null;
+
+			// The read buffer may already hold the next message
+			if (!processInput()) {
+				myKey.interestOps(SelectionKey.OP_READ);
+			}
+		}
+
+	}
+
+	/**
+	 * Delivers a response to a connection, on its selector thread
+	 */
+	private class RespondTask implements Runnable {
+
+		private final Connection myConnection;
+		private final byte[] myResponse;
+
+		private RespondTask(Connection theConnection, byte[] theResponse) {
+			myConnection = theConnection;
+			myResponse = theResponse;
+		}
+
+		public void run() {
+			if (!myConnection.myKey.isValid()) {
+				return;
+			}
+			try {
+				myConnection.respond(myResponse);
+			} catch (IOException e) {
+				ourLog.info("Closing connection from {}: {}", myConnection.myRemoteAddress, e.toString());
+				myConnection.close();
+			} catch (RuntimeException e) {
+				ourLog.error("Closing connection from " + myConnection.myRemoteAddress + " after unexpected failure", e);
+				myConnection.close();
+			}
+		}
+
+	}
+
+	private class SelectorLoop implements Runnable {
+
+		private final Selector mySelector;
+		private final Queue<Runnable> myTasks = new ConcurrentLinkedQueue<Runnable>();
+
+		private SelectorLoop() throws IOException {
+			mySelector = Selector.open();
+		}
+
+		private void accept() throws IOException {
+			SocketChannel channel;
+			while ((channel = myServerChannel.accept()) != null) {
+				ourLog.debug("Accepted connection from {}", channel.socket().getRemoteSocketAddress());
+				channel.configureBlocking(false);
+				channel.socket().setTcpNoDelay(true);
+				SelectorLoop loop = myLoops.get((myNextLoop.getAndIncrement() & Integer.MAX_VALUE) % myLoops.size());
+				loop.execute(new RegisterTask(channel, loop));
+			}
+		}
+
+		private void closeAll() {
+			for (SelectionKey next : mySelector.keys()) {
+				try {
+					next.channel().close();
+				} catch (IOException e) {
+					ourLog.debug("Failed to close channel", e);
+				}
+			}
+			try {
+				mySelector.close();
+			} catch (IOException e) {
+				ourLog.debug("Failed to close selector", e);
+			}
+		}
+
+		private void execute(Runnable theTask) {
+			myTasks.add(theTask);
+			mySelector.wakeup();
+		}
+
+		public void run() {
+			while (!myStopped) {
+				try {
+					mySelector.select();
+				} catch (IOException e) {
+					ourLog.error("Selector failed on port " + myPort, e);
+					break;
+				}
+
+				Runnable task;
+				while ((task = myTasks.poll()) != null) {
+					try {
+						task.run();
+					} catch (RuntimeException e) {
+						ourLog.error("Failed to run task on port " + myPort, e);
+					}
+				}
+
+				Iterator<SelectionKey> keys = mySelector.selectedKeys().iterator();
+				while (keys.hasNext()) {
+					SelectionKey key = keys.next();
+					keys.remove();
+					if (!key.isValid()) {
+						continue;
+					}
+
+					if (key.isAcceptable()) {
+						try {
+							accept();
+						} catch (IOException e) {
+							if (!myStopped) {
+								ourLog.error("Failed to accept connection on port " + myPort, e);
+							}
+						} catch (RuntimeException e) {
+							ourLog.error("Failed to accept connection on port " + myPort, e);
+						}
+						continue;
+					}
+
+					// A failure on one connection must not stop the loop, which serves all of them
+					Connection connection = (Connection) key.attachment();
+					try {
+						if (key.isReadable()) {
+							connection.read();
+						} else if (key.isWritable()) {
+							connection.write();
+						}
+					} catch (IOException e) {
+						ourLog.info("Closing connection from {}: {}", connection.myRemoteAddress, e.toString());
+						connection.close();
+					} catch (RuntimeException e) {
+						ourLog.error("Closing connection from " + connection.myRemoteAddress + " after unexpected failure", e);
+						connection.close();
+					}
+				}
+			}
+
+			closeAll();
+		}
+
+	}
+
+	private class RegisterTask implements Runnable {
+
+		private final SocketChannel myChannel;
+		private final SelectorLoop myLoop;
+
+		private RegisterTask(SocketChannel theChannel, SelectorLoop theLoop) {
+			myChannel = theChannel;
+			myLoop = theLoop;
+		}
+
+		public void run() {
+			Connection connection = new Connection(myChannel, myLoop);
+			try {
+				connection.myKey = myChannel.register(myLoop.mySelector, SelectionKey.OP_READ, connection);
+			} catch (IOException e) {
+				ourLog.warn("Failed to register connection from {}: {}", connection.myRemoteAddress, e.toString());
+				connection.close();
+			}
+		}
+
+	}
+
+	private class WorkerTask implements Runnable {
+
+		private final Connection myConnection;
+
+		private WorkerTask(Connection theConnection) {
+			myConnection = theConnection;
+		}
+
+		public void run() {
+			byte[] frame = myConnection.myPendingFrame;
+			myConnection.myPendingFrame = null;
+
+			byte[] response = null;
+			try {
+				response = myRouter.process(frame, myConnection.myRemoteAddress);
+			} catch (HL7Exception e) {
+				ourLog.warn("Closing connection from {}, received a message which could not be routed: {}", myConnection.myRemoteAddress, e.getMessage());
+			} catch (RuntimeException e) {
+				ourLog.error("Failed to process message from " + myConnection.myRemoteAddress, e);
+			} finally {
+				myPermits.release();
+				dispatchWaiting();
+			}
+
+			myConnection.myLoop.execute(new RespondTask(myConnection, response));
+		}
+
+	}
+
+}
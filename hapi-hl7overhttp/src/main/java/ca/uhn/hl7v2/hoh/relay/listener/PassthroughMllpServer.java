@@ -0,0 +1,205 @@
+package ca.uhn.hl7v2.hoh.relay.listener;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+
+import ca.uhn.hl7v2.HL7Exception;
+
+/**
+ * Blocking MLLP server used by {@link RelayMllpListener} in passthrough mode,
+ * with one thread per connection. Messages are handed to an
+ * {@link MllpMessageRouter} as received, and the response is written back as
+ * returned, so that no message is ever parsed.
+ */
+class PassthroughMllpServer {
+
+	private static final int END_BYTE1 = 0x1c;
+	private static final int END_BYTE2 = 0x0d;
+	private static final int START_BYTE = 0x0b;
+
+	private static final org.slf4j.Logger ourLog = org.slf4j.LoggerFactory.getLogger(PassthroughMllpServer.class);
+
+	private final ExecutorService myExecutor;
+	private final Set<Socket> myOpenSockets = new HashSet<Socket>();
+	private final int myPort;
+	private final MllpMessageRouter myRouter;
+	private ServerSocket myServerSocket;
+	private volatile boolean myStopped;
+
+	PassthroughMllpServer(int thePort, ExecutorService theExecutor, MllpMessageRouter theRouter) {
+		myPort = thePort;
+		myExecutor = theExecutor;
+		myRouter = theRouter;
+	}
+
+	private void handle(Socket theSocket) throws IOException {
+		InputStream in = new BufferedInputStream(theSocket.getInputStream());
+		OutputStream out = new BufferedOutputStream(theSocket.getOutputStream());
+		ByteArrayOutputStream frame = new ByteArrayOutputStream();
+
+		while (!myStopped) {
+			if (!readFrame(in, frame)) {
+				ourLog.debug("Connection from {} closed by remote host", theSocket.getRemoteSocketAddress());
+				return;
+			}
+
+			byte[] response;
+			try {
+				response = myRouter.process(frame.toByteArray(), (InetSocketAddress) theSocket.getRemoteSocketAddress());
+			} catch (HL7Exception e) {
+				ourLog.warn("Closing connection from {}, received a message which could not be routed: {}", theSocket.getRemoteSocketAddress(), e.getMessage());
+				return;
+			}
+
+			out.write(START_BYTE);
+			out.write(response);
+			out.write(END_BYTE1);
+			out.write(END_BYTE2);
+			out.flush();
+		}
+	}
+
+	private int read(InputStream theInputStream) throws IOException {
+		while (true) {
+			try {
+				return theInputStream.read();
+			} catch (SocketTimeoutException e) {
+				if (myStopped) {
+					throw new SocketException("Listener is stopping");
+				}
+			}
+		}
+	}
+
+	/**
+	 * Reads the next MLLP frame into the given buffer
+	 *
+	 * @return false if the connection was closed between frames
+	 */
+	private boolean readFrame(InputStream theInputStream, ByteArrayOutputStream theFrame) throws IOException {
+		theFrame.reset();
+
+		int next;
+		do {
+			next = read(theInputStream);
+			if (next == -1) {
+				return false;
+			}
+		} while (next != START_BYTE);
+
+		while (true) {
+			next = read(theInputStream);
+			if (next == -1) {
+				throw new EOFException("Connection closed before end of message");
+			}
+			if (next == END_BYTE1) {
+				int following = read(theInputStream);
+				if (following == END_BYTE2) {
+					return true;
+				}
+				theFrame.write(next);
+				if (following == -1) {
+					throw new EOFException("Connection closed before end of message");
+				}
+				next = following;
+			}
+			theFrame.write(next);
+		}
+	}
+
+	void start() throws IOException {
+		myServerSocket = new ServerSocket();
+		myServerSocket.setReuseAddress(true);
+		myServerSocket.bind(new InetSocketAddress(myPort));
+		myExecutor.execute(new AcceptTask());
+	}
+
+	void stop() {
+		myStopped = true;
+		try {
+			myServerSocket.close();
+		} catch (IOException e) {
+			ourLog.warn("Failed to close server socket", e);
+		}
+		List<Socket> sockets;
+		synchronized (myOpenSockets) {
+			sockets = new ArrayList<Socket>(myOpenSockets);
+		}
+		for (Socket next : sockets) {
+			try {
+				next.close();
+			} catch (IOException e) {
+				ourLog.debug("Failed to close socket", e);
+			}
+		}
+	}
+
+	private class AcceptTask implements Runnable {
+
+		public void run() {
+			while (!myStopped) {
+				Socket socket;
+				try {
+					socket = myServerSocket.accept();
+					socket.setSoTimeout(2000);
+				} catch (IOException e) {
+					if (!myStopped) {
+						ourLog.error("Failed to accept connection on port " + myPort, e);
+					}
+					continue;
+				}
+				ourLog.debug("Accepted connection from {}", socket.getRemoteSocketAddress());
+				synchronized (myOpenSockets) {
+					myOpenSockets.add(socket);
+				}
+				myExecutor.execute(new ConnectionTask(socket));
+			}
+		}
+
+	}
+
+	private class ConnectionTask implements Runnable {
+
+		private final Socket mySocket;
+
+		private ConnectionTask(Socket theSocket) {
+			mySocket = theSocket;
+		}
+
+		public void run() {
+			try {
+				handle(mySocket);
+			} catch (IOException e) {
+				if (!myStopped) {
+					ourLog.info("Closing connection from {}: {}", mySocket.getRemoteSocketAddress(), e.toString());
+				}
+			} finally {
+				synchronized (myOpenSockets) {
+					myOpenSockets.remove(mySocket);
+				}
+				try {
+					mySocket.close();
+				} catch (IOException e) {
+					ourLog.debug("Failed to close socket", e);
+				}
+			}
+		}
+
+	}
+
+}
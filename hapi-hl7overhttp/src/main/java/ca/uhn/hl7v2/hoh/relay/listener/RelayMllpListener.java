@@ -2,8 +2,12 @@ package ca.uhn.hl7v2.hoh.relay.listener;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
 
 import ca.uhn.hl7v2.model.Message;
@@ -13,21 +17,50 @@ import org.springframework.beans.factory.InitializingBean;
 
 import ca.uhn.hl7v2.DefaultHapiContext;
 import ca.uhn.hl7v2.app.SimpleServer;
+import ca.uhn.hl7v2.hoh.relay.sender.IRelayPassthroughSender;
 import ca.uhn.hl7v2.hoh.util.Validate;
 import ca.uhn.hl7v2.llp.MinLowerLayerProtocol;
 import ca.uhn.hl7v2.parser.GenericModelClassFactory;
 import ca.uhn.hl7v2.protocol.ApplicationRouter.AppRoutingData;
 import ca.uhn.hl7v2.protocol.ReceivingApplication;
+import ca.uhn.hl7v2.protocol.impl.ApplicationRouterImpl;
 import ca.uhn.hl7v2.util.StandardSocketFactory;
 
 public class RelayMllpListener implements InitializingBean, DisposableBean, IRelayListener, BeanNameAware {
 
+	/**
+	 * The default maximum number of messages which have been received but not
+	 * yet responded to in non-blocking mode: 100
+	 */
+	public static final int DEFAULT_MAX_PENDING_MESSAGES = 100;
+
+	/**
+	 * The default maximum size of a single message in non-blocking mode, in
+	 * bytes: 16MB
+	 */
+	public static final int DEFAULT_MAX_MESSAGE_SIZE = 16 * 1024 * 1024;
+
+	/**
+	 * The default number of worker threads in non-blocking mode: 10
+	 */
+	public static final int DEFAULT_WORKER_THREADS = 10;
+
 	private static final org.slf4j.Logger ourLog = org.slf4j.LoggerFactory.getLogger(RelayMllpListener.class);
 	private List<ReceivingApplication<? extends Message>> myApplications = new ArrayList<ReceivingApplication<? extends Message>>();
 	private List<AppRoutingData> myAppRoutingData = new ArrayList<AppRoutingData>();
 	private String myBeanName;
+	private ExecutorService myExecutor;
+	private int myMaxMessageSize = DEFAULT_MAX_MESSAGE_SIZE;
+	private int myMaxPendingMessages = DEFAULT_MAX_PENDING_MESSAGES;
+	private NioMllpServer myNioServer;
+	private boolean myNonBlocking;
+	private boolean myPassthrough;
+	private PassthroughMllpServer myPassthroughServer;
 	private int myPort;
+	private MllpMessageRouter myRouter;
+	private int mySelectorThreads = 1;
 	private SimpleServer myServer;
+	private int myWorkerThreads = DEFAULT_WORKER_THREADS;
 	private AtomicInteger threadNum	= new AtomicInteger(1);
 	private DefaultHapiContext myContext;
 
@@ -39,6 +72,33 @@ public class RelayMllpListener implements InitializingBean, DisposableBean, IRel
 		if (myPort <= 0) {
 			throw new IllegalStateException("Port not set");
 		}
+
+		if (myPassthrough || myNonBlocking) {
+			if (myPassthrough) {
+				myRouter = new MllpMessageRouter();
+			} else {
+				myContext = new DefaultHapiContext();
+				myContext.setModelClassFactory(new GenericModelClassFactory());
+				myRouter = new MllpMessageRouter(new ApplicationRouterImpl(myContext, myContext.getGenericParser()));
+			}
+			for (int i = 0; i < myAppRoutingData.size(); i++) {
+				myRouter.registerApplication(myAppRoutingData.get(i), myApplications.get(i));
+			}
+
+			if (myNonBlocking) {
+				myExecutor = new ThreadPoolExecutor(myWorkerThreads, myWorkerThreads, 0L, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<Runnable>(myMaxPendingMessages), new MyThreadFactory());
+				myNioServer = new NioMllpServer(myPort, myRouter, mySelectorThreads, myExecutor, myMaxPendingMessages, myMaxMessageSize);
+				ourLog.info("Starting non-blocking listener on port {} with {} selector threads and {} workers", new Object[] { myPort, mySelectorThreads, myWorkerThreads });
+				myNioServer.start();
+			} else {
+				myExecutor = Executors.newCachedThreadPool(new MyThreadFactory());
+				myPassthroughServer = new PassthroughMllpServer(myPort, myExecutor, myRouter);
+				ourLog.info("Starting passthrough listener on port {}", myPort);
+				myPassthroughServer.start();
+			}
+			ourLog.info("Listener on port {} has started, and is ready for processing", myPort);
+			return;
+		}
 		
 		myContext = new DefaultHapiContext();
 		StandardSocketFactory socketFactory = new StandardSocketFactory();
@@ -76,9 +136,22 @@ public class RelayMllpListener implements InitializingBean, DisposableBean, IRel
 	 */
 	public void destroy() throws Exception {
 		ourLog.info("Stopping listener on port {}", myPort);
-		myServer.stopAndWait();
+		if (myNioServer != null) {
+			myNioServer.stop();
+		} else if (myPassthroughServer != null) {
+			myPassthroughServer.stop();
+		} else {
+			myServer.stopAndWait();
+		}
+		if (myExecutor != null) {
+			myExecutor.shutdown();
+			myExecutor.awaitTermination(10, TimeUnit.SECONDS);
+		}
 		ourLog.info("Listener on port {} has stopped", myPort);
 		
+		if (myContext == null) {
+			return;
+		}
 		ourLog.info("Closing HAPI Context Object");
 		myContext.close();
 		ourLog.info("Done closing HAPI Context object");
@@ -92,8 +165,13 @@ public class RelayMllpListener implements InitializingBean, DisposableBean, IRel
 	public void registerApplication(AppRoutingData theAppRouting, ReceivingApplication<? extends Message> theReceivingApplication) {
 		Validate.notNull(theAppRouting, "appRouting");
 		Validate.notNull(theReceivingApplication, "receivingApplication");
+		if (myPassthrough && !(theReceivingApplication instanceof IRelayPassthroughSender)) {
+			throw new IllegalArgumentException("Listener is in passthrough mode, but " + theReceivingApplication.getClass().getName() + " does not implement " + IRelayPassthroughSender.class.getSimpleName());
+		}
 		
-		if (myServer != null) {
+		if (myRouter != null) {
+			myRouter.registerApplication(theAppRouting, theReceivingApplication);
+		} else if (myServer != null) {
 			myServer.registerApplication(theAppRouting, theReceivingApplication);
 		} else {
 			myAppRoutingData.add(theAppRouting);
@@ -106,10 +184,93 @@ public class RelayMllpListener implements InitializingBean, DisposableBean, IRel
 		myBeanName = theBeanName;
 	}
 
+	/**
+	 * Sets the maximum size in bytes of a single message in
+	 * {@link #setNonBlocking(boolean) non-blocking} mode. A connection which
+	 * sends a larger message is closed, rather than the message being buffered
+	 * in memory without limit. Default is {@link #DEFAULT_MAX_MESSAGE_SIZE}
+	 */
+	public void setMaxMessageSize(int theMaxMessageSize) {
+		if (theMaxMessageSize < 1) {
+			throw new IllegalArgumentException("Max message size must be at least 1");
+		}
+		myMaxMessageSize = theMaxMessageSize;
+	}
+
+	/**
+	 * Sets the maximum number of messages which have been received but not
+	 * yet responded to in {@link #setNonBlocking(boolean) non-blocking} mode.
+	 * Once this is reached, no more data is read from any connection until a
+	 * response has been sent, so that sending systems are slowed down instead
+	 * of messages queueing up in the relay. Default is
+	 * {@link #DEFAULT_MAX_PENDING_MESSAGES}
+	 */
+	public void setMaxPendingMessages(int theMaxPendingMessages) {
+		if (theMaxPendingMessages < 1) {
+			throw new IllegalArgumentException("Max pending messages must be at least 1");
+		}
+		myMaxPendingMessages = theMaxPendingMessages;
+	}
+
+	/**
+	 * If set to <code>true</code> (default is <code>false</code>), all
+	 * connections are handled by a small number of
+	 * {@link #setSelectorThreads(int) selector threads} using non-blocking
+	 * IO, and messages are processed by a fixed pool of
+	 * {@link #setWorkerThreads(int) worker threads}. Otherwise each connection
+	 * has a thread of its own, which uses a lot of threads when many systems
+	 * are connected.
+	 */
+	public void setNonBlocking(boolean theNonBlocking) {
+		myNonBlocking = theNonBlocking;
+	}
+
+	/**
+	 * <p>
+	 * If set to <code>true</code> (default is <code>false</code>), messages
+	 * are not parsed by the listener. Each message is routed using only the
+	 * fields of its MSH segment and is relayed exactly as it was received, and
+	 * the response is returned to the sending system exactly as it was
+	 * received from the HTTP receiver. This uses far less CPU per message.
+	 * </p>
+	 * <p>
+	 * In this mode every sender bound to the listener must implement
+	 * {@link IRelayPassthroughSender}. The bytes of each message are sent
+	 * unchanged, labelled with the character set given in MSH-18, or UTF-8 if
+	 * none is given.
+	 * </p>
+	 */
+	public void setPassthrough(boolean thePassthrough) {
+		myPassthrough = thePassthrough;
+	}
+
 	public void setPort(int thePort) {
 		myPort = thePort;
 	}
 
+	/**
+	 * Sets the number of threads which handle connections in
+	 * {@link #setNonBlocking(boolean) non-blocking} mode (default is 1)
+	 */
+	public void setSelectorThreads(int theSelectorThreads) {
+		if (theSelectorThreads < 1) {
+			throw new IllegalArgumentException("Selector threads must be at least 1");
+		}
+		mySelectorThreads = theSelectorThreads;
+	}
+
+	/**
+	 * Sets the number of threads which process messages in
+	 * {@link #setNonBlocking(boolean) non-blocking} mode. Default is
+	 * {@link #DEFAULT_WORKER_THREADS}
+	 */
+	public void setWorkerThreads(int theWorkerThreads) {
+		if (theWorkerThreads < 1) {
+			throw new IllegalArgumentException("Worker threads must be at least 1");
+		}
+		myWorkerThreads = theWorkerThreads;
+	}
+
 	private class MyThreadFactory implements ThreadFactory {
 
 		private ThreadGroup group;
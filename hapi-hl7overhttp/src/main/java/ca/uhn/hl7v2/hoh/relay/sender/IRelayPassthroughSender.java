@@ -0,0 +1,38 @@
+package ca.uhn.hl7v2.hoh.relay.sender;
+
+import java.nio.charset.Charset;
+import java.util.Map;
+
+import ca.uhn.hl7v2.HL7Exception;
+import ca.uhn.hl7v2.hoh.relay.MessageHeader;
+import ca.uhn.hl7v2.model.Message;
+
+/**
+ * A relay sender which is able to relay a message in its original encoded
+ * form, so that the relay never needs to parse it
+ */
+public interface IRelayPassthroughSender extends IRelaySender<Message> {
+
+	/**
+	 * Relays a message exactly as it was received and returns the encoded
+	 * response
+	 * 
+	 * @param theMessage
+	 *            The message, exactly as it was received. This array must
+	 *            not be modified.
+	 * @param theCharset
+	 *            The character set the message is encoded in, as given in
+	 *            MSH-18
+	 * @param theHeader
+	 *            The MSH segment of the message
+	 * @param theMetadata
+	 *            Metadata about the message, using the same keys as
+	 *            {@link #processMessage(ca.uhn.hl7v2.model.Message, Map)}
+	 * @return The encoded response
+	 * @throws HL7Exception
+	 *             If the message could not be relayed. The listener responds
+	 *             with an error ACK containing the exception's message.
+	 */
+	String relayRawMessage(byte[] theMessage, Charset theCharset, MessageHeader theHeader, Map<String, Object> theMetadata) throws HL7Exception;
+
+}
@@ -0,0 +1,540 @@
+package ca.uhn.hl7v2.hoh.relay.sender;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.zip.CRC32;
+
+import ca.uhn.hl7v2.hoh.util.Validate;
+
+/**
+ * <p>
+ * A crash-safe store of messages waiting to be delivered, kept as an
+ * append-only journal of memory-mapped segment files in a directory. Each
+ * queued message is appended as a record, and a second, small record is
+ * appended once it has been delivered. Messages which have been queued but
+ * not delivered, including any left over from before the journal was opened,
+ * are read back from disk by {@link #readPending(long, int)} in the order they
+ * were queued, so they need not be held in memory while they wait.
+ * </p>
+ * <p>
+ * {@link #append(String)} does not return until the message has been forced
+ * to disk. When several threads append at once, one of them forces all of
+ * the records written so far while the others wait for it, so that a single
+ * sync covers many messages. Delivery records are not forced, so after a
+ * crash a message may be delivered a second time: delivery is at least once.
+ * </p>
+ * <p>
+ * Each record is checksummed, and a partially written record at the end of a
+ * segment marks the end of that segment. New records are only ever written
+ * to a segment created since the journal was opened. A segment is deleted
+ * once every message in it and in all older segments has been delivered.
+ * </p>
+ * <p>
+ * This class is thread safe. A directory must not be used by more than one
+ * journal at a time.
+ * </p>
+ */
+public class MessageJournal {
+
+	/**
+	 * The default size of each segment file (16MB)
+	 */
+	public static final int DEFAULT_SEGMENT_SIZE = 16 * 1024 * 1024;
+
+	/**
+	 * length, CRC, type, ID
+	 */
+	private static final int HEADER_SIZE = 4 + 4 + 1 + 8;
+
+	private static final org.slf4j.Logger ourLog = org.slf4j.LoggerFactory.getLogger(MessageJournal.class);
+	private static final String SEGMENT_SUFFIX = ".journal";
+	private static final byte TYPE_DELIVERED = 2;
+	private static final byte TYPE_ENCODED_MESSAGE = 3;
+	private static final byte TYPE_MESSAGE = 1;
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private boolean myClosed;
+	private Segment myCurrent;
+	private final File myDirectory;
+	private long myDurableSequence;
+	private long myNextId = 1;
+	private long myNextSegmentNumber = 1;
+	private final TreeMap<Long, Location> myPending = new TreeMap<Long, Location>();
+	private final int mySegmentSize;
+	private final LinkedList<Segment> mySegments = new LinkedList<Segment>();
+	private boolean mySyncing;
+	private long myWrittenSequence;
+
+	/**
+	 * Opens the journal in the given directory, creating the directory if
+	 * needed, using segments of {@link #DEFAULT_SEGMENT_SIZE}
+	 */
+	public MessageJournal(File theDirectory) throws IOException {
+		this(theDirectory, DEFAULT_SEGMENT_SIZE);
+	}
+
+	/**
+	 * Opens the journal in the given directory, creating the directory if
+	 * needed
+	 *
+	 * @param theSegmentSize
+	 *            The size of each segment file in bytes. A message which does
+	 *            not fit gets a segment of its own.
+	 */
+	public MessageJournal(File theDirectory, int theSegmentSize) throws IOException {
+		Validate.notNull(theDirectory, "directory");
+		if (theSegmentSize < 1024) {
+			throw new IllegalArgumentException("Segment size must be at least 1024 bytes");
+		}
+		myDirectory = theDirectory;
+		mySegmentSize = theSegmentSize;
+
+		if (!myDirectory.isDirectory() && !myDirectory.mkdirs()) {
+			throw new IOException("Could not create journal directory " + myDirectory.getAbsolutePath());
+		}
+
+		recover();
+		deleteDeliveredSegments();
+		ourLog.info("Opened journal in {} with {} undelivered messages", myDirectory.getAbsolutePath(), myPending.size());
+	}
+
+	/**
+	 * Appends a message to the journal, returning once it has been forced to
+	 * disk
+	 *
+	 * @return The ID of the message, which is passed to
+	 *         {@link #markDelivered(long)} once it has been delivered
+	 */
+	public long append(String theMessage) throws IOException {
+		Validate.notNull(theMessage, "message");
+		return append(TYPE_MESSAGE, theMessage.getBytes(UTF8));
+	}
+
+	/**
+	 * Appends a message which is already encoded to the journal, returning
+	 * once it has been forced to disk. The exact bytes are returned by
+	 * {@link Entry#getEncodedMessage()} when it is read back.
+	 *
+	 * @return The ID of the message, which is passed to
+	 *         {@link #markDelivered(long)} once it has been delivered
+	 */
+	public long append(byte[] theEncodedMessage, Charset theCharset) throws IOException {
+		Validate.notNull(theEncodedMessage, "message");
+		Validate.notNull(theCharset, "charset");
+		// The charset name is stored in front of the message
+		byte[] name = theCharset.name().getBytes(UTF8);
+		byte[] bytes = new byte[1 + name.length + theEncodedMessage.length];
+		bytes[0] = (byte) name.length;
+		System.arraycopy(name, 0, bytes, 1, name.length);
+		System.arraycopy(theEncodedMessage, 0, bytes, 1 + name.length, theEncodedMessage.length);
+		return append(TYPE_ENCODED_MESSAGE, bytes);
+	}
+
+	private long append(byte theType, byte[] theBytes) throws IOException {
+		long id;
+		long sequence;
+		synchronized (this) {
+			id = myNextId++;
+			int position = write(theType, id, theBytes);
+			myCurrent.myPendingCount++;
+			myPending.put(id, new Location(myCurrent, position));
+			sequence = myWrittenSequence;
+		}
+
+		awaitDurable(sequence);
+		return id;
+	}
+
+	/**
+	 * Waits until every record up to the given sequence number has been
+	 * forced to disk, forcing it from this thread if no other thread is
+	 * already doing so
+	 */
+	private void awaitDurable(long theSequence) throws IOException {
+		MappedByteBuffer buffer;
+		long target;
+		synchronized (this) {
+			while (myDurableSequence < theSequence) {
+				if (myClosed) {
+					throw new IOException("Journal has been closed");
+				}
+				if (!mySyncing) {
+					break;
+				}
+				try {
+					wait();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new IOException("Interrupted waiting for journal to be synced");
+				}
+			}
+			if (myDurableSequence >= theSequence) {
+				return;
+			}
+
+			// Force everything written so far, not just this record
+			mySyncing = true;
+			buffer = myCurrent.myBuffer;
+			target = myWrittenSequence;
+		}
+
+		try {
+			buffer.force();
+		} finally {
+			synchronized (this) {
+				mySyncing = false;
+				myDurableSequence = Math.max(myDurableSequence, target);
+				notifyAll();
+			}
+		}
+	}
+
+	/**
+	 * Forces any outstanding records to disk and closes the journal
+	 */
+	public synchronized void close() {
+		if (myClosed) {
+			return;
+		}
+		myClosed = true;
+		if (myCurrent != null) {
+			myCurrent.myBuffer.force();
+		}
+		for (Segment next : mySegments) {
+			next.close();
+		}
+		notifyAll();
+	}
+
+	/**
+	 * Deletes the oldest segments for as long as they contain no undelivered
+	 * messages. Segments are only deleted oldest first, so that a delivery
+	 * record is never deleted while the message it refers to still exists.
+	 */
+	private void deleteDeliveredSegments() {
+		while (!mySegments.isEmpty()) {
+			Segment oldest = mySegments.getFirst();
+			if (oldest == myCurrent || oldest.myPendingCount > 0) {
+				break;
+			}
+			mySegments.removeFirst();
+			oldest.close();
+			if (!oldest.myFile.delete()) {
+				ourLog.warn("Could not delete journal segment {}", oldest.myFile.getAbsolutePath());
+				oldest.myFile.deleteOnExit();
+			} else {
+				ourLog.debug("Deleted journal segment {}", oldest.myFile.getName());
+			}
+		}
+	}
+
+	/**
+	 * Returns every message which has been queued but not yet delivered, in
+	 * the order they were queued. Each message is read back from disk, so
+	 * callers which may have many messages waiting should use
+	 * {@link #readPending(long, int)} instead.
+	 */
+	public List<Entry> getPending() throws IOException {
+		return readPending(0, Integer.MAX_VALUE);
+	}
+
+	/**
+	 * Returns the number of segment files currently in use
+	 */
+	public synchronized int getSegmentCount() {
+		return mySegments.size();
+	}
+
+	/**
+	 * Returns the number of messages which have been queued but not yet
+	 * delivered
+	 */
+	public synchronized int getUndeliveredCount() {
+		return myPending.size();
+	}
+
+	/**
+	 * Records that a message has been delivered, so that it will not be
+	 * returned by {@link #getPending()} when the journal is next opened. This
+	 * record is not forced to disk immediately.
+	 */
+	public synchronized void markDelivered(long theId) throws IOException {
+		Location location = myPending.remove(theId);
+		if (location == null) {
+			return;
+		}
+		write(TYPE_DELIVERED, theId, new byte[0]);
+		location.mySegment.myPendingCount--;
+		deleteDeliveredSegments();
+	}
+
+	/**
+	 * Reads back up to the given number of messages which have been queued but
+	 * not yet delivered, in the order they were queued, starting after the
+	 * given ID. A caller working through the journal passes the ID of the last
+	 * message it read, or 0 to start from the oldest.
+	 */
+	public synchronized List<Entry> readPending(long theAfterId, int theMaxCount) throws IOException {
+		if (myClosed) {
+			throw new IOException("Journal has been closed");
+		}
+		List<Entry> retVal = new ArrayList<Entry>();
+		for (Map.Entry<Long, Location> next : myPending.tailMap(theAfterId, false).entrySet()) {
+			if (retVal.size() >= theMaxCount) {
+				break;
+			}
+			Location location = next.getValue();
+			MappedByteBuffer buffer = location.mySegment.myBuffer;
+			byte[] bytes = new byte[buffer.getInt(location.myPosition)];
+			byte type = buffer.get(location.myPosition + 8);
+			buffer.position(location.myPosition + HEADER_SIZE);
+			buffer.get(bytes);
+			if (type == TYPE_ENCODED_MESSAGE) {
+				int nameLength = bytes[0] & 0xFF;
+				Charset charset = Charset.forName(new String(bytes, 1, nameLength, UTF8));
+				byte[] message = new byte[bytes.length - 1 - nameLength];
+				System.arraycopy(bytes, 1 + nameLength, message, 0, message.length);
+				retVal.add(new Entry(next.getKey(), message, charset));
+			} else {
+				retVal.add(new Entry(next.getKey(), bytes, null));
+			}
+		}
+		return retVal;
+	}
+
+	/**
+	 * Reads every existing segment, oldest first
+	 */
+	private void recover() throws IOException {
+		String[] names = myDirectory.list(new FilenameFilter() {
+			public boolean accept(File theDir, String theName) {
+				return theName.endsWith(SEGMENT_SUFFIX);
+			}
+		});
+		Arrays.sort(names);
+
+		for (String nextName : names) {
+			long number;
+			try {
+				number = Long.parseLong(nextName.substring(0, nextName.length() - SEGMENT_SUFFIX.length()));
+			} catch (NumberFormatException e) {
+				ourLog.warn("Ignoring unexpected file in journal directory: {}", nextName);
+				continue;
+			}
+			myNextSegmentNumber = Math.max(myNextSegmentNumber, number + 1);
+
+			Segment segment = new Segment(new File(myDirectory, nextName), -1);
+			mySegments.add(segment);
+			recoverSegment(segment);
+		}
+
+		for (Location next : myPending.values()) {
+			next.mySegment.myPendingCount++;
+		}
+	}
+
+	private void recoverSegment(Segment theSegment) {
+		MappedByteBuffer buffer = theSegment.myBuffer;
+		CRC32 crc = new CRC32();
+		int position = 0;
+		while (position + HEADER_SIZE <= buffer.capacity()) {
+			int length = buffer.getInt(position);
+			if (length < 0 || position + HEADER_SIZE + length > buffer.capacity()) {
+				break;
+			}
+			int checksum = buffer.getInt(position + 4);
+			byte type = buffer.get(position + 8);
+			long id = buffer.getLong(position + 9);
+			byte[] bytes = new byte[length];
+			buffer.position(position + HEADER_SIZE);
+			buffer.get(bytes);
+
+			crc.reset();
+			crc.update(type);
+			updateCrc(crc, id);
+			crc.update(bytes);
+			if (type == 0 || checksum != (int) crc.getValue()) {
+				// Either unused space or a record which was never completely written
+				break;
+			}
+
+			myNextId = Math.max(myNextId, id + 1);
+			if (type == TYPE_MESSAGE || type == TYPE_ENCODED_MESSAGE) {
+				// Only the location is kept, the message is read again when needed
+				myPending.put(id, new Location(theSegment, position));
+			} else if (type == TYPE_DELIVERED) {
+				myPending.remove(id);
+			}
+			position += HEADER_SIZE + length;
+		}
+		ourLog.debug("Recovered {} bytes from journal segment {}", position, theSegment.myFile.getName());
+	}
+
+	/**
+	 * Writes a record to the current segment, starting a new segment if it
+	 * does not fit. Must be called while synchronized.
+	 *
+	 * @return The position of the record within {@link #myCurrent}
+	 */
+	private int write(byte theType, long theId, byte[] theBytes) throws IOException {
+		if (myClosed) {
+			throw new IOException("Journal has been closed");
+		}
+
+		int recordSize = HEADER_SIZE + theBytes.length;
+		if (myCurrent == null || myCurrent.myBuffer.capacity() - myCurrent.myPosition < recordSize) {
+			if (myCurrent != null) {
+				// Records are only forced in the current segment
+				myCurrent.myBuffer.force();
+				myDurableSequence = myWrittenSequence;
+			}
+			File file = new File(myDirectory, String.format("%020d", myNextSegmentNumber++) + SEGMENT_SUFFIX);
+			myCurrent = new Segment(file, Math.max(mySegmentSize, recordSize));
+			mySegments.add(myCurrent);
+			ourLog.debug("Started journal segment {}", file.getName());
+		}
+
+		CRC32 crc = new CRC32();
+		crc.update(theType);
+		updateCrc(crc, theId);
+		crc.update(theBytes);
+
+		int position = myCurrent.myPosition;
+		MappedByteBuffer buffer = myCurrent.myBuffer;
+		buffer.position(position);
+		buffer.putInt(theBytes.length);
+		buffer.putInt((int) crc.getValue());
+		buffer.put(theType);
+		buffer.putLong(theId);
+		buffer.put(theBytes);
+		myCurrent.myPosition += recordSize;
+
+		myWrittenSequence++;
+		return position;
+	}
+
+	private static void updateCrc(CRC32 theCrc, long theValue) {
+		for (int i = 56; i >= 0; i -= 8) {
+			theCrc.update((int) (theValue >>> i));
+		}
+	}
+
+	/**
+	 * A message which was queued but not delivered
+	 */
+	public static class Entry {
+
+		private final Charset myCharset;
+		private final byte[] myEncodedMessage;
+		private final long myId;
+
+		/**
+		 * @param theCharset
+		 *            <code>null</code> if the message was appended as a
+		 *            string, in which case it is stored as UTF-8
+		 */
+		Entry(long theId, byte[] theEncodedMessage, Charset theCharset) {
+			myId = theId;
+			myEncodedMessage = theEncodedMessage;
+			myCharset = theCharset;
+		}
+
+		/**
+		 * Returns the character set which was passed to
+		 * {@link MessageJournal#append(byte[], Charset)}, or <code>null</code>
+		 * if the message was appended as a string
+		 */
+		public Charset getCharset() {
+			return myCharset;
+		}
+
+		/**
+		 * Returns the bytes which were passed to
+		 * {@link MessageJournal#append(byte[], Charset)}, or the message in
+		 * UTF-8 if it was appended as a string
+		 */
+		public byte[] getEncodedMessage() {
+			return myEncodedMessage;
+		}
+
+		/**
+		 * Returns the ID to pass to {@link MessageJournal#markDelivered(long)}
+		 */
+		public long getId() {
+			return myId;
+		}
+
+		public String getMessage() {
+			return new String(myEncodedMessage, myCharset != null ? myCharset : UTF8);
+		}
+
+	}
+
+	/**
+	 * Where the record for an undelivered message was written
+	 */
+	private static class Location {
+
+		private final int myPosition;
+		private final Segment mySegment;
+
+		Location(Segment theSegment, int thePosition) {
+			mySegment = theSegment;
+			myPosition = thePosition;
+		}
+
+	}
+
+	private static class Segment {
+
+		private final MappedByteBuffer myBuffer;
+		private final FileChannel myChannel;
+		private final File myFile;
+		private int myPendingCount;
+		private int myPosition;
+
+		/**
+		 * @param theSize
+		 *            The size to create the file with, or -1 to open an
+		 *            existing file
+		 */
+		Segment(File theFile, int theSize) throws IOException {
+			myFile = theFile;
+			RandomAccessFile raf = new RandomAccessFile(theFile, "rw");
+			boolean success = false;
+			try {
+				if (theSize != -1) {
+					raf.setLength(theSize);
+				}
+				myChannel = raf.getChannel();
+				myBuffer = myChannel.map(FileChannel.MapMode.READ_WRITE, 0, raf.length());
+				success = true;
+			} finally {
+				if (!success) {
+					raf.close();
+				}
+			}
+		}
+
+		void close() {
+			try {
+				myChannel.close();
+			} catch (IOException e) {
+				ourLog.warn("Failed to close journal segment " + myFile.getName(), e);
+			}
+		}
+
+	}
+
+}
@@ -1,31 +1,90 @@
 package ca.uhn.hl7v2.hoh.relay.sender;
 
+import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.net.ConnectException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
 
 import org.springframework.beans.factory.BeanNameAware;
+import org.springframework.beans.factory.DisposableBean;
 import org.springframework.beans.factory.InitializingBean;
 
 import ca.uhn.hl7v2.HL7Exception;
 import ca.uhn.hl7v2.hoh.api.DecodeException;
 import ca.uhn.hl7v2.hoh.api.EncodeException;
 import ca.uhn.hl7v2.hoh.api.IReceivable;
+import ca.uhn.hl7v2.hoh.api.ISendable;
+import ca.uhn.hl7v2.hoh.api.MessageMetadataKeys;
 import ca.uhn.hl7v2.hoh.hapi.api.MessageSendable;
 import ca.uhn.hl7v2.hoh.hapi.client.HohClientMultithreaded;
+import ca.uhn.hl7v2.hoh.raw.api.RawEncodedSendable;
+import ca.uhn.hl7v2.hoh.raw.api.RawSendable;
 import ca.uhn.hl7v2.hoh.relay.Binder;
+import ca.uhn.hl7v2.hoh.relay.MessageHeader;
 import ca.uhn.hl7v2.hoh.util.Validate;
 import ca.uhn.hl7v2.model.Message;
+import ca.uhn.hl7v2.parser.Parser;
 import ca.uhn.hl7v2.protocol.ApplicationRouter;
 import ca.uhn.hl7v2.protocol.MetadataKeys;
 import ca.uhn.hl7v2.protocol.ReceivingApplicationException;
 import ca.uhn.hl7v2.util.Terser;
 
-public class RelayHttpSender extends HohClientMultithreaded implements IRelaySender<Message>, BeanNameAware, InitializingBean {
+public class RelayHttpSender extends HohClientMultithreaded implements IRelayPassthroughSender, BeanNameAware, InitializingBean, DisposableBean {
+
+	/**
+	 * The default delay before the first redelivery of a queued message, in
+	 * millis: 1000
+	 */
+	public static final long DEFAULT_RETRY_DELAY = 1000;
+
+	/**
+	 * The default maximum delay between redeliveries of a queued message, in
+	 * millis: 60000
+	 */
+	public static final long DEFAULT_MAX_RETRY_DELAY = 60000;
+
+	/**
+	 * The default number of queued messages held in memory waiting for a
+	 * delivery thread: 100
+	 */
+	public static final int DEFAULT_DELIVERY_QUEUE_SIZE = 100;
+
+	/**
+	 * The default number of times delivery of a queued message is attempted
+	 * before it is given up on: 100. With the default retry delays this is a
+	 * little over an hation and a half.
+	 */
+	public static final int DEFAULT_MAX_DELIVERY_ATTEMPTS = 100;
+
+	/**
+	 * The name of the file in the {@link #setQueueDirectory(File) queue
+	 * directory} to which queued messages which could not be delivered are
+	 * appended: undeliverable.hl7
+	 */
+	public static final String UNDELIVERABLE_FILE_NAME = "undeliverable.hl7";
 
 	private static final org.slf4j.Logger ourLog = org.slf4j.LoggerFactory.getLogger(RelayHttpSender.class);
 	private String myBeanName;
+	private BlockingQueue<MessageJournal.Entry> myDeliveryQueue;
+	private int myDeliveryQueueSize = DEFAULT_DELIVERY_QUEUE_SIZE;
+	private int myDeliveryThreadCount = 1;
+	private final List<Thread> myDeliveryThreads = new ArrayList<Thread>();
 	private int myIoRetries = 0;
+	private MessageJournal myJournal;
+	private long myLastQueuedId;
+	private int myMaxDeliveryAttempts = DEFAULT_MAX_DELIVERY_ATTEMPTS;
+	private long myMaxRetryDelay = DEFAULT_MAX_RETRY_DELAY;
+	private File myQueueDirectory;
+	private long myRetryDelay = DEFAULT_RETRY_DELAY;
+	private volatile boolean myStopped;
+	private final Object myUndeliverableLock = new Object();
 	
 	/**
 	 * {@inheritDoc}
@@ -33,6 +92,196 @@ public class RelayHttpSender extends HohClientMultithreaded implements IRelaySen
 	public void afterPropertiesSet() throws Exception {
 		Validate.propertySet(getUrl(), "Url");
 		ourLog.info("Sender [{}] will transmit by HL7 over HTTP to {}", myBeanName, getUrl().toExternalForm());
+
+		if (myQueueDirectory != null) {
+			myJournal = new MessageJournal(myQueueDirectory);
+			myDeliveryQueue = new LinkedBlockingQueue<MessageJournal.Entry>(myDeliveryQueueSize);
+			myLastQueuedId = 0;
+			if (myJournal.getUndeliveredCount() > 0) {
+				ourLog.info("Sender [{}] has {} queued messages from a previous run", myBeanName, myJournal.getUndeliveredCount());
+			}
+			fillDeliveryQueue();
+			for (int i = 0; i < myDeliveryThreadCount; i++) {
+				Thread thread = new Thread(new DeliveryTask(), "hoh-relay-" + myBeanName + "-delivery-" + (i + 1));
+				myDeliveryThreads.add(thread);
+				thread.start();
+			}
+			ourLog.info("Sender [{}] will queue messages in {}", myBeanName, myQueueDirectory.getAbsolutePath());
+		}
+	}
+
+	/**
+	 * Delivers a queued message, retrying with an increasing delay until it
+	 * is accepted by the receiver, the sender is stopped, or the maximum number
+	 * of attempts is reached. A message which the receiver rejects outright,
+	 * or which is given up on, is {@link #discard(MessageJournal.Entry, String, Exception) discarded}.
+	 * 
+	 * @return <code>true</code> if the message has been dealt with and may be
+	 *         marked as delivered, or <code>false</code> if the sender was
+	 *         stopped first
+	 */
+	private boolean deliver(MessageJournal.Entry theEntry) throws InterruptedException {
+		long delay = myRetryDelay;
+		int attempt = 0;
+		while (!myStopped) {
+			attempt++;
+			try {
+				long start = System.currentTimeMillis();
+				IReceivable<String> response = getRawClient().sendAndReceive(createSendable(theEntry));
+				if (response == null) {
+					throw new IOException("No response received");
+				}
+				checkAccepted(response);
+				ourLog.info("Delivered queued message {} in {} ms", theEntry.getId(), System.currentTimeMillis() - start);
+				return true;
+			} catch (EncodeException e) {
+				// Encoding will never succeed, so don't keep trying
+				discard(theEntry, "Failed to create HTTP request for queued message " + theEntry.getId(), e);
+				return true;
+			} catch (MessageRejectedException e) {
+				// The receiver will reject it again, so don't keep trying
+				discard(theEntry, "Queued message " + theEntry.getId() + " was rejected by URL \"" + getUrl().toExternalForm() + "\"", e);
+				return true;
+			} catch (Exception e) {
+				if (myMaxDeliveryAttempts > 0 && attempt >= myMaxDeliveryAttempts) {
+					discard(theEntry, "Failed to deliver queued message " + theEntry.getId() + " after " + attempt + " attempts", e);
+					return true;
+				}
+				ourLog.warn("Failed to deliver queued message {} to URL \"{}\" (attempt {}), going to retry in {} ms - Error was: {}", new Object[] { theEntry.getId(), getUrl().toExternalForm(), attempt, delay, e.toString() });
+			}
+
+			Thread.sleep(delay);
+			delay = Math.min(delay * 2, myMaxRetryDelay);
+		}
+		return false;
+	}
+
+	/**
+	 * Returns a sendable for a queued message, which sends it exactly as it
+	 * was received if it was relayed without being parsed
+	 */
+	private static ISendable<String> createSendable(MessageJournal.Entry theEntry) {
+		if (theEntry.getCharset() != null) {
+			return new RawEncodedSendable(theEntry.getEncodedMessage(), theEntry.getCharset());
+		}
+		return new RawSendable(theEntry.getMessage());
+	}
+
+	/**
+	 * Logs a queued message which is being given up on as an error, and
+	 * appends it to the {@link #UNDELIVERABLE_FILE_NAME undeliverable file} in
+	 * the queue directory so that it can be resent by hand
+	 */
+	private void discard(MessageJournal.Entry theEntry, String theReason, Exception theException) {
+		ourLog.error(theReason + ", moving it to " + UNDELIVERABLE_FILE_NAME + ". Message was:\n" + theEntry.getMessage().replace('\r', '\n'), theException);
+		synchronized (myUndeliverableLock) {
+			// Written exactly as it was received, or in UTF-8 if it was parsed
+			OutputStream os = null;
+			try {
+				os = new FileOutputStream(new File(myQueueDirectory, UNDELIVERABLE_FILE_NAME), true);
+				os.write(theEntry.getEncodedMessage());
+				os.write('\n');
+				os.flush();
+			} catch (IOException e) {
+				ourLog.error("Failed to write queued message " + theEntry.getId() + " to " + UNDELIVERABLE_FILE_NAME + ", discarding it", e);
+			} finally {
+				if (os != null) {
+					try {
+						os.close();
+					} catch (IOException e) {
+						ourLog.debug("Failed to close " + UNDELIVERABLE_FILE_NAME, e);
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * Throws an exception unless the response to a queued message shows that
+	 * the receiver accepted it: the HTTP status must be 2xx, and MSA-1 must be
+	 * AA or CA. A message which was rejected with AR or CR is not retried, but
+	 * one which failed with an error (e.g. an AE NAK, or a 500 response) is
+	 * retried like one which could not be sent.
+	 */
+	private static void checkAccepted(IReceivable<String> theResponse) throws HL7Exception {
+		String ackCode = getAcknowledgementCode(theResponse.getMessage());
+		if ("AR".equals(ackCode) || "CR".equals(ackCode)) {
+			throw new MessageRejectedException("Response has acknowledgement code " + ackCode);
+		}
+
+		Integer status = (Integer) theResponse.getMetadata().get(MessageMetadataKeys.RESPONSE_STATUS_CODE.name());
+		if (status != null && (status < 200 || status > 299)) {
+			throw new HL7Exception("Received HTTP status " + status);
+		}
+
+		if (!"AA".equals(ackCode) && !"CA".equals(ackCode)) {
+			throw new HL7Exception("Response has acknowledgement code " + ackCode);
+		}
+	}
+
+	/**
+	 * Returns MSA-1 from a raw ER7 message, or <code>null</code> if the
+	 * message has no MSA segment
+	 */
+	static String getAcknowledgementCode(String theMessage) {
+		if (theMessage == null || theMessage.length() < 4 || !theMessage.startsWith("MSH")) {
+			return null;
+		}
+		char fieldSep = theMessage.charAt(3);
+		int segmentStart = 0;
+		while (segmentStart < theMessage.length()) {
+			int segmentEnd = segmentStart;
+			while (segmentEnd < theMessage.length() && theMessage.charAt(segmentEnd) != '\r' && theMessage.charAt(segmentEnd) != '\n') {
+				segmentEnd++;
+			}
+			if (theMessage.startsWith("MSA", segmentStart) && segmentStart + 3 < segmentEnd && theMessage.charAt(segmentStart + 3) == fieldSep) {
+				int fieldEnd = theMessage.indexOf(fieldSep, segmentStart + 4);
+				if (fieldEnd == -1 || fieldEnd > segmentEnd) {
+					fieldEnd = segmentEnd;
+				}
+				return theMessage.substring(segmentStart + 4, fieldEnd);
+			}
+			segmentStart = segmentEnd + 1;
+		}
+		return null;
+	}
+
+	/**
+	 * Reads as many undelivered messages from the journal as will fit in the
+	 * delivery queue, carrying on from the last one read. Only the messages in
+	 * the queue are held in memory, the rest wait in the journal until the
+	 * delivery threads catch up.
+	 */
+	private synchronized void fillDeliveryQueue() throws IOException {
+		int space = myDeliveryQueue.remainingCapacity();
+		if (space == 0) {
+			return;
+		}
+		for (MessageJournal.Entry next : myJournal.readPending(myLastQueuedId, space)) {
+			myDeliveryQueue.add(next);
+			myLastQueuedId = next.getId();
+		}
+	}
+
+	/**
+	 * <i>Automatically called by the container</i>
+	 */
+	public void destroy() throws Exception {
+		if (myJournal == null) {
+			return;
+		}
+
+		// Undelivered messages stay in the journal for the next run
+		myStopped = true;
+		for (Thread next : myDeliveryThreads) {
+			next.interrupt();
+		}
+		for (Thread next : myDeliveryThreads) {
+			next.join();
+		}
+		myDeliveryThreads.clear();
+		myJournal.close();
+		myJournal = null;
 	}
 
 	/**
@@ -51,6 +300,13 @@ public class RelayHttpSender extends HohClientMultithreaded implements IRelaySen
 		return myBeanName;
 	}
 
+	/**
+	 * @see #setDeliveryQueueSize(int)
+	 */
+	public int getDeliveryQueueSize() {
+		return myDeliveryQueueSize;
+	}
+
 	/**
 	 * @see #setIoRetries(int)
 	 */
@@ -58,18 +314,87 @@ public class RelayHttpSender extends HohClientMultithreaded implements IRelaySen
 		return myIoRetries;
 	}
 
+	/**
+	 * Returns the number of queued messages which have not yet been
+	 * delivered, or 0 if no {@link #setQueueDirectory(File) queue directory}
+	 * is set
+	 */
+	public int getQueuedMessageCount() {
+		MessageJournal journal = myJournal;
+		return journal != null ? journal.getUndeliveredCount() : 0;
+	}
+
 	/**
 	 * {@inheritDoc}
 	 */
 	public Message processMessage(Message theMessage, Map<String, Object> theMetadata) throws ReceivingApplicationException, HL7Exception {
+		String controlId = (String) theMetadata.get(ApplicationRouter.METADATA_KEY_MESSAGE_CONTROL_ID);
+		String rawMessage = (String) theMetadata.get(MetadataKeys.IN_RAW_MESSAGE);
+
+		if (myJournal != null) {
+			enqueue(rawMessage, null, null, theMetadata);
+			try {
+				return theMessage.generateACK();
+			} catch (IOException e) {
+				throw new HL7Exception(e);
+			}
+		}
+
+		IReceivable<String> response = sendWithRetries(new MessageSendable(theMessage), rawMessage.length(), theMetadata);
+		Parser parser = getParser() != null ? getParser() : theMessage.getParser();
+		Message responseMessage = parser.parse(response.getMessage());
+
+		String responseControlId = new Terser(responseMessage).get("/MSH-10");
+		ourLog.info("Response to ID {} has ID {}", controlId, responseControlId);
+		
+		return responseMessage;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	public String relayRawMessage(byte[] theMessage, Charset theCharset, MessageHeader theHeader, Map<String, Object> theMetadata) throws HL7Exception {
+		if (myJournal != null) {
+			enqueue(null, theMessage, theCharset, theMetadata);
+			return theHeader.generateAck("AA", null);
+		}
+
+		return sendWithRetries(new RawEncodedSendable(theMessage, theCharset), theMessage.length, theMetadata).getMessage();
+	}
+
+	/**
+	 * Appends a message to the journal, either as a string or, if a charset
+	 * is given, as the exact bytes it was received as
+	 */
+	private void enqueue(String theRawMessage, byte[] theEncodedMessage, Charset theCharset, Map<String, Object> theMetadata) throws HL7Exception {
+		String sendingIp = (String) theMetadata.get(ApplicationRouter.METADATA_KEY_SENDING_IP);
+		Object sendingPort = theMetadata.get(ApplicationRouter.METADATA_KEY_SENDING_PORT);
+		String controlId = (String) theMetadata.get(ApplicationRouter.METADATA_KEY_MESSAGE_CONTROL_ID);
+
+		long id;
+		try {
+			id = theCharset != null ? myJournal.append(theEncodedMessage, theCharset) : myJournal.append(theRawMessage);
+		} catch (IOException e) {
+			ourLog.error("Failed to queue message with ID " + controlId, e);
+			throw new HL7Exception(Binder.getProductname() + " - Failed to queue message - Error was: " + e.getMessage());
+		}
+		try {
+			fillDeliveryQueue();
+		} catch (IOException e) {
+			// The message is safely queued, a delivery thread will read it later
+			ourLog.warn("Failed to read queued messages from journal", e);
+		}
+		ourLog.info("Queued message ({} bytes) with ID {} from {}:{} as {} for delivery to URL {}", new Object[] {theCharset != null ? theEncodedMessage.length : theRawMessage.length(), controlId, sendingIp, sendingPort, id, getUrl()});
+	}
+
+	private IReceivable<String> sendWithRetries(ISendable<?> theSendable, int theMessageLength, Map<String, Object> theMetadata) throws HL7Exception {
 		String sendingIp = (String) theMetadata.get(ApplicationRouter.METADATA_KEY_SENDING_IP);
 		Object sendingPort = theMetadata.get(ApplicationRouter.METADATA_KEY_SENDING_PORT);
 		String controlId = (String) theMetadata.get(ApplicationRouter.METADATA_KEY_MESSAGE_CONTROL_ID);
-		String rawMessage = (String) theMetadata.get(MetadataKeys.IN_RAW_MESSAGE);
 
-		ourLog.info("Relaying message ({} bytes) with ID {} from {}:{} to URL {}", new Object[] {rawMessage.length(), controlId, sendingIp, sendingPort, getUrl()});
+		ourLog.info("Relaying message ({} bytes) with ID {} from {}:{} to URL {}", new Object[] {theMessageLength, controlId, sendingIp, sendingPort, getUrl()});
 		
-		IReceivable<Message> response;
+		IReceivable<String> response;
 		long delay = System.currentTimeMillis();
 		int attempt = -1;
 		while(true) {
@@ -80,7 +405,7 @@ public class RelayHttpSender extends HohClientMultithreaded implements IRelaySen
 			}
 			
 			try {
-				response = sendAndReceiveMessage(new MessageSendable(theMessage));
+				response = getRawClient().sendAndReceive(theSendable);
 				delay = System.currentTimeMillis() - delay;
 			} catch (DecodeException e) {
 				ourLog.error("Failed to process HL7 over HTTP response from URL \"" + getUrl().toExternalForm() + "\"", e);
@@ -102,11 +427,12 @@ public class RelayHttpSender extends HohClientMultithreaded implements IRelaySen
 		
 			break;
 		}
-		
-		String responseControlId = new Terser(response.getMessage()).get("/MSH-10");
-		ourLog.info("Received response to ID {} with ID {} in {} ms", new Object[] {controlId, responseControlId, delay});
-		
-		return response.getMessage();
+
+		if (response == null) {
+			throw new HL7Exception(Binder.getProductname() + " - No response received from URL \"" + getUrl().toExternalForm() + "\"");
+		}
+		ourLog.info("Received response to ID {} in {} ms", controlId, delay);
+		return response;
 	}
 
 	/**
@@ -116,13 +442,153 @@ public class RelayHttpSender extends HohClientMultithreaded implements IRelaySen
 		myBeanName = theBeanName;
 	}
 
+	/**
+	 * Sets the number of queued messages which are held in memory waiting for
+	 * a delivery thread (default is {@link #DEFAULT_DELIVERY_QUEUE_SIZE}).
+	 * Messages beyond this are left in the journal and read back as the
+	 * delivery threads catch up, so a long outage of the URL does not fill the
+	 * heap with waiting messages.
+	 */
+	public void setDeliveryQueueSize(int theDeliveryQueueSize) {
+		if (theDeliveryQueueSize < 1) {
+			throw new IllegalArgumentException("Delivery queue size must be at least 1");
+		}
+		myDeliveryQueueSize = theDeliveryQueueSize;
+	}
+
+	/**
+	 * Sets the number of threads which deliver queued messages (default is
+	 * 1). With a single thread, messages are delivered in the order they were
+	 * received, and a message which can't be delivered holds up those behind
+	 * it. With more threads, messages may be delivered out of order.
+	 */
+	public void setDeliveryThreads(int theDeliveryThreads) {
+		if (theDeliveryThreads < 1) {
+			throw new IllegalArgumentException("Delivery threads must be at least 1");
+		}
+		myDeliveryThreadCount = theDeliveryThreads;
+	}
+
 	/**
 	 * If set to a positive integer, the relay will attempt to redeliver a message up to the given
 	 * number of times before giving up, if the transmission fails due to an IO exception. 
+	 * This does not apply to queued messages, see {@link #setMaxDeliveryAttempts(int)}.
 	 */
 	public void setIoRetries(int theIoRetries) {
 		myIoRetries = theIoRetries;
 	}
 
+	/**
+	 * Sets the number of times delivery of a queued message is attempted
+	 * before it is logged as an error and moved to the
+	 * {@link #UNDELIVERABLE_FILE_NAME undeliverable file}. Default is
+	 * {@link #DEFAULT_MAX_DELIVERY_ATTEMPTS}. 0 means that delivery is retried
+	 * forever, in which case a message which can never be delivered holds up
+	 * those behind it. Messages which the receiver rejects (AR or CR) are
+	 * never retried.
+	 */
+	public void setMaxDeliveryAttempts(int theMaxDeliveryAttempts) {
+		myMaxDeliveryAttempts = theMaxDeliveryAttempts;
+	}
+
+	/**
+	 * Sets the maximum delay in millis between attempts to deliver a queued
+	 * message. Default is {@link #DEFAULT_MAX_RETRY_DELAY}
+	 */
+	public void setMaxRetryDelay(long theMaxRetryDelay) {
+		myMaxRetryDelay = theMaxRetryDelay;
+	}
+
+	/**
+	 * <p>
+	 * If set, messages are queued in a journal in the given directory instead
+	 * of being sent while the MLLP sender waits. Each message is acknowledged
+	 * to the MLLP sender as soon as it has been written to disk, and is then
+	 * delivered to the URL by separate threads, which keep retrying with an
+	 * increasing delay if the URL can't be reached. Queued messages which have
+	 * not been delivered when the relay stops are delivered once it restarts.
+	 * </p>
+	 * <p>
+	 * Note that in this mode the MLLP sender receives an ACK generated by the
+	 * relay, rather than the response from the HTTP receiver. Messages are
+	 * delivered at least once, so a message may be delivered twice if the
+	 * relay stops unexpectedly. Messages which are rejected by the receiver,
+	 * or which can not be delivered after the
+	 * {@link #setMaxDeliveryAttempts(int) maximum number of attempts}, are
+	 * appended to the {@link #UNDELIVERABLE_FILE_NAME undeliverable file} in
+	 * this directory.
+	 * </p>
+	 *
+	 * @see MessageJournal
+	 */
+	public void setQueueDirectory(File theQueueDirectory) {
+		myQueueDirectory = theQueueDirectory;
+	}
+
+	/**
+	 * Sets the delay in millis before the first attempt to redeliver a queued
+	 * message. The delay doubles with each subsequent attempt, up to the
+	 * {@link #setMaxRetryDelay(long) maximum}. Default is
+	 * {@link #DEFAULT_RETRY_DELAY}
+	 */
+	public void setRetryDelay(long theRetryDelay) {
+		if (theRetryDelay < 1) {
+			throw new IllegalArgumentException("Retry delay must be at least 1");
+		}
+		myRetryDelay = theRetryDelay;
+	}
+
+	/**
+	 * Takes queued messages and delivers them until the sender is stopped
+	 */
+	private class DeliveryTask implements Runnable {
+
+		public void run() {
+			// Held until it has been marked as delivered, so that it is not
+			// lost if the journal can't be updated
+			MessageJournal.Entry entry = null;
+			boolean delivered = false;
+			while (!myStopped) {
+				try {
+					if (entry == null) {
+						fillDeliveryQueue();
+						entry = myDeliveryQueue.take();
+						delivered = false;
+					}
+					if (!delivered) {
+						delivered = deliver(entry);
+					}
+					if (delivered) {
+						myJournal.markDelivered(entry.getId());
+						entry = null;
+					}
+				} catch (InterruptedException e) {
+					ourLog.debug("Delivery thread interrupted");
+				} catch (IOException e) {
+					ourLog.error("Failed to update journal, going to retry in " + myRetryDelay + " ms", e);
+					try {
+						Thread.sleep(myRetryDelay);
+					} catch (InterruptedException e1) {
+						ourLog.debug("Delivery thread interrupted");
+					}
+				}
+			}
+		}
+
+	}
+
+	/**
+	 * Thrown when the receiver rejects a queued message outright
+	 */
+	private static class MessageRejectedException extends HL7Exception {
+
+		private static final long serialVersionUID = 1L;
+
+		MessageRejectedException(String theMessage) {
+			super(theMessage);
+		}
+
+	}
+
 
 }
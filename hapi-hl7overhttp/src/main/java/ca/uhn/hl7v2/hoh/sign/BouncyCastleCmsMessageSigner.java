@@ -2,6 +2,10 @@ package ca.uhn.hl7v2.hoh.sign;
 
 import static ca.uhn.hl7v2.hoh.util.StringUtils.*;
 
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.security.GeneralSecurityException;
 import java.security.KeyStore;
 import java.security.KeyStoreException;
@@ -19,8 +23,12 @@ import org.bouncycastle.cms.CMSProcessable;
 import org.bouncycastle.cms.CMSProcessableByteArray;
 import org.bouncycastle.cms.CMSSignedData;
 import org.bouncycastle.cms.CMSSignedDataGenerator;
+import org.bouncycastle.cms.CMSSignedDataParser;
+import org.bouncycastle.cms.CMSSignedDataStreamGenerator;
 import org.bouncycastle.cms.CMSSignerDigestMismatchException;
 import org.bouncycastle.cms.CMSTypedData;
+import org.bouncycastle.cms.CMSTypedStream;
+import org.bouncycastle.cms.SignerInfoGenerator;
 import org.bouncycastle.cms.SignerInformation;
 import org.bouncycastle.cms.SignerInformationStore;
 import org.bouncycastle.cms.SignerInformationVerifier;
@@ -28,26 +36,52 @@ import org.bouncycastle.cms.jcajce.JcaSignerInfoGeneratorBuilder;
 import org.bouncycastle.cms.jcajce.JcaSimpleSignerInfoVerifierBuilder;
 import org.bouncycastle.jce.provider.BouncyCastleProvider;
 import org.bouncycastle.operator.ContentSigner;
+import org.bouncycastle.operator.DigestCalculatorProvider;
+import org.bouncycastle.operator.OperatorCreationException;
 import org.bouncycastle.operator.jcajce.JcaContentSignerBuilder;
 import org.bouncycastle.operator.jcajce.JcaDigestCalculatorProviderBuilder;
 import org.bouncycastle.util.Store;
 
 import ca.uhn.hl7v2.hoh.util.repackage.Base64;
 
-public class BouncyCastleCmsMessageSigner implements ISigner {
+/**
+ * <p>
+ * Signer which produces and verifies detached CMS (PKCS#7) signatures using
+ * BouncyCastle.
+ * </p>
+ * <p>
+ * The expensive parts of signing and verifying are prepared once and reused:
+ * the BouncyCastle provider is only registered once per JVM, the signing
+ * certificate and certificate store are shared by all threads, and the
+ * signer info generator (which holds the content signer and digest
+ * calculator) and the verifier are kept per thread, since they are not thread
+ * safe. Changing any of the key settings discards everything which was
+ * prepared. Signatures may be computed over a stream as it is being written
+ * using {@link #createSigningOutputStream(OutputStream)}, and verified over a
+ * stream as it is being read using
+ * {@link #createVerifyingInputStream(InputStream, String)}, in which case only
+ * the running digest of the content is kept, never the content itself.
+ * </p>
+ */
+public class BouncyCastleCmsMessageSigner implements IStreamingSigner {
 
 	static final String MSG_KEY_IS_NOT_A_PRIVATE_KEY = "Key is not a private key: ";
 	static final String MSG_KEY_IS_NOT_A_PUBLIC_KEY = "Key is not a public key: ";
 	static final String MSG_KEYSTORE_DOES_NOT_CONTAIN_KEY_WITH_ALIAS = "Keystore does not contain key with alias: ";
 
 	private static final org.slf4j.Logger ourLog = org.slf4j.LoggerFactory.getLogger(BouncyCastleCmsMessageSigner.class);
+	private static volatile boolean ourProviderRegistered;
 
 	private String myAlgorithm = "SHA512withRSA";
 	private String myAliasPassword;
+	private volatile SigningCertificate mySigningCertificate;
+	private volatile int myGeneration;
 	private String myKeyAlias;
 	private KeyStore myKeyStore;
 	private PrivateKey myPrivateKey;
 	private PublicKey myPublicKey;
+	private final ThreadLocal<CachedSignerInfoGenerator> mySignerInfoGenerator = new ThreadLocal<CachedSignerInfoGenerator>();
+	private final ThreadLocal<CachedVerifier> myVerifier = new ThreadLocal<CachedVerifier>();
 
 	/**
 	 * Constructor
@@ -55,8 +89,135 @@ public class BouncyCastleCmsMessageSigner implements ISigner {
 	public BouncyCastleCmsMessageSigner() {
 		super();
 	}
-	
-	private PrivateKey getPrivateKey() throws GeneralSecurityException, SignatureFailureException {
+
+	/**
+	 * Takes this thread's signer info generator, creating one if there is
+	 * none. It is removed from the thread until it is
+	 * {@link #releaseSignerInfoGenerator(CachedSignerInfoGenerator) released}
+	 * after a successful signature, so that a generator left part way through
+	 * a signature (e.g. because the stream being signed failed) is never
+	 * reused.
+	 */
+	private CachedSignerInfoGenerator acquireSignerInfoGenerator() throws GeneralSecurityException, SignatureFailureException, OperatorCreationException {
+		CachedSignerInfoGenerator retVal = mySignerInfoGenerator.get();
+		int generation = myGeneration;
+		if (retVal != null && retVal.myGeneration == generation) {
+			mySignerInfoGenerator.remove();
+			return retVal;
+		}
+
+		registerProvider();
+		SigningCertificate cert = getSigningCertificate();
+		ContentSigner contentSigner = new JcaContentSignerBuilder(myAlgorithm).setProvider("BC").build(getPrivateKey());
+		SignerInfoGenerator generator = new JcaSignerInfoGeneratorBuilder(new JcaDigestCalculatorProviderBuilder().setProvider("BC").build()).build(contentSigner, cert.myCertificate);
+		return new CachedSignerInfoGenerator(generation, cert, generator);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * <p>
+	 * The signature produced is a detached CMS signature, which can be verified
+	 * using {@link #verify(byte[], String)}
+	 * </p>
+	 */
+	public SigningOutputStream createSigningOutputStream(OutputStream theWrap) throws SignatureFailureException {
+		try {
+			final CachedSignerInfoGenerator generator = acquireSignerInfoGenerator();
+
+			CMSSignedDataStreamGenerator gen = new CMSSignedDataStreamGenerator();
+			gen.addSignerInfoGenerator(generator.myGenerator);
+			gen.addCertificates(generator.myCertificate.myCertStore);
+
+			final ByteArrayOutputStream signatureBytes = new ByteArrayOutputStream();
+			final OutputStream content = gen.open(signatureBytes, false);
+			return new SigningOutputStream(theWrap) {
+
+				@Override
+				public String finish() throws SignatureFailureException {
+					try {
+						content.close();
+					} catch (IOException e) {
+						throw new SignatureFailureException(e);
+					}
+					releaseSignerInfoGenerator(generator);
+					return myAlgorithm + ' ' + Base64.encodeBase64String(signatureBytes.toByteArray());
+				}
+
+				@Override
+				protected void update(byte[] theBytes, int theOffset, int theLength) throws IOException {
+					content.write(theBytes, theOffset, theLength);
+				}
+
+			};
+
+		} catch (SignatureFailureException e) {
+			throw e;
+		} catch (Exception e) {
+			throw new SignatureFailureException(e);
+		}
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * <p>
+	 * Only the running digest of the content is kept while it is read, and
+	 * the signature itself is checked once the stream has been read to the
+	 * end.
+	 * </p>
+	 */
+	public VerifyingInputStream createVerifyingInputStream(InputStream theWrap, String theSignature) throws SignatureVerificationException, SignatureFailureException {
+		try {
+			registerProvider();
+			DigestCalculatorProvider digestProvider = new JcaDigestCalculatorProviderBuilder().setProvider("BC").build();
+			final CMSSignedDataParser parser = new CMSSignedDataParser(digestProvider, new CMSTypedStream(theWrap), decodeSignature(theSignature));
+			return new VerifyingInputStream(parser.getSignedContent().getContentStream()) {
+
+				@Override
+				public void verify() throws SignatureVerificationException, SignatureFailureException {
+					try {
+						verifySigners(parser.getSignerInfos());
+					} catch (SignatureVerificationException e) {
+						throw e;
+					} catch (SignatureFailureException e) {
+						throw e;
+					} catch (Exception e) {
+						throw new SignatureFailureException(e);
+					}
+				}
+
+			};
+
+		} catch (SignatureVerificationException e) {
+			throw e;
+		} catch (Exception e) {
+			throw new SignatureFailureException(e);
+		}
+	}
+
+	/**
+	 * Strips the algorithm from the start of a signature block and decodes
+	 * the rest
+	 */
+	private static byte[] decodeSignature(String theSignature) throws SignatureVerificationException {
+		int spaceIndex = theSignature.indexOf(' ');
+		if (spaceIndex == -1) {
+			throw new SignatureVerificationException("No algorithm found in signature block: " + theSignature);
+		}
+		return Base64.decodeBase64(theSignature.substring(spaceIndex + 1));
+	}
+
+	/**
+	 * Discards everything prepared from the key settings, since they have
+	 * changed
+	 */
+	private synchronized void invalidate() {
+		myGeneration++;
+		mySigningCertificate = null;
+		myPrivateKey = null;
+		myPublicKey = null;
+	}
+
+	private synchronized PrivateKey getPrivateKey() throws GeneralSecurityException, SignatureFailureException {
 		if (myKeyStore == null) {
 			throw new SignatureFailureException("Keystore is not set");
 		}
@@ -83,7 +244,7 @@ public class BouncyCastleCmsMessageSigner implements ISigner {
 		return this.myPrivateKey;
 	}
 
-	private PublicKey getPublicKey() throws SignatureFailureException {
+	private synchronized PublicKey getPublicKey() throws SignatureFailureException {
 		if (myKeyStore == null) {
 			throw new SignatureFailureException("Keystore is not set");
 		}
@@ -112,12 +273,60 @@ public class BouncyCastleCmsMessageSigner implements ISigner {
 		return myPublicKey;
 	}
 
+	/**
+	 * Returns the signing certificate and a certificate store containing it,
+	 * which are shared by all threads
+	 */
+	private SigningCertificate getSigningCertificate() throws GeneralSecurityException, SignatureFailureException {
+		SigningCertificate retVal = mySigningCertificate;
+		if (retVal == null) {
+			synchronized (this) {
+				if (myKeyStore == null) {
+					throw new SignatureFailureException("Keystore is not set");
+				}
+				X509Certificate signCert = (X509Certificate) myKeyStore.getCertificate(myKeyAlias);
+				List<X509Certificate> certList = new ArrayList<X509Certificate>();
+				certList.add(signCert);
+				retVal = new SigningCertificate(signCert, new JcaCertStore(certList));
+				mySigningCertificate = retVal;
+			}
+		}
+		return retVal;
+	}
+
+	/**
+	 * Takes this thread's verifier, creating one if there is none. See
+	 * {@link #acquireSignerInfoGenerator()}.
+	 */
+	private CachedVerifier acquireVerifier() throws SignatureFailureException, OperatorCreationException {
+		CachedVerifier retVal = myVerifier.get();
+		int generation = myGeneration;
+		if (retVal != null && retVal.myGeneration == generation) {
+			myVerifier.remove();
+			return retVal;
+		}
+		return new CachedVerifier(generation, new JcaSimpleSignerInfoVerifierBuilder().build(getPublicKey()));
+	}
+
+	private void releaseSignerInfoGenerator(CachedSignerInfoGenerator theGenerator) {
+		if (theGenerator.myGeneration == myGeneration) {
+			mySignerInfoGenerator.set(theGenerator);
+		}
+	}
+
+	private void releaseVerifier(CachedVerifier theVerifier) {
+		if (theVerifier.myGeneration == myGeneration) {
+			myVerifier.set(theVerifier);
+		}
+	}
+
 	/**
 	 * @param theAliasPassword
 	 *            the aliasPassword to set
 	 */
 	public void setAliasPassword(String theAliasPassword) {
 		myAliasPassword = theAliasPassword;
+		invalidate();
 	}
 
 	/**
@@ -126,6 +335,7 @@ public class BouncyCastleCmsMessageSigner implements ISigner {
 	 */
 	public void setKeyAlias(String theKeyAlias) {
 		myKeyAlias = theKeyAlias;
+		invalidate();
 	}
 
 	/**
@@ -137,6 +347,7 @@ public class BouncyCastleCmsMessageSigner implements ISigner {
 			throw new NullPointerException("Keystore can not be null");
 		}
 		myKeyStore = theKeyStore;
+		invalidate();
 	}
 
 	/**
@@ -144,27 +355,20 @@ public class BouncyCastleCmsMessageSigner implements ISigner {
 	 */
 	public String sign(byte[] theBytes) throws SignatureFailureException {
 		try {
-			Security.addProvider(new BouncyCastleProvider());
+			CachedSignerInfoGenerator generator = acquireSignerInfoGenerator();
 
-			List<X509Certificate> certList = new ArrayList<X509Certificate>();
 			CMSTypedData msg = new CMSProcessableByteArray(theBytes);
 
-			X509Certificate signCert = (X509Certificate) myKeyStore.getCertificate(myKeyAlias);
-			certList.add(signCert);
-
-			Store certs = new JcaCertStore(certList);
-
 			CMSSignedDataGenerator gen = new CMSSignedDataGenerator();
-			ContentSigner sha1Signer = new JcaContentSignerBuilder(myAlgorithm).setProvider("BC").build(getPrivateKey());
-
-			gen.addSignerInfoGenerator(new JcaSignerInfoGeneratorBuilder(new JcaDigestCalculatorProviderBuilder().setProvider("BC").build()).build(sha1Signer, signCert));
-
-			gen.addCertificates(certs);
+			gen.addSignerInfoGenerator(generator.myGenerator);
+			gen.addCertificates(generator.myCertificate.myCertStore);
 
 			CMSSignedData sigData = gen.generate(msg, false);
+			releaseSignerInfoGenerator(generator);
 			return myAlgorithm + ' ' + Base64.encodeBase64String(sigData.getEncoded());
-//			return Base64.encodeBase64String(sigData.getEncoded());
 
+		} catch (SignatureFailureException e) {
+			throw e;
 		} catch (Exception e) {
 			throw new SignatureFailureException(e);
 		}
@@ -174,50 +378,111 @@ public class BouncyCastleCmsMessageSigner implements ISigner {
 	 * {@inheritDoc}
 	 */
 	public void verify(byte[] theBytes, String theSignature) throws SignatureVerificationException, SignatureFailureException {
-		PublicKey pubKey = getPublicKey();
-
 		try {
 
-			int spaceIndex = theSignature.indexOf(' ');
-			if (spaceIndex == -1) {
-				throw new SignatureVerificationException("No algorithm found in signature block: " + theSignature);
-			}
+			CMSProcessable content = new CMSProcessableByteArray(theBytes);
+			CMSSignedData s = new CMSSignedData(content, decodeSignature(theSignature));
+			verifySigners(s.getSignerInfos());
 
-			theSignature = theSignature.substring(spaceIndex + 1);
+		} catch (SignatureVerificationException e) {
+			throw e;
+		} catch (SignatureFailureException e) {
+			throw e;
+		} catch (Exception e) {
+			throw new SignatureFailureException(e);
+		}
 
-			CMSProcessable content = new CMSProcessableByteArray(theBytes);
-			CMSSignedData s = new CMSSignedData(content, Base64.decodeBase64(theSignature));
+	}
 
-			ourLog.debug("Verifying message against public key with alias[{}]", myKeyAlias);
+	/**
+	 * Checks that at least one of the signers of a message verifies against
+	 * the public key
+	 */
+	private void verifySigners(SignerInformationStore theSigners) throws Exception {
+		ourLog.debug("Verifying message against public key with alias[{}]", myKeyAlias);
 
-			SignerInformationVerifier vib = new JcaSimpleSignerInfoVerifierBuilder().build(pubKey);
+		CachedVerifier verifier = acquireVerifier();
 
-			SignerInformationStore signers = s.getSignerInfos();
-			boolean verified = false;
+		boolean verified = false;
 
-			for (Iterator<?> i = signers.getSigners().iterator(); i.hasNext();) {
-				SignerInformation signer = (SignerInformation) i.next();
-				try {
+		for (Iterator<?> i = theSigners.getSigners().iterator(); i.hasNext();) {
+			SignerInformation signer = (SignerInformation) i.next();
+			try {
 
-					ourLog.debug("Signer: {}", signer.getSID());
+				ourLog.debug("Signer: {}", signer.getSID());
 
-					if (signer.verify(vib)) {
-						verified = true;
-					}
-				} catch (CMSSignerDigestMismatchException e) {
-					throw new SignatureVerificationException(e);
+				if (signer.verify(verifier.myVerifier)) {
+					verified = true;
 				}
-
+			} catch (CMSSignerDigestMismatchException e) {
+				throw new SignatureVerificationException(e);
 			}
 
-			if (verified == false) {
-				throw new SignatureVerificationException();
+		}
+
+		// The verifier keeps no state between signatures, so it may be
+		// reused whatever the outcome
+		releaseVerifier(verifier);
+
+		if (verified == false) {
+			throw new SignatureVerificationException();
+		}
+	}
+
+	private static void registerProvider() {
+		if (!ourProviderRegistered) {
+			synchronized (BouncyCastleCmsMessageSigner.class) {
+				if (Security.getProvider(BouncyCastleProvider.PROVIDER_NAME) == null) {
+					Security.addProvider(new BouncyCastleProvider());
+				}
+				ourProviderRegistered = true;
 			}
+		}
+	}
 
-		} catch (SignatureVerificationException e) {
-			throw e;
-		} catch (Exception e) {
-			throw new SignatureFailureException(e);
+	/**
+	 * A signer info generator, which may be reused by one thread at a time
+	 */
+	private static class CachedSignerInfoGenerator {
+
+		private final SigningCertificate myCertificate;
+		private final SignerInfoGenerator myGenerator;
+		private final int myGeneration;
+
+		CachedSignerInfoGenerator(int theGeneration, SigningCertificate theCertificate, SignerInfoGenerator theGenerator) {
+			myGeneration = theGeneration;
+			myCertificate = theCertificate;
+			myGenerator = theGenerator;
+		}
+
+	}
+
+	/**
+	 * A verifier, which may be reused by one thread at a time
+	 */
+	private static class CachedVerifier {
+
+		private final int myGeneration;
+		private final SignerInformationVerifier myVerifier;
+
+		CachedVerifier(int theGeneration, SignerInformationVerifier theVerifier) {
+			myGeneration = theGeneration;
+			myVerifier = theVerifier;
+		}
+
+	}
+
+	/**
+	 * The signing certificate and a store containing it (immutable)
+	 */
+	private static class SigningCertificate {
+
+		private final Store myCertStore;
+		private final X509Certificate myCertificate;
+
+		SigningCertificate(X509Certificate theCertificate, Store theCertStore) {
+			myCertificate = theCertificate;
+			myCertStore = theCertStore;
 		}
 
 	}
@@ -0,0 +1,34 @@
+package ca.uhn.hl7v2.hoh.sign;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * A signer which is able to sign a message as it is being written, and to
+ * verify one as it is being read, without needing the whole message to be
+ * available in memory first
+ */
+public interface IStreamingSigner extends ISigner {
+
+	/**
+	 * Creates a stream which passes everything written to it through to the
+	 * given stream, and signs those bytes as they pass. Once all bytes have
+	 * been written, {@link SigningOutputStream#finish()} returns the
+	 * signature, in the same format as {@link #sign(byte[])} would return for
+	 * the same bytes.
+	 */
+	SigningOutputStream createSigningOutputStream(OutputStream theWrap) throws SignatureFailureException;
+
+	/**
+	 * Creates a stream which passes through everything read from the given
+	 * stream, and checks those bytes against the given signature as they
+	 * pass. Once the stream has been read to the end,
+	 * {@link VerifyingInputStream#verify()} has the same outcome as
+	 * {@link #verify(byte[], String)} would have for the same bytes.
+	 *
+	 * @throws SignatureVerificationException
+	 *             If the signature is not in a valid format
+	 */
+	VerifyingInputStream createVerifyingInputStream(InputStream theWrap, String theSignature) throws SignatureVerificationException, SignatureFailureException;
+
+}
@@ -0,0 +1,50 @@
+package ca.uhn.hl7v2.hoh.sign;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Stream which passes bytes through to a wrapped stream while computing a
+ * signature over them
+ * 
+ * @see IStreamingSigner#createSigningOutputStream(OutputStream)
+ */
+public abstract class SigningOutputStream extends FilterOutputStream {
+
+	/**
+	 * Constructor
+	 */
+	protected SigningOutputStream(OutputStream theWrap) {
+		super(theWrap);
+	}
+
+	/**
+	 * Completes the signature over all bytes written so far and returns it.
+	 * The wrapped stream is not closed.
+	 */
+	public abstract String finish() throws SignatureFailureException;
+
+	/**
+	 * Adds bytes to the signature
+	 */
+	protected abstract void update(byte[] theBytes, int theOffset, int theLength) throws IOException;
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public void write(byte[] theBytes, int theOffset, int theLength) throws IOException {
+		out.write(theBytes, theOffset, theLength);
+		update(theBytes, theOffset, theLength);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public void write(int theByte) throws IOException {
+		write(new byte[] { (byte) theByte }, 0, 1);
+	}
+
+}
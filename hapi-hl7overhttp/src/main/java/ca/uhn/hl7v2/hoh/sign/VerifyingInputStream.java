@@ -0,0 +1,65 @@
+package ca.uhn.hl7v2.hoh.sign;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Stream which passes bytes through from a wrapped stream while computing a
+ * signature over them, so that the signature can be verified once the
+ * stream has been read to the end
+ *
+ * @see IStreamingSigner#createVerifyingInputStream(InputStream, String)
+ */
+public abstract class VerifyingInputStream extends FilterInputStream {
+
+	/**
+	 * Constructor
+	 *
+	 * @param theIn
+	 *            The stream to read from, which must add everything read from
+	 *            it to the signature
+	 */
+	protected VerifyingInputStream(InputStream theIn) {
+		super(theIn);
+	}
+
+	/**
+	 * Marking is not supported, since bytes must be added to the signature
+	 * exactly once
+	 */
+	@Override
+	public boolean markSupported() {
+		return false;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * <p>
+	 * Skipped bytes are read, so that they are added to the signature.
+	 * </p>
+	 */
+	@Override
+	public long skip(long theCount) throws IOException {
+		byte[] buffer = new byte[(int) Math.min(Math.max(theCount, 0), 1024)];
+		long remaining = theCount;
+		while (remaining > 0) {
+			int count = read(buffer, 0, (int) Math.min(remaining, buffer.length));
+			if (count == -1) {
+				break;
+			}
+			remaining -= count;
+		}
+		return theCount - Math.max(remaining, 0);
+	}
+
+	/**
+	 * Verifies the signature over all bytes read. This must only be called
+	 * once the stream has been read to the end.
+	 *
+	 * @throws SignatureVerificationException
+	 *             If the signature does not match the bytes which were read
+	 */
+	public abstract void verify() throws SignatureVerificationException, SignatureFailureException;
+
+}
@@ -16,23 +16,42 @@ import javax.net.ssl.KeyManager;
 import javax.net.ssl.KeyManagerFactory;
 import javax.net.ssl.SSLContext;
 import javax.net.ssl.SSLServerSocketFactory;
+import javax.net.ssl.SSLSessionContext;
+import javax.net.ssl.SSLSocket;
 import javax.net.ssl.SSLSocketFactory;
 import javax.net.ssl.TrustManager;
 import javax.net.ssl.TrustManagerFactory;
 
 /**
+ * <p>
  * Socket Factory which creates a TLS/SSL socket using a custom keystore and
  * certificate.
+ * </p>
+ * <p>
+ * The keystore is loaded and the {@link SSLContext} is built when the first
+ * socket is created, and are then reused for every socket until the keystore
+ * settings are changed. Reusing the context also reuses its session cache, so
+ * a client which reconnects (e.g. after an idle connection has been closed)
+ * can resume its previous session using an abbreviated handshake instead of
+ * performing a full key exchange. The size and lifetime of the session cache
+ * may be configured using {@link #setSessionCacheSize(int)} and
+ * {@link #setSessionTimeout(int)}, and the handshakes performed by client
+ * sockets are recorded in {@link #getHandshakeMetrics()}.
+ * </p>
  */
 public class CustomCertificateTlsSocketFactory implements ISocketFactory {
 
 	private static final org.slf4j.Logger ourLog = org.slf4j.LoggerFactory.getLogger(CustomCertificateTlsSocketFactory.class);
+	private SSLContext myContext;
+	private final TlsHandshakeMetrics myHandshakeMetrics = new TlsHandshakeMetrics();
 	private KeyStore myKeystore;
 	private String myKeystoreFilename;
+	private boolean myKeystoreLoadedFromFile;
 	private String myKeystorePassphrase;
 	private String myKeystoreType = "JKS";
 	private SSLServerSocketFactory myServerSocketFactory;
-
+	private int mySessionCacheSize = -1;
+	private int mySessionTimeout = -1;
 	private SSLSocketFactory mySocketFactory = null;
 
 	/**
@@ -77,20 +96,58 @@ public class CustomCertificateTlsSocketFactory implements ISocketFactory {
 	 * {@inheritDoc}
 	 */
 	public Socket createClientSocket() throws IOException {
-		initialize();
+		SSLSocketFactory socketFactory;
+		synchronized (this) {
+			initialize();
+			socketFactory = mySocketFactory;
+		}
 		ourLog.debug("Creating client socket");
-		return mySocketFactory.createSocket();
+		SSLSocket retVal = (SSLSocket) socketFactory.createSocket();
+		myHandshakeMetrics.attach(retVal);
+		return retVal;
 	}
 
 	/**
 	 * {@inheritDoc}
 	 */
 	public ServerSocket createServerSocket() throws IOException {
-		initialize();
+		SSLServerSocketFactory serverSocketFactory;
+		synchronized (this) {
+			initialize();
+			serverSocketFactory = myServerSocketFactory;
+		}
 		ourLog.debug("Creating server socket");
-		return myServerSocketFactory.createServerSocket();
+		return serverSocketFactory.createServerSocket();
+	}
+
+	/**
+	 * Returns the handshake metrics for client sockets created by this
+	 * factory
+	 */
+	public TlsHandshakeMetrics getHandshakeMetrics() {
+		return myHandshakeMetrics;
+	}
+
+	private void applySessionSettings() {
+		applySessionSettings(myContext.getClientSessionContext());
+		applySessionSettings(myContext.getServerSessionContext());
 	}
 
+	private void applySessionSettings(SSLSessionContext theSessionContext) {
+		if (theSessionContext == null) {
+			return;
+		}
+		if (mySessionCacheSize >= 0) {
+			theSessionContext.setSessionCacheSize(mySessionCacheSize);
+		}
+		if (mySessionTimeout >= 0) {
+			theSessionContext.setSessionTimeout(mySessionTimeout);
+		}
+	}
+
+	/**
+	 * Must be called while holding the lock on this instance
+	 */
 	private void initialize() throws IOException {
 		if (mySocketFactory != null) {
 			return;
@@ -100,13 +157,20 @@ public class CustomCertificateTlsSocketFactory implements ISocketFactory {
 			char[] passphrase = myKeystorePassphrase != null ? myKeystorePassphrase.toCharArray() : null;
 			if (myKeystore == null) {
 
-				myKeystore = KeyStore.getInstance(myKeystoreType);
+				KeyStore keystore = KeyStore.getInstance(myKeystoreType);
 
 				try {
-					myKeystore.load(new FileInputStream(myKeystoreFilename), passphrase);
+					FileInputStream is = new FileInputStream(myKeystoreFilename);
+					try {
+						keystore.load(is, passphrase);
+					} finally {
+						is.close();
+					}
 				} catch (IOException e) {
 					throw new IOException("Failed to load keystore: " + myKeystoreFilename, e);
 				}
+				myKeystore = keystore;
+				myKeystoreLoadedFromFile = true;
 			}
 
 			SSLContext ctx = SSLContext.getInstance("TLS");
@@ -119,8 +183,11 @@ public class CustomCertificateTlsSocketFactory implements ISocketFactory {
 			KeyManager[] keyManagers = kmf.getKeyManagers();
 			ctx.init(keyManagers, trustManagers, null);
 
+			myContext = ctx;
+			applySessionSettings();
 			mySocketFactory = ctx.getSocketFactory();
 			myServerSocketFactory = ctx.getServerSocketFactory();
+			ourLog.debug("Initialized SSL context for keystore {}", myKeystoreFilename);
 
 		} catch (NoSuchAlgorithmException e) {
 			throw new IOException("Failed to initialize socket factory: " + e.getMessage(), e);
@@ -138,25 +205,74 @@ public class CustomCertificateTlsSocketFactory implements ISocketFactory {
 
 	}
 
+	/**
+	 * Discards the SSL context (and with it the session cache) so that it is
+	 * rebuilt from the current settings when the next socket is created
+	 */
+	private void invalidate() {
+		myContext = null;
+		mySocketFactory = null;
+		myServerSocketFactory = null;
+		if (myKeystoreLoadedFromFile) {
+			myKeystore = null;
+			myKeystoreLoadedFromFile = false;
+		}
+	}
+
 	/**
 	 * The filename to load as a keystore
 	 */
-	public void setKeystoreFilename(String theKeystoreFilename) {
+	public synchronized void setKeystoreFilename(String theKeystoreFilename) {
 		myKeystoreFilename = theKeystoreFilename;
+		invalidate();
 	}
 
 	/**
 	 * The passphrase for the keystore
 	 */
-	public void setKeystorePassphrase(String theKeystorePassphrase) {
+	public synchronized void setKeystorePassphrase(String theKeystorePassphrase) {
 		myKeystorePassphrase = theKeystorePassphrase;
+		invalidate();
 	}
 
 	/**
 	 * Sets the keystore type (e.g. JKS, JCEKS)
 	 */
-	public void setKeystoreType(String theKeystoreType) {
+	public synchronized void setKeystoreType(String theKeystoreType) {
 		myKeystoreType = theKeystoreType;
+		invalidate();
+	}
+
+	/**
+	 * Sets the maximum number of TLS sessions which are cached for resumption,
+	 * for client and server sockets each. A value of 0 means no limit. If not
+	 * set, the JSSE provider's default is used.
+	 */
+	public synchronized void setSessionCacheSize(int theSessionCacheSize) {
+		if (theSessionCacheSize < 0) {
+			throw new IllegalArgumentException("Session cache size can not be negative");
+		}
+		mySessionCacheSize = theSessionCacheSize;
+		if (myContext != null) {
+			applySessionSettings();
+		}
+	}
+
+	/**
+	 * Sets the number of seconds for which a cached TLS session may be
+	 * resumed. A value of 0 means no limit. If not set, the JSSE provider's
+	 * default is used. This should be longer than the time a client leaves
+	 * idle connections open, so that reconnecting after an idle connection is
+	 * closed can resume the session.
+	 */
+	public synchronized void setSessionTimeout(int theSessionTimeoutSeconds) {
+		if (theSessionTimeoutSeconds < 0) {
+			throw new IllegalArgumentException("Session timeout can not be negative");
+		}
+		mySessionTimeout = theSessionTimeoutSeconds;
+		if (myContext != null) {
+			applySessionSettings();
+		}
 	}
 
 }
@@ -0,0 +1,116 @@
+package ca.uhn.hl7v2.hoh.sockets;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.net.ssl.HandshakeCompletedEvent;
+import javax.net.ssl.HandshakeCompletedListener;
+import javax.net.ssl.SSLSocket;
+
+/**
+ * <p>
+ * Counts and times the TLS handshakes completed by sockets created by a
+ * socket factory, and how many of them were abbreviated handshakes which
+ * resumed a cached session rather than performing a full key exchange. A high
+ * proportion of full handshakes on a client which reconnects often suggests
+ * that the session cache is too small or its timeout too short.
+ * </p>
+ * <p>
+ * Handshake times are measured from the creation of the socket, so for client
+ * sockets they include the time taken to establish the TCP connection. Note
+ * that JSSE notifies listeners on a separate thread, so a handshake may be
+ * counted shortly after the socket which performed it has been used. This
+ * class is thread safe.
+ * </p>
+ */
+public class TlsHandshakeMetrics {
+
+	private final AtomicLong myHandshakeCount = new AtomicLong();
+	private final AtomicLong myResumedHandshakeCount = new AtomicLong();
+	private final AtomicLong myTotalHandshakeNanos = new AtomicLong();
+
+	/**
+	 * Starts timing the handshake of a newly created socket
+	 */
+	void attach(SSLSocket theSocket) {
+		theSocket.addHandshakeCompletedListener(new Listener());
+	}
+
+	/**
+	 * Returns the mean time taken by a handshake in milliseconds, or 0 if no
+	 * handshakes have been completed
+	 */
+	public double getAverageHandshakeTimeMillis() {
+		long count = myHandshakeCount.get();
+		if (count == 0) {
+			return 0;
+		}
+		return myTotalHandshakeNanos.get() / 1000000.0 / count;
+	}
+
+	/**
+	 * Returns the number of handshakes which negotiated a new session
+	 */
+	public long getFullHandshakeCount() {
+		return myHandshakeCount.get() - myResumedHandshakeCount.get();
+	}
+
+	/**
+	 * Returns the total number of handshakes completed
+	 */
+	public long getHandshakeCount() {
+		return myHandshakeCount.get();
+	}
+
+	/**
+	 * Returns the number of abbreviated handshakes, which resumed a cached
+	 * session
+	 */
+	public long getResumedHandshakeCount() {
+		return myResumedHandshakeCount.get();
+	}
+
+	/**
+	 * Returns the total time spent in handshakes in milliseconds
+	 */
+	public long getTotalHandshakeTimeMillis() {
+		return myTotalHandshakeNanos.get() / 1000000;
+	}
+
+	/**
+	 * Resets all counters to zero
+	 */
+	public void reset() {
+		myHandshakeCount.set(0);
+		myResumedHandshakeCount.set(0);
+		myTotalHandshakeNanos.set(0);
+	}
+
+	@Override
+	public String toString() {
+		return "TlsHandshakeMetrics[handshakes=" + getHandshakeCount() + ", resumed=" + getResumedHandshakeCount() + ", totalMillis=" + getTotalHandshakeTimeMillis() + "]";
+	}
+
+	private class Listener implements HandshakeCompletedListener {
+
+		private final long myStartMillis = System.currentTimeMillis();
+		private final long myStartNanos = System.nanoTime();
+
+		public void handshakeCompleted(HandshakeCompletedEvent theEvent) {
+			myTotalHandshakeNanos.addAndGet(System.nanoTime() - myStartNanos);
+			myHandshakeCount.incrementAndGet();
+
+			/*
+			 * A session which existed before this socket was created can only
+			 * have been resumed from the cache
+			 */
+			if (theEvent.getSession().getCreationTime() < myStartMillis) {
+				myResumedHandshakeCount.incrementAndGet();
+			}
+
+			// Renegotiations are not timed
+			theEvent.getSocket().removeHandshakeCompletedListener(this);
+		}
+
+	}
+
+}
@@ -0,0 +1,114 @@
+package ca.uhn.hl7v2.hoh.util;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * <p>
+ * A thread safe pool of byte arrays, used to avoid allocating new buffers for
+ * every message which is decoded. Buffers are pooled in power-of-two sizes
+ * from {@link IOUtils#DEFAULT_BUFFER_SIZE} up to
+ * {@link #MAX_POOLED_BUFFER_SIZE}, so a buffer returned by
+ * {@link #acquire(int)} may be larger than requested. Larger buffers are
+ * allocated as needed and are never retained.
+ * </p>
+ * <p>
+ * The pool is bounded by the total number of bytes it will retain. Buffers
+ * released while the pool is full are simply left for the garbage collector.
+ * </p>
+ */
+public class BufferPool {
+
+	/**
+	 * Default maximum number of bytes retained by the pool (4MB)
+	 */
+	public static final int DEFAULT_MAX_RETAINED_BYTES = 4 * 1024 * 1024;
+
+	/**
+	 * Buffers larger than this (1MB) are not pooled
+	 */
+	public static final int MAX_POOLED_BUFFER_SIZE = 1024 * 1024;
+
+	private static final int MIN_POOLED_BUFFER_SIZE = IOUtils.DEFAULT_BUFFER_SIZE;
+	private static final BufferPool ourDefaultInstance = new BufferPool(DEFAULT_MAX_RETAINED_BYTES);
+
+	private final long myMaxRetainedBytes;
+	private final List<Queue<byte[]>> myQueues;
+	private final AtomicLong myRetainedBytes = new AtomicLong();
+
+	/**
+	 * Constructor
+	 *
+	 * @param theMaxRetainedBytes
+	 *            The maximum number of bytes which will be held by the pool
+	 */
+	public BufferPool(long theMaxRetainedBytes) {
+		myMaxRetainedBytes = theMaxRetainedBytes;
+		myQueues = new ArrayList<Queue<byte[]>>();
+		for (int size = MIN_POOLED_BUFFER_SIZE; size <= MAX_POOLED_BUFFER_SIZE; size <<= 1) {
+			myQueues.add(new ConcurrentLinkedQueue<byte[]>());
+		}
+	}
+
+	/**
+	 * Returns a buffer of at least the given size, reusing a pooled buffer if
+	 * one is available. The contents of the returned buffer are undefined.
+	 */
+	public byte[] acquire(int theMinimumSize) {
+		if (theMinimumSize > MAX_POOLED_BUFFER_SIZE) {
+			return new byte[theMinimumSize];
+		}
+
+		int index = 0;
+		int size = MIN_POOLED_BUFFER_SIZE;
+		while (size < theMinimumSize) {
+			size <<= 1;
+			index++;
+		}
+
+		byte[] retVal = myQueues.get(index).poll();
+		if (retVal != null) {
+			myRetainedBytes.addAndGet(-retVal.length);
+			return retVal;
+		}
+		return new byte[size];
+	}
+
+	/**
+	 * Returns the number of bytes currently held by the pool
+	 */
+	public long getRetainedBytes() {
+		return myRetainedBytes.get();
+	}
+
+	/**
+	 * Returns a buffer to the pool. The caller must not use the buffer after
+	 * releasing it. Buffers which were not allocated by this pool, and buffers
+	 * released while the pool is full, are discarded.
+	 */
+	public void release(byte[] theBuffer) {
+		int length = theBuffer.length;
+		if (length < MIN_POOLED_BUFFER_SIZE || length > MAX_POOLED_BUFFER_SIZE || Integer.bitCount(length) != 1) {
+			return;
+		}
+
+		if (myRetainedBytes.addAndGet(length) > myMaxRetainedBytes) {
+			myRetainedBytes.addAndGet(-length);
+			return;
+		}
+
+		int index = Integer.numberOfTrailingZeros(length) - Integer.numberOfTrailingZeros(MIN_POOLED_BUFFER_SIZE);
+		myQueues.get(index).offer(theBuffer);
+	}
+
+	/**
+	 * Returns the shared pool used by the decoders
+	 */
+	public static BufferPool getDefaultInstance() {
+		return ourDefaultInstance;
+	}
+
+}
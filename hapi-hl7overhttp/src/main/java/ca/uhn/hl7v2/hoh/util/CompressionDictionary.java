@@ -0,0 +1,316 @@
+package ca.uhn.hl7v2.hoh.util;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.zip.Adler32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+import java.util.zip.ZipException;
+
+/**
+ * <p>
+ * A preset dictionary for deflate compression, used by the
+ * <code>x-hl7-dictionary</code> content coding. Small HL7 v2 messages compress
+ * poorly on their own because the text which repeats (segment names,
+ * delimiters, common code values) repeats across messages rather than within
+ * one. Priming the compressor with a dictionary of that text lets even the
+ * first segment of a message be compressed.
+ * </p>
+ * <p>
+ * Data is compressed in the zlib format, which records the Adler-32 checksum
+ * of the dictionary. The {@link #getId() ID} of a dictionary is that checksum
+ * in hex, and is sent in the <code>HL7-Dictionary-Id</code> header so that the
+ * receiver can find the same dictionary in its
+ * {@link CompressionDictionaryRegistry}.
+ * </p>
+ * <p>
+ * Dictionaries are built offline from a sample of messages using
+ * {@link CompressionDictionaryBuilder}. Instances are immutable and thread
+ * safe. Each keeps a small pool of deflaters and inflaters.
+ * </p>
+ */
+public class CompressionDictionary {
+
+	/**
+	 * The value of the <code>Content-Encoding</code> header for bodies
+	 * compressed with a dictionary
+	 */
+	public static final String CONTENT_ENCODING = "x-hl7-dictionary";
+
+	/**
+	 * Maximum dictionary size (32KB), which is the size of the deflate window
+	 */
+	public static final int MAX_SIZE = 32 * 1024;
+
+	private final int myAdler;
+	private final byte[] myBytes;
+	private final BlockingQueue<Deflater> myDeflaters = new ArrayBlockingQueue<Deflater>(GZipUtils.MAX_POOLED_CODERS);
+	private final String myId;
+	private final BlockingQueue<Inflater> myInflaters = new ArrayBlockingQueue<Inflater>(GZipUtils.MAX_POOLED_CODERS);
+
+	/**
+	 * Constructor
+	 *
+	 * @param theBytes
+	 *            The dictionary contents. The most frequently used strings
+	 *            should be at the end.
+	 */
+	public CompressionDictionary(byte[] theBytes) {
+		Validate.notNull(theBytes, "bytes");
+		if (theBytes.length == 0 || theBytes.length > MAX_SIZE) {
+			throw new IllegalArgumentException("Dictionary must be between 1 and " + MAX_SIZE + " bytes, was " + theBytes.length);
+		}
+		myBytes = theBytes.clone();
+
+		Adler32 adler = new Adler32();
+		adler.update(myBytes);
+		myAdler = (int) adler.getValue();
+		myId = toId(myAdler);
+	}
+
+	private Deflater acquireDeflater() {
+		Deflater retVal = myDeflaters.poll();
+		if (retVal == null) {
+			retVal = new Deflater(Deflater.BEST_COMPRESSION, false);
+		}
+		retVal.setDictionary(myBytes);
+		return retVal;
+	}
+
+	private Inflater acquireInflater() {
+		Inflater retVal = myInflaters.poll();
+		if (retVal == null) {
+			retVal = new Inflater(false);
+		}
+		return retVal;
+	}
+
+	/**
+	 * Compresses part of a byte array using this dictionary
+	 */
+	public byte[] compress(byte[] theBytes, int theOffset, int theLength) throws IOException {
+		PooledByteArrayOutputStream bos = new PooledByteArrayOutputStream(theLength / 2 + 16);
+		try {
+			OutputStream os = newOutputStream(bos, 512);
+			os.write(theBytes, theOffset, theLength);
+			os.close();
+			return bos.toByteArray();
+		} finally {
+			bos.release();
+		}
+	}
+
+	/**
+	 * Returns a copy of the dictionary contents
+	 */
+	public byte[] getBytes() {
+		return myBytes.clone();
+	}
+
+	/**
+	 * Returns the ID of this dictionary, which is the Adler-32 checksum of
+	 * its contents as 8 lower case hex digits
+	 */
+	public String getId() {
+		return myId;
+	}
+
+	/**
+	 * Returns a stream which compresses data written to it using this
+	 * dictionary. The stream must be {@link DeflaterOutputStream#finish()
+	 * finished} or closed once all data is written.
+	 */
+	public DeflaterOutputStream newOutputStream(OutputStream theOutputStream, int theBufferSize) {
+		return new DictionaryDeflaterOutputStream(theOutputStream, theBufferSize);
+	}
+
+	/**
+	 * Returns a stream which uncompresses data read from the given stream
+	 * using this dictionary. The stream should be closed once it has been
+	 * read, so that its inflater can be reused.
+	 */
+	public InflaterInputStream newInputStream(InputStream theInputStream, int theBufferSize) {
+		return new DictionaryInflaterInputStream(theInputStream, theBufferSize);
+	}
+
+	private void releaseDeflater(Deflater theDeflater) {
+		theDeflater.reset();
+		if (!myDeflaters.offer(theDeflater)) {
+			theDeflater.end();
+		}
+	}
+
+	private void releaseInflater(Inflater theInflater) {
+		theInflater.reset();
+		if (!myInflaters.offer(theInflater)) {
+			theInflater.end();
+		}
+	}
+
+	@Override
+	public String toString() {
+		return "CompressionDictionary[id=" + myId + ", size=" + myBytes.length + "]";
+	}
+
+	/**
+	 * Uncompresses part of a byte array into a pooled buffer. The caller must
+	 * {@link PooledByteArrayOutputStream#release() release} the returned
+	 * buffer once it is done with the contents.
+	 *
+	 * @throws ZipException
+	 *             If the data was compressed with a different dictionary, or
+	 *             is corrupt
+	 */
+	public PooledByteArrayOutputStream uncompress(byte[] theBytes, int theOffset, int theLength) throws IOException {
+		PooledByteArrayOutputStream retVal = new PooledByteArrayOutputStream((int) Math.min(theLength * 4L, BufferPool.MAX_POOLED_BUFFER_SIZE));
+		Inflater inflater = acquireInflater();
+		boolean success = false;
+		try {
+			inflater.setInput(theBytes, theOffset, theLength);
+			while (!inflater.finished()) {
+				byte[] buffer = retVal.getBufferForWrite(1);
+				int start = retVal.size();
+				int count = inflater.inflate(buffer, start, buffer.length - start);
+				if (count > 0) {
+					retVal.advance(count);
+				} else if (inflater.needsDictionary()) {
+					if (inflater.getAdler() != myAdler) {
+						throw new ZipException("Data was compressed using dictionary " + toId(inflater.getAdler()) + ", not " + myId);
+					}
+					inflater.setDictionary(myBytes);
+				} else if (inflater.needsInput()) {
+					throw new EOFException("Unexpected end of compressed data");
+				}
+			}
+			success = true;
+			return retVal;
+		} catch (DataFormatException e) {
+			throw new ZipException(e.getMessage());
+		} finally {
+			releaseInflater(inflater);
+			if (!success) {
+				retVal.release();
+			}
+		}
+	}
+
+	/**
+	 * Loads a dictionary from a file, such as one written by
+	 * {@link CompressionDictionaryBuilder}
+	 */
+	public static CompressionDictionary load(File theFile) throws IOException {
+		FileInputStream is = new FileInputStream(theFile);
+		try {
+			return load(is);
+		} finally {
+			is.close();
+		}
+	}
+
+	/**
+	 * Loads a dictionary from a stream. The stream is read until the end, but
+	 * is not closed.
+	 */
+	public static CompressionDictionary load(InputStream theInputStream) throws IOException {
+		PooledByteArrayOutputStream bos = new PooledByteArrayOutputStream(MAX_SIZE);
+		try {
+			bos.readFully(theInputStream);
+			return new CompressionDictionary(Arrays.copyOf(bos.getBuffer(), bos.size()));
+		} finally {
+			bos.release();
+		}
+	}
+
+	private static String toId(int theAdler) {
+		String hex = Integer.toHexString(theAdler);
+		return "00000000".substring(hex.length()) + hex;
+	}
+
+	/**
+	 * Supplies the dictionary when the inflater asks for it, and returns the
+	 * inflater to the pool once closed
+	 */
+	private class DictionaryInflaterInputStream extends InflaterInputStream {
+
+		private boolean myClosed;
+
+		DictionaryInflaterInputStream(InputStream theInputStream, int theBufferSize) {
+			super(theInputStream, acquireInflater(), theBufferSize);
+		}
+
+		@Override
+		public void close() throws IOException {
+			if (myClosed) {
+				return;
+			}
+			try {
+				super.close();
+			} finally {
+				myClosed = true;
+				releaseInflater(inf);
+			}
+		}
+
+		@Override
+		public int read(byte[] theBytes, int theOffset, int theLength) throws IOException {
+			if (myClosed) {
+				throw new IOException("Stream closed");
+			}
+			int retVal = super.read(theBytes, theOffset, theLength);
+			if (retVal == -1 && inf.needsDictionary()) {
+				if (inf.getAdler() != myAdler) {
+					throw new ZipException("Data was compressed using dictionary " + toId(inf.getAdler()) + ", not " + myId);
+				}
+				inf.setDictionary(myBytes);
+				retVal = super.read(theBytes, theOffset, theLength);
+			}
+			return retVal;
+		}
+
+	}
+
+	/**
+	 * Returns its deflater to the pool once finished
+	 */
+	private class DictionaryDeflaterOutputStream extends DeflaterOutputStream {
+
+		private boolean myFinished;
+
+		DictionaryDeflaterOutputStream(OutputStream theOutputStream, int theBufferSize) {
+			super(theOutputStream, acquireDeflater(), theBufferSize);
+		}
+
+		@Override
+		public void finish() throws IOException {
+			if (myFinished) {
+				return;
+			}
+			try {
+				super.finish();
+			} finally {
+				myFinished = true;
+				releaseDeflater(def);
+			}
+		}
+
+		@Override
+		public void write(byte[] theBytes, int theOffset, int theLength) throws IOException {
+			if (myFinished) {
+				throw new IOException("Compressed stream has already been finished");
+			}
+			super.write(theBytes, theOffset, theLength);
+		}
+
+	}
+
+}
@@ -0,0 +1,250 @@
+package ca.uhn.hl7v2.hoh.util;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import ca.uhn.hl7v2.util.Hl7InputStreamMessageStringIterator;
+
+/**
+ * <p>
+ * Builds a {@link CompressionDictionary} from a sample of ER7 encoded
+ * messages. Each message is broken into candidate strings: segment headers
+ * (e.g. <code>\rPID|</code>), whole short segments, fields and components,
+ * each including its leading delimiter. Candidates found in more than one
+ * message are scored by the number of messages containing them multiplied by
+ * their length, and the best are packed into the dictionary, with the best of
+ * all at the end, where deflate can reach them most cheaply.
+ * </p>
+ * <p>
+ * This class is intended to be used offline, e.g. by running
+ * {@link #main(String[])} against a file of messages captured from a real
+ * interface. The sample should be representative of the traffic which will be
+ * compressed, and both ends must use the same dictionary.
+ * </p>
+ */
+public class CompressionDictionaryBuilder {
+
+	/**
+	 * Default dictionary size (16KB), which leaves half of the deflate window
+	 * for the message itself
+	 */
+	public static final int DEFAULT_MAX_SIZE = 16 * 1024;
+
+	/**
+	 * Segments up to this length are also considered as candidates in full
+	 */
+	private static final int MAX_WHOLE_SEGMENT_LENGTH = 200;
+
+	private static final int MIN_CANDIDATE_LENGTH = 3;
+
+	private Charset myCharset = Charset.forName("UTF-8");
+	private final Map<String, int[]> myDocumentFrequencies = new HashMap<String, int[]>();
+	private int myMaxSize = DEFAULT_MAX_SIZE;
+	private int myMessageCount;
+
+	/**
+	 * Adds a sample message
+	 */
+	public void addMessage(String theMessage) {
+		if (theMessage == null || theMessage.length() < 8 || !theMessage.startsWith("MSH")) {
+			return;
+		}
+		char fieldSep = theMessage.charAt(3);
+		char compSep = theMessage.charAt(4);
+
+		Set<String> candidates = new HashSet<String>();
+		for (String nextSegment : theMessage.split("[\\r\\n]+")) {
+			if (nextSegment.length() < MIN_CANDIDATE_LENGTH) {
+				continue;
+			}
+			if (nextSegment.length() <= MAX_WHOLE_SEGMENT_LENGTH) {
+				candidates.add("\r" + nextSegment);
+			}
+
+			int fieldStart = nextSegment.indexOf(fieldSep);
+			if (fieldStart == -1) {
+				continue;
+			}
+			candidates.add("\r" + nextSegment.substring(0, fieldStart + 1));
+
+			while (fieldStart != -1) {
+				int fieldEnd = nextSegment.indexOf(fieldSep, fieldStart + 1);
+				String field = nextSegment.substring(fieldStart, fieldEnd == -1 ? nextSegment.length() : fieldEnd);
+				addCandidate(candidates, field);
+
+				int compStart = field.indexOf(compSep);
+				if (compStart != -1) {
+					addCandidate(candidates, field.substring(0, compStart + 1));
+					while (compStart != -1) {
+						int compEnd = field.indexOf(compSep, compStart + 1);
+						addCandidate(candidates, field.substring(compStart, compEnd == -1 ? field.length() : compEnd));
+						compStart = compEnd;
+					}
+				}
+				fieldStart = fieldEnd;
+			}
+		}
+
+		for (String next : candidates) {
+			int[] count = myDocumentFrequencies.get(next);
+			if (count == null) {
+				count = new int[1];
+				myDocumentFrequencies.put(next, count);
+			}
+			count[0]++;
+		}
+		myMessageCount++;
+	}
+
+	/**
+	 * Adds each message provided by an iterator, such as an
+	 * {@link Hl7InputStreamMessageStringIterator}
+	 */
+	public void addMessages(Iterator<String> theMessages) {
+		while (theMessages.hasNext()) {
+			addMessage(theMessages.next());
+		}
+	}
+
+	/**
+	 * Builds the dictionary from the messages added so far
+	 *
+	 * @throws IllegalStateException
+	 *             If no strings were found in more than one message
+	 */
+	public CompressionDictionary build() {
+		List<Map.Entry<String, int[]>> entries = new ArrayList<Map.Entry<String, int[]>>();
+		for (Map.Entry<String, int[]> next : myDocumentFrequencies.entrySet()) {
+			if (next.getValue()[0] > 1) {
+				entries.add(next);
+			}
+		}
+		Collections.sort(entries, new Comparator<Map.Entry<String, int[]>>() {
+			public int compare(Map.Entry<String, int[]> theO1, Map.Entry<String, int[]> theO2) {
+				long score1 = (long) theO1.getValue()[0] * theO1.getKey().length();
+				long score2 = (long) theO2.getValue()[0] * theO2.getKey().length();
+				if (score1 != score2) {
+					return score1 > score2 ? -1 : 1;
+				}
+				return theO1.getKey().compareTo(theO2.getKey());
+			}
+		});
+
+		// Best first, skipping anything already covered by a better string
+		List<byte[]> chosen = new ArrayList<byte[]>();
+		StringBuilder chosenText = new StringBuilder();
+		int size = 0;
+		for (Map.Entry<String, int[]> next : entries) {
+			String candidate = next.getKey();
+			if (chosenText.indexOf(candidate) != -1) {
+				continue;
+			}
+			byte[] bytes = candidate.getBytes(myCharset);
+			if (size + bytes.length > myMaxSize) {
+				continue;
+			}
+			chosen.add(bytes);
+			chosenText.append(candidate).append('\0');
+			size += bytes.length;
+		}
+		if (size == 0) {
+			throw new IllegalStateException("No repeated content found in " + myMessageCount + " messages");
+		}
+
+		// ...but written best last
+		byte[] dictionary = new byte[size];
+		int pos = size;
+		for (byte[] next : chosen) {
+			pos -= next.length;
+			System.arraycopy(next, 0, dictionary, pos, next.length);
+		}
+		return new CompressionDictionary(dictionary);
+	}
+
+	/**
+	 * Returns the number of messages added so far
+	 */
+	public int getMessageCount() {
+		return myMessageCount;
+	}
+
+	/**
+	 * Sets the charset used to convert the dictionary to bytes. This should
+	 * match the charset messages will be sent with (default is UTF-8).
+	 */
+	public void setCharset(Charset theCharset) {
+		Validate.notNull(theCharset, "charset");
+		myCharset = theCharset;
+	}
+
+	/**
+	 * Sets the maximum dictionary size in bytes. Default is
+	 * {@link #DEFAULT_MAX_SIZE}, and the limit is
+	 * {@link CompressionDictionary#MAX_SIZE}. Larger dictionaries help larger
+	 * messages less, since the dictionary and the message share the deflate
+	 * window.
+	 */
+	public void setMaxSize(int theMaxSize) {
+		if (theMaxSize < 1 || theMaxSize > CompressionDictionary.MAX_SIZE) {
+			throw new IllegalArgumentException("Max size must be between 1 and " + CompressionDictionary.MAX_SIZE);
+		}
+		myMaxSize = theMaxSize;
+	}
+
+	private static void addCandidate(Set<String> theCandidates, String theCandidate) {
+		if (theCandidate.length() >= MIN_CANDIDATE_LENGTH) {
+			theCandidates.add(theCandidate);
+		}
+	}
+
+	/**
+	 * Builds a dictionary from a file of ER7 messages and writes it to a file.
+	 * <p>
+	 * Usage: <code>CompressionDictionaryBuilder messageFile dictionaryFile [maxSize]</code>
+	 * </p>
+	 */
+	public static void main(String[] theArgs) throws IOException {
+		if (theArgs.length < 2 || theArgs.length > 3) {
+			System.err.println("Usage: " + CompressionDictionaryBuilder.class.getName() + " messageFile dictionaryFile [maxSize]");
+			System.exit(1);
+		}
+
+		CompressionDictionaryBuilder builder = new CompressionDictionaryBuilder();
+		if (theArgs.length == 3) {
+			builder.setMaxSize(Integer.parseInt(theArgs[2]));
+		}
+
+		InputStream is = new FileInputStream(new File(theArgs[0]));
+		try {
+			Hl7InputStreamMessageStringIterator iter = new Hl7InputStreamMessageStringIterator(is);
+			iter.setIgnoreComments(true);
+			builder.addMessages(iter);
+		} finally {
+			is.close();
+		}
+
+		CompressionDictionary dictionary = builder.build();
+		FileOutputStream os = new FileOutputStream(new File(theArgs[1]));
+		try {
+			os.write(dictionary.getBytes());
+		} finally {
+			os.close();
+		}
+
+		System.out.println("Read " + builder.getMessageCount() + " messages, wrote " + dictionary);
+	}
+
+}
@@ -0,0 +1,50 @@
+package ca.uhn.hl7v2.hoh.util;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Holds the {@link CompressionDictionary compression dictionaries} which may
+ * be used to decode incoming messages, keyed by their ID. Decoders use the
+ * {@link #getDefaultInstance() default instance} unless they are given
+ * another. This class is thread safe.
+ */
+public class CompressionDictionaryRegistry {
+
+	private static final CompressionDictionaryRegistry ourDefaultInstance = new CompressionDictionaryRegistry();
+
+	private final ConcurrentHashMap<String, CompressionDictionary> myDictionaries = new ConcurrentHashMap<String, CompressionDictionary>();
+
+	/**
+	 * Returns the dictionary with the given ID, or <code>null</code> if none
+	 * has been registered
+	 */
+	public CompressionDictionary get(String theId) {
+		if (theId == null) {
+			return null;
+		}
+		return myDictionaries.get(theId.toLowerCase());
+	}
+
+	/**
+	 * Registers a dictionary, replacing any with the same ID
+	 */
+	public void register(CompressionDictionary theDictionary) {
+		Validate.notNull(theDictionary, "dictionary");
+		myDictionaries.put(theDictionary.getId(), theDictionary);
+	}
+
+	/**
+	 * Removes the dictionary with the given ID, if one is registered
+	 */
+	public void unregister(String theId) {
+		myDictionaries.remove(theId.toLowerCase());
+	}
+
+	/**
+	 * Returns the shared instance
+	 */
+	public static CompressionDictionaryRegistry getDefaultInstance() {
+		return ourDefaultInstance;
+	}
+
+}
@@ -1,43 +1,254 @@
 package ca.uhn.hl7v2.hoh.util;
 
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
 import java.io.IOException;
-import java.util.zip.GZIPInputStream;
-import java.util.zip.GZIPOutputStream;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+import java.util.zip.ZipException;
 
 /**
+ * <p>
  * Methods for dealing with GZip encoding
+ * </p>
+ * <p>
+ * The {@link Deflater} and {@link Inflater} instances used to compress and
+ * uncompress are kept in small pools and reused, since each one holds native
+ * zlib memory which is otherwise only freed when the instance is finalized.
+ * The GZip header and trailer are written and checked here, so that the raw
+ * (<code>nowrap</code>) instances can be pooled.
+ * </p>
  */
 public class GZipUtils {
 
+	/**
+	 * Maximum number of idle deflaters and inflaters (each) which are kept
+	 * for reuse
+	 */
+	public static final int MAX_POOLED_CODERS = Math.max(4, Runtime.getRuntime().availableProcessors() * 2);
+
+	private static final int FLAG_FHCRC = 2;
+	private static final int FLAG_FEXTRA = 4;
+	private static final int FLAG_FNAME = 8;
+	private static final int FLAG_FCOMMENT = 16;
+	private static final int GZIP_MAGIC = 0x8b1f;
+	static final byte[] GZIP_HEADER = { (byte) GZIP_MAGIC, (byte) (GZIP_MAGIC >> 8), Deflater.DEFLATED, 0, 0, 0, 0, 0, 0, 0 };
+	static final int GZIP_TRAILER_SIZE = 8;
+
+	private static final BlockingQueue<Deflater> ourDeflaters = new ArrayBlockingQueue<Deflater>(MAX_POOLED_CODERS);
+	private static final BlockingQueue<Inflater> ourInflaters = new ArrayBlockingQueue<Inflater>(MAX_POOLED_CODERS);
+
 	/**
 	 * Non instantiable
 	 */
 	private GZipUtils() {
 		// nothing
 	}
-	
+
+	/**
+	 * Returns a raw deflater from the pool, or creates one if none is idle.
+	 * It must be returned using {@link #releaseDeflater(Deflater)}.
+	 */
+	static Deflater acquireDeflater() {
+		Deflater retVal = ourDeflaters.poll();
+		if (retVal == null) {
+			retVal = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+		}
+		return retVal;
+	}
+
+	/**
+	 * Returns a raw inflater from the pool, or creates one if none is idle.
+	 * It must be returned using {@link #releaseInflater(Inflater)}.
+	 */
+	static Inflater acquireInflater() {
+		Inflater retVal = ourInflaters.poll();
+		if (retVal == null) {
+			retVal = new Inflater(true);
+		}
+		return retVal;
+	}
+
 	/**
 	 * Compresses a byte array
 	 */
 	public static byte[] compress(byte[] theBytes) throws IOException {
-		ByteArrayOutputStream bos = new ByteArrayOutputStream();
-		GZIPOutputStream gos = new GZIPOutputStream(bos);
-		gos.write(theBytes);
-		gos.close();
-		return bos.toByteArray();
+		return compress(theBytes, 0, theBytes.length);
 	}
-	
+
 	/**
-	 * Compresses a byte array
+	 * Compresses part of a byte array
+	 */
+	public static byte[] compress(byte[] theBytes, int theOffset, int theLength) throws IOException {
+		PooledByteArrayOutputStream bos = new PooledByteArrayOutputStream(theLength / 2 + GZIP_HEADER.length + GZIP_TRAILER_SIZE);
+		try {
+			PooledGZipOutputStream gos = new PooledGZipOutputStream(bos);
+			gos.write(theBytes, theOffset, theLength);
+			gos.close();
+			return bos.toByteArray();
+		} finally {
+			bos.release();
+		}
+	}
+
+	/**
+	 * Returns the number of idle deflaters in the pool
+	 */
+	static int getPooledDeflaterCount() {
+		return ourDeflaters.size();
+	}
+
+	/**
+	 * Returns the number of idle inflaters in the pool
+	 */
+	static int getPooledInflaterCount() {
+		return ourInflaters.size();
+	}
+
+	private static int readHeader(byte[] theBytes, int theOffset, int theEnd) throws IOException {
+		if (theEnd - theOffset < GZIP_HEADER.length) {
+			throw new EOFException("Unexpected end of GZip header");
+		}
+		int magic = (theBytes[theOffset] & 0xFF) | ((theBytes[theOffset + 1] & 0xFF) << 8);
+		if (magic != GZIP_MAGIC) {
+			throw new ZipException("Not in GZIP format");
+		}
+		if (theBytes[theOffset + 2] != Deflater.DEFLATED) {
+			throw new ZipException("Unsupported compression method: " + theBytes[theOffset + 2]);
+		}
+		int flags = theBytes[theOffset + 3] & 0xFF;
+		int pos = theOffset + GZIP_HEADER.length;
+
+		if ((flags & FLAG_FEXTRA) != 0) {
+			if (theEnd - pos < 2) {
+				throw new EOFException("Unexpected end of GZip header");
+			}
+			pos += 2 + ((theBytes[pos] & 0xFF) | ((theBytes[pos + 1] & 0xFF) << 8));
+		}
+		if ((flags & FLAG_FNAME) != 0) {
+			pos = skipZeroTerminated(theBytes, pos, theEnd);
+		}
+		if ((flags & FLAG_FCOMMENT) != 0) {
+			pos = skipZeroTerminated(theBytes, pos, theEnd);
+		}
+		if ((flags & FLAG_FHCRC) != 0) {
+			pos += 2;
+		}
+		if (pos > theEnd) {
+			throw new EOFException("Unexpected end of GZip header");
+		}
+		return pos;
+	}
+
+	private static int readIntLittleEndian(byte[] theBytes, int theOffset) {
+		return (theBytes[theOffset] & 0xFF) | ((theBytes[theOffset + 1] & 0xFF) << 8) | ((theBytes[theOffset + 2] & 0xFF) << 16) | ((theBytes[theOffset + 3] & 0xFF) << 24);
+	}
+
+	/**
+	 * Returns a deflater to the pool, or frees it if the pool is full
+	 */
+	static void releaseDeflater(Deflater theDeflater) {
+		theDeflater.reset();
+		if (!ourDeflaters.offer(theDeflater)) {
+			theDeflater.end();
+		}
+	}
+
+	/**
+	 * Returns an inflater to the pool, or frees it if the pool is full
+	 */
+	static void releaseInflater(Inflater theInflater) {
+		theInflater.reset();
+		if (!ourInflaters.offer(theInflater)) {
+			theInflater.end();
+		}
+	}
+
+	private static int skipZeroTerminated(byte[] theBytes, int thePos, int theEnd) throws IOException {
+		for (int i = thePos; i < theEnd; i++) {
+			if (theBytes[i] == 0) {
+				return i + 1;
+			}
+		}
+		throw new EOFException("Unexpected end of GZip header");
+	}
+
+	/**
+	 * Uncompresses a byte array
 	 */
 	public static byte[] uncompress(byte[] theBytes) throws IOException {
-		ByteArrayInputStream bis = new ByteArrayInputStream(theBytes);
-		GZIPInputStream gos = new GZIPInputStream(bis);
-		ByteArrayOutputStream bos = new ByteArrayOutputStream();
-		IOUtils.copy(gos, bos);		
-		return bos.toByteArray();
+		PooledByteArrayOutputStream bos = uncompress(theBytes, 0, theBytes.length);
+		try {
+			return bos.toByteArray();
+		} finally {
+			bos.release();
+		}
+	}
+
+	/**
+	 * Uncompresses part of a byte array into a pooled buffer. If the data
+	 * contains several concatenated GZip members, their contents are
+	 * concatenated too. The caller must
+	 * {@link PooledByteArrayOutputStream#release() release} the returned
+	 * buffer once it is done with the contents.
+	 */
+	public static PooledByteArrayOutputStream uncompress(byte[] theBytes, int theOffset, int theLength) throws IOException {
+		int end = theOffset + theLength;
+		int memberStart = theOffset;
+
+		PooledByteArrayOutputStream retVal = new PooledByteArrayOutputStream((int) Math.min(theLength * 4L, BufferPool.MAX_POOLED_BUFFER_SIZE));
+		Inflater inflater = acquireInflater();
+		boolean success = false;
+		try {
+			CRC32 crc = new CRC32();
+			do {
+				int dataStart = readHeader(theBytes, memberStart, end);
+				int outputStart = retVal.size();
+				inflater.reset();
+				inflater.setInput(theBytes, dataStart, end - dataStart);
+				crc.reset();
+				while (!inflater.finished()) {
+					byte[] buffer = retVal.getBufferForWrite(1);
+					int start = retVal.size();
+					int count = inflater.inflate(buffer, start, buffer.length - start);
+					if (count > 0) {
+						crc.update(buffer, start, count);
+						retVal.advance(count);
+					} else if (inflater.needsInput()) {
+						throw new EOFException("Unexpected end of GZip data");
+					} else if (inflater.needsDictionary()) {
+						throw new ZipException("GZip data requires a preset dictionary");
+					}
+				}
+
+				int trailerStart = end - inflater.getRemaining();
+				if (end - trailerStart < GZIP_TRAILER_SIZE) {
+					throw new EOFException("Unexpected end of GZip trailer");
+				}
+				if (readIntLittleEndian(theBytes, trailerStart) != (int) crc.getValue()) {
+					throw new ZipException("Corrupt GZip trailer: CRC does not match");
+				}
+				if (readIntLittleEndian(theBytes, trailerStart + 4) != retVal.size() - outputStart) {
+					throw new ZipException("Corrupt GZip trailer: size does not match");
+				}
+
+				// Another member may follow
+				memberStart = trailerStart + GZIP_TRAILER_SIZE;
+			} while (memberStart < end);
+
+			success = true;
+			return retVal;
+		} catch (DataFormatException e) {
+			throw new ZipException(e.getMessage());
+		} finally {
+			releaseInflater(inflater);
+			if (!success) {
+				retVal.release();
+			}
+		}
 	}
 
 }
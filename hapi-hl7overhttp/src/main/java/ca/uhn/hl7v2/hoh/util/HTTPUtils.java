@@ -108,7 +108,37 @@ public class HTTPUtils {
 		theOutputStream.flush();
 	}
 
+	public static void write413RequestEntityTooLarge(OutputStream theOutputStream, String theMessage, boolean theWriteHeaders) throws IOException {
+		StringBuilder b = new StringBuilder();
+		if (theWriteHeaders) {
+			b.append("HTTP/1.1 413 Request Entity Too Large\r\n");
+			b.append("Content-Type: text/html; charset=ISO-8859-1\r\n");
+			b.append("\r\n");
+		}
+		b.append("<html><head><title>HTTP 413 - Request Entity Too Large</title></head>");
+		b.append("<body>");
+		b.append("<img src=\"data:image/png;base64,");
+		b.append(Base64.encodeBase64String(IOUtils.readClasspathIntoByteArray("/ca/uhn/hl7v2/hoh/hapi_hoh_banner.png")));
+		b.append("\"/>");
+		b.append("<h1>HTTP 413 - Request Entity Too Large</h1>");
+		b.append("<p>");
+		b.append(theMessage);
+		b.append("</p>");
+		b.append("<p style=\"font-size: 0.7em; color: #606060;\">HAPI (HL7 over HTTP) version ");
+		b.append(VersionLogger.getVersion());
+		b.append("</p>");
+		b.append("</body>");
+		b.append("</html>");
+
+		theOutputStream.write(b.toString().getBytes(DEFAULT_CHARSET));
+		theOutputStream.flush();
+	}
+
 	public static void write500InternalServerError(ServletOutputStream theOutputStream, String theMessage, boolean theWriteHeaders) throws IOException {
+		write500InternalServerError((OutputStream) theOutputStream, theMessage, theWriteHeaders);
+	}
+
+	public static void write500InternalServerError(OutputStream theOutputStream, String theMessage, boolean theWriteHeaders) throws IOException {
 		StringBuilder b = new StringBuilder();
 		if (theWriteHeaders) {
 			b.append("HTTP/1.1 500 Internal Server Error\r\n");
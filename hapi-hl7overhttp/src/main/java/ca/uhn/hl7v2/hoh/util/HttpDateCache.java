@@ -0,0 +1,85 @@
+package ca.uhn.hl7v2.hoh.util;
+
+import java.text.DateFormat;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+import java.util.TimeZone;
+
+/**
+ * <p>
+ * Provides the current time formatted as an RFC 1123 date (e.g.
+ * <code>Sun, 06 Nov 1994 08:49:37 GMT</code>) for use in HTTP
+ * <code>Date</code> headers.
+ * </p>
+ * <p>
+ * Since the value only has a resolution of one second, the formatted value is
+ * cached and is regenerated at most once per second (by whichever thread first
+ * notices that the second has changed). Reading the cached value requires no
+ * locking, so encoders on any number of threads never contend for it.
+ * </p>
+ */
+public class HttpDateCache {
+
+	private static final HttpDateCache ourInstance = new HttpDateCache();
+
+	private static final ThreadLocal<DateFormat> ourRfc1123DateFormat = new ThreadLocal<DateFormat>() {
+		@Override
+		protected DateFormat initialValue() {
+			SimpleDateFormat retVal = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss 'GMT'", Locale.US);
+			retVal.setTimeZone(TimeZone.getTimeZone("GMT"));
+			return retVal;
+		}
+	};
+
+	private volatile CachedDate myCurrent = new CachedDate(Long.MIN_VALUE, null);
+
+	/**
+	 * Returns the formatted value for the current time
+	 */
+	public String getValue() {
+		return getValue(System.currentTimeMillis());
+	}
+
+	/**
+	 * Returns the formatted value for the given time (in millis since the
+	 * epoch), using the cached value if it is for the same second
+	 */
+	public String getValue(long theTimeMillis) {
+		long second = theTimeMillis / 1000;
+		CachedDate current = myCurrent;
+		if (current.mySecond == second) {
+			return current.myValue;
+		}
+
+		// Several threads may do this at once when the second changes, which is harmless
+		String value = ourRfc1123DateFormat.get().format(new Date(second * 1000));
+		if (second > current.mySecond) {
+			myCurrent = new CachedDate(second, value);
+		}
+		return value;
+	}
+
+	/**
+	 * Returns the shared instance
+	 */
+	public static HttpDateCache getInstance() {
+		return ourInstance;
+	}
+
+	/**
+	 * Immutable, so that the second and value are always read together
+	 */
+	private static class CachedDate {
+
+		private final long mySecond;
+		private final String myValue;
+
+		CachedDate(long theSecond, String theValue) {
+			mySecond = theSecond;
+			myValue = theValue;
+		}
+
+	}
+
+}
@@ -0,0 +1,129 @@
+package ca.uhn.hl7v2.hoh.util;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * A {@link ByteArrayOutputStream} whose buffer is acquired from a
+ * {@link BufferPool}, and which exposes its buffer so that the contents can be
+ * used without being copied. Call {@link #release()} once the contents are no
+ * longer needed to return the buffer to the pool.
+ * <p>
+ * Unlike {@link ByteArrayOutputStream}, this class is not thread safe.
+ * </p>
+ */
+public class PooledByteArrayOutputStream extends ByteArrayOutputStream {
+
+	private static final byte[] EMPTY = new byte[0];
+
+	private final BufferPool myPool;
+
+	/**
+	 * Constructor which uses the {@link BufferPool#getDefaultInstance() default
+	 * pool}
+	 */
+	public PooledByteArrayOutputStream(int theInitialSize) {
+		this(BufferPool.getDefaultInstance(), theInitialSize);
+	}
+
+	/**
+	 * Constructor
+	 */
+	public PooledByteArrayOutputStream(BufferPool thePool, int theInitialSize) {
+		super(0);
+		myPool = thePool;
+		buf = thePool.acquire(theInitialSize);
+	}
+
+	private void ensureCapacity(int theCapacity) {
+		if (theCapacity <= buf.length) {
+			return;
+		}
+		byte[] newBuf = myPool.acquire(Math.max(theCapacity, buf.length * 2));
+		System.arraycopy(buf, 0, newBuf, 0, count);
+		myPool.release(buf);
+		buf = newBuf;
+	}
+
+	/**
+	 * Marks bytes which were written directly into the buffer returned by
+	 * {@link #getBufferForWrite(int)} as part of this stream's contents
+	 */
+	public void advance(int theCount) {
+		if (theCount < 0 || count + theCount > buf.length) {
+			throw new IndexOutOfBoundsException("Can not advance " + theCount + " bytes");
+		}
+		count += theCount;
+	}
+
+	/**
+	 * Returns the internal buffer, growing it first if needed so that it has
+	 * room for at least the given number of bytes after the current
+	 * {@link #size()}. Callers may write directly into the buffer starting at
+	 * {@link #size()}, and then call {@link #advance(int)}.
+	 */
+	public byte[] getBufferForWrite(int theMinimumFree) {
+		ensureCapacity(count + theMinimumFree);
+		return buf;
+	}
+
+	/**
+	 * Returns the internal buffer. Only the first {@link #size()} bytes are
+	 * valid, and the buffer must not be used after {@link #release()} is
+	 * called.
+	 */
+	public byte[] getBuffer() {
+		return buf;
+	}
+
+	/**
+	 * Reads up to the given number of bytes from the input stream directly
+	 * into this stream's buffer, growing it if it is full
+	 *
+	 * @return The number of bytes read, or -1 at the end of the stream
+	 */
+	public int readFrom(InputStream theInputStream, int theMaxLength) throws IOException {
+		if (count == buf.length) {
+			ensureCapacity(count + 1);
+		}
+		int length = Math.min(theMaxLength, buf.length - count);
+		int retVal = theInputStream.read(buf, count, length);
+		if (retVal > 0) {
+			count += retVal;
+		}
+		return retVal;
+	}
+
+	/**
+	 * Reads the input stream until the end, directly into this stream's buffer
+	 */
+	public void readFully(InputStream theInputStream) throws IOException {
+		while (readFrom(theInputStream, Integer.MAX_VALUE) != -1) {
+			// nothing
+		}
+	}
+
+	/**
+	 * Returns the buffer to the pool and empties this stream
+	 */
+	public void release() {
+		myPool.release(buf);
+		buf = EMPTY;
+		count = 0;
+	}
+
+	@Override
+	public void write(byte[] theBytes, int theOffset, int theLength) {
+		ensureCapacity(count + theLength);
+		System.arraycopy(theBytes, theOffset, buf, count, theLength);
+		count += theLength;
+	}
+
+	@Override
+	public void write(int theByte) {
+		ensureCapacity(count + 1);
+		buf[count++] = (byte) theByte;
+	}
+
+}
@@ -0,0 +1,75 @@
+package ca.uhn.hl7v2.hoh.util;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.CRC32;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * A replacement for {@link GZIPOutputStream} which borrows its deflater from
+ * the pool kept by {@link GZipUtils}, and returns it as soon as the stream is
+ * {@link #finish() finished}. Nothing may be written after that. Streams which
+ * are abandoned without being finished simply leave their deflater to the
+ * garbage collector.
+ */
+public class PooledGZipOutputStream extends DeflaterOutputStream {
+
+	private final CRC32 myCrc = new CRC32();
+	private boolean myFinished;
+
+	/**
+	 * Constructor
+	 */
+	public PooledGZipOutputStream(OutputStream theOutputStream) throws IOException {
+		this(theOutputStream, 512);
+	}
+
+	/**
+	 * Constructor
+	 *
+	 * @param theBufferSize
+	 *            The size of the buffer which compressed data is written to
+	 *            before being passed to the wrapped stream
+	 */
+	public PooledGZipOutputStream(OutputStream theOutputStream, int theBufferSize) throws IOException {
+		super(theOutputStream, GZipUtils.acquireDeflater(), theBufferSize);
+		out.write(GZipUtils.GZIP_HEADER);
+	}
+
+	/**
+	 * Finishes writing the compressed data and the GZip trailer without
+	 * closing the wrapped stream, and returns the deflater to the pool
+	 */
+	@Override
+	public void finish() throws IOException {
+		if (myFinished) {
+			return;
+		}
+		try {
+			super.finish();
+			writeIntLittleEndian((int) myCrc.getValue());
+			writeIntLittleEndian(def.getTotalIn());
+		} finally {
+			myFinished = true;
+			GZipUtils.releaseDeflater(def);
+		}
+	}
+
+	@Override
+	public void write(byte[] theBytes, int theOffset, int theLength) throws IOException {
+		if (myFinished) {
+			throw new IOException("GZip stream has already been finished");
+		}
+		super.write(theBytes, theOffset, theLength);
+		myCrc.update(theBytes, theOffset, theLength);
+	}
+
+	private void writeIntLittleEndian(int theValue) throws IOException {
+		out.write(theValue & 0xFF);
+		out.write((theValue >> 8) & 0xFF);
+		out.write((theValue >> 16) & 0xFF);
+		out.write((theValue >> 24) & 0xFF);
+	}
+
+}
@@ -0,0 +1,101 @@
+package ca.uhn.hl7v2.hoh.encoder;
+
+import java.io.ByteArrayOutputStream;
+import java.text.DateFormat;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import ca.uhn.hl7v2.hoh.util.HttpDateCache;
+
+/**
+ * Measures the throughput of producing the <code>Date</code> header, and of
+ * encoding a small response, from 1 to 64 threads. The
+ * <code>synchronized</code> case is the single shared
+ * {@link SimpleDateFormat} which encoders used to lock on, for comparison.
+ * <p>
+ * This is not a unit test. Run it using the main method, ideally on a machine
+ * with many cores.
+ * </p>
+ */
+public class DateHeaderBenchmark {
+
+	private static final String ourAck = "MSH|^~\\&|||||200803051508||ACK^A31|2|P|2.5\rMSA|AA|2\r";
+	private static final long ourMeasureMillis = 2000;
+	private static final DateFormat ourSharedDateFormat = new SimpleDateFormat("EEE, dd MMM yy HH:mm:ss z");
+	private static final int[] ourThreadCounts = { 1, 2, 4, 8, 16, 32, 64 };
+	private static final long ourWarmUpMillis = 1000;
+
+	public static void main(String[] theArgs) throws Exception {
+		System.out.println("Threads    synchronized     HttpDateCache      encode (ops/sec)");
+		for (int threads : ourThreadCounts) {
+			long sync = measure(threads, new Operation() {
+				public void run() {
+					synchronized (ourSharedDateFormat) {
+						ourSharedDateFormat.format(new Date());
+					}
+				}
+			});
+			long cached = measure(threads, new Operation() {
+				public void run() {
+					HttpDateCache.getInstance().getValue();
+				}
+			});
+			long encode = measure(threads, new Operation() {
+				public void run() throws Exception {
+					Hl7OverHttpResponseEncoder enc = new Hl7OverHttpResponseEncoder();
+					enc.setMessage(ourAck);
+					enc.encodeToOutputStream(new ByteArrayOutputStream());
+				}
+			});
+			System.out.println(String.format("%7d %15d %17d %18d", threads, sync, cached, encode));
+		}
+	}
+
+	private static long measure(int theThreads, final Operation theOperation) throws InterruptedException {
+		final AtomicBoolean measuring = new AtomicBoolean();
+		final AtomicBoolean done = new AtomicBoolean();
+		final AtomicLong count = new AtomicLong();
+		final CountDownLatch finished = new CountDownLatch(theThreads);
+
+		for (int i = 0; i < theThreads; i++) {
+			new Thread() {
+				@Override
+				public void run() {
+					long ops = 0;
+					try {
+						while (!done.get()) {
+							theOperation.run();
+							if (measuring.get()) {
+								ops++;
+							}
+						}
+					} catch (Exception e) {
+						e.printStackTrace();
+					} finally {
+						count.addAndGet(ops);
+						finished.countDown();
+					}
+				}
+			}.start();
+		}
+
+		Thread.sleep(ourWarmUpMillis);
+		measuring.set(true);
+		long start = System.currentTimeMillis();
+		Thread.sleep(ourMeasureMillis);
+		measuring.set(false);
+		long elapsed = System.currentTimeMillis() - start;
+		done.set(true);
+		finished.await();
+
+		return count.get() * 1000 / elapsed;
+	}
+
+	private interface Operation {
+		void run() throws Exception;
+	}
+
+}
@@ -0,0 +1,207 @@
+package ca.uhn.hl7v2.hoh.encoder;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import ca.uhn.hl7v2.hoh.util.AllocationCounter;
+
+/**
+ * Measures the time taken and the bytes allocated to encode and decode one
+ * request or response, for small and large messages, with and without
+ * compression and chunked transfer encoding.
+ * <p>
+ * This is not a unit test. Run it using the main method with a fixed heap
+ * size (e.g. <code>-Xms1g -Xmx1g</code>) and nothing else running, and
+ * compare the results before and after a change. Each case is run in the
+ * same JVM after the others, so for the most stable numbers pass the name of
+ * one case as an argument and run each case in its own JVM.
+ * </p>
+ */
+public class Hl7OverHttpCodecBenchmark {
+
+	private static final String ourLargeMessage;
+	private static final int ourMeasureIterations = 5;
+	private static final long ourMeasureMillis = 1000;
+	private static final String ourSmallMessage = "MSH|^~\\&|||||200803051508||ADT^A31|2|P|2.5\rEVN||200803051509\rPID|||ZZZZZZ83M64Z148R^^^SSN^SSN^^20070103\r";
+	private static final long ourWarmUpMillis = 2000;
+	private static volatile long ourSink;
+
+	static {
+		StringBuilder b = new StringBuilder(ourSmallMessage);
+		for (int i = 0; b.length() < 64 * 1024; i++) {
+			b.append("NTE|" + i + "||Clinical note text which is repeated to make a large message\r");
+		}
+		ourLargeMessage = b.toString();
+	}
+
+	public static void main(String[] theArgs) throws Exception {
+		List<Case> cases = new ArrayList<Case>();
+		cases.add(new RequestEncodeCase("request-encode-small", ourSmallMessage, null));
+		cases.add(new RequestEncodeCase("request-encode-large", ourLargeMessage, null));
+		cases.add(new RequestEncodeCase("request-encode-large-chunked", ourLargeMessage, TransferEncoding.CHUNKED));
+		cases.add(new RequestDecodeCase("request-decode-small", ourSmallMessage, null));
+		cases.add(new RequestDecodeCase("request-decode-large", ourLargeMessage, null));
+		cases.add(new RequestDecodeCase("request-decode-large-chunked", ourLargeMessage, TransferEncoding.CHUNKED));
+		cases.add(new ResponseEncodeCase("response-encode-small", ourSmallMessage, false));
+		cases.add(new ResponseEncodeCase("response-encode-large", ourLargeMessage, false));
+		cases.add(new ResponseEncodeCase("response-encode-large-gzip", ourLargeMessage, true));
+		cases.add(new ResponseDecodeCase("response-decode-small", ourSmallMessage, false));
+		cases.add(new ResponseDecodeCase("response-decode-large", ourLargeMessage, false));
+		cases.add(new ResponseDecodeCase("response-decode-large-gzip", ourLargeMessage, true));
+
+		if (!AllocationCounter.isSupported()) {
+			System.out.println("Allocation counting is not supported by this JVM");
+		}
+		System.out.println(String.format("%-30s %12s %12s %14s", "Case", "ops/sec", "ns/op", "bytes/op"));
+		for (Case next : cases) {
+			if (theArgs.length > 0 && !next.myName.equals(theArgs[0])) {
+				continue;
+			}
+			run(next);
+		}
+		System.out.println("(ignore: " + ourSink + ")");
+	}
+
+	private static void run(Case theCase) throws Exception {
+		long end = System.currentTimeMillis() + ourWarmUpMillis;
+		while (System.currentTimeMillis() < end) {
+			for (int i = 0; i < 100; i++) {
+				ourSink += theCase.run();
+			}
+		}
+
+		long ops = 0;
+		long nanos = 0;
+		long bytes = 0;
+		for (int iteration = 0; iteration < ourMeasureIterations; iteration++) {
+			long startBytes = AllocationCounter.getCurrentThreadAllocatedBytes();
+			long start = System.nanoTime();
+			end = start + ourMeasureMillis * 1000000L;
+			long now;
+			do {
+				for (int i = 0; i < 100; i++) {
+					ourSink += theCase.run();
+				}
+				ops += 100;
+				now = System.nanoTime();
+			} while (now < end);
+			nanos += now - start;
+			bytes += AllocationCounter.getCurrentThreadAllocatedBytes() - startBytes;
+		}
+
+		long bytesPerOp = AllocationCounter.isSupported() ? bytes / ops : -1;
+		System.out.println(String.format("%-30s %12d %12d %14d", theCase.myName, ops * 1000000000L / nanos, nanos / ops, bytesPerOp));
+	}
+
+	private static byte[] encodeRequest(String theMessage, TransferEncoding theTransferEncoding) throws Exception {
+		Hl7OverHttpRequestEncoder enc = new Hl7OverHttpRequestEncoder();
+		enc.setMessage(theMessage);
+		enc.setPath("/");
+		enc.setTransferEncoding(theTransferEncoding);
+		ByteArrayOutputStream bos = new ByteArrayOutputStream();
+		enc.encodeToOutputStream(bos);
+		return bos.toByteArray();
+	}
+
+	private static byte[] encodeResponse(String theMessage, boolean theGzip) throws Exception {
+		Hl7OverHttpResponseEncoder enc = new Hl7OverHttpResponseEncoder();
+		enc.setMessage(theMessage);
+		if (theGzip) {
+			enc.setGzipThreshold(0);
+		}
+		ByteArrayOutputStream bos = new ByteArrayOutputStream();
+		enc.encodeToOutputStream(bos);
+		return bos.toByteArray();
+	}
+
+	private static abstract class Case {
+
+		private final String myName;
+
+		Case(String theName) {
+			myName = theName;
+		}
+
+		/**
+		 * Performs one operation, and returns a value derived from its result
+		 * so that it can't be optimized away
+		 */
+		abstract long run() throws Exception;
+
+	}
+
+	private static class RequestDecodeCase extends Case {
+
+		private final byte[] myBytes;
+
+		RequestDecodeCase(String theName, String theMessage, TransferEncoding theTransferEncoding) throws Exception {
+			super(theName);
+			myBytes = encodeRequest(theMessage, theTransferEncoding);
+		}
+
+		@Override
+		long run() throws Exception {
+			Hl7OverHttpRequestDecoder dec = new Hl7OverHttpRequestDecoder();
+			dec.readHeadersAndContentsFromInputStreamAndDecode(new ByteArrayInputStream(myBytes));
+			return dec.getMessage().length();
+		}
+
+	}
+
+	private static class RequestEncodeCase extends Case {
+
+		private final String myMessage;
+		private final TransferEncoding myTransferEncoding;
+
+		RequestEncodeCase(String theName, String theMessage, TransferEncoding theTransferEncoding) {
+			super(theName);
+			myMessage = theMessage;
+			myTransferEncoding = theTransferEncoding;
+		}
+
+		@Override
+		long run() throws Exception {
+			return encodeRequest(myMessage, myTransferEncoding).length;
+		}
+
+	}
+
+	private static class ResponseDecodeCase extends Case {
+
+		private final byte[] myBytes;
+
+		ResponseDecodeCase(String theName, String theMessage, boolean theGzip) throws Exception {
+			super(theName);
+			myBytes = encodeResponse(theMessage, theGzip);
+		}
+
+		@Override
+		long run() throws Exception {
+			Hl7OverHttpResponseDecoder dec = new Hl7OverHttpResponseDecoder();
+			dec.readHeadersAndContentsFromInputStreamAndDecode(new ByteArrayInputStream(myBytes));
+			return dec.getMessage().length();
+		}
+
+	}
+
+	private static class ResponseEncodeCase extends Case {
+
+		private final boolean myGzip;
+		private final String myMessage;
+
+		ResponseEncodeCase(String theName, String theMessage, boolean theGzip) {
+			super(theName);
+			myMessage = theMessage;
+			myGzip = theGzip;
+		}
+
+		@Override
+		long run() throws Exception {
+			return encodeResponse(myMessage, myGzip).length;
+		}
+
+	}
+
+}
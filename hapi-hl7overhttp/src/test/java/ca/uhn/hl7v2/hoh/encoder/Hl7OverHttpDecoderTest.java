@@ -2,16 +2,28 @@ package ca.uhn.hl7v2.hoh.encoder;
 
 import static org.junit.Assert.*;
 
+import java.io.BufferedInputStream;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.SocketTimeoutException;
 import java.nio.charset.Charset;
+import java.util.HashMap;
+import java.util.Map;
 
 import org.junit.BeforeClass;
 import org.junit.Test;
 
+import ca.uhn.hl7v2.hoh.encoder.AbstractHl7OverHttp;
 import ca.uhn.hl7v2.hoh.encoder.AbstractHl7OverHttpDecoder;
 import ca.uhn.hl7v2.hoh.encoder.Hl7OverHttpRequestDecoder;
+import ca.uhn.hl7v2.hoh.encoder.IHeaderSource;
+import ca.uhn.hl7v2.hoh.sign.ISigner;
+import ca.uhn.hl7v2.hoh.sign.SignatureVerificationException;
 import ca.uhn.hl7v2.hoh.util.GZipUtils;
+import ca.uhn.hl7v2.hoh.util.IOUtils;
 import ca.uhn.hl7v2.hoh.util.SplitInputStream;
 
 public class Hl7OverHttpDecoderTest {
@@ -207,6 +219,156 @@ public class Hl7OverHttpDecoderTest {
 
 	}
 
+	@Test
+	public void testDecodeAsStream() throws Exception {
+		byte[] body = GZipUtils.compress(ourSampleMessageWithMultibyte.getBytes("UTF-8"));
+		final Map<String, String> headers = new HashMap<String, String>();
+		headers.put("content-type", "application/hl7-v2; charset=UTF-8");
+		headers.put("content-length", Integer.toString(body.length));
+		headers.put("content-encoding", "gzip");
+		headers.put("authorization", "Basic aGVsbG86d29ybGQ=");
+		headers.put("x-something-else", "ignored");
+		headers.put(AbstractHl7OverHttp.HTTP_HEADER_HL7_SIGNATURE_LC, "SIG " + body.length);
+		IHeaderSource headerSource = new IHeaderSource() {
+			public String getHeader(String theName) {
+				return headers.get(theName);
+			}
+		};
+
+		// The body is followed by bytes which are not part of it
+		ByteArrayOutputStream bos = new ByteArrayOutputStream();
+		bos.write(body);
+		bos.write("TRAILING".getBytes("ISO-8859-1"));
+		ByteArrayInputStream byteArrayInputStream = new ByteArrayInputStream(bos.toByteArray());
+
+		Hl7OverHttpRequestDecoder d = new Hl7OverHttpRequestDecoder();
+		d.setSigner(new LengthSigner());
+		InputStream contents = d.readContentsAsStream(headerSource, byteArrayInputStream);
+		assertNull(d.getHeaders());
+		assertEquals("hello", d.getUsername());
+		assertEquals(Charset.forName("UTF-8"), d.getCharset());
+
+		ByteArrayOutputStream read = new ByteArrayOutputStream();
+		IOUtils.copy(contents, read);
+		assertEquals(ourSampleMessageWithMultibyte, read.toString("UTF-8"));
+		d.finishReadingContents();
+		assertEquals("TRAILING".length(), byteArrayInputStream.available());
+
+		// A bad signature is reported when the end is reached, and again when finishing
+		headers.put(AbstractHl7OverHttp.HTTP_HEADER_HL7_SIGNATURE_LC, "SIG 1");
+		d = new Hl7OverHttpRequestDecoder();
+		d.setSigner(new LengthSigner());
+		contents = d.readContentsAsStream(headerSource, new ByteArrayInputStream(body));
+		try {
+			IOUtils.copy(contents, new ByteArrayOutputStream());
+			fail();
+		} catch (IOException e) {
+			assertTrue(e.getCause() instanceof SignatureVerificationException);
+		}
+		try {
+			d.finishReadingContents();
+			fail();
+		} catch (SignatureVerificationException e) {
+			// expected
+		}
+
+		// Finishing reads whatever the caller left unread
+		headers.put(AbstractHl7OverHttp.HTTP_HEADER_HL7_SIGNATURE_LC, "SIG " + body.length);
+		d = new Hl7OverHttpRequestDecoder();
+		d.setSigner(new LengthSigner());
+		contents = d.readContentsAsStream(headerSource, new ByteArrayInputStream(body));
+		contents.read();
+		d.finishReadingContents();
+	}
+
+	@Test
+	public void testDecodeAsStreamWithTruncatedBody() throws Exception {
+		final byte[] body = ourSampleMessage.getBytes("ISO-8859-1");
+		IHeaderSource headerSource = new IHeaderSource() {
+			public String getHeader(String theName) {
+				if ("content-type".equals(theName)) {
+					return "application/hl7-v2";
+				} else if ("content-length".equals(theName)) {
+					return Integer.toString(body.length + 10);
+				}
+				return null;
+			}
+		};
+
+		Hl7OverHttpRequestDecoder d = new Hl7OverHttpRequestDecoder();
+		InputStream contents = d.readContentsAsStream(headerSource, new ByteArrayInputStream(body));
+		try {
+			IOUtils.copy(contents, new ByteArrayOutputStream());
+			fail();
+		} catch (EOFException e) {
+			// expected
+		}
+	}
+
+	@Test
+	public void testDecodeAsStreamOneByteAtATime() throws Exception {
+		final byte[] body = ourSampleMessage.getBytes("ISO-8859-1");
+		final Map<String, String> headers = new HashMap<String, String>();
+		headers.put("content-type", "application/hl7-v2");
+		headers.put("content-length", Integer.toString(body.length));
+		IHeaderSource headerSource = new IHeaderSource() {
+			public String getHeader(String theName) {
+				return headers.get(theName);
+			}
+		};
+
+		ByteArrayOutputStream bos = new ByteArrayOutputStream();
+		bos.write(body);
+		bos.write("TRAILING".getBytes("ISO-8859-1"));
+		ByteArrayInputStream byteArrayInputStream = new ByteArrayInputStream(bos.toByteArray());
+
+		Hl7OverHttpRequestDecoder d = new Hl7OverHttpRequestDecoder();
+		InputStream contents = d.readContentsAsStream(headerSource, byteArrayInputStream);
+		ByteArrayOutputStream read = new ByteArrayOutputStream();
+		for (int next = contents.read(); next != -1; next = contents.read()) {
+			read.write(next);
+		}
+		assertEquals(ourSampleMessage, read.toString("ISO-8859-1"));
+		assertEquals("TRAILING".length(), byteArrayInputStream.available());
+
+		// The end of the stream before the end of the body is an error
+		headers.put("content-length", Integer.toString(body.length + 10));
+		d = new Hl7OverHttpRequestDecoder();
+		contents = d.readContentsAsStream(headerSource, new ByteArrayInputStream(body));
+		try {
+			while (contents.read() != -1) {
+				// keep reading
+			}
+			fail();
+		} catch (EOFException e) {
+			// expected
+		}
+	}
+
+	@Test
+	public void testDecodeAcceptEncoding() throws Exception {
+		ByteArrayOutputStream bos = new ByteArrayOutputStream();
+		String msg = "POST /AppName HTTP/1.1\r\n" + 
+				"Content-Type: application/hl7-v2; charset=UTF-8\r\n" + 
+				"Content-Length: " + ourSampleMessage.getBytes("UTF-8").length + "\r\n" + 
+				"Accept-Encoding: deflate, GZIP\r\n" + "\r\n";
+		bos.write(msg.getBytes("ISO-8859-1"));
+		bos.write(ourSampleMessage.getBytes("UTF-8"));
+
+		Hl7OverHttpRequestDecoder d = new Hl7OverHttpRequestDecoder();
+		d.readHeadersAndContentsFromInputStreamAndDecode(new ByteArrayInputStream(bos.toByteArray()));
+		assertTrue(d.isGzipAccepted());
+		assertEquals(ourSampleMessage, d.getMessage());
+
+		assertTrue(AbstractHl7OverHttpDecoder.isGzipAccepted("gzip"));
+		assertTrue(AbstractHl7OverHttpDecoder.isGzipAccepted("gzip;q=0.5"));
+		assertTrue(AbstractHl7OverHttpDecoder.isGzipAccepted("*"));
+		assertFalse(AbstractHl7OverHttpDecoder.isGzipAccepted("deflate"));
+		assertFalse(AbstractHl7OverHttpDecoder.isGzipAccepted("gzip;q=0"));
+		assertFalse(AbstractHl7OverHttpDecoder.isGzipAccepted("*, gzip; q=0.0"));
+		assertFalse(AbstractHl7OverHttpDecoder.isGzipAccepted("identity, *;q=0"));
+	}
+
 	@Test
 	public void testDecodeFromStreamWithMultipleMessages() throws Exception {
 
@@ -333,4 +495,184 @@ public class Hl7OverHttpDecoderTest {
 		assertEquals("/AppName", d.getPath());
 
 	}
+
+	@Test
+	public void testDecodeFromUnmarkableStreamWithPauseInMiddleOfHeaders() throws Exception {
+
+		ByteArrayOutputStream bos = new ByteArrayOutputStream();
+		String msg = "POST /AppName HTTP/1.1\r\n" + "Content-Type: application/hl7-v2; charset=ISO-8859-2\r\n" + "Content-Length: " + ourSampleMessage.getBytes("ISO-8859-1").length + "\r\n" + "Authorization: Basic aGVsbG86d29ybGQ=\r\n" + "\r\n";
+		bos.write(msg.getBytes("ISO-8859-1"));
+		bos.write(ourSampleMessage.getBytes("ISO-8859-2"));
+		bos.write(msg.getBytes("ISO-8859-1"));
+		bos.write(ourSampleMessage.getBytes("ISO-8859-2"));
+
+		// The stream can't be marked, so the head is read a byte at a time
+		// and the second message must be left alone
+		ByteArrayInputStream bais = new ByteArrayInputStream(bos.toByteArray());
+		SplitInputStream is = new SplitInputStream(bais, 30);
+		assertFalse(is.markSupported());
+
+		for (int i = 0; i < 2; i++) {
+			AbstractHl7OverHttpDecoder d = new Hl7OverHttpRequestDecoder();
+			d.readHeadersAndContentsFromInputStreamAndDecode(is);
+
+			assertTrue(d.getConformanceProblems().toString(), d.getConformanceProblems().isEmpty());
+			assertEquals(ourSampleMessage, d.getMessage());
+			assertEquals("/AppName", d.getPath());
+		}
+		assertEquals(0, bais.available());
+
+	}
+
+	@Test
+	public void testDecodeFromBufferedStreamWithPauseInMiddleOfHeaders() throws Exception {
+
+		ByteArrayOutputStream bos = new ByteArrayOutputStream();
+		String msg = "POST /AppName HTTP/1.1\r\n" + "Content-Type: application/hl7-v2; charset=ISO-8859-2\r\n" + "Content-Length: " + ourSampleMessage.getBytes("ISO-8859-1").length + "\r\n" + "Authorization: Basic aGVsbG86d29ybGQ=\r\n" + "X-Custom:   some  value \r\n" + "\r\n";
+		bos.write(msg.getBytes("ISO-8859-1"));
+		bos.write(ourSampleMessage.getBytes("ISO-8859-2"));
+		bos.write(msg.getBytes("ISO-8859-1"));
+		bos.write(ourSampleMessage.getBytes("ISO-8859-2"));
+
+		// The head is read in bulk from a buffered stream, so the second message must be left alone
+		ByteArrayInputStream bais = new ByteArrayInputStream(bos.toByteArray());
+		BufferedInputStream is = new BufferedInputStream(new SplitInputStream(bais, 30));
+
+		for (int i = 0; i < 2; i++) {
+			AbstractHl7OverHttpDecoder d = new Hl7OverHttpRequestDecoder();
+			d.readHeadersAndContentsFromInputStreamAndDecode(is);
+
+			assertTrue(d.getConformanceProblems().toString(), d.getConformanceProblems().isEmpty());
+			assertEquals(Charset.forName("ISO-8859-2"), d.getCharset());
+			assertEquals("application/hl7-v2", d.getContentType());
+			assertEquals(ourSampleMessage, d.getMessage());
+			assertEquals("hello", d.getUsername());
+			assertEquals("world", d.getPassword());
+			assertEquals("/AppName", d.getPath());
+			assertEquals(4, d.getHeaders().size());
+			assertEquals("some value", d.getHeaders().get("X-Custom"));
+		}
+		assertEquals(0, is.available());
+
+	}
+
+	/**
+	 * A slow peer which delivers one byte at a time with a read timeout in
+	 * between each one must not cause the decoder to sleep after each timeout
+	 */
+	@Test
+	public void testDecodeFromStreamWithFrequentTimeoutsDoesNotSleep() throws Exception {
+
+		ByteArrayOutputStream bos = new ByteArrayOutputStream();
+		String msg = "POST /AppName HTTP/1.1\r\n" + "Content-Type: application/hl7-v2; charset=ISO-8859-1\r\n" + "Content-Length: " + ourSampleMessage.getBytes("ISO-8859-1").length + "\r\n" + "\r\n";
+		bos.write(msg.getBytes("ISO-8859-1"));
+		bos.write(ourSampleMessage.getBytes("ISO-8859-1"));
+		AbstractHl7OverHttpDecoder d = new Hl7OverHttpRequestDecoder();
+		d.setReadTimeout(10000);
+
+		long start = System.currentTimeMillis();
+		d.readHeadersAndContentsFromInputStreamAndDecode(new TimeoutBetweenEachByteInputStream(bos.toByteArray()));
+		long elapsed = System.currentTimeMillis() - start;
+
+		assertEquals(ourSampleMessage, d.getMessage());
+		assertTrue("Elapsed: " + elapsed, elapsed < 2000);
+	}
+
+	@Test
+	public void testDecodeChunkedFromStreamWithFrequentTimeouts() throws Exception {
+
+		String part1 = ourSampleMessage.substring(0, 20);
+		String part2 = ourSampleMessage.substring(20);
+
+		ByteArrayOutputStream bos = new ByteArrayOutputStream();
+		String msg = "POST /AppName HTTP/1.1\r\n" + "Content-Type: application/hl7-v2; charset=ISO-8859-1\r\n" + "Transfer-Encoding: chunked\r\n" + "\r\n";
+		bos.write(msg.getBytes("ISO-8859-1"));
+		bos.write((Integer.toHexString(part1.length()) + "\r\n" + part1 + "\r\n").getBytes("ISO-8859-1"));
+		bos.write((Integer.toHexString(part2.length()) + "\r\n" + part2 + "\r\n").getBytes("ISO-8859-1"));
+		bos.write("0\r\n\r\n".getBytes("ISO-8859-1"));
+		AbstractHl7OverHttpDecoder d = new Hl7OverHttpRequestDecoder();
+		d.setReadTimeout(10000);
+
+		long start = System.currentTimeMillis();
+		d.readHeadersAndContentsFromInputStreamAndDecode(new TimeoutBetweenEachByteInputStream(bos.toByteArray()));
+		long elapsed = System.currentTimeMillis() - start;
+
+		assertEquals(ourSampleMessage, d.getMessage());
+		assertTrue("Elapsed: " + elapsed, elapsed < 2000);
+	}
+
+	@Test
+	public void testDecodeChunkedResponseWithSignatureOnlyInTrailer() throws Exception {
+
+		byte[] body = ourSampleMessage.getBytes("ISO-8859-1");
+		ByteArrayOutputStream bos = new ByteArrayOutputStream();
+		String msg = "HTTP/1.1 200 OK\r\n" + "Content-Type: application/hl7-v2; charset=ISO-8859-1\r\n" + "Transfer-Encoding: chunked\r\n" + "\r\n";
+		bos.write(msg.getBytes("ISO-8859-1"));
+		bos.write((Integer.toHexString(body.length) + "\r\n").getBytes("ISO-8859-1"));
+		bos.write(body);
+		bos.write("\r\n0\r\n".getBytes("ISO-8859-1"));
+		bos.write(("HL7-Signature: SIG " + body.length + "\r\n\r\n").getBytes("ISO-8859-1"));
+
+		Hl7OverHttpResponseDecoder d = new Hl7OverHttpResponseDecoder();
+		d.setSigner(new LengthSigner());
+		ByteArrayInputStream byteArrayInputStream = new ByteArrayInputStream(bos.toByteArray());
+		d.readHeadersAndContentsFromInputStreamAndDecode(byteArrayInputStream);
+
+		assertEquals(0, byteArrayInputStream.available());
+		assertEquals(200, d.getResponseStatus().intValue());
+		assertEquals(ourSampleMessage, d.getMessage());
+		assertEquals("SIG " + body.length, d.getHeaders().get("HL7-Signature"));
+	}
+
+	/**
+	 * Returns a single byte per read, and throws a {@link SocketTimeoutException}
+	 * between each one. The first byte is returned immediately, since a timeout
+	 * before any bytes arrive means that no message was sent.
+	 */
+	private static class TimeoutBetweenEachByteInputStream extends InputStream {
+
+		private final ByteArrayInputStream myWrap;
+		private boolean myTimeoutNext;
+
+		TimeoutBetweenEachByteInputStream(byte[] theBytes) {
+			myWrap = new ByteArrayInputStream(theBytes);
+		}
+
+		@Override
+		public int read() throws IOException {
+			byte[] b = new byte[1];
+			int count = read(b, 0, 1);
+			return count == -1 ? -1 : (b[0] & 0xFF);
+		}
+
+		@Override
+		public int read(byte[] theB, int theOff, int theLen) throws IOException {
+			if (myTimeoutNext) {
+				myTimeoutNext = false;
+				throw new SocketTimeoutException();
+			}
+			myTimeoutNext = true;
+			return myWrap.read(theB, theOff, Math.min(theLen, 1));
+		}
+
+	}
+
+	/**
+	 * A signer (which is not a streaming one) whose signature is just the
+	 * length of the message
+	 */
+	private static class LengthSigner implements ISigner {
+
+		public String sign(byte[] theBytes) {
+			return "SIG " + theBytes.length;
+		}
+
+		public void verify(byte[] theBytes, String theSignature) throws SignatureVerificationException {
+			if (!sign(theBytes).equals(theSignature)) {
+				throw new SignatureVerificationException();
+			}
+		}
+
+	}
+
 }
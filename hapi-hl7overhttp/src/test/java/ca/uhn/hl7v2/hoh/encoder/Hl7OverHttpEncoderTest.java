@@ -2,21 +2,38 @@ package ca.uhn.hl7v2.hoh.encoder;
 
 import static org.junit.Assert.*;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
 import java.nio.charset.Charset;
 import java.security.KeyStore;
 import java.security.KeyStoreException;
 import java.security.NoSuchAlgorithmException;
 import java.security.cert.CertificateException;
+import java.util.Arrays;
 import java.util.Map.Entry;
 
 import org.junit.BeforeClass;
 import org.junit.Test;
 
+import ca.uhn.hl7v2.hoh.api.DecodeException;
 import ca.uhn.hl7v2.hoh.api.EncodeException;
+import ca.uhn.hl7v2.hoh.raw.api.RawEncodedSendable;
+import ca.uhn.hl7v2.hoh.raw.api.RawSendable;
 import ca.uhn.hl7v2.hoh.sign.BouncyCastleCmsMessageSigner;
+import ca.uhn.hl7v2.hoh.sign.ISigner;
+import ca.uhn.hl7v2.hoh.sign.SignatureFailureException;
+import ca.uhn.hl7v2.hoh.sign.SignatureVerificationException;
+import ca.uhn.hl7v2.hoh.util.CompressionDictionary;
+import ca.uhn.hl7v2.hoh.util.CompressionDictionaryRegistry;
+import ca.uhn.hl7v2.hoh.util.IOUtils;
 
 public class Hl7OverHttpEncoderTest {
 
@@ -81,6 +98,363 @@ public class Hl7OverHttpEncoderTest {
 
 	}
 
+	@Test
+	public void testEncodeWithSharedRequestTemplate() throws Exception {
+
+		String message = "MSH|^~\\&|||||200803051508||ADT^A31|2|P|2.5\r"
+				+ "EVN||200803051509\r";
+
+		Hl7OverHttpRequestTemplate template = new Hl7OverHttpRequestTemplate("/theUri", "localhost", 8080, "hello", "world", "x-functions-key=abc123~x-other=def");
+		assertTrue(template.hasCredentials("hello", "world"));
+		assertFalse(template.hasCredentials("hello", "other"));
+
+		for (int i = 0; i < 2; i++) {
+			Hl7OverHttpRequestEncoder enc = new Hl7OverHttpRequestEncoder();
+			enc.setCharset(Charset.forName("ISO-8859-1"));
+			enc.setRequestTemplate(template);
+			enc.setMessage(message);
+
+			ByteArrayOutputStream bos = new ByteArrayOutputStream();
+			enc.encodeToOutputStream(bos);
+			String encoded = bos.toString("ISO-8859-1");
+
+			assertTrue(encoded, encoded.startsWith("POST /theUri HTTP/1.1\r\n"));
+			assertTrue(encoded, encoded.contains("\r\nAuthorization: Basic aGVsbG86d29ybGQ=\r\n"));
+			assertTrue(encoded, encoded.contains("\r\nx-functions-key: abc123\r\n"));
+			assertTrue(encoded, encoded.contains("\r\nx-other: def\r\n"));
+			assertTrue(encoded, encoded.contains("\r\nHost: localhost:8080\r\n"));
+			assertTrue(encoded, encoded.contains("\r\nContent-Length: " + message.length() + "\r\n"));
+			assertTrue(encoded, encoded.contains("\r\nDate: "));
+			assertTrue(encoded, encoded.endsWith("\r\n\r\n" + message));
+			assertEquals("abc123", enc.getHeaders().get("x-functions-key"));
+
+			Hl7OverHttpRequestDecoder dec = new Hl7OverHttpRequestDecoder();
+			dec.readHeadersAndContentsFromInputStreamAndDecode(new ByteArrayInputStream(bos.toByteArray()));
+			assertEquals(message, dec.getMessage());
+			assertEquals("hello", dec.getUsername());
+			assertEquals("world", dec.getPassword());
+			assertEquals("/theUri", dec.getPath());
+		}
+	}
+
+	@Test
+	public void testEncodeToChannelAndByteBuffers() throws Exception {
+
+		StringBuilder b = new StringBuilder("MSH|^~\\&|||||200803051508||ADT^A31|2|P|2.5\r");
+		while (b.length() < 20000) {
+			b.append("NTE|||This is a long comment to make the message bigger than the coalescing limit\r");
+		}
+		String message = b.toString();
+
+		// File channels support gathering writes
+		File file = File.createTempFile("hoh", ".bin");
+		file.deleteOnExit();
+		Hl7OverHttpRequestEncoder enc = new Hl7OverHttpRequestEncoder();
+		enc.setMessage(message);
+		enc.setPath("/theUri");
+		FileOutputStream fos = new FileOutputStream(file);
+		try {
+			enc.encodeToChannel(fos.getChannel());
+		} finally {
+			fos.close();
+		}
+		FileInputStream fis = new FileInputStream(file);
+		try {
+			assertDecodesTo(message, IOUtils.readInputStreamIntoByteArray(fis));
+		} finally {
+			fis.close();
+		}
+
+		// Channels wrapping a stream do not
+		enc = new Hl7OverHttpRequestEncoder();
+		enc.setMessage(message);
+		enc.setPath("/theUri");
+		ByteArrayOutputStream bos = new ByteArrayOutputStream();
+		enc.encodeToChannel(Channels.newChannel(bos));
+		assertDecodesTo(message, bos.toByteArray());
+
+		enc = new Hl7OverHttpRequestEncoder();
+		enc.setMessage(message);
+		enc.setPath("/theUri");
+		ByteBuffer[] buffers = enc.encodeToByteBuffers();
+		assertEquals(2, buffers.length);
+		assertEquals(message.length(), buffers[1].remaining());
+		bos = new ByteArrayOutputStream();
+		Channels.newChannel(bos).write(buffers[0]);
+		Channels.newChannel(bos).write(buffers[1]);
+		assertDecodesTo(message, bos.toByteArray());
+
+		enc = new Hl7OverHttpRequestEncoder();
+		enc.setMessage(message);
+		enc.setPath("/theUri");
+		bos = new ByteArrayOutputStream();
+		enc.encodeToOutputStream(bos);
+		assertDecodesTo(message, bos.toByteArray());
+	}
+
+	@Test
+	public void testEncodeToChannelWithLargeHead() throws Exception {
+		String message = "MSH|^~\\&|||||200803051508||ADT^A31|2|P|2.5\r";
+		StringBuilder b = new StringBuilder();
+		while (b.length() < 30000) {
+			b.append("username");
+		}
+		String username = b.toString();
+
+		// A head larger than the reused buffers goes through a temporary one
+		Hl7OverHttpRequestEncoder enc = new Hl7OverHttpRequestEncoder();
+		enc.setMessage(message);
+		enc.setPath("/theUri");
+		enc.setUsername(username);
+		enc.setPassword("password");
+		ByteArrayOutputStream bos = new ByteArrayOutputStream();
+		enc.encodeToChannel(Channels.newChannel(bos));
+		Hl7OverHttpRequestDecoder dec = new Hl7OverHttpRequestDecoder();
+		dec.readHeadersAndContentsFromInputStreamAndDecode(new ByteArrayInputStream(bos.toByteArray()));
+		assertEquals(message, dec.getMessage());
+		assertEquals(username, dec.getUsername());
+
+		// and later small heads on the same thread are unaffected
+		enc = new Hl7OverHttpRequestEncoder();
+		enc.setMessage(message);
+		enc.setPath("/theUri");
+		bos = new ByteArrayOutputStream();
+		enc.encodeToChannel(Channels.newChannel(bos));
+		assertDecodesTo(message, bos.toByteArray());
+	}
+
+	@Test
+	public void testEncodeChunked() throws Exception {
+
+		StringBuilder b = new StringBuilder("MSH|^~\\&|||||200803051508||ADT^A31|2|P|2.5\r");
+		while (b.length() < 20000) {
+			b.append("NTE|||This is a long comment to make the message span several chunks\r");
+		}
+		String message = b.toString();
+
+		Hl7OverHttpRequestEncoder enc = new Hl7OverHttpRequestEncoder();
+		enc.setDataProvider(new RawSendable(message));
+		enc.setPath("/theUri");
+		enc.setTransferEncoding(TransferEncoding.CHUNKED);
+		ByteArrayOutputStream bos = new ByteArrayOutputStream();
+		enc.encodeToOutputStream(bos);
+
+		String encoded = bos.toString("ISO-8859-1");
+		assertTrue(encoded, encoded.contains("Transfer-Encoding: chunked\r\n"));
+		assertFalse(encoded, encoded.contains("Content-Length"));
+		assertFalse(encoded, encoded.contains("Trailer"));
+		assertTrue(encoded, encoded.endsWith("\r\n0\r\n\r\n"));
+		assertDecodesTo(message, bos.toByteArray());
+
+		// Byte buffers and channels should produce the same thing
+		enc = new Hl7OverHttpRequestEncoder();
+		enc.setMessage(message);
+		enc.setPath("/theUri");
+		enc.setTransferEncoding(TransferEncoding.CHUNKED);
+		ByteBuffer[] buffers = enc.encodeToByteBuffers();
+		bos = new ByteArrayOutputStream();
+		for (ByteBuffer next : buffers) {
+			Channels.newChannel(bos).write(next);
+		}
+		assertDecodesTo(message, bos.toByteArray());
+	}
+
+	@Test
+	public void testEncodeEncodedSendable() throws Exception {
+
+		// Not valid ISO-8859-1 once decoded and encoded again as UTF-8
+		byte[] message = "MSH|^~\\&|||||200803051508||ADT^A31|2|P|2.5||||||8859/1\rNTE|||Caf\u00e9\r".getBytes("ISO-8859-1");
+
+		for (TransferEncoding next : TransferEncoding.values()) {
+			Hl7OverHttpRequestEncoder enc = new Hl7OverHttpRequestEncoder();
+			enc.setCharset(Charset.forName("UTF-8"));
+			enc.setDataProvider(new RawEncodedSendable(message, Charset.forName("ISO-8859-1")));
+			enc.setPath("/theUri");
+			enc.setTransferEncoding(next);
+			ByteArrayOutputStream bos = new ByteArrayOutputStream();
+			enc.encodeToOutputStream(bos);
+
+			String encoded = bos.toString("ISO-8859-1");
+			assertTrue(encoded, encoded.contains("Content-Type: application/hl7-v2; charset=ISO-8859-1\r\n"));
+
+			Hl7OverHttpRequestDecoder dec = new Hl7OverHttpRequestDecoder();
+			dec.readHeadersAndContentsFromInputStreamAndDecode(new ByteArrayInputStream(bos.toByteArray()));
+			assertArrayEquals(message, dec.getMessage().getBytes("ISO-8859-1"));
+		}
+	}
+
+	@Test
+	public void testEncodeChunkedWithGzip() throws Exception {
+
+		StringBuilder b = new StringBuilder("MSH|^~\\&|||||200803051508||ADT^A31|2|P|2.5\r");
+		while (b.length() < 20000) {
+			b.append("NTE|||This is a long comment which should compress very well\r");
+		}
+		String message = b.toString();
+
+		Hl7OverHttpResponseEncoder enc = new Hl7OverHttpResponseEncoder();
+		enc.setMessage(message);
+		enc.setGzipData(true);
+		enc.setTransferEncoding(TransferEncoding.CHUNKED);
+		ByteArrayOutputStream bos = new ByteArrayOutputStream();
+		enc.encodeToOutputStream(bos);
+
+		String encoded = bos.toString("ISO-8859-1");
+		assertTrue(encoded, encoded.contains("Content-Encoding: gzip\r\n"));
+		assertTrue(encoded, encoded.contains("Transfer-Encoding: chunked\r\n"));
+		assertTrue("Length: " + bos.size(), bos.size() < message.length() / 4);
+
+		Hl7OverHttpResponseDecoder dec = new Hl7OverHttpResponseDecoder();
+		dec.readHeadersAndContentsFromInputStreamAndDecode(new ByteArrayInputStream(bos.toByteArray()));
+		assertEquals(message, dec.getMessage());
+	}
+
+	@Test
+	public void testEncodeWithGzipThreshold() throws Exception {
+		String ack = "MSH|^~\\&|||||200803051508||ACK^A31|2|P|2.5\rMSA|AA|2\r";
+
+		Hl7OverHttpResponseEncoder enc = new Hl7OverHttpResponseEncoder();
+		enc.setMessage(ack);
+		enc.setGzipThreshold(1024);
+		enc.encode();
+		assertNull(enc.getHeaders().get("Content-Encoding"));
+		assertArrayEquals(ack.getBytes("UTF-8"), enc.getData());
+
+		StringBuilder b = new StringBuilder(ack);
+		while (b.length() < 1024) {
+			b.append("NTE|||This is a long comment which should compress very well\r");
+		}
+		String message = b.toString();
+
+		enc = new Hl7OverHttpResponseEncoder();
+		enc.setMessage(message);
+		enc.setGzipThreshold(1024);
+		ByteArrayOutputStream bos = new ByteArrayOutputStream();
+		enc.encodeToOutputStream(bos);
+		assertEquals("gzip", enc.getHeaders().get("Content-Encoding"));
+		assertTrue(enc.getData().length < message.length() / 4);
+
+		Hl7OverHttpResponseDecoder dec = new Hl7OverHttpResponseDecoder();
+		dec.readHeadersAndContentsFromInputStreamAndDecode(new ByteArrayInputStream(bos.toByteArray()));
+		assertEquals(message, dec.getMessage());
+	}
+
+	@Test
+	public void testEncodeWithCompressionDictionary() throws Exception {
+		String message = "MSH|^~\\&|||||200803051508||ADT^A31|2|P|2.5\rEVN||200803051509\rPID|||ZZZZZZ83M64Z148R^^^SSN^SSN^^20070103\r";
+		CompressionDictionary dictionary = new CompressionDictionary(message.replace("2", "3").getBytes("UTF-8"));
+
+		Hl7OverHttpRequestEncoder enc = new Hl7OverHttpRequestEncoder();
+		enc.setMessage(message);
+		enc.setCompressionDictionary(dictionary);
+		ByteArrayOutputStream bos = new ByteArrayOutputStream();
+		enc.encodeToOutputStream(bos);
+		assertEquals(CompressionDictionary.CONTENT_ENCODING, enc.getHeaders().get("Content-Encoding"));
+		assertEquals(dictionary.getId(), enc.getHeaders().get("HL7-Dictionary-Id"));
+		assertTrue(enc.getData().length < message.length() / 2);
+
+		Hl7OverHttpRequestDecoder dec = new Hl7OverHttpRequestDecoder();
+		dec.setCompressionDictionaryRegistry(new CompressionDictionaryRegistry());
+		try {
+			dec.readHeadersAndContentsFromInputStreamAndDecode(new ByteArrayInputStream(bos.toByteArray()));
+			fail();
+		} catch (DecodeException e) {
+			assertTrue(e.getMessage(), e.getMessage().contains(dictionary.getId()));
+		}
+
+		CompressionDictionaryRegistry registry = new CompressionDictionaryRegistry();
+		registry.register(dictionary);
+		dec = new Hl7OverHttpRequestDecoder();
+		dec.setCompressionDictionaryRegistry(registry);
+		dec.readHeadersAndContentsFromInputStreamAndDecode(new ByteArrayInputStream(bos.toByteArray()));
+		assertEquals(message, dec.getMessage());
+		assertSame(dictionary, dec.getCompressionDictionary());
+	}
+
+	@Test
+	public void testEncodeWithAcceptGzip() throws Exception {
+		Hl7OverHttpRequestEncoder enc = new Hl7OverHttpRequestEncoder();
+		enc.setMessage("MSH|^~\\&|||||200803051508||ADT^A31|2|P|2.5\r");
+		enc.setAcceptGzip(true);
+		enc.encode();
+		assertEquals("gzip", enc.getHeaders().get("Accept-Encoding"));
+
+		enc = new Hl7OverHttpRequestEncoder();
+		enc.setMessage("MSH|^~\\&|||||200803051508||ADT^A31|2|P|2.5\r");
+		enc.encode();
+		assertNull(enc.getHeaders().get("Accept-Encoding"));
+	}
+
+	@Test
+	public void testEncodeChunkedWithTrailerSignature() throws Exception {
+		String message = "MSH|^~\\&|||||200803051508||ADT^A31|2|P|2.5\r";
+		ISigner signer = new HashCodeSigner();
+
+		Hl7OverHttpRequestEncoder enc = new Hl7OverHttpRequestEncoder();
+		enc.setMessage(message);
+		enc.setPath("/theUri");
+		enc.setSigner(signer);
+		enc.setTransferEncoding(TransferEncoding.CHUNKED);
+		enc.setSignatureInTrailer(true);
+		ByteArrayOutputStream bos = new ByteArrayOutputStream();
+		enc.encodeToOutputStream(bos);
+
+		String expectedSignature = signer.sign(message.getBytes("UTF-8"));
+		String encoded = bos.toString("ISO-8859-1");
+		assertTrue(encoded, encoded.contains("Trailer: HL7-Signature\r\n"));
+		assertTrue(encoded, encoded.endsWith("\r\n0\r\nHL7-Signature: " + expectedSignature + "\r\n\r\n"));
+
+		Hl7OverHttpRequestDecoder dec = new Hl7OverHttpRequestDecoder();
+		dec.setSigner(signer);
+		dec.readHeadersAndContentsFromInputStreamAndDecode(new ByteArrayInputStream(bos.toByteArray()));
+		assertEquals(message, dec.getMessage());
+		assertEquals(expectedSignature, dec.getHeaders().get("HL7-Signature"));
+
+		// Tamper with the trailer
+		byte[] tampered = encoded.replace("HL7-Signature: " + expectedSignature, "HL7-Signature: 1234").getBytes("ISO-8859-1");
+		dec = new Hl7OverHttpRequestDecoder();
+		dec.setSigner(signer);
+		try {
+			dec.readHeadersAndContentsFromInputStreamAndDecode(new ByteArrayInputStream(tampered));
+			fail();
+		} catch (SignatureVerificationException e) {
+			// expected
+		}
+	}
+
+	@Test
+	public void testEncodeChunkedWithSignerSendsSignatureInHeaderByDefault() throws Exception {
+		String message = "MSH|^~\\&|||||200803051508||ADT^A31|2|P|2.5\r";
+		ISigner signer = new HashCodeSigner();
+
+		Hl7OverHttpRequestEncoder enc = new Hl7OverHttpRequestEncoder();
+		enc.setMessage(message);
+		enc.setPath("/theUri");
+		enc.setSigner(signer);
+		enc.setTransferEncoding(TransferEncoding.CHUNKED);
+		ByteArrayOutputStream bos = new ByteArrayOutputStream();
+		enc.encodeToOutputStream(bos);
+
+		String expectedSignature = signer.sign(message.getBytes("UTF-8"));
+		String encoded = bos.toString("ISO-8859-1");
+		assertFalse(encoded, encoded.contains("Transfer-Encoding"));
+		assertFalse(encoded, encoded.contains("Trailer"));
+		assertEquals(expectedSignature, enc.getHeaders().get("HL7-Signature"));
+
+		// Receivers which only see the headers can verify it
+		Hl7OverHttpRequestDecoder dec = new Hl7OverHttpRequestDecoder();
+		dec.setSigner(signer);
+		dec.readHeadersAndContentsFromInputStreamAndDecode(new ByteArrayInputStream(bos.toByteArray()));
+		assertEquals(message, dec.getMessage());
+	}
+
+	private static void assertDecodesTo(String theMessage, byte[] theEncoded) throws Exception {
+		Hl7OverHttpRequestDecoder dec = new Hl7OverHttpRequestDecoder();
+		dec.readHeadersAndContentsFromInputStreamAndDecode(new ByteArrayInputStream(theEncoded));
+		assertEquals(theMessage, dec.getMessage());
+		assertEquals("/theUri", dec.getPath());
+	}
+
 	@BeforeClass
 	public static void beforeClass() throws KeyStoreException, IOException, NoSuchAlgorithmException, CertificateException {
 		KeyStore keyStore = KeyStore.getInstance("JKS");
@@ -93,4 +467,21 @@ public class Hl7OverHttpEncoderTest {
 		mySigner.setAliasPassword("changeit");
 	}
 	
+	/**
+	 * Trivial signer which doesn't need a keystore
+	 */
+	private static class HashCodeSigner implements ISigner {
+
+		public String sign(byte[] theBytes) throws SignatureFailureException {
+			return Integer.toString(Arrays.hashCode(theBytes));
+		}
+
+		public void verify(byte[] theBytes, String theSignature) throws SignatureVerificationException, SignatureFailureException {
+			if (!sign(theBytes).equals(theSignature)) {
+				throw new SignatureVerificationException();
+			}
+		}
+
+	}
+
 }
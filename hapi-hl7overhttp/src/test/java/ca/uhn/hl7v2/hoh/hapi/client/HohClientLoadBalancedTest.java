@@ -0,0 +1,139 @@
+package ca.uhn.hl7v2.hoh.hapi.client;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import ca.uhn.hl7v2.hoh.api.DecodeException;
+import ca.uhn.hl7v2.hoh.api.IReceivable;
+import ca.uhn.hl7v2.hoh.auth.SingleCredentialClientCallback;
+import ca.uhn.hl7v2.hoh.auth.SingleCredentialServerCallback;
+import ca.uhn.hl7v2.hoh.llp.ServerSocketThreadForTesting;
+import ca.uhn.hl7v2.hoh.util.RandomServerPortProvider;
+import ca.uhn.hl7v2.model.Message;
+import ca.uhn.hl7v2.parser.PipeParser;
+
+public class HohClientLoadBalancedTest {
+
+	private static final String MESSAGE = // -
+	"MSH|^~\\&|||||200803051508||ADT^A31|2|P|2.5\r" + // -
+			"EVN||200803051509\r" + // -
+			"PID|||ZZZZZZ83M64Z148R^^^SSN^SSN^^20070103\r"; // -
+
+	private static final org.slf4j.Logger ourLog = org.slf4j.LoggerFactory.getLogger(HohClientLoadBalancedTest.class);
+
+	private HohClientLoadBalanced myClient;
+	private List<Integer> myPorts;
+	private List<ServerSocketThreadForTesting> myServers;
+
+	@After
+	public void after() {
+		for (ServerSocketThreadForTesting next : myServers) {
+			next.done();
+		}
+	}
+
+	@Before
+	public void before() throws Exception {
+		myServers = new ArrayList<ServerSocketThreadForTesting>();
+		myPorts = new ArrayList<Integer>();
+		List<URL> urls = new ArrayList<URL>();
+		for (int i = 0; i < 2; i++) {
+			int port = RandomServerPortProvider.findFreePort();
+			ServerSocketThreadForTesting server = new ServerSocketThreadForTesting(port, new SingleCredentialServerCallback("hello", "hapiworld"));
+			server.start();
+			server.getLatch().await();
+			myServers.add(server);
+			myPorts.add(port);
+			urls.add(new URL("http://localhost:" + port + "/theUri"));
+		}
+
+		myClient = new HohClientLoadBalanced(urls, PipeParser.getInstanceWithNoValidation());
+		myClient.setAuthorizationCallback(new SingleCredentialClientCallback("hello", "hapiworld"));
+		myClient.setResponseTimeout(2000);
+	}
+
+	private Message createMessage() throws Exception {
+		return PipeParser.getInstanceWithNoValidation().parse(MESSAGE);
+	}
+
+	@Test
+	public void testSpreadAcrossEndpoints() throws Exception {
+		for (int i = 0; i < 6; i++) {
+			IReceivable<Message> response = myClient.sendAndReceiveMessage(createMessage());
+			assertTrue(response.getMessage().encode().startsWith("MSH|"));
+		}
+
+		// Idle endpoints tie, and ties are taken in turn
+		for (ServerSocketThreadForTesting next : myServers) {
+			assertEquals(1, next.getConnectionCount());
+		}
+		for (HohClientLoadBalanced.Endpoint next : myClient.getEndpoints()) {
+			assertEquals(0, next.getOutstandingRequests());
+			assertFalse(next.isEjected());
+		}
+	}
+
+	@Test
+	public void testSpreadAcrossEndpointsByLatency() throws Exception {
+		myClient.setStrategy(LoadBalancingStrategyEnum.EWMA_LATENCY);
+		myServers.get(0).setResponseDelays(300L, 300L, 300L, 300L, 300L);
+
+		for (int i = 0; i < 10; i++) {
+			myClient.sendAndReceiveMessage(createMessage());
+		}
+
+		HohClientLoadBalanced.Endpoint slow = myClient.getEndpoints().get(0);
+		HohClientLoadBalanced.Endpoint fast = myClient.getEndpoints().get(1);
+		ourLog.info("Slow: {}ms, fast: {}ms", slow.getLatencyEwmaMillis(), fast.getLatencyEwmaMillis());
+		assertTrue(slow.getLatencyEwmaMillis() > fast.getLatencyEwmaMillis());
+
+		// Once the slow endpoint has been measured, the rest go to the fast one
+		assertEquals(1, myServers.get(0).getConnectionCount());
+	}
+
+	@Test
+	public void testEjectFailedEndpointAndReturnItLater() throws Exception {
+		myClient.setMaxConsecutiveFailures(1);
+		myClient.setEjectionTime(1000);
+
+		// Nothing is listening on the first endpoint any more
+		myServers.get(0).done();
+		Thread.sleep(1500);
+
+		HohClientLoadBalanced.Endpoint down = myClient.getEndpoints().get(0);
+		int failures = 0;
+		for (int i = 0; i < 6; i++) {
+			try {
+				myClient.sendAndReceiveMessage(createMessage());
+			} catch (IOException e) {
+				failures++;
+			} catch (DecodeException e) {
+				failures++;
+			}
+		}
+		assertEquals(1, failures);
+		assertTrue(down.isEjected());
+
+		// Bring it back, and it is used again once the ejection time passes
+		ServerSocketThreadForTesting server = new ServerSocketThreadForTesting(myPorts.get(0), new SingleCredentialServerCallback("hello", "hapiworld"));
+		server.start();
+		server.getLatch().await();
+		myServers.add(server);
+		Thread.sleep(1000);
+
+		assertFalse(down.isEjected());
+		for (int i = 0; i < 4; i++) {
+			myClient.sendAndReceiveMessage(createMessage());
+		}
+		assertEquals(1, server.getConnectionCount());
+	}
+
+}
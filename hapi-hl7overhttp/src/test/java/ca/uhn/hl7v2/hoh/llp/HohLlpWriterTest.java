@@ -0,0 +1,213 @@
+package ca.uhn.hl7v2.hoh.llp;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+
+import org.junit.Test;
+
+import ca.uhn.hl7v2.hoh.encoder.Hl7OverHttpRequestEncoder;
+import ca.uhn.hl7v2.hoh.encoder.Hl7OverHttpResponseDecoder;
+import ca.uhn.hl7v2.hoh.encoder.Hl7OverHttpResponseEncoder;
+import ca.uhn.hl7v2.hoh.util.ServerRoleEnum;
+import ca.uhn.hl7v2.llp.HL7Reader;
+import ca.uhn.hl7v2.llp.LLPException;
+
+public class HohLlpWriterTest {
+
+	private static final org.slf4j.Logger ourLog = org.slf4j.LoggerFactory.getLogger(HohLlpWriterTest.class);
+
+	@Test
+	public void testResponsesWrittenInRequestOrder() throws Exception {
+		ByteArrayOutputStream requests = new ByteArrayOutputStream();
+		for (int i = 1; i <= 3; i++) {
+			Hl7OverHttpRequestEncoder enc = new Hl7OverHttpRequestEncoder();
+			enc.setMessage(createMessage("ADT^A01", Integer.toString(i), null));
+			enc.setPath("/");
+			enc.encodeToOutputStream(requests);
+		}
+
+		Hl7OverHttpLowerLayerProtocol llp = new Hl7OverHttpLowerLayerProtocol(ServerRoleEnum.SERVER);
+		HL7Reader reader = llp.getReader(new ByteArrayInputStream(requests.toByteArray()));
+		ByteArrayOutputStream responses = new ByteArrayOutputStream();
+		HohLlpWriter writer = (HohLlpWriter) llp.getWriter(responses);
+
+		for (int i = 1; i <= 3; i++) {
+			assertNotNull(reader.getMessage());
+		}
+
+		writer.writeMessage(createMessage("ACK", "A3", "3"));
+		assertEquals("Response must wait for earlier responses", 0, responses.size());
+
+		writer.writeMessage(createMessage("ACK", "A1", "1"));
+		writer.writeMessage(createMessage("ACK", "A2", "2"));
+		assertFalse(writer.hasPendingExchanges());
+
+		InputStream in = new ByteArrayInputStream(responses.toByteArray());
+		for (int i = 1; i <= 3; i++) {
+			Hl7OverHttpResponseDecoder dec = new Hl7OverHttpResponseDecoder();
+			dec.readHeadersAndContentsFromInputStreamAndDecode(in);
+			ourLog.info("Response {}: {}", i, dec.getMessage());
+			assertTrue(dec.getMessage(), dec.getMessage().contains("MSA|AA|" + i + "\r"));
+		}
+	}
+
+	@Test
+	public void testErrorResponseWrittenInRequestOrder() throws Exception {
+		ByteArrayOutputStream requests = new ByteArrayOutputStream();
+		Hl7OverHttpRequestEncoder enc = new Hl7OverHttpRequestEncoder();
+		enc.setMessage(createMessage("ADT^A01", "1", null));
+		enc.setPath("/");
+		enc.encodeToOutputStream(requests);
+		// No content type, so this request can't be read
+		requests.write("POST / HTTP/1.1\r\nContent-Length: 5\r\n\r\nhello".getBytes("ISO-8859-1"));
+
+		Hl7OverHttpLowerLayerProtocol llp = new Hl7OverHttpLowerLayerProtocol(ServerRoleEnum.SERVER);
+		final HL7Reader reader = llp.getReader(new ByteArrayInputStream(requests.toByteArray()));
+		ByteArrayOutputStream responses = new ByteArrayOutputStream();
+		HohLlpWriter writer = (HohLlpWriter) llp.getWriter(responses);
+		assertNotNull(reader.getMessage());
+
+		final Exception[] failure = new Exception[1];
+		Thread readerThread = new Thread() {
+			@Override
+			public void run() {
+				try {
+					reader.getMessage();
+				} catch (Exception e) {
+					failure[0] = e;
+				}
+			}
+		};
+		readerThread.start();
+		readerThread.join(500);
+		assertTrue("Error must wait for the earlier response", readerThread.isAlive());
+		assertEquals(0, responses.size());
+
+		writer.writeMessage(createMessage("ACK", "A1", "1"));
+		readerThread.join(5000);
+		assertFalse(readerThread.isAlive());
+		assertTrue(failure[0] instanceof LLPException);
+
+		InputStream in = new ByteArrayInputStream(responses.toByteArray());
+		Hl7OverHttpResponseDecoder dec = new Hl7OverHttpResponseDecoder();
+		dec.readHeadersAndContentsFromInputStreamAndDecode(in);
+		assertTrue(dec.getMessage(), dec.getMessage().contains("MSA|AA|1\r"));
+		byte[] rest = new byte[in.available()];
+		in.read(rest);
+		assertTrue(new String(rest, "ISO-8859-1").contains("HTTP 400 - Bad Request"));
+	}
+
+	@Test
+	public void testMaxOutstandingRequests() throws Exception {
+		Hl7OverHttpResponseEncoder enc = new Hl7OverHttpResponseEncoder();
+		enc.setMessage(createMessage("ACK", "A1", "1"));
+		ByteArrayOutputStream response = new ByteArrayOutputStream();
+		enc.encodeToOutputStream(response);
+
+		Hl7OverHttpLowerLayerProtocol llp = new Hl7OverHttpLowerLayerProtocol(ServerRoleEnum.CLIENT);
+		llp.setMaxOutstandingRequests(1);
+		HL7Reader reader = llp.getReader(new ByteArrayInputStream(response.toByteArray()));
+		final HohLlpWriter writer = (HohLlpWriter) llp.getWriter(new ByteArrayOutputStream());
+
+		writer.writeMessage(createMessage("ADT^A01", "1", null));
+
+		final Exception[] failure = new Exception[1];
+		Thread second = new Thread() {
+			@Override
+			public void run() {
+				try {
+					writer.writeMessage(createMessage("ADT^A01", "2", null));
+				} catch (Exception e) {
+					failure[0] = e;
+				}
+			}
+		};
+		second.start();
+		second.join(500);
+		assertTrue("Second request must wait for the first response", second.isAlive());
+
+		assertNotNull(reader.getMessage());
+		second.join(5000);
+		assertFalse(second.isAlive());
+		assertNull(failure[0]);
+	}
+
+	@Test
+	public void testSendWaitTimeout() throws Exception {
+		Hl7OverHttpLowerLayerProtocol llp = new Hl7OverHttpLowerLayerProtocol(ServerRoleEnum.CLIENT);
+		llp.setMaxOutstandingRequests(1);
+		llp.setSendWaitTimeout(100);
+		llp.getReader(new ByteArrayInputStream(new byte[0]));
+		HohLlpWriter writer = (HohLlpWriter) llp.getWriter(new ByteArrayOutputStream());
+
+		writer.writeMessage(createMessage("ADT^A01", "1", null));
+		long start = System.currentTimeMillis();
+		try {
+			writer.writeMessage(createMessage("ADT^A01", "2", null));
+			fail();
+		} catch (LLPException e) {
+			ourLog.info("Expected exception: {}", e.getMessage());
+		}
+		assertTrue(System.currentTimeMillis() - start < 5000);
+	}
+
+	@Test
+	public void testIdleConnectionClosed() throws Exception {
+		Hl7OverHttpLowerLayerProtocol llp = new Hl7OverHttpLowerLayerProtocol(ServerRoleEnum.SERVER);
+		llp.setKeepAliveTimeout(1);
+		HL7Reader reader = llp.getReader(new InputStream() {
+			@Override
+			public int read() throws IOException {
+				throw new SocketTimeoutException();
+			}
+		});
+		llp.getWriter(new ByteArrayOutputStream());
+
+		Thread.sleep(10);
+		try {
+			reader.getMessage();
+			fail();
+		} catch (SocketException e) {
+			ourLog.info("Expected exception: {}", e.getMessage());
+		}
+	}
+
+	@Test
+	public void testIdleConnectionKeptOpenByDefault() throws Exception {
+		Hl7OverHttpLowerLayerProtocol llp = new Hl7OverHttpLowerLayerProtocol(ServerRoleEnum.SERVER);
+		HL7Reader reader = llp.getReader(new InputStream() {
+			@Override
+			public int read() throws IOException {
+				throw new SocketTimeoutException();
+			}
+		});
+		llp.getWriter(new ByteArrayOutputStream());
+
+		Thread.sleep(10);
+		assertNull(reader.getMessage());
+	}
+
+	@Test(expected = LLPException.class)
+	public void testMultiSocketRejected() throws Exception {
+		Hl7OverHttpLowerLayerProtocol llp = new Hl7OverHttpLowerLayerProtocol(ServerRoleEnum.SERVER);
+		llp.getReader(new ByteArrayInputStream(new byte[0]));
+		llp.getReader(new ByteArrayInputStream(new byte[0]));
+	}
+
+	private static String createMessage(String theType, String theControlId, String theAckId) {
+		String retVal = "MSH|^~\\&|||||200803051508||" + theType + "|" + theControlId + "|P|2.5\r";
+		if (theAckId != null) {
+			retVal = retVal + "MSA|AA|" + theAckId + "\r";
+		} else {
+			retVal = retVal + "EVN||200803051509\r";
+		}
+		return retVal;
+	}
+
+}
@@ -0,0 +1,69 @@
+package ca.uhn.hl7v2.hoh.metrics;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+public class LatencyHistogramTest {
+
+	@Test
+	public void testBucketsAreContiguous() {
+		assertEquals(0, LatencyHistogram.bucketIndex(0));
+		assertEquals(15, LatencyHistogram.bucketIndex(15));
+		assertEquals(16, LatencyHistogram.bucketIndex(16));
+		for (int i = 1; i < 960; i++) {
+			assertEquals(i - 1, LatencyHistogram.bucketIndex(LatencyHistogram.highestValueInBucket(i - 1)));
+			assertEquals(i, LatencyHistogram.bucketIndex(LatencyHistogram.highestValueInBucket(i - 1) + 1));
+			assertEquals(i, LatencyHistogram.bucketIndex(LatencyHistogram.highestValueInBucket(i)));
+		}
+		assertTrue(LatencyHistogram.bucketIndex(Long.MAX_VALUE) >= 0);
+		assertEquals(Long.MAX_VALUE, LatencyHistogram.highestValueInBucket(LatencyHistogram.bucketIndex(Long.MAX_VALUE)));
+	}
+
+	@Test
+	public void testPercentiles() {
+		LatencyHistogram histogram = new LatencyHistogram();
+		for (long i = 1; i <= 1000; i++) {
+			histogram.record(i * 1000000L);
+		}
+		histogram.record(5000000000L);
+
+		assertEquals(1001, histogram.getCount());
+		assertEquals(5000000000L, histogram.getMaxNanos());
+		assertWithin(500000000L, histogram.getValueAtPercentile(50));
+		assertWithin(990000000L, histogram.getValueAtPercentile(99));
+		assertWithin(1000000000L, histogram.getValueAtPercentile(99.9));
+		assertEquals(5000000000L, histogram.getValueAtPercentile(100));
+
+		LatencySummary summary = histogram.summarize();
+		assertEquals(1001, summary.getCount());
+		assertEquals(histogram.getValueAtPercentile(99), summary.getP99());
+		assertEquals((500500000000L + 5000000000L) / 1001.0, summary.getMean(), 1.0);
+	}
+
+	@Test
+	public void testEmptyAndReset() {
+		LatencyHistogram histogram = new LatencyHistogram();
+		assertEquals(0, histogram.getValueAtPercentile(99));
+		assertEquals(0.0, histogram.getMeanNanos(), 0.0);
+
+		histogram.record(-5);
+		histogram.record(7);
+		assertEquals(0, histogram.getValueAtPercentile(50));
+		assertEquals(7, histogram.getValueAtPercentile(100));
+
+		histogram.reset();
+		assertEquals(0, histogram.getCount());
+		assertEquals(0, histogram.getMaxNanos());
+		assertEquals(0, histogram.getValueAtPercentile(100));
+	}
+
+	/**
+	 * Values are rounded up to the top of their bucket, which is at most
+	 * 1/16th above the bottom
+	 */
+	private static void assertWithin(long theExpected, long theActual) {
+		assertTrue("Expected about " + theExpected + " but was " + theActual, theActual >= theExpected && theActual <= theExpected + theExpected / 16);
+	}
+
+}
@@ -0,0 +1,443 @@
+package ca.uhn.hl7v2.hoh.raw.client;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import ca.uhn.hl7v2.hoh.api.IClientMultithreaded;
+import ca.uhn.hl7v2.hoh.api.IMessageHandler;
+import ca.uhn.hl7v2.hoh.api.IReceivable;
+import ca.uhn.hl7v2.hoh.api.IResponseSendable;
+import ca.uhn.hl7v2.hoh.api.MessageProcessingException;
+import ca.uhn.hl7v2.hoh.hapi.client.HohClientMultithreaded;
+import ca.uhn.hl7v2.hoh.llp.Hl7OverHttpLowerLayerProtocol;
+import ca.uhn.hl7v2.hoh.metrics.InMemoryMetrics;
+import ca.uhn.hl7v2.hoh.metrics.LatencyHistogram;
+import ca.uhn.hl7v2.hoh.metrics.PhaseEnum;
+import ca.uhn.hl7v2.hoh.raw.api.RawSendable;
+import ca.uhn.hl7v2.hoh.raw.server.HohRawNioServer;
+import ca.uhn.hl7v2.hoh.sign.BouncyCastleCmsMessageSignerTest;
+import ca.uhn.hl7v2.hoh.sockets.CustomCertificateTlsSocketFactory;
+import ca.uhn.hl7v2.hoh.sockets.CustomCertificateTlsSocketFactoryTest;
+import ca.uhn.hl7v2.hoh.util.AllocationCounter;
+import ca.uhn.hl7v2.hoh.util.ServerRoleEnum;
+import ca.uhn.hl7v2.llp.HL7Reader;
+import ca.uhn.hl7v2.llp.HL7Writer;
+import ca.uhn.hl7v2.model.Message;
+import ca.uhn.hl7v2.parser.PipeParser;
+
+/**
+ * <p>
+ * Load tests HL7 over HTTP by running a server in this JVM and sending
+ * messages to it from {@link HohRawClientMultithreaded} (or
+ * {@link HohClientMultithreaded} with <code>--hapi</code>), then reports
+ * throughput, a latency histogram and the allocation rate.
+ * </p>
+ * <p>
+ * By default each of <code>--concurrency</code> threads sends its next
+ * message as soon as it has the response to the last one. With
+ * <code>--rate</code>, messages are instead sent at a fixed total rate, and
+ * latency is measured from when each message was due to be sent rather than
+ * from when a thread was free to send it, so that a slow server is not
+ * hidden by the senders slowing down with it. Enough threads must be given
+ * to sustain the rate.
+ * </p>
+ * <p>
+ * With no arguments, a fixed set of configurations is run one after the
+ * other: keep-alive on and off, GZip, signing, and TLS. Otherwise one
+ * configuration is run, given by these options:
+ * </p>
+ * <pre>
+ * --concurrency N   Number of sending threads (default 8)
+ * --rate N          Messages per second in total (default 0, meaning as fast as possible)
+ * --warmup N        Seconds to run before measuring (default 5)
+ * --duration N      Seconds to measure for (default 20)
+ * --size N          Pad messages and responses to about N bytes (default 0)
+ * --no-keepalive    Open a new connection for each message
+ * --gzip            Accept GZipped responses, and GZip any response of 1KB or more
+ * --sign            Sign requests and verify the signature on the server
+ * --tls             Use TLS (implies --server llp)
+ * --hapi            Send parsed HAPI messages using HohClientMultithreaded
+ * --server nio|llp  Receive using HohRawNioServer (default) or a blocking
+ *                   socket server using Hl7OverHttpLowerLayerProtocol
+ * </pre>
+ * <p>
+ * This is not a unit test. Run it using the main method from the
+ * hapi-hl7overhttp directory (so that the test keystores are found), with a
+ * fixed heap size. The allocation rate covers every thread in the JVM,
+ * including the server's.
+ * </p>
+ */
+public class HohLoadTester {
+
+	private static final int GZIP_THRESHOLD = 1024;
+
+	private boolean myAcceptGzip;
+	private int myConcurrency = 8;
+	private long myDurationSeconds = 20;
+	private boolean myHapi;
+	private boolean myKeepAlive = true;
+	private String myName = "custom";
+	private long myRate;
+	private String myServer = "nio";
+	private boolean mySign;
+	private int mySize;
+	private boolean myTls;
+	private long myWarmUpSeconds = 5;
+
+	public static void main(String[] theArgs) throws Exception {
+		List<HohLoadTester> testers = new ArrayList<HohLoadTester>();
+		if (theArgs.length == 0) {
+			testers.add(new HohLoadTester().name("keepalive"));
+			testers.add(new HohLoadTester().name("no-keepalive").keepAlive(false));
+			testers.add(new HohLoadTester().name("gzip-16k").acceptGzip(true).size(16 * 1024));
+			testers.add(new HohLoadTester().name("no-gzip-16k").size(16 * 1024));
+			testers.add(new HohLoadTester().name("sign").sign(true));
+			testers.add(new HohLoadTester().name("llp").server("llp"));
+			testers.add(new HohLoadTester().name("llp-tls").server("llp").tls(true));
+		} else {
+			testers.add(parseArgs(theArgs));
+		}
+
+		if (!AllocationCounter.isSupported()) {
+			System.out.println("Allocation counting is not supported by this JVM");
+		}
+		System.out.println(String.format("%-14s %10s %9s %9s %9s %9s %8s %11s %11s", "Config", "msgs/sec", "p50 ms", "p99 ms", "p99.9 ms", "max ms", "errors", "alloc MB/s", "alloc KB/msg"));
+		for (HohLoadTester next : testers) {
+			next.run();
+		}
+	}
+
+	private HohLoadTester acceptGzip(boolean theAcceptGzip) {
+		myAcceptGzip = theAcceptGzip;
+		return this;
+	}
+
+	private IClientMultithreaded createClient(int thePort, ScheduledExecutorService theExecutorService) throws Exception {
+		IClientMultithreaded retVal;
+		if (myHapi) {
+			retVal = new HohClientMultithreaded(new URL("http://localhost:" + thePort + "/"), PipeParser.getInstanceWithNoValidation(), theExecutorService);
+		} else {
+			retVal = new HohRawClientMultithreaded("localhost", thePort, "/", theExecutorService);
+		}
+		if (!myKeepAlive) {
+			// Close each connection as it is returned, so every message opens
+			// a new one. setKeepAlive only controls TCP SO_KEEPALIVE.
+			retVal.setMaxIdleConnections(0);
+		}
+		retVal.setAcceptGzip(myAcceptGzip);
+		if (mySign) {
+			retVal.setSigner(BouncyCastleCmsMessageSignerTest.createSigner());
+		}
+		if (myTls) {
+			retVal.setSocketFactory(CustomCertificateTlsSocketFactoryTest.createTrustedClientSocketFactory());
+		}
+		return retVal;
+	}
+
+	private String createMessage(String theControlId) {
+		StringBuilder b = new StringBuilder();
+		b.append("MSH|^~\\&|||||200803051508||ADT^A31|").append(theControlId).append("|P|2.5\r");
+		b.append("EVN||200803051509\r");
+		b.append("PID|||ZZZZZZ83M64Z148R^^^SSN^SSN^^20070103\r");
+		pad(b);
+		return b.toString();
+	}
+
+	private String createResponse(String theMessage) {
+		// MSH-10 follows the ninth field separator
+		int start = 0;
+		for (int i = 0; i < 9; i++) {
+			start = theMessage.indexOf('|', start) + 1;
+		}
+		String controlId = theMessage.substring(start, theMessage.indexOf('|', start));
+
+		StringBuilder b = new StringBuilder();
+		b.append("MSH|^~\\&|||||200803051508||ACK^A31|A").append(controlId).append("|P|2.5\r");
+		b.append("MSA|AA|").append(controlId).append("\r");
+		pad(b);
+		return b.toString();
+	}
+
+	private HohLoadTester keepAlive(boolean theKeepAlive) {
+		myKeepAlive = theKeepAlive;
+		return this;
+	}
+
+	private HohLoadTester name(String theName) {
+		myName = theName;
+		return this;
+	}
+
+	private void pad(StringBuilder theBuilder) {
+		for (int i = 0; theBuilder.length() < mySize; i++) {
+			theBuilder.append("NTE|").append(i).append("||Clinical note text which is repeated to pad the message\r");
+		}
+	}
+
+	private void run() throws Exception {
+		Receiver receiver = "llp".equals(myServer) || myTls ? new LlpReceiver() : new NioReceiver();
+		int port = receiver.start();
+
+		ScheduledExecutorService clientExecutor = Executors.newSingleThreadScheduledExecutor();
+		final IClientMultithreaded client = createClient(port, clientExecutor);
+		final InMemoryMetrics clientMetrics = new InMemoryMetrics();
+		client.setMetricsListener(clientMetrics);
+
+		final LatencyHistogram latency = new LatencyHistogram();
+		final AtomicBoolean measuring = new AtomicBoolean();
+		final AtomicBoolean done = new AtomicBoolean();
+		final AtomicLong errors = new AtomicLong();
+		final AtomicLong tickets = new AtomicLong();
+		final CountDownLatch finished = new CountDownLatch(myConcurrency);
+		final long intervalNanos = myRate > 0 ? 1000000000L / myRate : 0;
+		final long firstSendNanos = System.nanoTime();
+
+		for (int i = 0; i < myConcurrency; i++) {
+			final String message = createMessage(Integer.toString(i));
+			final Message hapiMessage = myHapi ? PipeParser.getInstanceWithNoValidation().parse(message) : null;
+			Thread thread = new Thread("load-" + i) {
+				@Override
+				public void run() {
+					try {
+						while (!done.get()) {
+							long intended;
+							if (intervalNanos > 0) {
+								intended = firstSendNanos + tickets.getAndIncrement() * intervalNanos;
+								long wait;
+								while ((wait = intended - System.nanoTime()) > 0 && !done.get()) {
+									LockSupport.parkNanos(wait);
+								}
+							} else {
+								intended = System.nanoTime();
+							}
+
+							try {
+								if (hapiMessage != null) {
+									((HohClientMultithreaded) client).sendAndReceiveMessage(hapiMessage);
+								} else {
+									((HohRawClientMultithreaded) client).sendAndReceive(new RawSendable(message));
+								}
+								if (measuring.get()) {
+									latency.record(System.nanoTime() - intended);
+								}
+							} catch (Exception e) {
+								if (measuring.get()) {
+									errors.incrementAndGet();
+								}
+							}
+						}
+					} finally {
+						finished.countDown();
+					}
+				}
+			};
+			thread.start();
+		}
+
+		Thread.sleep(myWarmUpSeconds * 1000);
+		clientMetrics.reset();
+		long startBytes = AllocationCounter.getAllThreadsAllocatedBytes();
+		long start = System.nanoTime();
+		measuring.set(true);
+		Thread.sleep(myDurationSeconds * 1000);
+		measuring.set(false);
+		long elapsed = System.nanoTime() - start;
+		long bytes = AllocationCounter.getAllThreadsAllocatedBytes() - startBytes;
+		done.set(true);
+		finished.await();
+		clientExecutor.shutdownNow();
+		receiver.stop();
+
+		long count = latency.getCount();
+		double seconds = elapsed / 1000000000.0;
+		String allocRate = "n/a";
+		String allocPerMessage = "n/a";
+		if (AllocationCounter.isSupported()) {
+			allocRate = String.format("%.1f", bytes / seconds / (1024 * 1024));
+			allocPerMessage = count > 0 ? String.format("%.1f", bytes / (double) count / 1024) : "n/a";
+		}
+		System.out.println(String.format("%-14s %10.0f %9.2f %9.2f %9.2f %9.2f %8d %11s %11s", myName, count / seconds, millis(latency.getValueAtPercentile(50)), millis(latency.getValueAtPercentile(99)), millis(latency.getValueAtPercentile(99.9)), millis(latency.getMaxNanos()), errors.get(), allocRate, allocPerMessage));
+		for (PhaseEnum next : PhaseEnum.values()) {
+			if (clientMetrics.getHistogram(next).getCount() > 0) {
+				System.out.println(String.format("    client %-10s %s", next.name(), clientMetrics.summarize(next)));
+			}
+		}
+	}
+
+	private HohLoadTester server(String theServer) {
+		myServer = theServer;
+		return this;
+	}
+
+	private HohLoadTester sign(boolean theSign) {
+		mySign = theSign;
+		return this;
+	}
+
+	private HohLoadTester size(int theSize) {
+		mySize = theSize;
+		return this;
+	}
+
+	private HohLoadTester tls(boolean theTls) {
+		myTls = theTls;
+		return this;
+	}
+
+	private static double millis(long theNanos) {
+		return theNanos / 1000000.0;
+	}
+
+	private static HohLoadTester parseArgs(String[] theArgs) {
+		HohLoadTester retVal = new HohLoadTester();
+		for (int i = 0; i < theArgs.length; i++) {
+			String next = theArgs[i];
+			if ("--concurrency".equals(next)) {
+				retVal.myConcurrency = Integer.parseInt(theArgs[++i]);
+			} else if ("--rate".equals(next)) {
+				retVal.myRate = Long.parseLong(theArgs[++i]);
+			} else if ("--warmup".equals(next)) {
+				retVal.myWarmUpSeconds = Long.parseLong(theArgs[++i]);
+			} else if ("--duration".equals(next)) {
+				retVal.myDurationSeconds = Long.parseLong(theArgs[++i]);
+			} else if ("--size".equals(next)) {
+				retVal.mySize = Integer.parseInt(theArgs[++i]);
+			} else if ("--no-keepalive".equals(next)) {
+				retVal.myKeepAlive = false;
+			} else if ("--gzip".equals(next)) {
+				retVal.myAcceptGzip = true;
+			} else if ("--sign".equals(next)) {
+				retVal.mySign = true;
+			} else if ("--tls".equals(next)) {
+				retVal.myTls = true;
+			} else if ("--hapi".equals(next)) {
+				retVal.myHapi = true;
+			} else if ("--server".equals(next)) {
+				retVal.myServer = theArgs[++i];
+			} else {
+				throw new IllegalArgumentException("Unknown option: " + next);
+			}
+		}
+		return retVal;
+	}
+
+	/**
+	 * Receives messages using a blocking socket server, with one thread per
+	 * connection reading and writing through the HL7 over HTTP LLP
+	 */
+	private class LlpReceiver implements Receiver {
+
+		private final Hl7OverHttpLowerLayerProtocol myLlp = new Hl7OverHttpLowerLayerProtocol(ServerRoleEnum.SERVER);
+		private ServerSocket myServerSocket;
+		private final List<Socket> mySockets = new ArrayList<Socket>();
+
+		public int start() throws Exception {
+			if (mySign) {
+				myLlp.setSigner(BouncyCastleCmsMessageSignerTest.createVerifier());
+			}
+			myLlp.setGzipThreshold(GZIP_THRESHOLD);
+			if (myTls) {
+				CustomCertificateTlsSocketFactory factory = CustomCertificateTlsSocketFactoryTest.createTrustedServerSocketFactory();
+				myServerSocket = factory.createServerSocket();
+			} else {
+				myServerSocket = new ServerSocket();
+			}
+			myServerSocket.bind(new InetSocketAddress(0));
+
+			Thread acceptor = new Thread("llp-acceptor") {
+				@Override
+				public void run() {
+					while (!myServerSocket.isClosed()) {
+						try {
+							final Socket socket = myServerSocket.accept();
+							synchronized (mySockets) {
+								mySockets.add(socket);
+							}
+							final HL7Reader reader = myLlp.getReader(socket.getInputStream());
+							final HL7Writer writer = myLlp.getWriter(socket.getOutputStream());
+							new Thread("llp-connection") {
+								@Override
+								public void run() {
+									try {
+										String message;
+										while ((message = reader.getMessage()) != null) {
+											writer.writeMessage(createResponse(message));
+										}
+									} catch (Exception e) {
+										// Connection closed
+									} finally {
+										try {
+											socket.close();
+										} catch (IOException e) {
+											// ignore
+										}
+									}
+								}
+							}.start();
+						} catch (Exception e) {
+							// Server socket closed
+						}
+					}
+				}
+			};
+			acceptor.setDaemon(true);
+			acceptor.start();
+			return myServerSocket.getLocalPort();
+		}
+
+		public void stop() throws Exception {
+			myServerSocket.close();
+			synchronized (mySockets) {
+				for (Socket next : mySockets) {
+					next.close();
+				}
+			}
+		}
+
+	}
+
+	private class NioReceiver implements Receiver, IMessageHandler<String> {
+
+		private HohRawNioServer myNioServer;
+
+		public IResponseSendable<String> messageReceived(IReceivable<String> theMessage) throws MessageProcessingException {
+			return new RawSendable(createResponse(theMessage.getMessage()));
+		}
+
+		public int start() throws Exception {
+			myNioServer = new HohRawNioServer(0);
+			myNioServer.setMessageHandler(this);
+			myNioServer.setGzipThreshold(GZIP_THRESHOLD);
+			if (mySign) {
+				myNioServer.setSigner(BouncyCastleCmsMessageSignerTest.createVerifier());
+			}
+			myNioServer.start();
+			return myNioServer.getPort();
+		}
+
+		public void stop() throws Exception {
+			myNioServer.stop();
+		}
+
+	}
+
+	private interface Receiver {
+
+		int start() throws Exception;
+
+		void stop() throws Exception;
+
+	}
+
+}
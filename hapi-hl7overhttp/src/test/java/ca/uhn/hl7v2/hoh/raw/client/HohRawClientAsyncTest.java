@@ -0,0 +1,380 @@
+package ca.uhn.hl7v2.hoh.raw.client;
+
+import static org.junit.Assert.*;
+
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import ca.uhn.hl7v2.hoh.api.DecodeException;
+import ca.uhn.hl7v2.hoh.api.IReceivable;
+import ca.uhn.hl7v2.hoh.api.IResponseCallback;
+import ca.uhn.hl7v2.hoh.api.MessageMetadataKeys;
+import ca.uhn.hl7v2.hoh.auth.SingleCredentialClientCallback;
+import ca.uhn.hl7v2.hoh.auth.SingleCredentialServerCallback;
+import ca.uhn.hl7v2.hoh.encoder.EncodingStyle;
+import ca.uhn.hl7v2.hoh.encoder.Hl7OverHttpRequestDecoder;
+import ca.uhn.hl7v2.hoh.encoder.Hl7OverHttpResponseEncoder;
+import ca.uhn.hl7v2.hoh.llp.ServerSocketThreadForTesting;
+import ca.uhn.hl7v2.hoh.metrics.InMemoryMetrics;
+import ca.uhn.hl7v2.hoh.metrics.PhaseEnum;
+import ca.uhn.hl7v2.hoh.raw.api.RawSendable;
+import ca.uhn.hl7v2.hoh.sockets.TlsSocketFactory;
+import ca.uhn.hl7v2.hoh.util.RandomServerPortProvider;
+
+public class HohRawClientAsyncTest {
+	private static final org.slf4j.Logger ourLog = org.slf4j.LoggerFactory.getLogger(HohRawClientAsyncTest.class);
+	private static final String ourMessage = // -
+	"MSH|^~\\&|||||200803051508||ADT^A31|2|P|2.5\r" + // -
+			"EVN||200803051509\r" + // -
+			"PID|||ZZZZZZ83M64Z148R^^^SSN^SSN^^20070103\r"; // -
+
+	private HohRawClientAsync myClient;
+	private int myPort;
+	private ServerSocketThreadForTesting myServerSocketThread;
+
+	@Test
+	public void testSendMessageSimple() throws Exception {
+
+		ourLog.info("*** Send message #1");
+		IReceivable<String> response = myClient.sendAndReceiveAsync(new RawSendable(ourMessage)).get();
+		assertEquals(ourMessage, myServerSocketThread.getMessage());
+		assertEquals(myServerSocketThread.getReply().encode(), response.getMessage());
+		assertEquals("127.0.0.1", response.getMetadata().get(MessageMetadataKeys.REMOTE_HOST_ADDRESS.name()));
+
+		assertEquals(EncodingStyle.ER7.getContentType(), myServerSocketThread.getContentType());
+		assertEquals(EncodingStyle.ER7, myServerSocketThread.getEncoding());
+		assertEquals(1, myServerSocketThread.getConnectionCount());
+
+		ourLog.info("*** Send message #2");
+		response = myClient.sendAndReceive(new RawSendable(ourMessage));
+		assertEquals(myServerSocketThread.getReply().encode(), response.getMessage());
+		assertEquals(1, myServerSocketThread.getConnectionCount());
+
+		Thread.sleep(1000);
+
+		ourLog.info("*** Send message #3");
+		response = myClient.sendAndReceive(new RawSendable(ourMessage));
+		assertEquals(myServerSocketThread.getReply().encode(), response.getMessage());
+		assertEquals(2, myServerSocketThread.getConnectionCount());
+
+	}
+
+	@Test
+	public void testSendMessageWithMetrics() throws Exception {
+		InMemoryMetrics metrics = new InMemoryMetrics();
+		myClient.setMetricsListener(metrics);
+
+		myClient.sendAndReceive(new RawSendable(ourMessage));
+		myClient.sendAndReceiveAsync(new RawSendable(ourMessage)).get(10, TimeUnit.SECONDS);
+		ourLog.info("Metrics: {}", metrics);
+
+		assertEquals(1, metrics.getHistogram(PhaseEnum.CONNECT).getCount());
+		for (PhaseEnum next : new PhaseEnum[] { PhaseEnum.ENCODE, PhaseEnum.READ_HEAD, PhaseEnum.DECODE, PhaseEnum.TOTAL }) {
+			assertEquals(next.name(), 2, metrics.getHistogram(next).getCount());
+		}
+		assertEquals(0, metrics.getFailureCount());
+
+		myServerSocketThread.setResponseDelays(3000L);
+		myClient.setResponseTimeout(500);
+		try {
+			myClient.sendAndReceive(new RawSendable(ourMessage));
+			fail();
+		} catch (DecodeException e) {
+			// expected
+		}
+		assertEquals(1, metrics.getFailureCount());
+		assertEquals(2, metrics.getHistogram(PhaseEnum.TOTAL).getCount());
+	}
+
+	@Test
+	public void testSendMessagesConcurrently() throws Exception {
+		myClient.setMaxConnections(3);
+
+		final CountDownLatch latch = new CountDownLatch(40);
+		final AtomicInteger failures = new AtomicInteger();
+		IResponseCallback<String> callback = new IResponseCallback<String>() {
+			public void onFailure(Exception theException) {
+				ourLog.error("Failed", theException);
+				failures.incrementAndGet();
+				latch.countDown();
+			}
+
+			public void onResponse(IReceivable<String> theResponse) {
+				latch.countDown();
+			}
+		};
+
+		List<Future<IReceivable<String>>> futures = new ArrayList<Future<IReceivable<String>>>();
+		for (int i = 0; i < 40; i++) {
+			futures.add(myClient.sendAndReceiveAsync(new RawSendable(ourMessage), callback));
+		}
+
+		assertTrue(latch.await(30, TimeUnit.SECONDS));
+		assertEquals(0, failures.get());
+		for (Future<IReceivable<String>> next : futures) {
+			assertTrue(next.isDone());
+			IReceivable<String> response = next.get();
+			assertTrue(response.getMessage(), response.getMessage().startsWith("MSH|"));
+		}
+
+		assertTrue("Connections: " + myServerSocketThread.getConnectionCount(), myServerSocketThread.getConnectionCount() <= 3);
+	}
+
+	@Test
+	public void testSendMessagesPipelined() throws Exception {
+		myClient.setMaxConnections(1);
+		myClient.setPipelineDepth(5);
+		myServerSocketThread.setResponseDelays(200L, 200L, 200L);
+
+		List<Future<IReceivable<String>>> futures = new ArrayList<Future<IReceivable<String>>>();
+		for (int i = 0; i < 20; i++) {
+			futures.add(myClient.sendAndReceiveAsync(new RawSendable(ourMessage)));
+		}
+
+		for (Future<IReceivable<String>> next : futures) {
+			IReceivable<String> response = next.get(30, TimeUnit.SECONDS);
+			assertTrue(response.getMessage(), response.getMessage().startsWith("MSH|"));
+		}
+
+		assertEquals(1, myServerSocketThread.getConnectionCount());
+	}
+
+	@Test
+	public void testSendMessagesPipelinedAndReplayAfterCloseHeader() throws Exception {
+		myClient.setMaxConnections(1);
+		myClient.setPipelineDepth(5);
+		myServerSocketThread.setCloseNormallyWithHeaderAfterEachMessage();
+		myServerSocketThread.setResponseDelays(200L);
+
+		List<Future<IReceivable<String>>> futures = new ArrayList<Future<IReceivable<String>>>();
+		for (int i = 0; i < 3; i++) {
+			futures.add(myClient.sendAndReceiveAsync(new RawSendable(ourMessage)));
+		}
+
+		for (Future<IReceivable<String>> next : futures) {
+			IReceivable<String> response = next.get(30, TimeUnit.SECONDS);
+			assertTrue(response.getMessage(), response.getMessage().startsWith("MSH|"));
+		}
+
+		// The server only answers one request per connection
+		assertEquals(3, myServerSocketThread.getConnectionCount());
+	}
+
+	@Test
+	public void testHttpsNotSupported() throws Exception {
+		try {
+			new HohRawClientAsync(new URL("https://localhost:" + myPort + "/theUri"));
+			fail();
+		} catch (IllegalArgumentException e) {
+			// expected
+		}
+
+		try {
+			myClient.setSocketFactory(new TlsSocketFactory());
+			fail();
+		} catch (IllegalArgumentException e) {
+			// expected
+		}
+	}
+
+	@Test
+	public void testSendMessageAndRespectCloseHeaderInResponse() throws Exception {
+		myServerSocketThread.setCloseNormallyWithHeaderAfterEachMessage();
+
+		IReceivable<String> response = myClient.sendAndReceive(new RawSendable(ourMessage));
+		assertEquals(myServerSocketThread.getReply().encode(), response.getMessage());
+		assertEquals(1, myServerSocketThread.getConnectionCount());
+
+		response = myClient.sendAndReceive(new RawSendable(ourMessage));
+		assertEquals(myServerSocketThread.getReply().encode(), response.getMessage());
+		assertEquals(2, myServerSocketThread.getConnectionCount());
+	}
+
+	@Test
+	public void testReconnectAutomaticallyAfterUnexpectedClose() throws Exception {
+		myServerSocketThread.setCloseUnexpectedlyAfterEachMessage();
+
+		IReceivable<String> response = myClient.sendAndReceive(new RawSendable(ourMessage));
+		assertEquals(myServerSocketThread.getReply().encode(), response.getMessage());
+		assertEquals(1, myServerSocketThread.getConnectionCount());
+
+		Thread.sleep(100);
+
+		response = myClient.sendAndReceive(new RawSendable(ourMessage));
+		assertEquals(myServerSocketThread.getReply().encode(), response.getMessage());
+		assertEquals(2, myServerSocketThread.getConnectionCount());
+	}
+
+	@Test
+	public void testChunkedResponse() throws Exception {
+		myServerSocketThread.setSimulateOneSecondPauseInChunkedEncoding(true);
+
+		IReceivable<String> response = myClient.sendAndReceive(new RawSendable(ourMessage));
+		assertEquals(myServerSocketThread.getReply().encode(), response.getMessage());
+
+		response = myClient.sendAndReceive(new RawSendable(ourMessage));
+		assertEquals(myServerSocketThread.getReply().encode(), response.getMessage());
+		assertEquals(1, myServerSocketThread.getConnectionCount());
+	}
+
+	@Test
+	public void testResponseTimeout() throws Exception {
+		myServerSocketThread.setResponseDelays(3000L);
+		myClient.setResponseTimeout(500);
+
+		long start = System.currentTimeMillis();
+		try {
+			myClient.sendAndReceive(new RawSendable(ourMessage));
+			fail();
+		} catch (DecodeException e) {
+			// expected
+		}
+		long elapsed = System.currentTimeMillis() - start;
+		assertTrue("Elapsed: " + elapsed, elapsed < 1500);
+	}
+
+	@Test
+	public void testCallbackWhichThrowsDoesNotStopClient() throws Exception {
+		final List<String> threadNames = Collections.synchronizedList(new ArrayList<String>());
+		final CountDownLatch latch = new CountDownLatch(1);
+		IResponseCallback<String> callback = new IResponseCallback<String>() {
+			public void onFailure(Exception theException) {
+				throw new IllegalStateException("Failure in callback");
+			}
+
+			public void onResponse(IReceivable<String> theResponse) {
+				threadNames.add(Thread.currentThread().getName());
+				latch.countDown();
+				throw new IllegalStateException("Failure in callback");
+			}
+		};
+
+		IReceivable<String> response = myClient.sendAndReceiveAsync(new RawSendable(ourMessage), callback).get(10, TimeUnit.SECONDS);
+		assertEquals(myServerSocketThread.getReply().encode(), response.getMessage());
+
+		response = myClient.sendAndReceive(new RawSendable(ourMessage));
+		assertEquals(myServerSocketThread.getReply().encode(), response.getMessage());
+		assertTrue(latch.await(10, TimeUnit.SECONDS));
+		assertEquals(1, threadNames.size());
+		assertTrue(threadNames.get(0), threadNames.get(0).contains("-worker-"));
+	}
+
+	/**
+	 * A chunk size close to Integer.MAX_VALUE must fail only the request it
+	 * belongs to, not the I/O thread
+	 */
+	@Test
+	public void testInvalidChunkSizeFailsOnlyThatRequest() throws Exception {
+		final ServerSocket serverSocket = new ServerSocket(0);
+		Thread serverThread = new Thread() {
+			@Override
+			public void run() {
+				try {
+					for (int i = 0; i < 2; i++) {
+						Socket socket = serverSocket.accept();
+						Hl7OverHttpRequestDecoder decoder = new Hl7OverHttpRequestDecoder();
+						decoder.readHeadersAndContentsFromInputStreamAndDecode(socket.getInputStream());
+						if (i == 0) {
+							socket.getOutputStream().write("HTTP/1.1 200 OK\r\nTransfer-Encoding: chunked\r\n\r\n7ffffff0\r\nMSH|".getBytes("ISO-8859-1"));
+						} else {
+							Hl7OverHttpResponseEncoder encoder = new Hl7OverHttpResponseEncoder();
+							encoder.setMessage(ourMessage);
+							encoder.encodeToOutputStream(socket.getOutputStream());
+						}
+						socket.getOutputStream().flush();
+						Thread.sleep(500);
+						socket.close();
+					}
+				} catch (Exception e) {
+					ourLog.error("Test server failed", e);
+				}
+			}
+		};
+		serverThread.start();
+
+		HohRawClientAsync client = new HohRawClientAsync("localhost", serverSocket.getLocalPort(), "/theUri");
+		client.setMaxResponseSize(1024 * 1024);
+		try {
+			try {
+				client.sendAndReceive(new RawSendable(ourMessage));
+				fail();
+			} catch (DecodeException e) {
+				ourLog.info("Expected exception: {}", e.getMessage());
+			}
+
+			IReceivable<String> response = client.sendAndReceive(new RawSendable(ourMessage));
+			assertEquals(ourMessage, response.getMessage());
+		} finally {
+			client.close();
+			serverThread.join(5000);
+			serverSocket.close();
+		}
+	}
+
+	@Test
+	public void testIoThreadIsRestartedAfterItDies() throws Exception {
+		final AtomicBoolean failNext = new AtomicBoolean(true);
+		ThreadPoolExecutor executor = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<Runnable>()) {
+			@Override
+			public void execute(Runnable theCommand) {
+				if (failNext.getAndSet(false)) {
+					throw new Error("Simulated failure of the I/O thread");
+				}
+				super.execute(theCommand);
+			}
+		};
+		myClient.setExecutorService(executor);
+		try {
+			// The I/O thread dies while handing this response over
+			myClient.sendAndReceiveAsync(new RawSendable(ourMessage));
+			long deadline = System.currentTimeMillis() + 5000;
+			while (failNext.get() && System.currentTimeMillis() < deadline) {
+				Thread.sleep(10);
+			}
+			assertFalse(failNext.get());
+			Thread.sleep(200);
+
+			IReceivable<String> response = myClient.sendAndReceiveAsync(new RawSendable(ourMessage)).get(10, TimeUnit.SECONDS);
+			assertEquals(myServerSocketThread.getReply().encode(), response.getMessage());
+		} finally {
+			myClient.close();
+			executor.shutdown();
+		}
+	}
+
+	@After
+	public void after() throws InterruptedException {
+		myClient.close();
+		ourLog.info("Marking done as true");
+		myServerSocketThread.done();
+	}
+
+	@Before
+	public void before() throws InterruptedException {
+		myPort = RandomServerPortProvider.findFreePort();
+
+		myServerSocketThread = new ServerSocketThreadForTesting(myPort, new SingleCredentialServerCallback("hello", "hapiworld"));
+		myServerSocketThread.start();
+		myServerSocketThread.getLatch().await();
+
+		myClient = new HohRawClientAsync("localhost", myPort, "/theUri");
+		myClient.setIdleTimeout(500);
+		myClient.setAuthorizationCallback(new SingleCredentialClientCallback("hello", "hapiworld"));
+	}
+
+}
@@ -2,6 +2,16 @@ package ca.uhn.hl7v2.hoh.raw.client;
 
 import static org.junit.Assert.*;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
@@ -183,6 +193,284 @@ public class HohRawClientMultithreadedTest {
 
 	}
 
+	@Test
+	public void testSendMessagesConcurrently() throws Exception {
+
+		final String message = // -
+		"MSH|^~\\&|||||200803051508||ADT^A31|2|P|2.5\r" + // -
+				"EVN||200803051509\r" + // -
+				"PID|||ZZZZZZ83M64Z148R^^^SSN^SSN^^20070103\r"; // -
+
+		final HohRawClientMultithreaded client = new HohRawClientMultithreaded("localhost", myPort, "/theUri");
+		client.setSocketTimeout(10000);
+		client.setMaxTotalConnections(3);
+		client.setAuthorizationCallback(new SingleCredentialClientCallback("hello", "hapiworld"));
+
+		ExecutorService executor = Executors.newFixedThreadPool(8);
+		List<Future<IReceivable<String>>> futures = new ArrayList<Future<IReceivable<String>>>();
+		for (int i = 0; i < 40; i++) {
+			futures.add(executor.submit(new Callable<IReceivable<String>>() {
+				public IReceivable<String> call() throws Exception {
+					return client.sendAndReceive(new RawSendable(message));
+				}
+			}));
+		}
+
+		for (Future<IReceivable<String>> next : futures) {
+			IReceivable<String> response = next.get();
+			assertTrue(response.getMessage(), response.getMessage().startsWith("MSH|"));
+		}
+		executor.shutdown();
+
+		assertTrue("Connections: " + myServerSocketThread.getConnectionCount(), myServerSocketThread.getConnectionCount() <= 3);
+		assertEquals(3, client.getMaxTotalConnections());
+
+	}
+
+	@Test
+	public void testSendMessagesPipelined() throws Exception {
+
+		final String message = // -
+		"MSH|^~\\&|||||200803051508||ADT^A31|2|P|2.5\r" + // -
+				"EVN||200803051509\r" + // -
+				"PID|||ZZZZZZ83M64Z148R^^^SSN^SSN^^20070103\r"; // -
+
+		final HohRawClientMultithreaded client = new HohRawClientMultithreaded("localhost", myPort, "/theUri");
+		client.setSocketTimeout(10000);
+		client.setPipelineDepth(5);
+		client.setAuthorizationCallback(new SingleCredentialClientCallback("hello", "hapiworld"));
+		myServerSocketThread.setResponseDelays(200L, 200L, 200L);
+
+		ExecutorService executor = Executors.newFixedThreadPool(5);
+		List<Future<IReceivable<String>>> futures = new ArrayList<Future<IReceivable<String>>>();
+		for (int i = 0; i < 20; i++) {
+			futures.add(executor.submit(new Callable<IReceivable<String>>() {
+				public IReceivable<String> call() throws Exception {
+					return client.sendAndReceive(new RawSendable(message));
+				}
+			}));
+		}
+
+		for (Future<IReceivable<String>> next : futures) {
+			IReceivable<String> response = next.get();
+			assertTrue(response.getMessage(), response.getMessage().startsWith("MSH|"));
+		}
+		executor.shutdown();
+
+		assertEquals(1, myServerSocketThread.getConnectionCount());
+
+	}
+
+	@Test
+	public void testSendMessagesPipelinedAndReplayAfterCloseHeader() throws Exception {
+
+		final String message = // -
+		"MSH|^~\\&|||||200803051508||ADT^A31|2|P|2.5\r" + // -
+				"EVN||200803051509\r" + // -
+				"PID|||ZZZZZZ83M64Z148R^^^SSN^SSN^^20070103\r"; // -
+
+		final HohRawClientMultithreaded client = new HohRawClientMultithreaded("localhost", myPort, "/theUri");
+		client.setSocketTimeout(10000);
+		client.setPipelineDepth(5);
+		client.setAuthorizationCallback(new SingleCredentialClientCallback("hello", "hapiworld"));
+		myServerSocketThread.setCloseNormallyWithHeaderAfterEachMessage();
+		myServerSocketThread.setResponseDelays(200L);
+
+		ExecutorService executor = Executors.newFixedThreadPool(5);
+		List<Future<IReceivable<String>>> futures = new ArrayList<Future<IReceivable<String>>>();
+		for (int i = 0; i < 5; i++) {
+			futures.add(executor.submit(new Callable<IReceivable<String>>() {
+				public IReceivable<String> call() throws Exception {
+					return client.sendAndReceive(new RawSendable(message));
+				}
+			}));
+		}
+
+		for (Future<IReceivable<String>> next : futures) {
+			IReceivable<String> response = next.get();
+			assertTrue(response.getMessage(), response.getMessage().startsWith("MSH|"));
+		}
+		executor.shutdown();
+
+		// The server only answers one request per connection
+		assertEquals(5, myServerSocketThread.getConnectionCount());
+
+	}
+
+	/**
+	 * The server answers one request per connection, so with more requests
+	 * in the pipeline than the replay limit allows for, the ones which keep
+	 * losing out must fail instead of being replayed forever
+	 */
+	@Test
+	public void testSendMessagesPipelinedGiveUpAfterMaxReplays() throws Exception {
+
+		final String message = // -
+		"MSH|^~\\&|||||200803051508||ADT^A31|2|P|2.5\r" + // -
+				"EVN||200803051509\r" + // -
+				"PID|||ZZZZZZ83M64Z148R^^^SSN^SSN^^20070103\r"; // -
+
+		int count = RequestPipeline.MAX_REPLAYS + 5;
+		final HohRawClientMultithreaded client = new HohRawClientMultithreaded("localhost", myPort, "/theUri");
+		client.setSocketTimeout(10000);
+		client.setPipelineDepth(count);
+		client.setAuthorizationCallback(new SingleCredentialClientCallback("hello", "hapiworld"));
+		myServerSocketThread.setCloseNormallyWithHeaderAfterEachMessage();
+		Long[] delays = new Long[count];
+		Arrays.fill(delays, 200L);
+		myServerSocketThread.setResponseDelays(delays);
+
+		ExecutorService executor = Executors.newFixedThreadPool(count);
+		List<Future<IReceivable<String>>> futures = new ArrayList<Future<IReceivable<String>>>();
+		for (int i = 0; i < count; i++) {
+			futures.add(executor.submit(new Callable<IReceivable<String>>() {
+				public IReceivable<String> call() throws Exception {
+					return client.sendAndReceive(new RawSendable(message));
+				}
+			}));
+		}
+
+		int failures = 0;
+		for (Future<IReceivable<String>> next : futures) {
+			try {
+				IReceivable<String> response = next.get(60, TimeUnit.SECONDS);
+				assertTrue(response.getMessage(), response.getMessage().startsWith("MSH|"));
+			} catch (ExecutionException e) {
+				assertTrue(e.getCause().toString(), e.getCause() instanceof DecodeException);
+				failures++;
+			}
+		}
+		executor.shutdown();
+
+		ourLog.info("{} of {} requests gave up", failures, count);
+		assertTrue(failures > 0);
+
+	}
+
+	/**
+	 * The server pauses for one second in the middle of each chunked response.
+	 * With a short socket timeout the client sees many read timeouts during
+	 * the pause, and none of them should add latency beyond the pause itself.
+	 */
+	@Test
+	public void testLatencyWithPauseInTheMiddleOfResponse() throws Exception {
+		myServerSocketThread.setSimulateOneSecondPauseInChunkedEncoding(true);
+
+		String message = // -
+		"MSH|^~\\&|||||200803051508||ADT^A31|2|P|2.5\r" + // -
+				"EVN||200803051509\r" + // -
+				"PID|||ZZZZZZ83M64Z148R^^^SSN^SSN^^20070103\r"; // -
+
+		HohRawClientMultithreaded client = new HohRawClientMultithreaded("localhost", myPort, "/theUri");
+		client.setSoTimeout(20);
+		client.setResponseTimeout(10000);
+		client.setAuthorizationCallback(new SingleCredentialClientCallback("hello", "hapiworld"));
+
+		// The first exchange includes class loading on both ends, so don't time it
+		client.sendAndReceive(new RawSendable(message));
+
+		long worst = 0;
+		for (int i = 0; i < 3; i++) {
+			long start = System.currentTimeMillis();
+			IReceivable<String> response = client.sendAndReceive(new RawSendable(message));
+			long elapsed = System.currentTimeMillis() - start;
+			assertEquals(myServerSocketThread.getReply().encode(), response.getMessage());
+			ourLog.info("Response {} took {}ms", i, elapsed);
+			worst = Math.max(worst, elapsed);
+		}
+
+		assertTrue("Worst: " + worst, worst < 1000 + 300);
+		assertEquals(1, myServerSocketThread.getConnectionCount());
+	}
+
+	@Test
+	public void testStaleConnectionIsNotUsed() throws Exception {
+		myServerSocketThread.setCloseUnexpectedlyAfterEachMessage();
+
+		String message = // -
+		"MSH|^~\\&|||||200803051508||ADT^A31|2|P|2.5\r" + // -
+				"EVN||200803051509\r" + // -
+				"PID|||ZZZZZZ83M64Z148R^^^SSN^SSN^^20070103\r"; // -
+
+		HohRawClientMultithreaded client = new HohRawClientMultithreaded("localhost", myPort, "/theUri");
+		client.setSocketTimeout(10000);
+		client.setValidateAfterIdle(0);
+		client.setAuthorizationCallback(new SingleCredentialClientCallback("hello", "hapiworld"));
+
+		client.sendAndReceive(new RawSendable(message));
+		Thread.sleep(100);
+
+		// The server has closed the pooled connection, which must be detected
+		// before it is used rather than failing the request
+		IReceivable<String> response = client.sendAndReceive(new RawSendable(message));
+		assertEquals(myServerSocketThread.getReply().encode(), response.getMessage());
+		assertEquals(2, myServerSocketThread.getConnectionCount());
+	}
+
+	@Test
+	public void testWarmUpAndKeepMinIdleConnections() throws Exception {
+		String message = // -
+		"MSH|^~\\&|||||200803051508||ADT^A31|2|P|2.5\r" + // -
+				"EVN||200803051509\r" + // -
+				"PID|||ZZZZZZ83M64Z148R^^^SSN^SSN^^20070103\r"; // -
+
+		HohRawClientMultithreaded client = new HohRawClientMultithreaded("localhost", myPort, "/theUri");
+		client.setSocketTimeout(200);
+		client.setAuthorizationCallback(new SingleCredentialClientCallback("hello", "hapiworld"));
+
+		assertEquals(2, client.warmUp(2));
+		assertEquals(0, client.warmUp(2));
+		Thread.sleep(100);
+		assertEquals(2, myServerSocketThread.getConnectionCount());
+
+		IReceivable<String> response = client.sendAndReceive(new RawSendable(message));
+		assertEquals(myServerSocketThread.getReply().encode(), response.getMessage());
+		assertEquals(2, myServerSocketThread.getConnectionCount());
+
+		// Connections up to the minimum outlive the socket timeout
+		client.setKeeperInterval(100);
+		client.setMinIdleConnections(2);
+		Thread.sleep(600);
+		assertEquals(2, myServerSocketThread.getConnectionCount());
+
+		// The keeper may top up while this request holds a connection
+		response = client.sendAndReceive(new RawSendable(message));
+		assertEquals(myServerSocketThread.getReply().encode(), response.getMessage());
+
+		// Without a minimum they are reaped
+		client.setMinIdleConnections(0);
+		Thread.sleep(600);
+		int connectionCount = myServerSocketThread.getConnectionCount();
+		response = client.sendAndReceive(new RawSendable(message));
+		assertEquals(myServerSocketThread.getReply().encode(), response.getMessage());
+		assertEquals(connectionCount + 1, myServerSocketThread.getConnectionCount());
+	}
+
+	@Test
+	public void testMinIdleConnectionIsCheckedAfterIdleTimeout() throws Exception {
+		myServerSocketThread.setCloseUnexpectedlyAfterEachMessage();
+
+		String message = // -
+		"MSH|^~\\&|||||200803051508||ADT^A31|2|P|2.5\r" + // -
+				"EVN||200803051509\r" + // -
+				"PID|||ZZZZZZ83M64Z148R^^^SSN^SSN^^20070103\r"; // -
+
+		HohRawClientMultithreaded client = new HohRawClientMultithreaded("localhost", myPort, "/theUri");
+		client.setSocketTimeout(200);
+		client.setValidateAfterIdle(-1);
+		client.setKeeperInterval(60000);
+		client.setMinIdleConnections(1);
+		client.setAuthorizationCallback(new SingleCredentialClientCallback("hello", "hapiworld"));
+
+		client.sendAndReceive(new RawSendable(message));
+		Thread.sleep(400);
+
+		// The kept connection has outlived the idle timeout and been closed by
+		// the server, so it must be checked even though validation is off
+		IReceivable<String> response = client.sendAndReceive(new RawSendable(message));
+		assertEquals(myServerSocketThread.getReply().encode(), response.getMessage());
+	}
+
 	@Test
 	public void testReconnectAutomaticallyAfterUnexpectedClose() throws Exception {
 		myServerSocketThread.setCloseUnexpectedlyAfterEachMessage();
@@ -16,8 +16,11 @@ import ca.uhn.hl7v2.hoh.api.IReceivable;
 import ca.uhn.hl7v2.hoh.auth.SingleCredentialClientCallback;
 import ca.uhn.hl7v2.hoh.auth.SingleCredentialServerCallback;
 import ca.uhn.hl7v2.hoh.encoder.EncodingStyle;
+import ca.uhn.hl7v2.hoh.encoder.TransferEncoding;
 import ca.uhn.hl7v2.hoh.llp.Hl7OverHttpLowerLayerProtocol;
 import ca.uhn.hl7v2.hoh.llp.ServerSocketThreadForTesting;
+import ca.uhn.hl7v2.hoh.metrics.InMemoryMetrics;
+import ca.uhn.hl7v2.hoh.metrics.PhaseEnum;
 import ca.uhn.hl7v2.hoh.raw.api.RawSendable;
 import ca.uhn.hl7v2.hoh.util.RandomServerPortProvider;
 import ca.uhn.hl7v2.hoh.util.ServerRoleEnum;
@@ -56,6 +59,57 @@ public class HohRawClientSimpleTest {
 
 	}
 
+
+	@Test
+	public void testSendMessageRecordsPhaseTimings() throws Exception {
+
+		String message = // -
+		"MSH|^~\\&|||||200803051508||ADT^A31|2|P|2.5\r" + // -
+				"EVN||200803051509\r" + // -
+				"PID|||ZZZZZZ83M64Z148R^^^SSN^SSN^^20070103\r"; // -
+
+		InMemoryMetrics metrics = new InMemoryMetrics();
+		HohRawClientSimple client = new HohRawClientSimple("localhost", myPort, "/theUri");
+		client.setAuthorizationCallback(new SingleCredentialClientCallback("hello", "hapiworld"));
+		client.setMetricsListener(metrics);
+
+		client.sendAndReceive(new RawSendable(message));
+		client.sendAndReceive(new RawSendable(message));
+		ourLog.info("Metrics: {}", metrics);
+
+		assertEquals(myServerSocketThread.getConnectionCount(), metrics.getHistogram(PhaseEnum.CONNECT).getCount());
+		for (PhaseEnum next : new PhaseEnum[] { PhaseEnum.ENCODE, PhaseEnum.WRITE, PhaseEnum.READ_HEAD, PhaseEnum.READ_BODY, PhaseEnum.DECODE, PhaseEnum.TOTAL }) {
+			assertEquals(next.name(), 2, metrics.getHistogram(next).getCount());
+		}
+		assertEquals(0, metrics.getHistogram(PhaseEnum.SIGN).getCount());
+		assertEquals(0, metrics.getFailureCount());
+		assertTrue(metrics.summarize(PhaseEnum.TOTAL).getP50() >= metrics.summarize(PhaseEnum.READ_HEAD).getP50());
+
+		client.close();
+	}
+
+	@Test
+	public void testSendMessageWithChunkedRequest() throws Exception {
+
+		String message = // -
+		"MSH|^~\\&|||||200803051508||ADT^A31|2|P|2.5\r" + // -
+				"EVN||200803051509\r" + // -
+				"PID|||ZZZZZZ83M64Z148R^^^SSN^SSN^^20070103\r"; // -
+
+		HohRawClientSimple client = new HohRawClientSimple("localhost", myPort, "/theUri");
+		client.setAuthorizationCallback(new SingleCredentialClientCallback("hello", "hapiworld"));
+		client.setRequestTransferEncoding(TransferEncoding.CHUNKED);
+
+		IReceivable<String> response = client.sendAndReceive(new RawSendable(message));
+		assertEquals(message, myServerSocketThread.getMessage());
+		assertEquals(myServerSocketThread.getReply().encode(), response.getMessage());
+
+		response = client.sendAndReceive(new RawSendable(message));
+		assertEquals(message, myServerSocketThread.getMessage());
+		assertEquals(myServerSocketThread.getReply().encode(), response.getMessage());
+
+		client.close();
+	}
 	
 	@Test
 	public void testSendMessageAndRespectCloseHeaderInResponse() throws Exception {
@@ -0,0 +1,229 @@
+package ca.uhn.hl7v2.hoh.raw.server;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import ca.uhn.hl7v2.hoh.api.DecodeException;
+import ca.uhn.hl7v2.hoh.api.IMessageHandler;
+import ca.uhn.hl7v2.hoh.api.IReceivable;
+import ca.uhn.hl7v2.hoh.api.IResponseSendable;
+import ca.uhn.hl7v2.hoh.api.MessageMetadataKeys;
+import ca.uhn.hl7v2.hoh.api.MessageProcessingException;
+import ca.uhn.hl7v2.hoh.auth.SingleCredentialClientCallback;
+import ca.uhn.hl7v2.hoh.auth.SingleCredentialServerCallback;
+import ca.uhn.hl7v2.hoh.encoder.Hl7OverHttpRequestEncoder;
+import ca.uhn.hl7v2.hoh.encoder.Hl7OverHttpResponseDecoder;
+import ca.uhn.hl7v2.hoh.encoder.TransferEncoding;
+import ca.uhn.hl7v2.hoh.raw.api.RawSendable;
+import ca.uhn.hl7v2.hoh.raw.client.HohRawClientSimple;
+
+public class HohRawNioServerTest implements IMessageHandler<String> {
+
+	private static final org.slf4j.Logger ourLog = org.slf4j.LoggerFactory.getLogger(HohRawNioServerTest.class);
+
+	private List<IReceivable<String>> myReceived;
+	private HohRawNioServer myServer;
+
+	@After
+	public void after() throws InterruptedException {
+		myServer.stop();
+	}
+
+	@Before
+	public void before() {
+		myReceived = Collections.synchronizedList(new ArrayList<IReceivable<String>>());
+		myServer = new HohRawNioServer(0);
+		myServer.setMessageHandler(this);
+	}
+
+	public IResponseSendable<String> messageReceived(IReceivable<String> theMessage) throws MessageProcessingException {
+		myReceived.add(theMessage);
+		String controlId = theMessage.getMessage().split("\r")[0].split("\\|")[9];
+		return new RawSendable(createMessage("ACK", "A" + controlId, controlId));
+	}
+
+	@Test
+	public void testSendMessages() throws Exception {
+		myServer.start();
+
+		HohRawClientSimple client = new HohRawClientSimple("localhost", myServer.getPort(), "/");
+		for (int i = 1; i <= 3; i++) {
+			IReceivable<String> response = client.sendAndReceive(new RawSendable(createMessage("ADT^A01", Integer.toString(i), null)));
+			assertTrue(response.getMessage(), response.getMessage().contains("MSA|AA|" + i + "\r"));
+		}
+		client.close();
+
+		assertEquals(3, myReceived.size());
+		assertEquals("127.0.0.1", myReceived.get(0).getMetadata().get(MessageMetadataKeys.REMOTE_HOST_ADDRESS.name()));
+	}
+
+	@Test
+	public void testSendChunkedMessage() throws Exception {
+		myServer.start();
+
+		StringBuilder b = new StringBuilder(createMessage("ADT^A01", "1", null));
+		for (int i = 0; i < 2000; i++) {
+			b.append("NTE|" + i + "||Some text to make the message span several chunks\r");
+		}
+		String message = b.toString();
+
+		HohRawClientSimple client = new HohRawClientSimple("localhost", myServer.getPort(), "/");
+		client.setRequestTransferEncoding(TransferEncoding.CHUNKED);
+		IReceivable<String> response = client.sendAndReceive(new RawSendable(message));
+		client.close();
+
+		assertTrue(response.getMessage(), response.getMessage().contains("MSA|AA|1\r"));
+		assertEquals(message, myReceived.get(0).getMessage());
+	}
+
+	@Test
+	public void testPipelinedRequests() throws Exception {
+		myServer.start();
+
+		ByteArrayOutputStream requests = new ByteArrayOutputStream();
+		for (int i = 1; i <= 3; i++) {
+			Hl7OverHttpRequestEncoder enc = new Hl7OverHttpRequestEncoder();
+			enc.setMessage(createMessage("ADT^A01", Integer.toString(i), null));
+			enc.setPath("/");
+			enc.encodeToOutputStream(requests);
+		}
+
+		Socket socket = new Socket("localhost", myServer.getPort());
+		try {
+			socket.setSoTimeout(10000);
+			OutputStream os = socket.getOutputStream();
+			os.write(requests.toByteArray());
+			os.flush();
+
+			InputStream is = socket.getInputStream();
+			for (int i = 1; i <= 3; i++) {
+				Hl7OverHttpResponseDecoder dec = new Hl7OverHttpResponseDecoder();
+				dec.readHeadersAndContentsFromInputStreamAndDecode(is);
+				ourLog.info("Response {}: {}", i, dec.getMessage());
+				assertTrue(dec.getMessage(), dec.getMessage().contains("MSA|AA|" + i + "\r"));
+			}
+		} finally {
+			socket.close();
+		}
+	}
+
+	@Test
+	public void testAuthorizationFailure() throws Exception {
+		myServer.setAuthorizationCallback(new SingleCredentialServerCallback("hello", "hapiworld"));
+		myServer.start();
+
+		HohRawClientSimple client = new HohRawClientSimple("localhost", myServer.getPort(), "/");
+		client.setAuthorizationCallback(new SingleCredentialClientCallback("hello", "hapiworld"));
+		IReceivable<String> response = client.sendAndReceive(new RawSendable(createMessage("ADT^A01", "1", null)));
+		assertTrue(response.getMessage(), response.getMessage().contains("MSA|AA|1\r"));
+		client.close();
+
+		client = new HohRawClientSimple("localhost", myServer.getPort(), "/");
+		client.setAuthorizationCallback(new SingleCredentialClientCallback("hello", "wrong"));
+		try {
+			client.sendAndReceive(new RawSendable(createMessage("ADT^A01", "2", null)));
+			fail();
+		} catch (DecodeException e) {
+			ourLog.info("Expected exception: {}", e.getMessage());
+		} finally {
+			client.close();
+		}
+		assertEquals(1, myReceived.size());
+	}
+
+	@Test
+	public void testGetRejected() throws Exception {
+		myServer.start();
+
+		Socket socket = new Socket("localhost", myServer.getPort());
+		try {
+			socket.setSoTimeout(10000);
+			socket.getOutputStream().write("GET / HTTP/1.1\r\nHost: localhost\r\n\r\n".getBytes("ISO-8859-1"));
+
+			InputStream is = socket.getInputStream();
+			ByteArrayOutputStream response = new ByteArrayOutputStream();
+			int next;
+			while ((next = is.read()) != -1) {
+				response.write(next);
+			}
+			assertTrue(response.toString("ISO-8859-1"), response.toString("ISO-8859-1").startsWith("HTTP/1.1 400 Bad Request\r\n"));
+		} finally {
+			socket.close();
+		}
+	}
+
+	@Test
+	public void testOversizedChunkSizeLineRejected() throws Exception {
+		myServer.setMaxRequestSize(1000);
+		myServer.start();
+
+		// A chunk size line which never ends must not be buffered without limit
+		StringBuilder b = new StringBuilder();
+		b.append("POST / HTTP/1.1\r\n");
+		b.append("Host: localhost\r\n");
+		b.append("Content-Type: application/hl7-v2; charset=ISO-8859-1\r\n");
+		b.append("Transfer-Encoding: chunked\r\n");
+		b.append("\r\n");
+		b.append("1");
+		while (b.length() < 1000 + HohRawNioServer.MAX_OVERHEAD + 1) {
+			b.append('0');
+		}
+
+		Socket socket = new Socket("localhost", myServer.getPort());
+		try {
+			socket.setSoTimeout(10000);
+			socket.getOutputStream().write(b.toString().getBytes("ISO-8859-1"));
+
+			InputStream is = socket.getInputStream();
+			ByteArrayOutputStream response = new ByteArrayOutputStream();
+			int next;
+			while ((next = is.read()) != -1) {
+				response.write(next);
+			}
+			assertTrue(response.toString("ISO-8859-1"), response.toString("ISO-8859-1").startsWith("HTTP/1.1 413 Request Entity Too Large\r\n"));
+		} finally {
+			socket.close();
+		}
+		assertEquals(0, myReceived.size());
+	}
+
+	@Test
+	public void testIdleConnectionClosed() throws Exception {
+		myServer.setIdleTimeout(200);
+		myServer.start();
+
+		Socket socket = new Socket("localhost", myServer.getPort());
+		try {
+			socket.setSoTimeout(5000);
+			socket.getOutputStream().write("POST / HTTP/1.1\r\nHost: local".getBytes("ISO-8859-1"));
+
+			long start = System.currentTimeMillis();
+			assertEquals(-1, socket.getInputStream().read());
+			ourLog.info("Connection closed after {}ms", System.currentTimeMillis() - start);
+		} finally {
+			socket.close();
+		}
+	}
+
+	private static String createMessage(String theType, String theControlId, String theAckId) {
+		String retVal = "MSH|^~\\&|||||200803051508||" + theType + "|" + theControlId + "|P|2.5\r";
+		if (theAckId != null) {
+			retVal = retVal + "MSA|AA|" + theAckId + "\r";
+		} else {
+			retVal = retVal + "EVN||200803051509\r";
+		}
+		return retVal;
+	}
+
+}
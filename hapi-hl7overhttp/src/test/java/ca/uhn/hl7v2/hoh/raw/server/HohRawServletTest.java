@@ -24,15 +24,21 @@ import org.mortbay.jetty.servlet.ServletHolder;
 import ca.uhn.hl7v2.AcknowledgmentCode;
 import ca.uhn.hl7v2.DefaultHapiContext;
 import ca.uhn.hl7v2.HL7Exception;
+import ca.uhn.hl7v2.hoh.api.AsyncResponse;
+import ca.uhn.hl7v2.hoh.api.IAsyncMessageHandler;
 import ca.uhn.hl7v2.hoh.api.IAuthorizationServerCallback;
 import ca.uhn.hl7v2.hoh.api.IMessageHandler;
 import ca.uhn.hl7v2.hoh.api.IReceivable;
 import ca.uhn.hl7v2.hoh.api.IResponseSendable;
+import ca.uhn.hl7v2.hoh.api.IStreamingMessageHandler;
 import ca.uhn.hl7v2.hoh.api.MessageProcessingException;
 import ca.uhn.hl7v2.hoh.encoder.EncodingStyle;
 import ca.uhn.hl7v2.hoh.encoder.Hl7OverHttpRequestEncoder;
 import ca.uhn.hl7v2.hoh.llp.Hl7OverHttpLowerLayerProtocol;
+import ca.uhn.hl7v2.hoh.raw.api.RawReceivable;
 import ca.uhn.hl7v2.hoh.raw.api.RawSendable;
+import ca.uhn.hl7v2.hoh.raw.api.RawStreamingReceivable;
+import ca.uhn.hl7v2.hoh.raw.client.HohRawClientSimple;
 import ca.uhn.hl7v2.hoh.util.RandomServerPortProvider;
 import ca.uhn.hl7v2.hoh.util.ServerRoleEnum;
 import ca.uhn.hl7v2.hoh.util.StringUtils;
@@ -52,6 +58,7 @@ public class HohRawServletTest implements IAuthorizationServerCallback, IMessage
 	private String myResponse;
 	private int myPort;
 	private Server myServer;
+	private HohRawServlet myServlet;
 
 	@After
 	public void after() throws Exception {
@@ -81,10 +88,10 @@ public class HohRawServletTest implements IAuthorizationServerCallback, IMessage
 		myPort = RandomServerPortProvider.findFreePort();
 		myServer = new Server(myPort);
 		Context context = new Context(myServer, "/", Context.SESSIONS);
-		HohRawServlet servlet = new HohRawServlet();
-		servlet.setAuthorizationCallback(this);
-		servlet.setMessageHandler(this);
-		context.addServlet(new ServletHolder(servlet), "/*");
+		myServlet = new HohRawServlet();
+		myServlet.setAuthorizationCallback(this);
+		myServlet.setMessageHandler(this);
+		context.addServlet(new ServletHolder(myServlet), "/*");
 
 		myServer.start();
 
@@ -114,6 +121,68 @@ public class HohRawServletTest implements IAuthorizationServerCallback, IMessage
 
 	}
 
+	@Test
+	public void testAsyncMessageHandler() throws Exception {
+		myServlet.setAsyncMessageHandler(new IAsyncMessageHandler<String>() {
+			public AsyncResponse<String> messageReceived(final IReceivable<String> theMessage) {
+				final AsyncResponse<String> retVal = new AsyncResponse<String>();
+				new Thread() {
+					@Override
+					public void run() {
+						try {
+							Thread.sleep(200);
+							retVal.succeed(HohRawServletTest.this.messageReceived(theMessage));
+						} catch (Exception e) {
+							retVal.fail(new MessageProcessingException(e));
+						}
+					}
+				}.start();
+				return retVal;
+			}
+		});
+
+		String message = // -
+		"MSH|^~\\&|||||200803051508||ADT^A31|2|P|2.5\r" + // -
+				"EVN||200803051509\r" + // -
+				"PID|||ZZZZZZ83M64Z148R^^^SSN^SSN^^20070103\r"; // -
+
+		HohRawClientSimple client = new HohRawClientSimple("localhost", myPort, "/");
+		IReceivable<String> response = client.sendAndReceive(new RawSendable(message));
+
+		assertEquals(message, myMessage);
+		assertEquals(myResponse, response.getMessage());
+	}
+
+	@Test
+	public void testStreamingMessageHandler() throws Exception {
+		myServlet.setStreamingMessageHandler(new IStreamingMessageHandler() {
+			public IResponseSendable<String> messageReceived(RawStreamingReceivable theMessage) throws MessageProcessingException {
+				StringBuilder b = new StringBuilder();
+				char[] buffer = new char[16];
+				try {
+					int count;
+					while ((count = theMessage.getMessage().read(buffer)) != -1) {
+						b.append(buffer, 0, count);
+					}
+				} catch (IOException e) {
+					throw new MessageProcessingException(e);
+				}
+				return HohRawServletTest.this.messageReceived(new RawReceivable(b.toString()));
+			}
+		});
+
+		String message = // -
+		"MSH|^~\\&|||||200803051508||ADT^A31|2|P|2.5\r" + // -
+				"EVN||200803051509\r" + // -
+				"PID|||ZZZZZZ83M64Z148R^^^SSN^SSN^^20070103\r"; // -
+
+		HohRawClientSimple client = new HohRawClientSimple("localhost", myPort, "/");
+		IReceivable<String> response = client.sendAndReceive(new RawSendable(message));
+
+		assertEquals(message, myMessage);
+		assertEquals(myResponse, response.getMessage());
+	}
+
 	@Test
 	public void testSuccessWhenRequestHasNoCharsetSpecified() throws Exception {
 
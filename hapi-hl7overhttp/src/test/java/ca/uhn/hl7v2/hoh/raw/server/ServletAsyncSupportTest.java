@@ -0,0 +1,66 @@
+package ca.uhn.hl7v2.hoh.raw.server;
+
+import static org.junit.Assert.*;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class ServletAsyncSupportTest {
+
+	private AsyncContextForTesting myContext;
+	private AtomicInteger myTimeoutResponses;
+
+	@Before
+	public void before() {
+		myContext = new AsyncContextForTesting();
+		myTimeoutResponses = new AtomicInteger();
+	}
+
+	private ServletAsyncSupport createSupport() throws Exception {
+		return new ServletAsyncSupport(myContext, AsyncContextForTesting.class.getMethod("complete"), new Runnable() {
+			public void run() {
+				myTimeoutResponses.incrementAndGet();
+			}
+		});
+	}
+
+	@Test
+	public void testHandlerOutlivesTimeout() throws Exception {
+		ServletAsyncSupport async = createSupport();
+
+		// The container times the request out, and then reports an error
+		async.timedOut();
+		async.timedOut();
+		assertEquals(1, myTimeoutResponses.get());
+		assertEquals(1, myContext.myCompleteCount.get());
+
+		// The response arrives afterwards and must not be written
+		assertFalse(async.finish());
+		assertEquals(1, myContext.myCompleteCount.get());
+	}
+
+	@Test
+	public void testTimeoutAfterResponse() throws Exception {
+		ServletAsyncSupport async = createSupport();
+
+		assertTrue(async.finish());
+		async.complete();
+
+		async.timedOut();
+		assertEquals(0, myTimeoutResponses.get());
+		assertEquals(1, myContext.myCompleteCount.get());
+	}
+
+	public static class AsyncContextForTesting {
+
+		private final AtomicInteger myCompleteCount = new AtomicInteger();
+
+		public void complete() {
+			myCompleteCount.incrementAndGet();
+		}
+
+	}
+
+}
@@ -0,0 +1,81 @@
+package ca.uhn.hl7v2.hoh.relay;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+import ca.uhn.hl7v2.HL7Exception;
+import ca.uhn.hl7v2.protocol.ApplicationRouter.AppRoutingData;
+
+public class MessageHeaderTest {
+
+	private static final String MESSAGE = "MSH|^~\\&|SENDAPP|SENDFAC|RECVAPP|RECVFAC|20130101120000||ADT^A01^ADT_A01|CTRL123|P^T|2.5||||||8859/1\rEVN||20130101120000\rPID|||12345\r";
+
+	@Test
+	public void testParse() throws Exception {
+		byte[] bytes = ("XX" + MESSAGE).getBytes("ISO-8859-1");
+		MessageHeader header = MessageHeader.parse(bytes, 2, bytes.length - 2);
+
+		assertEquals("|", header.getField(1));
+		assertEquals("^~\\&", header.getField(2));
+		assertEquals("SENDAPP", header.getField(3));
+		assertEquals("ADT", header.getMessageType());
+		assertEquals("A01", header.getTriggerEvent());
+		assertEquals("ADT_A01", header.getComponent(9, 3));
+		assertEquals("", header.getComponent(9, 4));
+		assertEquals("CTRL123", header.getControlId());
+		assertEquals("P", header.getProcessingId());
+		assertEquals("2.5", header.getVersionId());
+		assertEquals("8859/1", header.getCharacterSet());
+		assertEquals("", header.getField(21));
+
+		AppRoutingData routing = header.getRoutingData();
+		assertEquals("ADT", routing.getMessageType());
+		assertEquals("A01", routing.getTriggerEvent());
+		assertEquals("P", routing.getProcessingId());
+		assertEquals("2.5", routing.getVersion());
+	}
+
+	@Test
+	public void testParseShortHeaderWithOtherDelimiters() throws Exception {
+		MessageHeader header = MessageHeader.parse("\uFEFFMSH#*~\\&#A#B#C#D#E##ORU*R01#99\n");
+		assertEquals("ORU", header.getMessageType());
+		assertEquals("R01", header.getTriggerEvent());
+		assertEquals("99", header.getControlId());
+		assertEquals("", header.getVersionId());
+		assertEquals("", header.getCharacterSet());
+	}
+
+	@Test
+	public void testParseInvalid() {
+		try {
+			MessageHeader.parse("PID|||1\r");
+			fail();
+		} catch (HL7Exception e) {
+			// expected
+		}
+		try {
+			MessageHeader.parse("MSH||");
+			fail();
+		} catch (HL7Exception e) {
+			// expected
+		}
+	}
+
+	@Test
+	public void testGenerateAck() throws Exception {
+		MessageHeader header = MessageHeader.parse(MESSAGE);
+		String ack = header.generateAck("AE", "Failed|badly\rtoday");
+
+		String[] segments = ack.split("\r");
+		assertEquals(2, segments.length);
+		assertTrue(segments[0], segments[0].startsWith("MSH|^~\\&|RECVAPP|RECVFAC|SENDAPP|SENDFAC|"));
+		assertTrue(segments[0], segments[0].matches(".*\\|\\|ACK\\^A01\\^ACK\\|[0-9]+\\|P\\^T\\|2\\.5"));
+		assertEquals("MSA|AE|CTRL123|Failed badly today", segments[1]);
+
+		MessageHeader ackHeader = MessageHeader.parse(ack);
+		assertEquals("ACK", ackHeader.getMessageType());
+		assertFalse(ackHeader.getControlId().equals(MessageHeader.parse(header.generateAck("AA", null)).getControlId()));
+	}
+
+}
@@ -0,0 +1,309 @@
+package ca.uhn.hl7v2.hoh.relay.listener;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.net.SocketException;
+import java.net.URL;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import ca.uhn.hl7v2.HL7Exception;
+import ca.uhn.hl7v2.hoh.llp.ServerSocketThreadForTesting;
+import ca.uhn.hl7v2.hoh.relay.MessageHeader;
+import ca.uhn.hl7v2.hoh.relay.sender.IRelayPassthroughSender;
+import ca.uhn.hl7v2.hoh.relay.sender.RelayHttpSender;
+import ca.uhn.hl7v2.hoh.util.RandomServerPortProvider;
+import ca.uhn.hl7v2.model.Message;
+import ca.uhn.hl7v2.protocol.ReceivingApplication;
+import ca.uhn.hl7v2.protocol.impl.AppRoutingDataImpl;
+import ca.uhn.hl7v2.protocol.impl.AppWrapper;
+
+public class RelayMllpListenerTest {
+
+	private RelayMllpListener myListener;
+	private int myInPort;
+	private int myMaxMessageSize = RelayMllpListener.DEFAULT_MAX_MESSAGE_SIZE;
+	private RelayHttpSender mySender;
+	private ServerSocketThreadForTesting myServerSocketThread;
+
+	@After
+	public void after() throws Exception {
+		if (myListener != null) {
+			myListener.destroy();
+		}
+		mySender.destroy();
+		myServerSocketThread.done();
+	}
+
+	@Before
+	public void before() throws Exception {
+		int outPort = RandomServerPortProvider.findFreePort();
+		myInPort = RandomServerPortProvider.findFreePort();
+
+		myServerSocketThread = new ServerSocketThreadForTesting(outPort);
+		myServerSocketThread.start();
+		myServerSocketThread.getLatch().await();
+
+		mySender = new RelayHttpSender();
+		mySender.setBeanName("sender");
+		mySender.setUrl(new URL("http://localhost:" + outPort + "/"));
+		mySender.afterPropertiesSet();
+	}
+
+	private void startListener(boolean thePassthrough, boolean theNonBlocking, ReceivingApplication<? extends Message> theApplication) throws Exception {
+		myListener = new RelayMllpListener();
+		myListener.setBeanName("listener");
+		myListener.setPort(myInPort);
+		myListener.setPassthrough(thePassthrough);
+		myListener.setNonBlocking(theNonBlocking);
+		myListener.setWorkerThreads(1);
+		myListener.setMaxPendingMessages(1);
+		myListener.setMaxMessageSize(myMaxMessageSize);
+		myListener.registerApplication(new AppRoutingDataImpl("ADT", "*", "*", "*"), theApplication);
+		myListener.afterPropertiesSet();
+	}
+
+	@Test
+	public void testPassthroughRelaysMessageUnchanged() throws Exception {
+		startListener(true, false, mySender);
+		doTestPassthroughRelaysMessageUnchanged();
+	}
+
+	@Test
+	public void testNonBlockingPassthroughRelaysMessageUnchanged() throws Exception {
+		startListener(true, true, mySender);
+		doTestPassthroughRelaysMessageUnchanged();
+	}
+
+	@Test
+	public void testNonBlockingParsesMessage() throws Exception {
+		startListener(false, true, mySender);
+
+		String message = "MSH|^~\\&|||||200803051508||ADT^A31|2|P|2.5\rEVN||200803051509\rPID|||ZZZZZZ83M64Z148R^^^SSN^SSN^^20070103\r";
+		Socket socket = new Socket("localhost", myInPort);
+		try {
+			String response = sendAndReceive(socket, message);
+			assertEquals(myServerSocketThread.getReply().encode(), response);
+
+			// Two messages in one write are both answered
+			response = sendAndReceive(socket, message, message);
+			assertTrue(response, response.startsWith("MSH"));
+		} finally {
+			socket.close();
+		}
+	}
+
+	/**
+	 * With a single worker and one pending message allowed, further messages
+	 * wait unread instead of being queued
+	 */
+	@Test
+	public void testNonBlockingAppliesBackpressure() throws Exception {
+		final CountDownLatch release = new CountDownLatch(1);
+		final AtomicInteger received = new AtomicInteger();
+		IRelayPassthroughSender sender = new IRelayPassthroughSender() {
+
+			public boolean canProcess(Message theMessage) {
+				return true;
+			}
+
+			public String getBeanName() {
+				return "blocking";
+			}
+
+			public Message processMessage(Message theMessage, Map<String, Object> theMetadata) {
+				throw new UnsupportedOperationException();
+			}
+
+			public String relayRawMessage(byte[] theMessage, Charset theCharset, MessageHeader theHeader, Map<String, Object> theMetadata) throws HL7Exception {
+				received.incrementAndGet();
+				try {
+					release.await();
+				} catch (InterruptedException e) {
+					throw new HL7Exception(e);
+				}
+				return theHeader.generateAck("AA", null);
+			}
+		};
+		startListener(true, true, sender);
+
+		List<Socket> sockets = new ArrayList<Socket>();
+		try {
+			for (int i = 0; i < 3; i++) {
+				Socket socket = new Socket("localhost", myInPort);
+				sockets.add(socket);
+				writeFrame(socket, "MSH|^~\\&|||||200803051508||ADT^A31|" + i + "|P|2.5\r");
+			}
+
+			Thread.sleep(500);
+			assertEquals(1, received.get());
+
+			release.countDown();
+			for (Socket next : sockets) {
+				String response = readFrame(next);
+				assertTrue(response, response.contains("MSA|AA|"));
+			}
+			assertEquals(3, received.get());
+		} finally {
+			for (Socket next : sockets) {
+				next.close();
+			}
+		}
+	}
+
+	@Test
+	public void testNonBlockingClosesConnectionWithOversizedMessage() throws Exception {
+		myMaxMessageSize = 100;
+		startListener(true, true, mySender);
+
+		StringBuilder b = new StringBuilder("MSH|^~\\&|||||200803051508||ADT^A31|2|P|2.5\r");
+		while (b.length() <= 20000) {
+			b.append("NTE|||0123456789012345678901234567890123456789\r");
+		}
+		Socket socket = new Socket("localhost", myInPort);
+		try {
+			// Sent without the end bytes, so the frame never completes
+			socket.getOutputStream().write(0x0b);
+			socket.getOutputStream().write(b.toString().getBytes("ISO-8859-1"));
+			socket.getOutputStream().flush();
+			socket.setSoTimeout(5000);
+			try {
+				assertEquals(-1, socket.getInputStream().read());
+			} catch (SocketException e) {
+				// Reset because unread data was discarded, also means closed
+			}
+		} finally {
+			socket.close();
+		}
+
+		// Other connections are unaffected
+		socket = new Socket("localhost", myInPort);
+		try {
+			String response = sendAndReceive(socket, "MSH|^~\\&|||||200803051508||ADT^A31|3|P|2.5\r");
+			assertTrue(response, response.startsWith("MSH"));
+		} finally {
+			socket.close();
+		}
+	}
+
+	/**
+	 * A failure while handling one connection closes only that connection
+	 */
+	@Test
+	public void testNonBlockingSurvivesFailureOnOneConnection() throws Exception {
+		final AtomicBoolean failed = new AtomicBoolean();
+		ExecutorService workers = new ThreadPoolExecutor(1, 1, 0L, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<Runnable>()) {
+			@Override
+			public void execute(Runnable theCommand) {
+				if (failed.compareAndSet(false, true)) {
+					throw new IllegalStateException("Simulated failure");
+				}
+				super.execute(theCommand);
+			}
+		};
+		MllpMessageRouter router = new MllpMessageRouter();
+		router.registerApplication(new AppRoutingDataImpl("ADT", "*", "*", "*"), mySender);
+		NioMllpServer server = new NioMllpServer(myInPort, router, 1, workers, 1, RelayMllpListener.DEFAULT_MAX_MESSAGE_SIZE);
+		server.start();
+		try {
+			String message = "MSH|^~\\&|||||200803051508||ADT^A31|2|P|2.5\r";
+			Socket socket = new Socket("localhost", myInPort);
+			try {
+				writeFrame(socket, message);
+				socket.setSoTimeout(5000);
+				assertEquals(-1, socket.getInputStream().read());
+			} finally {
+				socket.close();
+			}
+
+			socket = new Socket("localhost", myInPort);
+			try {
+				String response = sendAndReceive(socket, message);
+				assertEquals(myServerSocketThread.getReply().encode(), response);
+			} finally {
+				socket.close();
+			}
+		} finally {
+			server.stop();
+			workers.shutdown();
+		}
+	}
+
+	private void doTestPassthroughRelaysMessageUnchanged() throws Exception {
+		// Unusual but legal formatting which a parse and re-encode would not preserve
+		String message = "MSH|^~\\&|||||200803051508||ADT^A31|2|P|2.5\rEVN||200803051509||||\rPID|||ZZZZZZ83M64Z148R^^^SSN^SSN^^20070103\r";
+
+		Socket socket = new Socket("localhost", myInPort);
+		try {
+			for (int i = 0; i < 2; i++) {
+				String response = sendAndReceive(socket, message);
+				assertEquals(message, myServerSocketThread.getMessage());
+				assertEquals(myServerSocketThread.getReply().encode(), response);
+			}
+
+			// Not routed
+			String response = sendAndReceive(socket, "MSH|^~\\&|||||200803051508||ORU^R01|3|P|2.5\r");
+			assertTrue(response, response.contains("MSA|AR|3|"));
+		} finally {
+			socket.close();
+		}
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testPassthroughRequiresPassthroughSender() throws Exception {
+		startListener(true, false, mySender);
+		myListener.registerApplication(new AppRoutingDataImpl("*", "*", "*", "*"), new AppWrapper(null));
+	}
+
+	private static String sendAndReceive(Socket theSocket, String... theMessages) throws Exception {
+		writeFrame(theSocket, theMessages);
+		String retVal = null;
+		for (int i = 0; i < theMessages.length; i++) {
+			retVal = readFrame(theSocket);
+		}
+		return retVal;
+	}
+
+	private static void writeFrame(Socket theSocket, String... theMessages) throws Exception {
+		ByteArrayOutputStream bos = new ByteArrayOutputStream();
+		for (String next : theMessages) {
+			bos.write(0x0b);
+			bos.write(next.getBytes("UTF-8"));
+			bos.write(0x1c);
+			bos.write(0x0d);
+		}
+		OutputStream os = theSocket.getOutputStream();
+		os.write(bos.toByteArray());
+		os.flush();
+	}
+
+	private static String readFrame(Socket theSocket) throws Exception {
+		InputStream is = theSocket.getInputStream();
+		assertEquals(0x0b, is.read());
+		ByteArrayOutputStream bos = new ByteArrayOutputStream();
+		for (int next = is.read(); next != 0x1c; next = is.read()) {
+			assertTrue(next != -1);
+			bos.write(next);
+		}
+		assertEquals(0x0d, is.read());
+		return new String(bos.toByteArray(), "UTF-8");
+	}
+
+}
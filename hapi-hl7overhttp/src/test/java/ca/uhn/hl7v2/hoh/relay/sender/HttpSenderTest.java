@@ -1,9 +1,19 @@
 package ca.uhn.hl7v2.hoh.relay.sender;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.Charset;
+import java.util.HashMap;
+import java.util.LinkedList;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.junit.After;
 import org.junit.Assert;
@@ -17,8 +27,10 @@ import ca.uhn.hl7v2.app.ConnectionHub;
 import ca.uhn.hl7v2.hoh.api.DecodeException;
 import ca.uhn.hl7v2.hoh.api.EncodeException;
 import ca.uhn.hl7v2.hoh.auth.SingleCredentialServerCallback;
+import ca.uhn.hl7v2.hoh.encoder.Hl7OverHttpRequestDecoder;
 import ca.uhn.hl7v2.hoh.llp.ServerSocketThreadForTesting;
 import ca.uhn.hl7v2.hoh.relay.Launcher;
+import ca.uhn.hl7v2.hoh.relay.MessageHeader;
 import ca.uhn.hl7v2.hoh.sockets.CustomCertificateTlsSocketFactory;
 import ca.uhn.hl7v2.hoh.sockets.CustomCertificateTlsSocketFactoryTest;
 import ca.uhn.hl7v2.hoh.util.Holder;
@@ -115,6 +127,176 @@ public class HttpSenderTest {
 	}
 	
 	
+	@Test
+	public void testQueuedMessagesArePagedFromJournal() throws Exception {
+		myServerSocketThread = new ServerSocketThreadForTesting(myOutPort);
+		myServerSocketThread.setResponseDelays(100L, 100L, 100L);
+		myServerSocketThread.start();
+		myServerSocketThread.getLatch().await();
+
+		File queueDirectory = File.createTempFile("hoh-relay-queue", "");
+		queueDirectory.delete();
+
+		RelayHttpSender s = new RelayHttpSender();
+		s.setUrlString("http://localhost:" + myOutPort + "/");
+		s.setQueueDirectory(queueDirectory);
+		s.setDeliveryQueueSize(2);
+		s.setBeanName("sender");
+		try {
+			s.afterPropertiesSet();
+
+			String message = "MSH|^~\\&|||||200803051508||ADT^A01|1|T|2.5\rEVN||200803051509\r";
+			for (int i = 0; i < 20; i++) {
+				s.relayRawMessage(message.getBytes("UTF-8"), Charset.forName("UTF-8"), MessageHeader.parse(message), new HashMap<String, Object>());
+			}
+
+			for (int i = 0; i < 100 && s.getQueuedMessageCount() > 0; i++) {
+				Thread.sleep(100);
+			}
+			assertEquals(0, s.getQueuedMessageCount());
+		} finally {
+			s.destroy();
+			deleteDirectory(queueDirectory);
+		}
+	}
+
+	@Test
+	public void testQueuedMessageIsRetriedUntilAccepted() throws Exception {
+		LinkedList<String> responses = new LinkedList<String>();
+		responses.add(createResponse("500 Internal Server Error", "AE"));
+		responses.add(createResponse("200 OK", "AE"));
+		responses.add(createResponse("200 OK", "AA"));
+		AtomicInteger requestCount = new AtomicInteger();
+		ServerSocket serverSocket = startResponder(responses, requestCount);
+
+		File queueDirectory = File.createTempFile("hoh-relay-queue", "");
+		queueDirectory.delete();
+
+		RelayHttpSender s = new RelayHttpSender();
+		s.setUrlString("http://localhost:" + myOutPort + "/");
+		s.setQueueDirectory(queueDirectory);
+		s.setRetryDelay(10);
+		s.setBeanName("sender");
+		try {
+			s.afterPropertiesSet();
+
+			String message = "MSH|^~\\&|||||200803051508||ADT^A01|1|T|2.5\rEVN||200803051509\r";
+			s.relayRawMessage(message.getBytes("UTF-8"), Charset.forName("UTF-8"), MessageHeader.parse(message), new HashMap<String, Object>());
+
+			for (int i = 0; i < 100 && s.getQueuedMessageCount() > 0; i++) {
+				Thread.sleep(100);
+			}
+			assertEquals(0, s.getQueuedMessageCount());
+			assertEquals(3, requestCount.get());
+			assertFalse(new File(queueDirectory, RelayHttpSender.UNDELIVERABLE_FILE_NAME).exists());
+		} finally {
+			s.destroy();
+			serverSocket.close();
+			deleteDirectory(queueDirectory);
+		}
+	}
+
+	@Test
+	public void testRejectedQueuedMessageIsNotRetried() throws Exception {
+		LinkedList<String> responses = new LinkedList<String>();
+		responses.add(createResponse("200 OK", "AR"));
+		responses.add(createResponse("200 OK", "AA"));
+		AtomicInteger requestCount = new AtomicInteger();
+		ServerSocket serverSocket = startResponder(responses, requestCount);
+
+		File queueDirectory = File.createTempFile("hoh-relay-queue", "");
+		queueDirectory.delete();
+
+		RelayHttpSender s = new RelayHttpSender();
+		s.setUrlString("http://localhost:" + myOutPort + "/");
+		s.setQueueDirectory(queueDirectory);
+		s.setRetryDelay(10);
+		s.setBeanName("sender");
+		try {
+			s.afterPropertiesSet();
+
+			String message1 = "MSH|^~\\&|||||200803051508||ADT^A01|1|T|2.5\rEVN||200803051509\r";
+			String message2 = "MSH|^~\\&|||||200803051508||ADT^A01|2|T|2.5\rEVN||200803051509\r";
+			s.relayRawMessage(message1.getBytes("UTF-8"), Charset.forName("UTF-8"), MessageHeader.parse(message1), new HashMap<String, Object>());
+			s.relayRawMessage(message2.getBytes("UTF-8"), Charset.forName("UTF-8"), MessageHeader.parse(message2), new HashMap<String, Object>());
+
+			for (int i = 0; i < 100 && s.getQueuedMessageCount() > 0; i++) {
+				Thread.sleep(100);
+			}
+			assertEquals(0, s.getQueuedMessageCount());
+			assertEquals(2, requestCount.get());
+
+			// The rejected message is kept, and the one behind it was delivered
+			File undeliverable = new File(queueDirectory, RelayHttpSender.UNDELIVERABLE_FILE_NAME);
+			byte[] contents = new byte[(int) undeliverable.length()];
+			DataInputStream in = new DataInputStream(new FileInputStream(undeliverable));
+			try {
+				in.readFully(contents);
+			} finally {
+				in.close();
+			}
+			assertEquals(message1 + "\n", new String(contents, "UTF-8"));
+		} finally {
+			s.destroy();
+			serverSocket.close();
+			deleteDirectory(queueDirectory);
+		}
+	}
+
+	/**
+	 * Starts a server which answers one request per connection with each of
+	 * the given raw HTTP responses in turn
+	 */
+	private ServerSocket startResponder(final LinkedList<String> theResponses, final AtomicInteger theRequestCount) throws IOException {
+		final ServerSocket serverSocket = new ServerSocket(myOutPort);
+		Thread serverThread = new Thread() {
+			@Override
+			public void run() {
+				try {
+					while (!theResponses.isEmpty()) {
+						Socket socket = serverSocket.accept();
+						try {
+							Hl7OverHttpRequestDecoder d = new Hl7OverHttpRequestDecoder();
+							d.readHeadersAndContentsFromInputStreamAndDecode(socket.getInputStream());
+							theRequestCount.incrementAndGet();
+							socket.getOutputStream().write(theResponses.removeFirst().getBytes("ISO-8859-1"));
+							socket.getOutputStream().flush();
+						} finally {
+							socket.close();
+						}
+					}
+				} catch (Exception e) {
+					ourLog.error("Test server failed", e);
+				}
+			}
+		};
+		serverThread.start();
+		return serverSocket;
+	}
+
+	private static void deleteDirectory(File theDirectory) {
+		File[] files = theDirectory.listFiles();
+		if (files != null) {
+			for (File next : files) {
+				next.delete();
+			}
+		}
+		theDirectory.delete();
+	}
+
+	@Test
+	public void testGetAcknowledgementCode() {
+		assertEquals("AE", RelayHttpSender.getAcknowledgementCode("MSH|^~\\&|||||||ACK|1|T|2.5\rMSA|AE|1\r"));
+		assertEquals("CA", RelayHttpSender.getAcknowledgementCode("MSH#^~\\&#######ACK#1#T#2.5\nMSA#CA\n"));
+		assertEquals(null, RelayHttpSender.getAcknowledgementCode("MSH|^~\\&|||||||ADT^A01|1|T|2.5\rEVN|MSA|AA\r"));
+		assertEquals(null, RelayHttpSender.getAcknowledgementCode("<xml/>"));
+	}
+
+	private static String createResponse(String theStatus, String theAckCode) throws IOException {
+		byte[] body = ("MSH|^~\\&|||||||ACK|1|T|2.5\rMSA|" + theAckCode + "|1\r").getBytes("UTF-8");
+		return "HTTP/1.1 " + theStatus + "\r\nContent-Type: application/hl7-v2; charset=UTF-8\r\nContent-Length: " + body.length + "\r\n\r\n" + new String(body, "UTF-8");
+	}
+
 	@Test
 	public void testSetUrl() throws Exception {
 
@@ -0,0 +1,236 @@
+package ca.uhn.hl7v2.hoh.relay.sender;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class MessageJournalTest {
+
+	private File myDirectory;
+
+	@After
+	public void after() {
+		File[] files = myDirectory.listFiles();
+		if (files != null) {
+			for (File next : files) {
+				next.delete();
+			}
+		}
+		myDirectory.delete();
+	}
+
+	@Before
+	public void before() throws IOException {
+		myDirectory = File.createTempFile("hoh-journal", "");
+		myDirectory.delete();
+	}
+
+	@Test
+	public void testUndeliveredMessagesAreRecovered() throws IOException {
+		MessageJournal journal = new MessageJournal(myDirectory);
+		assertEquals(0, journal.getPending().size());
+		long id1 = journal.append("MSH|1");
+		long id2 = journal.append("MSH|2\u00e9");
+		long id3 = journal.append("MSH|3");
+		journal.markDelivered(id2);
+		assertEquals(2, journal.getUndeliveredCount());
+		journal.close();
+
+		journal = new MessageJournal(myDirectory);
+		List<MessageJournal.Entry> pending = journal.getPending();
+		assertEquals(2, pending.size());
+		assertEquals(id1, pending.get(0).getId());
+		assertEquals("MSH|1", pending.get(0).getMessage());
+		assertEquals(id3, pending.get(1).getId());
+
+		// IDs are not reused
+		assertTrue(journal.append("MSH|4") > id3);
+
+		journal.markDelivered(id1);
+		journal.markDelivered(id3);
+		journal.close();
+
+		journal = new MessageJournal(myDirectory);
+		assertEquals(1, journal.getPending().size());
+		assertEquals("MSH|4", journal.getPending().get(0).getMessage());
+		journal.close();
+	}
+
+	@Test
+	public void testEncodedMessagesAreRecovered() throws IOException {
+		byte[] encoded = "MSH|1\u00e9".getBytes("ISO-8859-1");
+		MessageJournal journal = new MessageJournal(myDirectory);
+		journal.append(encoded, Charset.forName("ISO-8859-1"));
+		journal.append("MSH|2\u00e9");
+		journal.close();
+
+		journal = new MessageJournal(myDirectory);
+		List<MessageJournal.Entry> pending = journal.getPending();
+		assertEquals(2, pending.size());
+		assertArrayEquals(encoded, pending.get(0).getEncodedMessage());
+		assertEquals(Charset.forName("ISO-8859-1"), pending.get(0).getCharset());
+		assertEquals("MSH|1\u00e9", pending.get(0).getMessage());
+		assertNull(pending.get(1).getCharset());
+		assertEquals("MSH|2\u00e9", pending.get(1).getMessage());
+		journal.close();
+	}
+
+	@Test
+	public void testSegmentsAreDeletedOnceDelivered() throws IOException {
+		MessageJournal journal = new MessageJournal(myDirectory, 1024);
+		StringBuilder b = new StringBuilder("MSH|");
+		while (b.length() < 300) {
+			b.append("X");
+		}
+
+		List<Long> ids = new ArrayList<Long>();
+		for (int i = 0; i < 10; i++) {
+			ids.add(journal.append(b.toString()));
+		}
+		assertTrue(journal.getSegmentCount() > 3);
+
+		// Delivering out of order doesn't delete anything while the oldest is pending
+		Collections.reverse(ids);
+		for (Long next : ids.subList(0, 9)) {
+			journal.markDelivered(next);
+		}
+		assertTrue(journal.getSegmentCount() > 3);
+
+		journal.markDelivered(ids.get(9));
+		assertEquals(1, journal.getSegmentCount());
+		assertEquals(1, myDirectory.list().length);
+		journal.close();
+
+		journal = new MessageJournal(myDirectory, 1024);
+		assertEquals(0, journal.getPending().size());
+		journal.close();
+	}
+
+	@Test
+	public void testMessageLargerThanSegment() throws IOException {
+		MessageJournal journal = new MessageJournal(myDirectory, 1024);
+		StringBuilder b = new StringBuilder("MSH|");
+		while (b.length() < 5000) {
+			b.append("Y");
+		}
+		journal.append(b.toString());
+		journal.close();
+
+		journal = new MessageJournal(myDirectory, 1024);
+		assertEquals(b.toString(), journal.getPending().get(0).getMessage());
+		journal.close();
+	}
+
+	@Test
+	public void testPartiallyWrittenRecordIsIgnored() throws IOException {
+		MessageJournal journal = new MessageJournal(myDirectory);
+		journal.append("MSH|1");
+		journal.append("MSH|2");
+		journal.close();
+
+		// Corrupt the last byte of the second message
+		File segment = myDirectory.listFiles()[0];
+		RandomAccessFile raf = new RandomAccessFile(segment, "rw");
+		try {
+			int secondRecordEnd = 2 * (17 + 5);
+			raf.seek(secondRecordEnd - 1);
+			raf.write('X');
+		} finally {
+			raf.close();
+		}
+
+		journal = new MessageJournal(myDirectory);
+		assertEquals(1, journal.getPending().size());
+		assertEquals("MSH|1", journal.getPending().get(0).getMessage());
+
+		// New records go to a new segment, so they are not lost behind the bad one
+		journal.append("MSH|3");
+		journal.close();
+
+		journal = new MessageJournal(myDirectory);
+		assertEquals(2, journal.getPending().size());
+		assertEquals("MSH|3", journal.getPending().get(1).getMessage());
+		journal.close();
+	}
+
+	@Test
+	public void testReadPendingPagesThroughJournal() throws IOException {
+		MessageJournal journal = new MessageJournal(myDirectory, 1024);
+		List<Long> ids = new ArrayList<Long>();
+		for (int i = 0; i < 50; i++) {
+			ids.add(journal.append("MSH|" + i));
+		}
+		journal.markDelivered(ids.get(1));
+
+		List<MessageJournal.Entry> page = journal.readPending(0, 3);
+		assertEquals(3, page.size());
+		assertEquals("MSH|0", page.get(0).getMessage());
+		assertEquals("MSH|2", page.get(1).getMessage());
+		assertEquals("MSH|3", page.get(2).getMessage());
+
+		// Carry on from the last one read, across segments
+		int count = 3;
+		long last = page.get(2).getId();
+		while (!(page = journal.readPending(last, 10)).isEmpty()) {
+			for (MessageJournal.Entry next : page) {
+				assertEquals(ids.get(count + 1).longValue(), next.getId());
+				assertEquals("MSH|" + (count + 1), next.getMessage());
+				count++;
+			}
+			last = page.get(page.size() - 1).getId();
+		}
+		assertEquals(49, count);
+		journal.close();
+
+		journal = new MessageJournal(myDirectory, 1024);
+		page = journal.readPending(ids.get(47), 10);
+		assertEquals(2, page.size());
+		assertEquals("MSH|48", page.get(0).getMessage());
+		journal.close();
+	}
+
+	@Test
+	public void testConcurrentAppends() throws Exception {
+		final MessageJournal journal = new MessageJournal(myDirectory);
+		List<Thread> threads = new ArrayList<Thread>();
+		final List<Throwable> failures = Collections.synchronizedList(new ArrayList<Throwable>());
+		for (int i = 0; i < 8; i++) {
+			final int threadNum = i;
+			Thread thread = new Thread() {
+				@Override
+				public void run() {
+					try {
+						for (int j = 0; j < 50; j++) {
+							journal.append("MSH|" + threadNum + "|" + j);
+						}
+					} catch (Throwable e) {
+						failures.add(e);
+					}
+				}
+			};
+			threads.add(thread);
+			thread.start();
+		}
+		for (Thread next : threads) {
+			next.join();
+		}
+		assertEquals(Collections.emptyList(), failures);
+		assertEquals(400, journal.getUndeliveredCount());
+		journal.close();
+
+		MessageJournal reopened = new MessageJournal(myDirectory);
+		assertEquals(400, reopened.getPending().size());
+		reopened.close();
+	}
+
+}
@@ -2,6 +2,8 @@ package ca.uhn.hl7v2.hoh.sign;
 
 import static org.junit.Assert.*;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.security.KeyStore;
@@ -11,6 +13,8 @@ import java.security.cert.CertificateException;
 
 import org.junit.Test;
 
+import ca.uhn.hl7v2.hoh.util.IOUtils;
+
 public class BouncyCastleCmsMessageSignerTest {
 
 	private static final String HELLO_WORLD = "HELLO WORLD!!!!!aa";
@@ -83,6 +87,63 @@ public class BouncyCastleCmsMessageSignerTest {
 		}
 	}
 
+	@Test
+	public void testSignAndVerifyRepeatedly() throws Exception {
+		BouncyCastleCmsMessageSigner signer = createSigner();
+		BouncyCastleCmsMessageSigner verifier = createVerifier();
+
+		// A stream which is abandoned part way through must not affect later signatures
+		SigningOutputStream abandoned = signer.createSigningOutputStream(new ByteArrayOutputStream());
+		abandoned.write("HELLO".getBytes("US-ASCII"));
+
+		for (int i = 0; i < 5; i++) {
+			byte[] bytes = (HELLO_WORLD + i).getBytes("US-ASCII");
+			verifier.verify(bytes, signer.sign(bytes));
+
+			SigningOutputStream os = signer.createSigningOutputStream(new ByteArrayOutputStream());
+			os.write(bytes);
+			verifier.verify(bytes, os.finish());
+		}
+	}
+
+	@Test
+	public void testVerifyStream() throws Exception {
+		BouncyCastleCmsMessageSigner signer = createSigner();
+		byte[] bytes = HELLO_WORLD.getBytes("US-ASCII");
+		String signed = signer.sign(bytes);
+
+		BouncyCastleCmsMessageSigner verifier = createVerifier();
+		VerifyingInputStream is = verifier.createVerifyingInputStream(new ByteArrayInputStream(bytes), signed);
+		ByteArrayOutputStream read = new ByteArrayOutputStream();
+		IOUtils.copy(is, read);
+		assertEquals(HELLO_WORLD, read.toString("US-ASCII"));
+		is.verify();
+
+		bytes[0] = 'J';
+		is = verifier.createVerifyingInputStream(new ByteArrayInputStream(bytes), signed);
+		IOUtils.copy(is, new ByteArrayOutputStream());
+		try {
+			is.verify();
+			fail();
+		} catch (SignatureVerificationException e) {
+			// expected
+		}
+	}
+
+	@Test
+	public void testSignAfterKeyStoreChanged() throws Exception {
+		BouncyCastleCmsMessageSigner signer = createSigner();
+		signer.sign(HELLO_WORLD.getBytes("US-ASCII"));
+
+		signer.setKeyStore(loadTrustStore());
+		try {
+			signer.sign(HELLO_WORLD.getBytes("US-ASCII"));
+			fail();
+		} catch (SignatureFailureException e) {
+			assertTrue(e.toString(), e.getMessage().contains(BouncyCastleCmsMessageSigner.MSG_KEY_IS_NOT_A_PRIVATE_KEY));
+		}
+	}
+
 	@Test
 	public void testSignAndVerifyStringChanged() throws Exception {
 		BouncyCastleCmsMessageSigner signer = createSigner();
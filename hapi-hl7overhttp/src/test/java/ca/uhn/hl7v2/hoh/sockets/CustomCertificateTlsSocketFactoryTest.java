@@ -75,6 +75,64 @@ public class CustomCertificateTlsSocketFactoryTest {
 
 	}
 
+	@Test
+	public void testReconnectResumesSession() throws Exception {
+
+		CustomCertificateTlsSocketFactory server = createTrustedServerSocketFactory();
+		final ServerSocket serverSocket = server.createServerSocket();
+		serverSocket.bind(new InetSocketAddress(myPort));
+		serverSocket.setSoTimeout(5000);
+
+		final int count = 4;
+		Thread responder = new Thread() {
+			@Override
+			public void run() {
+				try {
+					for (int i = 0; i < count; i++) {
+						Socket socket = serverSocket.accept();
+						socket.setSoTimeout(5000);
+						int next = socket.getInputStream().read();
+						socket.getOutputStream().write(next);
+						socket.getOutputStream().flush();
+						socket.close();
+					}
+				} catch (IOException e) {
+					ourLog.error("Failed", e);
+				}
+			}
+		};
+		responder.start();
+
+		try {
+			CustomCertificateTlsSocketFactory client = createTrustedClientSocketFactory();
+			client.setSessionCacheSize(10);
+			client.setSessionTimeout(60);
+			for (int i = 0; i < count; i++) {
+				Socket socket = client.createClientSocket();
+				socket.connect(new InetSocketAddress("localhost", myPort));
+				socket.setSoTimeout(5000);
+				socket.getOutputStream().write('A' + i);
+				socket.getOutputStream().flush();
+				assertEquals('A' + i, socket.getInputStream().read());
+				socket.close();
+			}
+
+			// Handshake listeners are notified on a separate thread
+			TlsHandshakeMetrics metrics = client.getHandshakeMetrics();
+			for (int i = 0; i < 50 && metrics.getHandshakeCount() < count; i++) {
+				Thread.sleep(100);
+			}
+
+			ourLog.info("Handshakes: {}, average {}ms", metrics, metrics.getAverageHandshakeTimeMillis());
+			assertEquals(count, metrics.getHandshakeCount());
+			assertEquals(1, metrics.getFullHandshakeCount());
+			assertEquals(count - 1, metrics.getResumedHandshakeCount());
+		} finally {
+			responder.join(5000);
+			serverSocket.close();
+		}
+	}
+
 	public static CustomCertificateTlsSocketFactory createNonTrustedClientSocketFactory() {
 		CustomCertificateTlsSocketFactory goodClient = new CustomCertificateTlsSocketFactory();
 		goodClient.setKeystoreFilename("src/test/resources/truststore2.jks");
@@ -0,0 +1,69 @@
+package ca.uhn.hl7v2.hoh.util;
+
+import java.lang.management.ManagementFactory;
+
+/**
+ * Reports the number of bytes allocated on the heap by threads, for
+ * benchmarks. This relies on the HotSpot extension to
+ * {@link java.lang.management.ThreadMXBean}, and reports -1 on JVMs which
+ * don't provide it.
+ */
+public class AllocationCounter {
+
+	private static final com.sun.management.ThreadMXBean ourThreadBean;
+
+	static {
+		java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+		if (bean instanceof com.sun.management.ThreadMXBean && ((com.sun.management.ThreadMXBean) bean).isThreadAllocatedMemorySupported()) {
+			ourThreadBean = (com.sun.management.ThreadMXBean) bean;
+			ourThreadBean.setThreadAllocatedMemoryEnabled(true);
+		} else {
+			ourThreadBean = null;
+		}
+	}
+
+	/**
+	 * Non instantiable
+	 */
+	private AllocationCounter() {
+		super();
+	}
+
+	/**
+	 * Returns the total bytes allocated so far by all live threads, or -1 if
+	 * this is not supported. Bytes allocated by threads which have ended are
+	 * not included, so this should be compared before and after a period in
+	 * which the threads doing the work stay alive.
+	 */
+	public static long getAllThreadsAllocatedBytes() {
+		if (ourThreadBean == null) {
+			return -1;
+		}
+		long total = 0;
+		for (long next : ourThreadBean.getThreadAllocatedBytes(ourThreadBean.getAllThreadIds())) {
+			if (next > 0) {
+				total += next;
+			}
+		}
+		return total;
+	}
+
+	/**
+	 * Returns the total bytes allocated so far by the current thread, or -1
+	 * if this is not supported
+	 */
+	public static long getCurrentThreadAllocatedBytes() {
+		if (ourThreadBean == null) {
+			return -1;
+		}
+		return ourThreadBean.getThreadAllocatedBytes(Thread.currentThread().getId());
+	}
+
+	/**
+	 * Returns <code>true</code> if allocations can be counted on this JVM
+	 */
+	public static boolean isSupported() {
+		return ourThreadBean != null;
+	}
+
+}
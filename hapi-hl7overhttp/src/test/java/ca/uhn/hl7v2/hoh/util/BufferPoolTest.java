@@ -0,0 +1,77 @@
+package ca.uhn.hl7v2.hoh.util;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+
+import org.junit.Test;
+
+public class BufferPoolTest {
+
+	@Test
+	public void testAcquireAndRelease() {
+		BufferPool pool = new BufferPool(64 * 1024);
+
+		byte[] buffer = pool.acquire(5000);
+		assertEquals(8192, buffer.length);
+		assertEquals(0, pool.getRetainedBytes());
+
+		pool.release(buffer);
+		assertEquals(8192, pool.getRetainedBytes());
+		assertSame(buffer, pool.acquire(8000));
+		assertEquals(0, pool.getRetainedBytes());
+
+		// Not from the pool
+		pool.release(new byte[5000]);
+		pool.release(new byte[BufferPool.MAX_POOLED_BUFFER_SIZE * 2]);
+		assertEquals(0, pool.getRetainedBytes());
+	}
+
+	@Test
+	public void testReleaseWhenFull() {
+		BufferPool pool = new BufferPool(16 * 1024);
+
+		pool.release(pool.acquire(8192));
+		pool.release(pool.acquire(8192));
+		pool.release(new byte[8192]);
+		assertEquals(16 * 1024, pool.getRetainedBytes());
+	}
+
+	@Test
+	public void testPooledByteArrayOutputStream() throws Exception {
+		BufferPool pool = new BufferPool(1024 * 1024);
+
+		byte[] input = new byte[20000];
+		for (int i = 0; i < input.length; i++) {
+			input[i] = (byte) i;
+		}
+
+		PooledByteArrayOutputStream bos = new PooledByteArrayOutputStream(pool, 10);
+		bos.write(input, 0, 100);
+		bos.readFully(new ByteArrayInputStream(input, 100, input.length - 100));
+		assertEquals(input.length, bos.size());
+		assertArrayEquals(input, bos.toByteArray());
+		assertTrue(bos.getBuffer().length >= input.length);
+
+		// Smaller buffers were returned to the pool as the stream grew
+		assertEquals(4096 + 8192 + 16384, pool.getRetainedBytes());
+
+		bos.release();
+		assertEquals(0, bos.size());
+		assertEquals(4096 + 8192 + 16384 + 32768, pool.getRetainedBytes());
+	}
+
+	@Test
+	public void testGZipRoundTrip() throws Exception {
+		StringBuilder b = new StringBuilder();
+		while (b.length() < 100000) {
+			b.append("NTE|||This is a comment\r");
+		}
+		byte[] input = b.toString().getBytes("UTF-8");
+
+		byte[] compressed = GZipUtils.compress(input);
+		assertTrue(compressed.length < input.length);
+		assertArrayEquals(input, GZipUtils.uncompress(compressed));
+	}
+
+}
@@ -0,0 +1,119 @@
+package ca.uhn.hl7v2.hoh.util;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+import org.junit.Test;
+
+import ca.uhn.hl7v2.util.Hl7InputStreamMessageStringIterator;
+
+public class CompressionDictionaryTest {
+
+	private static String createMessage(int theIndex) {
+		return "MSH|^~\\&|HIS|UHN|LABADT|UHN|20120101" + (100000 + theIndex) + "||ADT^A01^ADT_A01|" + theIndex + "|P|2.5\r" + // -
+				"EVN|A01|20120101" + (100000 + theIndex) + "\r" + // -
+				"PID|1||" + (7000000 + theIndex * 37) + "^^^UHN^MR||Smith" + theIndex + "^John^Q^^^^L||19700101|M|||" + theIndex + " Main Street^^Toronto^ON^M5G 2C4^CAN^H||(416)555-" + (1000 + theIndex) + "^PRN^PH\r" + // -
+				"PV1|1|I|4N^401^1^UHN^^^^^|||||1234^Welby^Marcus^^^Dr.|||MED|||||||||" + (9000 + theIndex) + "^^^UHN^VN|||||||||||||||||||||||||20120101" + (100000 + theIndex) + "\r";
+	}
+
+	private static CompressionDictionary createDictionary() {
+		CompressionDictionaryBuilder builder = new CompressionDictionaryBuilder();
+		for (int i = 0; i < 50; i++) {
+			builder.addMessage(createMessage(i));
+		}
+		return builder.build();
+	}
+
+	@Test
+	public void testBuildFromIterator() throws Exception {
+		StringBuilder file = new StringBuilder();
+		for (int i = 0; i < 10; i++) {
+			file.append(createMessage(i)).append("\n");
+		}
+
+		CompressionDictionaryBuilder builder = new CompressionDictionaryBuilder();
+		builder.setMaxSize(1024);
+		builder.addMessages(new Hl7InputStreamMessageStringIterator(new ByteArrayInputStream(file.toString().getBytes("UTF-8"))));
+		assertEquals(10, builder.getMessageCount());
+
+		CompressionDictionary dictionary = builder.build();
+		String contents = new String(dictionary.getBytes(), "UTF-8");
+		assertTrue(dictionary.getBytes().length <= 1024);
+		assertTrue(contents, contents.contains("\rPV1|"));
+		assertTrue(contents, contents.contains("|ADT^A01^ADT_A01"));
+		assertFalse(contents, contents.contains("Smith1^"));
+	}
+
+	@Test
+	public void testCompressesSmallMessagesBetterThanGZip() throws Exception {
+		CompressionDictionary dictionary = createDictionary();
+
+		byte[] message = createMessage(1000).getBytes("UTF-8");
+		byte[] compressed = dictionary.compress(message, 0, message.length);
+		byte[] gzipped = GZipUtils.compress(message);
+		assertTrue(compressed.length + " vs " + gzipped.length, compressed.length < gzipped.length * 3 / 4);
+
+		PooledByteArrayOutputStream uncompressed = dictionary.uncompress(compressed, 0, compressed.length);
+		assertEquals(createMessage(1000), uncompressed.toString("UTF-8"));
+		uncompressed.release();
+	}
+
+	@Test
+	public void testIdAndLoad() throws Exception {
+		CompressionDictionary dictionary = createDictionary();
+		assertTrue(dictionary.getId(), dictionary.getId().matches("[0-9a-f]{8}"));
+
+		CompressionDictionary loaded = CompressionDictionary.load(new ByteArrayInputStream(dictionary.getBytes()));
+		assertEquals(dictionary.getId(), loaded.getId());
+
+		CompressionDictionaryRegistry registry = new CompressionDictionaryRegistry();
+		registry.register(loaded);
+		assertSame(loaded, registry.get(dictionary.getId().toUpperCase()));
+		assertNull(registry.get("00000000"));
+	}
+
+	@Test
+	public void testUncompressStream() throws Exception {
+		CompressionDictionary dictionary = createDictionary();
+		byte[] message = createMessage(1000).getBytes("UTF-8");
+		byte[] compressed = dictionary.compress(message, 0, message.length);
+
+		// A small buffer means the compressed data arrives in several pieces
+		InputStream is = dictionary.newInputStream(new ByteArrayInputStream(compressed), 16);
+		ByteArrayOutputStream uncompressed = new ByteArrayOutputStream();
+		IOUtils.copy(is, uncompressed);
+		is.close();
+		assertEquals(createMessage(1000), uncompressed.toString("UTF-8"));
+
+		CompressionDictionary other = new CompressionDictionary("|ADT^A01|".getBytes("UTF-8"));
+		is = other.newInputStream(new ByteArrayInputStream(compressed), 16);
+		try {
+			IOUtils.copy(is, new ByteArrayOutputStream());
+			fail();
+		} catch (IOException e) {
+			assertTrue(e.getMessage(), e.getMessage().contains(dictionary.getId()));
+		} finally {
+			is.close();
+		}
+	}
+
+	@Test
+	public void testWrongDictionaryRejected() throws Exception {
+		CompressionDictionary dictionary = createDictionary();
+		CompressionDictionary other = new CompressionDictionary("|ADT^A01|".getBytes("UTF-8"));
+
+		byte[] message = createMessage(1000).getBytes("UTF-8");
+		byte[] compressed = dictionary.compress(message, 0, message.length);
+		try {
+			other.uncompress(compressed, 0, compressed.length);
+			fail();
+		} catch (IOException e) {
+			assertTrue(e.getMessage(), e.getMessage().contains(dictionary.getId()));
+		}
+	}
+
+}
@@ -0,0 +1,140 @@
+package ca.uhn.hl7v2.hoh.util;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import org.junit.Test;
+
+public class GZipUtilsTest {
+
+	private static byte[] createInput() throws IOException {
+		StringBuilder b = new StringBuilder();
+		while (b.length() < 100000) {
+			b.append("NTE|||This is comment number ").append(b.length()).append("\r");
+		}
+		return b.toString().getBytes("UTF-8");
+	}
+
+	@Test
+	public void testCompatibleWithJdkStreams() throws Exception {
+		byte[] input = createInput();
+
+		GZIPInputStream gis = new GZIPInputStream(new ByteArrayInputStream(GZipUtils.compress(input)));
+		ByteArrayOutputStream bos = new ByteArrayOutputStream();
+		IOUtils.copy(gis, bos);
+		assertArrayEquals(input, bos.toByteArray());
+
+		bos = new ByteArrayOutputStream();
+		GZIPOutputStream gos = new GZIPOutputStream(bos);
+		gos.write(input);
+		gos.close();
+		assertArrayEquals(input, GZipUtils.uncompress(bos.toByteArray()));
+	}
+
+	@Test
+	public void testUncompressWithOptionalHeaderFields() throws Exception {
+		byte[] compressed = GZipUtils.compress("MSH|^~\\&|\r".getBytes("UTF-8"));
+
+		// Add FEXTRA, FNAME and FCOMMENT fields after the fixed header
+		ByteArrayOutputStream bos = new ByteArrayOutputStream();
+		bos.write(compressed, 0, 10);
+		bos.write(new byte[] { 3, 0, 'a', 'b', 'c' });
+		bos.write("name.hl7\0".getBytes("ISO-8859-1"));
+		bos.write("comment\0".getBytes("ISO-8859-1"));
+		bos.write(compressed, 10, compressed.length - 10);
+		byte[] withFields = bos.toByteArray();
+		withFields[3] = 4 | 8 | 16;
+
+		assertEquals("MSH|^~\\&|\r", new String(GZipUtils.uncompress(withFields), "UTF-8"));
+	}
+
+	@Test
+	public void testUncompressConcatenatedMembers() throws Exception {
+		byte[] first = "MSH|^~\\&|\r".getBytes("UTF-8");
+		byte[] second = createInput();
+
+		ByteArrayOutputStream bos = new ByteArrayOutputStream();
+		bos.write(GZipUtils.compress(first));
+		GZIPOutputStream gos = new GZIPOutputStream(bos);
+		gos.write(second);
+		gos.close();
+
+		ByteArrayOutputStream expected = new ByteArrayOutputStream();
+		expected.write(first);
+		expected.write(second);
+		assertArrayEquals(expected.toByteArray(), GZipUtils.uncompress(bos.toByteArray()));
+
+		// Garbage after the first member is not silently dropped
+		bos = new ByteArrayOutputStream();
+		bos.write(GZipUtils.compress(first));
+		bos.write("garbage".getBytes("ISO-8859-1"));
+		try {
+			GZipUtils.uncompress(bos.toByteArray());
+			fail();
+		} catch (IOException e) {
+			// expected
+		}
+	}
+
+	@Test
+	public void testUncompressRejectsCorruptData() throws Exception {
+		byte[] compressed = GZipUtils.compress(createInput());
+
+		byte[] badCrc = compressed.clone();
+		badCrc[badCrc.length - 5]++;
+		try {
+			GZipUtils.uncompress(badCrc);
+			fail();
+		} catch (IOException e) {
+			assertTrue(e.getMessage(), e.getMessage().contains("CRC"));
+		}
+
+		byte[] truncated = new byte[compressed.length / 2];
+		System.arraycopy(compressed, 0, truncated, 0, truncated.length);
+		try {
+			GZipUtils.uncompress(truncated);
+			fail();
+		} catch (IOException e) {
+			// expected
+		}
+	}
+
+	@Test
+	public void testCodersAreReused() throws Exception {
+		byte[] input = createInput();
+
+		// Make sure there is something in each pool
+		GZipUtils.uncompress(GZipUtils.compress(input));
+		int deflaters = GZipUtils.getPooledDeflaterCount();
+		int inflaters = GZipUtils.getPooledInflaterCount();
+		assertTrue(deflaters > 0);
+		assertTrue(inflaters > 0);
+
+		for (int i = 0; i < 100; i++) {
+			assertArrayEquals(input, GZipUtils.uncompress(GZipUtils.compress(input)));
+		}
+		assertEquals(deflaters, GZipUtils.getPooledDeflaterCount());
+		assertEquals(inflaters, GZipUtils.getPooledInflaterCount());
+	}
+
+	@Test
+	public void testWriteAfterFinish() throws Exception {
+		PooledGZipOutputStream gos = new PooledGZipOutputStream(new ByteArrayOutputStream());
+		gos.write(1);
+		gos.finish();
+		gos.finish();
+		try {
+			gos.write(2);
+			fail();
+		} catch (IOException e) {
+			// expected
+		}
+		gos.close();
+	}
+
+}
@@ -0,0 +1,33 @@
+package ca.uhn.hl7v2.hoh.util;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+public class HttpDateCacheTest {
+
+	@Test
+	public void testFormat() {
+		HttpDateCache cache = new HttpDateCache();
+		assertEquals("Sun, 06 Nov 1994 08:49:37 GMT", cache.getValue(784111777000L));
+		assertEquals("Sun, 06 Nov 1994 08:49:37 GMT", cache.getValue(784111777999L));
+		assertEquals("Sun, 06 Nov 1994 08:49:38 GMT", cache.getValue(784111778000L));
+	}
+
+	@Test
+	public void testCachedWithinSameSecond() {
+		HttpDateCache cache = new HttpDateCache();
+		String value = cache.getValue(784111777000L);
+		assertSame(value, cache.getValue(784111777500L));
+		assertNotSame(value, cache.getValue(784111778000L));
+	}
+
+	@Test
+	public void testOlderTimeDoesNotReplaceCachedValue() {
+		HttpDateCache cache = new HttpDateCache();
+		String value = cache.getValue(784111778000L);
+		assertEquals("Sun, 06 Nov 1994 08:49:37 GMT", cache.getValue(784111777000L));
+		assertSame(value, cache.getValue(784111778000L));
+	}
+
+}
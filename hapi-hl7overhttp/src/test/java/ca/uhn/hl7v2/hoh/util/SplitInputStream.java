@@ -96,14 +96,14 @@ public class SplitInputStream extends InputStream {
 		throw new UnsupportedOperationException();
 	}
 
-	/*
-	 * (non-Javadoc)
-	 * 
-	 * @see java.io.InputStream#markSupported()
+	/**
+	 * The decoder asks every stream whether it supports marking, in order to
+	 * choose between reading the head in bulk and reading it a byte at a
+	 * time, so this must answer rather than throw
 	 */
 	@Override
 	public boolean markSupported() {
-		throw new UnsupportedOperationException();
+		return false;
 	}
 
 	@Override